@@ -30,6 +30,7 @@ package gov.nist.core;
 import java.lang.reflect.*;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
 * The base class from which all the other classes in the
@@ -137,6 +138,95 @@ public abstract class GenericObject implements Serializable, Cloneable {
 
     }
 
+    /*
+     * The declared fields that the introspection based equals, match and
+     * merge methods look at, per class. Class.getDeclaredFields copies the
+     * array on every call and these methods run for every message. Only the
+     * field lists are cached, the comparisons themselves stay introspective.
+     */
+    private static final ConcurrentHashMap<Class<?>, Field[]> matchFields =
+        new ConcurrentHashMap<Class<?>, Field[]>();
+
+    private static final ConcurrentHashMap<Class<?>, Field[]> mergeFields =
+        new ConcurrentHashMap<Class<?>, Field[]>();
+
+    /**
+     * Get the declared fields of a class that equals and match compare:
+     * the ones that are not private, less the pretty printing book-keeping
+     * fields. The fields are made accessible so that equals and match in
+     * any package can read them through primitiveFieldEquals. The returned
+     * array is shared and must not be changed.
+     */
+    protected static Field[] getMatchFields(Class<?> myclass) {
+        Field[] fields = matchFields.get(myclass);
+        if (fields == null) {
+            ArrayList<Field> list = new ArrayList<Field>();
+            Field[] declared = myclass.getDeclaredFields();
+            for (int i = 0; i < declared.length; i++) {
+                Field f = declared[i];
+                if ((f.getModifiers() & Modifier.PRIVATE) == Modifier.PRIVATE)
+                    continue;
+                String fieldName = f.getName();
+                if (fieldName.equals("stringRepresentation")
+                        || fieldName.equals("indentation"))
+                    continue;
+                f.setAccessible(true);
+                list.add(f);
+            }
+            fields = list.toArray(new Field[list.size()]);
+            matchFields.put(myclass, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Get the declared fields of a class that merge copies: the ones that
+     * are neither private nor static. The returned array is shared and must
+     * not be changed.
+     */
+    protected static Field[] getMergeFields(Class<?> myclass) {
+        Field[] fields = mergeFields.get(myclass);
+        if (fields == null) {
+            ArrayList<Field> list = new ArrayList<Field>();
+            Field[] declared = myclass.getDeclaredFields();
+            for (int i = 0; i < declared.length; i++) {
+                int modifier = declared[i].getModifiers();
+                if (Modifier.isPrivate(modifier) || Modifier.isStatic(modifier)
+                        || Modifier.isInterface(modifier))
+                    continue;
+                list.add(declared[i]);
+            }
+            fields = list.toArray(new Field[list.size()]);
+            mergeFields.put(myclass, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Compare a primitive field of two objects of the same class. Fields of
+     * a type that is not handled here (byte) are not compared. The field
+     * must come from getMatchFields.
+     */
+    protected static boolean primitiveFieldEquals(Field f, Object a, Object b)
+        throws IllegalAccessException {
+        Class<?> fieldType = f.getType();
+        if (fieldType == Integer.TYPE)
+            return f.getInt(a) == f.getInt(b);
+        else if (fieldType == Short.TYPE)
+            return f.getShort(a) == f.getShort(b);
+        else if (fieldType == Character.TYPE)
+            return f.getChar(a) == f.getChar(b);
+        else if (fieldType == Long.TYPE)
+            return f.getLong(a) == f.getLong(b);
+        else if (fieldType == Boolean.TYPE)
+            return f.getBoolean(a) == f.getBoolean(b);
+        else if (fieldType == Double.TYPE)
+            return f.getDouble(a) == f.getDouble(b);
+        else if (fieldType == Float.TYPE)
+            return f.getFloat(a) == f.getFloat(b);
+        return true;
+    }
+
     /** Clones the given object.
      *  If the object is a wrapped type, an array, a GenericObject
      *  or a GenericObjectList, it is cast to the appropriate type
@@ -224,43 +314,27 @@ public abstract class GenericObject implements Serializable, Cloneable {
                         
         Class<?> myclass = this.getClass();
         while (true) {
-            Field[] fields = myclass.getDeclaredFields();
+            Field[] fields = getMergeFields(myclass);
             for (int i = 0; i < fields.length; i++) {
                 Field f = fields[i];
-                int modifier = f.getModifiers();
-                if (Modifier.isPrivate(modifier)) {
-                    continue;
-                } else if (Modifier.isStatic(modifier)) {
-                    continue;
-                } else if (Modifier.isInterface(modifier)) {
-                    continue;
-                }
                 Class<?> fieldType = f.getType();
-                String fname = fieldType.toString();
                 try {
-                    // Primitive fields are printed with type: value
+                    // Primitive fields are copied with the typed accessors.
                     if (fieldType.isPrimitive()) {
-                        if (fname.compareTo("int") == 0) {
-                            int intfield = f.getInt(mergeObject);
-                            f.setInt(this, intfield);
-                        } else if (fname.compareTo("short") == 0) {
-                            short shortField = f.getShort(mergeObject);
-                            f.setShort(this, shortField);
-                        } else if (fname.compareTo("char") == 0) {
-                            char charField = f.getChar(mergeObject);
-                            f.setChar(this, charField);
-                        } else if (fname.compareTo("long") == 0) {
-                            long longField = f.getLong(mergeObject);
-                            f.setLong(this, longField);
-                        } else if (fname.compareTo("boolean") == 0) {
-                            boolean booleanField = f.getBoolean(mergeObject);
-                            f.setBoolean(this, booleanField);
-                        } else if (fname.compareTo("double") == 0) {
-                            double doubleField = f.getDouble(mergeObject);
-                            f.setDouble(this, doubleField);
-                        } else if (fname.compareTo("float") == 0) {
-                            float floatField = f.getFloat(mergeObject);
-                            f.setFloat(this, floatField);
+                        if (fieldType == Integer.TYPE) {
+                            f.setInt(this, f.getInt(mergeObject));
+                        } else if (fieldType == Short.TYPE) {
+                            f.setShort(this, f.getShort(mergeObject));
+                        } else if (fieldType == Character.TYPE) {
+                            f.setChar(this, f.getChar(mergeObject));
+                        } else if (fieldType == Long.TYPE) {
+                            f.setLong(this, f.getLong(mergeObject));
+                        } else if (fieldType == Boolean.TYPE) {
+                            f.setBoolean(this, f.getBoolean(mergeObject));
+                        } else if (fieldType == Double.TYPE) {
+                            f.setDouble(this, f.getDouble(mergeObject));
+                        } else if (fieldType == Float.TYPE) {
+                            f.setFloat(this, f.getFloat(mergeObject));
                         }
                     } else {
                         Object obj = f.get(this);
@@ -411,60 +485,25 @@ public abstract class GenericObject implements Serializable, Cloneable {
         if (!this.getClass().equals(that.getClass()))
             return false;
         Class<?> myclass = this.getClass();
-        Class<?> hisclass = that.getClass();
         while (true) {
-            Field[] fields = myclass.getDeclaredFields();
-            Field[] hisfields = hisclass.getDeclaredFields();
+            Field[] fields = getMatchFields(myclass);
             for (int i = 0; i < fields.length; i++) {
                 Field f = fields[i];
-                Field g = hisfields[i];
-                // Only print protected and public members.
-                int modifier = f.getModifiers();
-                if ((modifier & Modifier.PRIVATE) == Modifier.PRIVATE)
-                    continue;
-                Class<?> fieldType = f.getType();
-                String fieldName = f.getName();
-                if (fieldName.compareTo("stringRepresentation") == 0) {
-                    continue;
-                }
-                if (fieldName.compareTo("indentation") == 0) {
-                    continue;
-                }
                 try {
-                    // Primitive fields are printed with type: value
-                    if (fieldType.isPrimitive()) {
-                        String fname = fieldType.toString();
-                        if (fname.compareTo("int") == 0) {
-                            if (f.getInt(this) != g.getInt(that))
-                                return false;
-                        } else if (fname.compareTo("short") == 0) {
-                            if (f.getShort(this) != g.getShort(that))
-                                return false;
-                        } else if (fname.compareTo("char") == 0) {
-                            if (f.getChar(this) != g.getChar(that))
-                                return false;
-                        } else if (fname.compareTo("long") == 0) {
-                            if (f.getLong(this) != g.getLong(that))
-                                return false;
-                        } else if (fname.compareTo("boolean") == 0) {
-                            if (f.getBoolean(this) != g.getBoolean(that))
-                                return false;
-                        } else if (fname.compareTo("double") == 0) {
-                            if (f.getDouble(this) != g.getDouble(that))
-                                return false;
-                        } else if (fname.compareTo("float") == 0) {
-                            if (f.getFloat(this) != g.getFloat(that))
-                                return false;
-                        }
-                    } else if (g.get(that) == f.get(this))
+                    if (f.getType().isPrimitive()) {
+                        if (!primitiveFieldEquals(f, this, that))
+                            return false;
+                        continue;
+                    }
+                    Object myObj = f.get(this);
+                    Object hisObj = f.get(that);
+                    if (hisObj == myObj)
                         return true;
-                    else if (f.get(this) == null)
+                    else if (myObj == null)
                         return false;
-                    else if (g.get(that) == null)
+                    else if (hisObj == null)
                         return false;
-                    else if (g.get(that) == null && f.get(this) != null)
-                        return false;
-                    else if (!f.get(this).equals(g.get(that)))
+                    else if (!myObj.equals(hisObj))
                         return false;
                 } catch (IllegalAccessException ex1) {
                     InternalErrorHandler.handleException(ex1);
@@ -474,7 +513,6 @@ public abstract class GenericObject implements Serializable, Cloneable {
                 break;
             else {
                 myclass = myclass.getSuperclass();
-                hisclass = hisclass.getSuperclass();
             }
 
         }
@@ -496,54 +534,16 @@ public abstract class GenericObject implements Serializable, Cloneable {
         if (!this.getClass().equals(other.getClass()))
             return false;
         GenericObject that = (GenericObject) other;
-        Class<?> myclass = this.getClass();
-        Field[] fields = myclass.getDeclaredFields();
-        Class<?> hisclass = other.getClass();
-        Field[] hisfields = hisclass.getDeclaredFields();
+        Field[] fields = getMatchFields(this.getClass());
         for (int i = 0; i < fields.length; i++) {
             Field f = fields[i];
-            Field g = hisfields[i];
-            // Only print protected and public members.
-            int modifier = f.getModifiers();
-            if ((modifier & Modifier.PRIVATE) == Modifier.PRIVATE)
-                continue;
-            Class<?> fieldType = f.getType();
-            String fieldName = f.getName();
-            if (fieldName.compareTo("stringRepresentation") == 0) {
-                continue;
-            }
-            if (fieldName.compareTo("indentation") == 0) {
-                continue;
-            }
             try {
-                // Primitive fields are printed with type: value
-                if (fieldType.isPrimitive()) {
-                    String fname = fieldType.toString();
-                    if (fname.compareTo("int") == 0) {
-                        if (f.getInt(this) != g.getInt(that))
-                            return false;
-                    } else if (fname.compareTo("short") == 0) {
-                        if (f.getShort(this) != g.getShort(that))
-                            return false;
-                    } else if (fname.compareTo("char") == 0) {
-                        if (f.getChar(this) != g.getChar(that))
-                            return false;
-                    } else if (fname.compareTo("long") == 0) {
-                        if (f.getLong(this) != g.getLong(that))
-                            return false;
-                    } else if (fname.compareTo("boolean") == 0) {
-                        if (f.getBoolean(this) != g.getBoolean(that))
-                            return false;
-                    } else if (fname.compareTo("double") == 0) {
-                        if (f.getDouble(this) != g.getDouble(that))
-                            return false;
-                    } else if (fname.compareTo("float") == 0) {
-                        if (f.getFloat(this) != g.getFloat(that))
-                            return false;
-                    }
+                if (f.getType().isPrimitive()) {
+                    if (!primitiveFieldEquals(f, this, that))
+                        return false;
                 } else {
                     Object myObj = f.get(this);
-                    Object hisObj = g.get(that);
+                    Object hisObj = f.get(that);
                     if (hisObj != null && myObj == null)
                         return false;
                     else if (hisObj == null && myObj != null)
@@ -0,0 +1,152 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations with power of two buckets. Recording a value is
+ * two atomic adds on cells private to a group of threads (see
+ * {@link StripedCounter}) and a read of the maximum, so it can be done on
+ * every message. Percentiles are reported as the upper bound of the bucket
+ * they fall in, so they are accurate to within a factor of two.
+ *
+ * @since 2.0
+ */
+public class LatencyHistogram {
+
+    /*
+     * Bucket i holds the durations d (in nanoseconds) with 2^(i-1) <= d < 2^i,
+     * bucket 0 holds zero. The sum of the durations is kept after the buckets.
+     */
+    private static final int BUCKETS = 64;
+
+    private static final int SUM = BUCKETS;
+
+    private static final int ROW = BUCKETS + StripedCounter.PADDING;
+
+    private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * ROW);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos -- the duration in nanoseconds. Negative values count as
+     *        zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        int row = StripedCounter.stripe() * ROW;
+        cells.getAndIncrement(row + 64 - Long.numberOfLeadingZeros(nanos));
+        cells.getAndAdd(row + SUM, nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    /**
+     * Record the time elapsed since a call to System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the number of durations recorded.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < StripedCounter.STRIPES; i++) {
+            for (int b = 0; b < BUCKETS; b++)
+                count += cells.get(i * ROW + b);
+        }
+        return count;
+    }
+
+    /**
+     * @return the mean duration in microseconds, 0 if nothing was recorded.
+     */
+    public double getMeanMicros() {
+        long count = 0;
+        long sum = 0;
+        for (int i = 0; i < StripedCounter.STRIPES; i++) {
+            for (int b = 0; b < BUCKETS; b++)
+                count += cells.get(i * ROW + b);
+            sum += cells.get(i * ROW + SUM);
+        }
+        return count == 0 ? 0 : sum / 1000.0 / count;
+    }
+
+    /**
+     * @return the longest duration recorded in microseconds.
+     */
+    public double getMaxMicros() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * Estimate a percentile.
+     *
+     * @param percentile -- between 0 and 100.
+     * @return the upper bound in microseconds of the bucket holding the
+     *         percentile, 0 if nothing was recorded.
+     */
+    public double getPercentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < StripedCounter.STRIPES; i++) {
+            for (int b = 0; b < BUCKETS; b++) {
+                long n = cells.get(i * ROW + b);
+                counts[b] += n;
+                count += n;
+            }
+        }
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank)
+                return b == 0 ? 0 : Math.min((1L << b) - 1, max.get()) / 1000.0;
+        }
+        return getMaxMicros();
+    }
+
+    public String toString() {
+        return "count=" + getCount() + " mean=" + getMeanMicros() + "us p50="
+                + getPercentileMicros(50) + "us p99=" + getPercentileMicros(99)
+                + "us max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.core;
+
+import gov.nist.javax.sip.message.SIPMessage;
+
+/**
+ * Server logger that can be handed the bytes a message was sent as, so that
+ * it does not have to encode the message again.
+ *
+ * @since 2.0
+ */
+public interface ServerLoggerExt extends ServerLogger {
+
+    /**
+     * Log a message that was sent (or received) as the given bytes.
+     *
+     * @param message the message.
+     * @param encoded the bytes of the message as they went on the wire. The
+     *            logger must not keep a reference to the array.
+     * @param from the address:port the message comes from.
+     * @param to the address:port the message goes to.
+     * @param sender true if the stack sent the message.
+     * @param time the time at which the message was sent (or received).
+     */
+    void logMessage(SIPMessage message, byte[] encoded, String from, String to,
+            boolean sender, long time);
+
+}
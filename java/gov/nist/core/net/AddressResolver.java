@@ -54,6 +54,16 @@ public interface AddressResolver {
      * The default implementation is just an identity mapping
      * (returns the argument).
      *
+     * When the request URI has no port, the router passes the resolvers of
+     * the stack (DefaultAddressResolver and CachingAddressResolver) a port
+     * of -1, so that they may locate the server with SRV records (RFC 3263).
+     * A resolver registered by the application gets the default port of the
+     * transport (5060, or 5061 for TLS) filled in, as before. A hop returned
+     * with a port of -1 gets the default port of its transport.
+     * The top Via of an incoming request is only passed to resolvers
+     * registered by the application; the resolvers of the stack are not
+     * consulted on the threads that read the network.
+     *
      * @param hop - an incoming Hop containing a potenitally unresolved address.
      * @return a new hop ( if the address is recomputed ) or the original hop
      * if this is just an identity mapping ( the default behavior ).
@@ -0,0 +1,511 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.core.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A small DNS client that speaks the wire protocol (RFC 1035) to one server.
+ * It knows the record types a SIP stack needs to locate a server (RFC 3263):
+ * A, AAAA, CNAME, SRV (RFC 2782) and NAPTR (RFC 3403). The platform resolver
+ * can only look up addresses, and JNDI DNS is not available everywhere (not
+ * on Android), so this is what the caching address resolver uses when it is
+ * given a DNS server. Queries go over UDP with recursion desired, and are
+ * repeated over TCP when the answer comes back truncated.
+ *
+ * @see gov.nist.javax.sip.CachingAddressResolver
+ */
+public class DnsClient {
+
+    public static final int A = 1;
+
+    public static final int CNAME = 5;
+
+    public static final int SOA = 6;
+
+    public static final int AAAA = 28;
+
+    public static final int SRV = 33;
+
+    public static final int NAPTR = 35;
+
+    /** Response codes. */
+    public static final int NOERROR = 0;
+
+    public static final int SERVFAIL = 2;
+
+    public static final int NXDOMAIN = 3;
+
+    private static final int CLASS_IN = 1;
+
+    private static final int MAX_UDP_SIZE = 4096;
+
+    private final InetSocketAddress server;
+
+    private final int timeout;
+
+    private final int attempts;
+
+    private final Random random = new Random();
+
+    /**
+     * A resource record from the answer section of a response.
+     */
+    public static class Record {
+        private String name;
+
+        private int type;
+
+        private long ttl;
+
+        private InetAddress address;
+
+        private String target;
+
+        private int priority;
+
+        private int weight;
+
+        private int port;
+
+        private String flags;
+
+        private String service;
+
+        private String regexp;
+
+        /** The owner name, lower case and without the trailing dot. */
+        public String getName() {
+            return name;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        /** Time to live in seconds. */
+        public long getTtl() {
+            return ttl;
+        }
+
+        /** The address of an A or AAAA record. */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * The target of an SRV record, the replacement of a NAPTR record or
+         * the canonical name of a CNAME record.
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /** The priority of an SRV record or the order of a NAPTR record. */
+        public int getPriority() {
+            return priority;
+        }
+
+        /** The weight of an SRV record or the preference of a NAPTR record. */
+        public int getWeight() {
+            return weight;
+        }
+
+        /** The port of an SRV record. */
+        public int getPort() {
+            return port;
+        }
+
+        /** The flags of a NAPTR record, for example "s". */
+        public String getFlags() {
+            return flags;
+        }
+
+        /** The service of a NAPTR record, for example "SIP+D2U". */
+        public String getService() {
+            return service;
+        }
+
+        public String getRegexp() {
+            return regexp;
+        }
+
+        public String toString() {
+            switch (type) {
+            case A:
+            case AAAA:
+                return name + " " + ttl + " " + address.getHostAddress();
+            case SRV:
+                return name + " " + ttl + " SRV " + priority + " " + weight + " " + port + " "
+                        + target;
+            case NAPTR:
+                return name + " " + ttl + " NAPTR " + priority + " " + weight + " \"" + flags
+                        + "\" \"" + service + "\" \"" + regexp + "\" " + target;
+            default:
+                return name + " " + ttl + " " + type + " " + target;
+            }
+        }
+
+        /** An A or AAAA record. */
+        public static Record address(String name, long ttl, InetAddress address) {
+            Record r = new Record(name, address.getAddress().length == 4 ? A : AAAA, ttl);
+            r.address = address;
+            return r;
+        }
+
+        /** An SRV record. */
+        public static Record srv(String name, long ttl, int priority, int weight, int port,
+                String target) {
+            Record r = new Record(name, SRV, ttl);
+            r.priority = priority;
+            r.weight = weight;
+            r.port = port;
+            r.target = normalize(target);
+            return r;
+        }
+
+        /** A NAPTR record. */
+        public static Record naptr(String name, long ttl, int order, int preference,
+                String flags, String service, String regexp, String replacement) {
+            Record r = new Record(name, NAPTR, ttl);
+            r.priority = order;
+            r.weight = preference;
+            r.flags = flags;
+            r.service = service;
+            r.regexp = regexp;
+            r.target = normalize(replacement);
+            return r;
+        }
+
+        private Record(String name, int type, long ttl) {
+            this.name = normalize(name);
+            this.type = type;
+            this.ttl = ttl;
+        }
+    }
+
+    /**
+     * The response to a query.
+     */
+    public static class Response {
+        private int rcode;
+
+        private List<Record> records = new ArrayList<Record>();
+
+        private long negativeTtl = -1;
+
+        /** The response code, NOERROR or NXDOMAIN for an authoritative answer. */
+        public int getRcode() {
+            return rcode;
+        }
+
+        /** The answer section, CNAME records included. */
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        /**
+         * How long a negative answer may be cached, the minimum of the SOA
+         * record in the authority section (RFC 2308), or -1 if there was none.
+         */
+        public long getNegativeTtl() {
+            return negativeTtl;
+        }
+    }
+
+    /**
+     * @param server the DNS server to ask.
+     * @param timeout how long to wait for each answer in milliseconds.
+     * @param attempts how many times to send a query before giving up.
+     */
+    public DnsClient(InetSocketAddress server, int timeout, int attempts) {
+        this.server = server;
+        this.timeout = timeout;
+        this.attempts = Math.max(1, attempts);
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    /**
+     * Ask the server for the records of the given type.
+     *
+     * @param name the name to look up.
+     * @param type one of A, AAAA, SRV, NAPTR or CNAME.
+     * @return the response, which may be NXDOMAIN or have no records.
+     * @throws IOException if the server did not answer, or answered with an
+     *         error other than NXDOMAIN.
+     */
+    public Response query(String name, int type) throws IOException {
+        int id;
+        synchronized (random) {
+            id = random.nextInt(0x10000);
+        }
+        byte[] query = encodeQuery(id, name, type);
+        byte[] answer = null;
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(timeout);
+            DatagramPacket request = new DatagramPacket(query, query.length, server);
+            byte[] buffer = new byte[MAX_UDP_SIZE];
+            for (int i = 0; i < attempts && answer == null; i++) {
+                socket.send(request);
+                long deadline = System.currentTimeMillis() + timeout;
+                try {
+                    while (answer == null) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        // Anything that is not the answer to this query is dropped.
+                        if (packet.getLength() >= 12 && packet.getAddress().equals(server.getAddress())
+                                && ((buffer[0] & 0xff) << 8 | (buffer[1] & 0xff)) == id) {
+                            answer = new byte[packet.getLength()];
+                            System.arraycopy(buffer, 0, answer, 0, answer.length);
+                        } else {
+                            int left = (int) (deadline - System.currentTimeMillis());
+                            if (left <= 0)
+                                throw new SocketTimeoutException();
+                            socket.setSoTimeout(left);
+                        }
+                    }
+                } catch (SocketTimeoutException ex) {
+                    socket.setSoTimeout(timeout);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        if (answer == null)
+            throw new SocketTimeoutException("No answer from " + server + " for " + name);
+        if ((answer[2] & 0x02) != 0)
+            answer = queryTcp(query);
+        return decodeResponse(answer, id);
+    }
+
+    private byte[] queryTcp(byte[] query) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(server, timeout);
+            socket.setSoTimeout(timeout);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(query.length);
+            out.write(query);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] answer = new byte[in.readUnsignedShort()];
+            in.readFully(answer);
+            return answer;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] encodeQuery(int id, String name, int type) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(id);
+        out.writeShort(0x0100); // standard query, recursion desired
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        String n = normalize(name);
+        if (n.length() > 0) {
+            for (String label : n.split("\\.")) {
+                byte[] b = label.getBytes("US-ASCII");
+                if (b.length == 0 || b.length > 63)
+                    throw new IOException("Bad name " + name);
+                out.writeByte(b.length);
+                out.write(b);
+            }
+        }
+        out.writeByte(0);
+        out.writeShort(type);
+        out.writeShort(CLASS_IN);
+        return bytes.toByteArray();
+    }
+
+    private static Response decodeResponse(byte[] msg, int id) throws IOException {
+        Cursor c = new Cursor(msg);
+        if (c.u16() != id)
+            throw new IOException("Response id mismatch");
+        int flags = c.u16();
+        Response response = new Response();
+        response.rcode = flags & 0x0f;
+        if (response.rcode != NOERROR && response.rcode != NXDOMAIN)
+            throw new IOException("DNS server answered with rcode " + response.rcode);
+        int qd = c.u16();
+        int an = c.u16();
+        int ns = c.u16();
+        c.u16();
+        for (int i = 0; i < qd; i++) {
+            c.name();
+            c.skip(4);
+        }
+        for (int i = 0; i < an + ns; i++) {
+            String name = c.name();
+            int type = c.u16();
+            c.u16();
+            long ttl = c.u32();
+            int length = c.u16();
+            int end = c.pos + length;
+            if (end > msg.length)
+                throw new IOException("Truncated record");
+            Record r = new Record(name, type, ttl);
+            if (i >= an) {
+                if (type == SOA) {
+                    // The negative TTL is the lesser of the SOA TTL and its minimum field.
+                    c.name();
+                    c.name();
+                    c.skip(16);
+                    response.negativeTtl = Math.min(ttl, c.u32());
+                }
+            } else if (type == A && length == 4 || type == AAAA && length == 16) {
+                byte[] addr = new byte[length];
+                System.arraycopy(msg, c.pos, addr, 0, length);
+                r.address = InetAddress.getByAddress(name, addr);
+                response.records.add(r);
+            } else if (type == CNAME) {
+                r.target = c.name();
+                response.records.add(r);
+            } else if (type == SRV) {
+                r.priority = c.u16();
+                r.weight = c.u16();
+                r.port = c.u16();
+                r.target = c.name();
+                response.records.add(r);
+            } else if (type == NAPTR) {
+                r.priority = c.u16();
+                r.weight = c.u16();
+                r.flags = c.string();
+                r.service = c.string();
+                r.regexp = c.string();
+                r.target = c.name();
+                response.records.add(r);
+            }
+            c.pos = end;
+        }
+        return response;
+    }
+
+    /**
+     * Lower case a name and strip the trailing dot.
+     */
+    static String normalize(String name) {
+        String n = name.toLowerCase();
+        return n.endsWith(".") ? n.substring(0, n.length() - 1) : n;
+    }
+
+    /**
+     * Reads a message, following name compression pointers.
+     */
+    private static class Cursor {
+        private final byte[] msg;
+
+        private int pos;
+
+        Cursor(byte[] msg) {
+            this.msg = msg;
+        }
+
+        private void check(int n) throws IOException {
+            if (pos + n > msg.length)
+                throw new IOException("Truncated DNS message");
+        }
+
+        int u8() throws IOException {
+            check(1);
+            return msg[pos++] & 0xff;
+        }
+
+        int u16() throws IOException {
+            return u8() << 8 | u8();
+        }
+
+        long u32() throws IOException {
+            return (long) u16() << 16 | u16();
+        }
+
+        void skip(int n) throws IOException {
+            check(n);
+            pos += n;
+        }
+
+        String string() throws IOException {
+            int length = u8();
+            check(length);
+            String s = new String(msg, pos, length, "US-ASCII");
+            pos += length;
+            return s;
+        }
+
+        String name() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int p = pos;
+            int jumps = 0;
+            boolean jumped = false;
+            while (true) {
+                if (p >= msg.length)
+                    throw new IOException("Truncated DNS name");
+                int length = msg[p] & 0xff;
+                if ((length & 0xc0) == 0xc0) {
+                    if (p + 1 >= msg.length || ++jumps > 64)
+                        throw new IOException("Bad DNS name pointer");
+                    if (!jumped)
+                        pos = p + 2;
+                    jumped = true;
+                    p = (length & 0x3f) << 8 | (msg[p + 1] & 0xff);
+                } else if (length == 0) {
+                    if (!jumped)
+                        pos = p + 1;
+                    return normalize(sb.toString());
+                } else {
+                    if (p + 1 + length > msg.length)
+                        throw new IOException("Truncated DNS label");
+                    if (sb.length() > 0)
+                        sb.append('.');
+                    sb.append(new String(msg, p + 1, length, "US-ASCII"));
+                    p += 1 + length;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,715 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip;
+
+import gov.nist.core.StackLogger;
+import gov.nist.core.net.AddressResolver;
+import gov.nist.core.net.DnsClient;
+import gov.nist.core.net.DnsClient.Record;
+import gov.nist.javax.sip.stack.HopImpl;
+import gov.nist.javax.sip.stack.MessageProcessor;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.address.Hop;
+
+/**
+ * An address resolver that locates SIP servers with the procedures of RFC
+ * 3263 and caches what it finds. A hop whose host is a name is turned into a
+ * hop whose host is an IP address, so that the stack never has to look a name
+ * up again when it sends. For a name without a port the NAPTR records of the
+ * domain pick the SRV name for the transport of the hop, the SRV records are
+ * tried by priority and weight (RFC 2782), and the domain itself on the
+ * default port is the last resort. A name with an explicit port is only
+ * looked up for its addresses.
+ * <p>
+ * Answers, positive and negative, are kept for their TTL, bounded by
+ * {@link #setMinTtl(int)} and {@link #setMaxTtl(int)}. Negative answers are
+ * kept for at most {@link #setNegativeTtl(int)} seconds. A positive answer
+ * that has expired is still handed out while it is refreshed in the
+ * background. Concurrent lookups of the same record share a single query.
+ * <p>
+ * Targets the stack could not reach are reported with
+ * {@link #markFailed(Hop)} and are tried last for
+ * {@link #setFailoverTime(int)} seconds, so the next request for the same
+ * name goes to the next server in line.
+ * <p>
+ * Records come from a static hosts file if one is loaded, then from the DNS
+ * server given to the constructor. Without a DNS server, addresses come from
+ * the platform resolver and there are no SRV or NAPTR records other than the
+ * ones in the hosts file. The hosts file has one record per line, with
+ * <code>#</code> starting a comment:
+ * <pre>
+ * 192.0.2.10 proxy1.example.com proxy.example.com
+ * _sip._udp.example.com SRV 10 60 5060 proxy1.example.com
+ * example.com NAPTR 10 50 s SIP+D2U "" _sip._udp.example.com
+ * </pre>
+ * The stack installs this resolver when it is configured with
+ * gov.nist.javax.sip.DNS_SERVER, gov.nist.javax.sip.DNS_HOSTS_FILE or
+ * gov.nist.javax.sip.DNS_CACHE.
+ *
+ * @see gov.nist.javax.sip.SipStackImpl
+ * @see gov.nist.core.net.DnsClient
+ * @since 2.0
+ */
+public class CachingAddressResolver implements AddressResolver {
+
+    /** Pseudo record type for the A and AAAA records of a name. */
+    private static final int ADDRESSES = 0;
+
+    /** TTL of the answers of the platform resolver, which does not tell. */
+    public static final int PLATFORM_TTL = 60;
+
+    private final DnsClient dnsClient;
+
+    private final Map<String, List<Record>> hosts = new ConcurrentHashMap<String, List<Record>>();
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    private final ConcurrentHashMap<String, FutureTask<Entry>> pending = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    private final ConcurrentHashMap<String, Long> failedTargets = new ConcurrentHashMap<String, Long>();
+
+    private final ThreadPoolExecutor executor;
+
+    private final Random random = new Random();
+
+    private StackLogger stackLogger;
+
+    private int minTtl = 0;
+
+    private int maxTtl = 3600;
+
+    private int negativeTtl = 30;
+
+    private int failoverTime = 30;
+
+    private int lookupTimeout = 5000;
+
+    private int maxEntries = 10000;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong staleHits = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * A cached answer. No records means a negative answer.
+     */
+    private static class Entry {
+        final List<Record> records;
+
+        final long expires;
+
+        Entry(List<Record> records, long expires) {
+            this.records = records;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A resolver that uses the platform resolver for addresses. This is the
+     * constructor used when the class is given as
+     * gov.nist.javax.sip.ADDRESS_RESOLVER.
+     */
+    public CachingAddressResolver() {
+        this(null);
+    }
+
+    /**
+     * @param dnsClient the client for the DNS server to ask, or null to use
+     *        the platform resolver.
+     */
+    public CachingAddressResolver(DnsClient dnsClient) {
+        this.dnsClient = dnsClient;
+        this.executor = new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "AddressResolver-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setStackLogger(StackLogger stackLogger) {
+        this.stackLogger = stackLogger;
+    }
+
+    /** Answers are kept for at least this many seconds. Default is 0. */
+    public void setMinTtl(int seconds) {
+        this.minTtl = seconds;
+    }
+
+    /** Answers are kept for at most this many seconds. Default is 3600. */
+    public void setMaxTtl(int seconds) {
+        this.maxTtl = seconds;
+    }
+
+    /** Negative answers are kept for at most this many seconds. Default is 30. */
+    public void setNegativeTtl(int seconds) {
+        this.negativeTtl = seconds;
+    }
+
+    /**
+     * How long a target reported with {@link #markFailed(Hop)} is tried last,
+     * in seconds. Default is 30.
+     */
+    public void setFailoverTime(int seconds) {
+        this.failoverTime = seconds;
+    }
+
+    /**
+     * How long a caller waits for a lookup started by another thread, in
+     * milliseconds. Default is 5000.
+     */
+    public void setLookupTimeout(int millis) {
+        this.lookupTimeout = millis;
+    }
+
+    /** How many answers to keep. Default is 10000. */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Load static records, which take precedence over DNS and never expire.
+     *
+     * @param fileName the hosts file.
+     * @throws IOException if the file cannot be read or has a bad line.
+     */
+    public void loadHostsFile(String fileName) throws IOException {
+        FileReader reader = new FileReader(fileName);
+        try {
+            loadHosts(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Load static records in the format of the hosts file.
+     */
+    public void loadHosts(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int hash = line.indexOf('#');
+            if (hash >= 0)
+                line = line.substring(0, hash);
+            String[] f = line.trim().split("\\s+");
+            if (f.length < 2)
+                continue;
+            try {
+                if (f[1].equalsIgnoreCase("SRV") && f.length == 6) {
+                    addHost(key(DnsClient.SRV, f[0]), Record.srv(f[0], 0, Integer.parseInt(f[2]), Integer
+                            .parseInt(f[3]), Integer.parseInt(f[4]), f[5]));
+                } else if (f[1].equalsIgnoreCase("NAPTR") && f.length == 8) {
+                    addHost(key(DnsClient.NAPTR, f[0]), Record.naptr(f[0], 0, Integer.parseInt(f[2]), Integer
+                            .parseInt(f[3]), unquote(f[4]), unquote(f[5]), unquote(f[6]), f[7]));
+                } else if (isNumeric(f[0])) {
+                    InetAddress address = InetAddress.getByName(f[0]);
+                    for (int i = 1; i < f.length; i++)
+                        addHost(key(ADDRESSES, f[i]), Record.address(f[i], 0, address));
+                } else {
+                    throw new IOException("Bad line " + lineNumber + " in hosts file: " + line);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad number on line " + lineNumber + " in hosts file: " + line);
+            }
+        }
+    }
+
+    private static String key(int type, String name) {
+        String n = name.toLowerCase();
+        if (n.endsWith("."))
+            n = n.substring(0, n.length() - 1);
+        return type + " " + n;
+    }
+
+    private static String unquote(String s) {
+        return s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"") ? s.substring(1, s
+                .length() - 1) : s;
+    }
+
+    private void addHost(String key, Record record) {
+        List<Record> records = hosts.get(key);
+        if (records == null) {
+            records = new ArrayList<Record>();
+            hosts.put(key, records);
+        }
+        records.add(record);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see gov.nist.core.net.AddressResolver#resolveAddress(javax.sip.address.Hop)
+     */
+    public Hop resolveAddress(Hop hop) {
+        List<Hop> hops = resolveHops(hop);
+        if (!hops.isEmpty())
+            return hops.get(0);
+        // Nothing found. Hand the hop back, the send will fail on the name.
+        if (hop.getPort() != -1)
+            return hop;
+        String transport = hop.getTransport() == null ? "UDP" : hop.getTransport();
+        return new HopImpl(hop.getHost(), MessageProcessor.getDefaultPort(transport),
+                hop.getTransport());
+    }
+
+    /**
+     * Resolve a hop without blocking the caller.
+     *
+     * @return the result of {@link #resolveHops(Hop)}.
+     */
+    public Future<List<Hop>> resolveAsync(final Hop hop) {
+        return executor.submit(new Callable<List<Hop>>() {
+            public List<Hop> call() {
+                return resolveHops(hop);
+            }
+        });
+    }
+
+    /**
+     * Find all the targets for a hop, in the order they should be tried
+     * (RFC 3263 section 4). The hosts of the hops returned are IP addresses.
+     * Targets that were reported failed come last.
+     *
+     * @return the targets, empty if the name could not be resolved.
+     */
+    public List<Hop> resolveHops(Hop hop) {
+        String host = hop.getHost();
+        String transport = hop.getTransport() == null ? "UDP" : hop.getTransport();
+        List<Hop> hops = new ArrayList<Hop>();
+        if (isNumeric(host)) {
+            hops.add(hop.getPort() != -1 ? hop : new HopImpl(host, MessageProcessor
+                    .getDefaultPort(transport), transport));
+            return hops;
+        }
+        if (hop.getPort() != -1) {
+            addHops(hops, host, hop.getPort(), transport);
+        } else {
+            boolean foundSrv = false;
+            for (String srvName : getSrvNames(host, transport)) {
+                List<Record> srvs = lookup(DnsClient.SRV, srvName);
+                if (!srvs.isEmpty())
+                    foundSrv = true;
+                for (Record srv : orderSrv(srvs)) {
+                    // A target of "." means the service is not available at this domain.
+                    if (srv.getTarget().length() > 0)
+                        addHops(hops, srv.getTarget(), srv.getPort(), transport);
+                }
+            }
+            if (!foundSrv)
+                addHops(hops, host, MessageProcessor.getDefaultPort(transport), transport);
+        }
+        if (hops.size() > 1 && !failedTargets.isEmpty()) {
+            List<Hop> failed = new ArrayList<Hop>();
+            long now = System.currentTimeMillis();
+            for (Iterator<Hop> it = hops.iterator(); it.hasNext();) {
+                Hop h = it.next();
+                Long until = failedTargets.get(targetKey(h));
+                if (until != null && until.longValue() > now) {
+                    it.remove();
+                    failed.add(h);
+                }
+            }
+            hops.addAll(failed);
+        }
+        if (hops.isEmpty() && stackLogger != null && stackLogger.isLoggingEnabled())
+            stackLogger.logDebug("CachingAddressResolver: no target for " + hop);
+        return hops;
+    }
+
+    /**
+     * Report that a target resolved by this resolver did not answer. It is
+     * tried last for the failover time.
+     */
+    public void markFailed(Hop hop) {
+        if (hop == null || failoverTime <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        if (failedTargets.size() > maxEntries) {
+            for (Iterator<Long> it = failedTargets.values().iterator(); it.hasNext();) {
+                if (it.next().longValue() <= now)
+                    it.remove();
+            }
+        }
+        failedTargets.put(targetKey(hop), Long.valueOf(now + failoverTime * 1000L));
+        if (stackLogger != null && stackLogger.isLoggingEnabled())
+            stackLogger.logDebug("CachingAddressResolver: target failed " + hop);
+    }
+
+    private static String targetKey(Hop hop) {
+        String transport = hop.getTransport() == null ? "UDP" : hop.getTransport().toUpperCase();
+        return hop.getHost() + ":" + hop.getPort() + "/" + transport;
+    }
+
+    /**
+     * Look up an address through the cache.
+     *
+     * @throws UnknownHostException if the name has no address.
+     */
+    public InetAddress getInetAddress(String host) throws UnknownHostException {
+        if (isNumeric(host))
+            return InetAddress.getByName(host);
+        List<Record> records = lookup(ADDRESSES, host);
+        if (records.isEmpty())
+            throw new UnknownHostException(host);
+        return records.get(0).getAddress();
+    }
+
+    private void addHops(List<Hop> hops, String target, int port, String transport) {
+        for (Record record : lookup(ADDRESSES, target)) {
+            Hop hop = new HopImpl(record.getAddress().getHostAddress(), port, transport);
+            boolean found = false;
+            for (Hop h : hops)
+                found |= h.getHost().equals(hop.getHost()) && h.getPort() == port;
+            if (!found)
+                hops.add(hop);
+        }
+    }
+
+    /**
+     * The SRV names to try for a domain: the replacements of its NAPTR
+     * records for the transport, or the SRV name of the transport if there
+     * are none (RFC 3263 section 4.1).
+     */
+    private List<String> getSrvNames(String domain, String transport) {
+        String service;
+        String prefix;
+        if (transport.equalsIgnoreCase("TLS")) {
+            service = "SIPS+D2T";
+            prefix = "_sips._tcp.";
+        } else if (transport.equalsIgnoreCase("TCP")) {
+            service = "SIP+D2T";
+            prefix = "_sip._tcp.";
+        } else if (transport.equalsIgnoreCase("SCTP")) {
+            service = "SIP+D2S";
+            prefix = "_sip._sctp.";
+        } else {
+            service = "SIP+D2U";
+            prefix = "_sip._udp.";
+        }
+        List<Record> naptrs = new ArrayList<Record>();
+        for (Record naptr : lookup(DnsClient.NAPTR, domain)) {
+            if (naptr.getFlags().equalsIgnoreCase("s")
+                    && naptr.getService().equalsIgnoreCase(service))
+                naptrs.add(naptr);
+        }
+        Collections.sort(naptrs, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                if (a.getPriority() != b.getPriority())
+                    return a.getPriority() - b.getPriority();
+                return a.getWeight() - b.getWeight();
+            }
+        });
+        List<String> names = new ArrayList<String>();
+        for (Record naptr : naptrs) {
+            if (!names.contains(naptr.getTarget()))
+                names.add(naptr.getTarget());
+        }
+        if (names.isEmpty())
+            names.add(prefix + domain);
+        return names;
+    }
+
+    /**
+     * Order SRV records by priority, and within a priority by a weighted
+     * random selection (RFC 2782).
+     */
+    private List<Record> orderSrv(List<Record> srvs) {
+        List<Record> sorted = new ArrayList<Record>(srvs);
+        Collections.sort(sorted, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                if (a.getPriority() != b.getPriority())
+                    return a.getPriority() - b.getPriority();
+                // Zero weights first, as the selection below expects.
+                return (a.getWeight() == 0 ? 0 : 1) - (b.getWeight() == 0 ? 0 : 1);
+            }
+        });
+        List<Record> ordered = new ArrayList<Record>(sorted.size());
+        int i = 0;
+        while (i < sorted.size()) {
+            int j = i;
+            while (j < sorted.size() && sorted.get(j).getPriority() == sorted.get(i).getPriority())
+                j++;
+            List<Record> group = new ArrayList<Record>(sorted.subList(i, j));
+            while (!group.isEmpty()) {
+                int total = 0;
+                for (Record r : group)
+                    total += r.getWeight();
+                int pick;
+                synchronized (random) {
+                    pick = random.nextInt(total + 1);
+                }
+                int sum = 0;
+                for (Iterator<Record> it = group.iterator(); it.hasNext();) {
+                    Record r = it.next();
+                    sum += r.getWeight();
+                    if (sum >= pick) {
+                        ordered.add(r);
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            i = j;
+        }
+        return ordered;
+    }
+
+    /**
+     * Get records through the cache. An expired positive answer is returned
+     * while it is refreshed in the background, for up to the maximum TTL
+     * after it expired.
+     */
+    private List<Record> lookup(final int type, final String name) {
+        final String key = key(type, name);
+        List<Record> records = hosts.get(key);
+        if (records != null)
+            return records;
+        Entry entry = cache.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            if (now < entry.expires) {
+                hits.incrementAndGet();
+                return entry.records;
+            }
+            if (!entry.records.isEmpty() && now < entry.expires + maxTtl * 1000L) {
+                staleHits.incrementAndGet();
+                if (!pending.containsKey(key)) {
+                    try {
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                fetch(key, type, name);
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        // Stopped, the stale answer is all there is.
+                    }
+                }
+                return entry.records;
+            }
+        }
+        misses.incrementAndGet();
+        return fetch(key, type, name).records;
+    }
+
+    /**
+     * Query for a record, or wait for the query another thread already
+     * started. The query runs in the calling thread.
+     */
+    private Entry fetch(final String key, final int type, final String name) {
+        FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+            public Entry call() {
+                return query(key, type, name);
+            }
+        });
+        FutureTask<Entry> running = pending.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+            running = task;
+        } else {
+            coalesced.incrementAndGet();
+        }
+        try {
+            return running.get(lookupTimeout, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            if (stackLogger != null && stackLogger.isLoggingEnabled())
+                stackLogger.logDebug("CachingAddressResolver: gave up waiting for " + key);
+            return new Entry(Collections.<Record> emptyList(), 0);
+        }
+    }
+
+    private Entry query(String key, int type, String name) {
+        List<Record> records = new ArrayList<Record>();
+        long ttl = Long.MAX_VALUE;
+        long negative = negativeTtl;
+        try {
+            if (dnsClient == null) {
+                if (type == ADDRESSES) {
+                    try {
+                        for (InetAddress address : InetAddress.getAllByName(name))
+                            records.add(Record.address(name, PLATFORM_TTL, address));
+                    } catch (UnknownHostException ex) {
+                        // negative answer
+                    }
+                }
+            } else {
+                int[] types = type == ADDRESSES ? new int[] { DnsClient.A, DnsClient.AAAA }
+                        : new int[] { type };
+                for (int t : types) {
+                    DnsClient.Response response = dnsClient.query(name, t);
+                    for (Record record : response.getRecords()) {
+                        if (record.getType() == t) {
+                            records.add(record);
+                            ttl = Math.min(ttl, record.getTtl());
+                        }
+                    }
+                    if (response.getNegativeTtl() >= 0)
+                        negative = Math.min(negative, response.getNegativeTtl());
+                    // There is no AAAA record for a name that does not exist.
+                    if (response.getRcode() == DnsClient.NXDOMAIN)
+                        break;
+                }
+            }
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            if (stackLogger != null && stackLogger.isLoggingEnabled())
+                stackLogger.logDebug("CachingAddressResolver: lookup of " + key + " failed: "
+                        + ex.getMessage());
+            // Keep serving what was known before the server stopped answering.
+            Entry old = cache.get(key);
+            if (old != null && !old.records.isEmpty())
+                return old;
+            records.clear();
+        }
+        if (records.isEmpty())
+            ttl = negative;
+        else if (ttl == Long.MAX_VALUE)
+            ttl = PLATFORM_TTL;
+        ttl = Math.max(minTtl, Math.min(maxTtl, ttl));
+        Entry entry = new Entry(records, System.currentTimeMillis() + ttl * 1000L);
+        if (cache.size() >= maxEntries)
+            purge();
+        cache.put(key, entry);
+        if (stackLogger != null && stackLogger.isLoggingEnabled())
+            stackLogger.logDebug("CachingAddressResolver: " + key + " -> " + records + " for "
+                    + ttl + "s");
+        return entry;
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+            if (it.next().expires <= now)
+                it.remove();
+        }
+        // Still full of live answers: make room regardless.
+        for (Iterator<Entry> it = cache.values().iterator(); it.hasNext()
+                && cache.size() >= maxEntries;) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * True if the host is an IPv4 or IPv6 address rather than a name.
+     */
+    static boolean isNumeric(String host) {
+        if (host.indexOf(':') >= 0)
+            return true;
+        int dots = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '.')
+                dots++;
+            else if (c < '0' || c > '9')
+                return false;
+        }
+        return dots == 3;
+    }
+
+    /** Forget all cached answers and failed targets. */
+    public void clear() {
+        cache.clear();
+        failedTargets.clear();
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getCoalescedLookups() {
+        return coalesced.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Stop the background refresh threads. The stack calls this when it is
+     * stopped. Lookups still work afterwards but run in the calling thread,
+     * and {@link #resolveAsync(Hop)} is rejected.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+}
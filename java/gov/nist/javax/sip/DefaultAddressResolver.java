@@ -40,9 +40,10 @@ import gov.nist.javax.sip.stack.MessageProcessor;
  * implementation is a passthrough. It only gets involved in setting the default port. However, you
  * can register your own AddressResolver implementation
  * Note that
- * The RI checks incoming via headers for resolving the sentBy field. If you want to set it to
- * some address that cannot be resolved you should register an AddressResolver with the stack.
- * This feature is also useful for DNS SRV lookup which is not implemented by the RI at present.
+ * the stack does not pass the sentBy field of incoming via headers to this resolver, it takes the
+ * default port of the transport itself. A resolver registered by the application is still
+ * consulted for it, so if you want to map it to some other address you should register an
+ * AddressResolver with the stack. For DNS SRV lookups see CachingAddressResolver.
  *
  * @version 1.2
  * @since 1.2
@@ -26,6 +26,11 @@
 package gov.nist.javax.sip;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import gov.nist.javax.sip.stack.*;
 import gov.nist.javax.sip.message.*;
 import javax.sip.message.*;
@@ -43,19 +48,46 @@ import gov.nist.core.ThreadAuditor;
  *
  *
  */
-class EventScanner implements Runnable {
+class EventScanner {
 
-    private boolean isStopped;
+    private volatile boolean isStopped;
 
     private int refCount;
 
-    // SIPquest: Fix for deadlocks
-    private LinkedList pendingEvents = new LinkedList();
-
     private int[] eventMutex = { 0 };
 
     private SipStackImpl sipStack;
 
+    /*
+     * One queue and thread per dispatcher. Events for a Call-ID always go to
+     * the same dispatcher so they reach the listener in order.
+     */
+    private Dispatcher[] dispatchers;
+
+    /*
+     * Number of events handed to the listener.
+     */
+    private AtomicLong deliveredEventCount = new AtomicLong(0);
+
+    /*
+     * Total and largest time (in nanoseconds) that an event waited in a queue.
+     */
+    private AtomicLong totalDeliveryLatency = new AtomicLong(0);
+
+    private AtomicLong maxDeliveryLatency = new AtomicLong(0);
+
+    /*
+     * Number of requests turned away because a queue stayed full.
+     */
+    private AtomicLong droppedEventCount = new AtomicLong(0);
+
+    /*
+     * Max time in milliseconds that a stack thread waits for room in a full
+     * queue before it turns a request away or puts any other event over the
+     * limit.
+     */
+    private int queueTimeout;
+
     public void incrementRefcount() {
         synchronized (eventMutex) {
             this.refCount++;
@@ -63,32 +95,47 @@ class EventScanner implements Runnable {
     }
 
     public EventScanner(SipStackImpl sipStackImpl) {
-        this.pendingEvents = new LinkedList();
-        Thread myThread = new Thread(this);
-        // This needs to be set to false else the
-        // main thread mysteriously exits.
-        myThread.setDaemon(false);
+        this(sipStackImpl, sipStackImpl.eventScannerThreads,
+                sipStackImpl.eventQueueSize);
+    }
 
+    /**
+     * Create the scanner and start its dispatcher threads.
+     *
+     * @param sipStackImpl -- the stack.
+     * @param nthreads -- number of dispatcher threads.
+     * @param queueSize -- number of events each dispatcher may hold.
+     */
+    public EventScanner(SipStackImpl sipStackImpl, int nthreads, int queueSize) {
         this.sipStack = sipStackImpl;
-
-        myThread.setName("EventScannerThread");
-
-        myThread.start();
-
+        this.queueTimeout = sipStackImpl.eventQueueTimeout;
+        this.dispatchers = new Dispatcher[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            this.dispatchers[i] = new Dispatcher(queueSize);
+        }
+        for (int i = 0; i < nthreads; i++) {
+            Thread myThread = new Thread(this.dispatchers[i]);
+            // This needs to be set to false else the
+            // main thread mysteriously exits.
+            myThread.setDaemon(false);
+            myThread.setName(nthreads == 1 ? "EventScannerThread"
+                    : "EventScannerThread-" + i);
+            this.dispatchers[i].thread = myThread;
+            myThread.start();
+        }
     }
 
     public void addEvent(EventWrapper eventWrapper) {
     	if (sipStack.isLoggingEnabled())
     		sipStack.getStackLogger().logDebug("addEvent " + eventWrapper);
-        synchronized (this.eventMutex) {
-
-            pendingEvents.add(eventWrapper);
-
-            // Add the event into the pending events list
-
-            eventMutex.notify();
+        Dispatcher dispatcher = this.dispatchers[0];
+        if (this.dispatchers.length > 1) {
+            String callId = eventWrapper.getCallId();
+            if (callId != null)
+                dispatcher = this.dispatchers[(callId.hashCode() & 0x7fffffff)
+                        % this.dispatchers.length];
         }
-
+        dispatcher.addEvent(eventWrapper);
     }
 
     /**
@@ -104,7 +151,7 @@ class EventScanner implements Runnable {
 
             if (this.refCount == 0) {
                 isStopped = true;
-                eventMutex.notify();
+                wakeUpDispatchers();
 
             }
         }
@@ -119,11 +166,140 @@ class EventScanner implements Runnable {
         synchronized (this.eventMutex) {
             this.isStopped = true;
             this.refCount = 0;
-            this.eventMutex.notify();
+            wakeUpDispatchers();
         }
 
     }
 
+    private void wakeUpDispatchers() {
+        for (int i = 0; i < dispatchers.length; i++) {
+            dispatchers[i].eventsAvailable.release();
+        }
+    }
+
+    /**
+     * Get the number of events waiting in all the queues.
+     */
+    public int getPendingEventCount() {
+        int count = 0;
+        for (int i = 0; i < dispatchers.length; i++) {
+            count += dispatchers[i].queueSize.get();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of events waiting in the longest queue.
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (int i = 0; i < dispatchers.length; i++) {
+            max = Math.max(max, dispatchers[i].queueSize.get());
+        }
+        return max;
+    }
+
+    /**
+     * Get the number of dispatcher threads.
+     */
+    public int getDispatcherCount() {
+        return dispatchers.length;
+    }
+
+    /**
+     * Get the number of events that were delivered from the queues.
+     */
+    public long getDeliveredEventCount() {
+        return deliveredEventCount.get();
+    }
+
+    /**
+     * Get the number of requests turned away because a queue stayed full.
+     */
+    public long getDroppedEventCount() {
+        return droppedEventCount.get();
+    }
+
+    /**
+     * Return true if the calling thread is one of the dispatcher threads.
+     */
+    private boolean isDispatcherThread() {
+        Thread current = Thread.currentThread();
+        for (int i = 0; i < dispatchers.length; i++) {
+            if (dispatchers[i].thread == current)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the event may be dropped when its queue stays full: a
+     * request that starts a server transaction, which can be turned away with
+     * a 503. Responses, timeouts, terminations and ACKs carry state the
+     * application must see, they are never dropped.
+     */
+    private static boolean isSheddable(EventWrapper eventWrapper) {
+        return eventWrapper.sipEvent instanceof RequestEvent
+                && eventWrapper.transaction instanceof SIPServerTransaction
+                && !((RequestEvent) eventWrapper.sipEvent).getRequest().getMethod()
+                        .equals(Request.ACK);
+    }
+
+    /**
+     * Turn away a request that found no room in its queue. It is answered
+     * with 503 so that the client does not wait for the transaction to time
+     * out, and the transaction is released as if the listener had seen the
+     * event.
+     */
+    private void dropEvent(EventWrapper eventWrapper) {
+        droppedEventCount.incrementAndGet();
+        RequestEvent requestEvent = (RequestEvent) eventWrapper.sipEvent;
+        SIPServerTransaction st = (SIPServerTransaction) eventWrapper.transaction;
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "Event queue full -- turning away " + requestEvent);
+        SIPRequest request = (SIPRequest) requestEvent.getRequest();
+        try {
+            st.sendResponse(request.createResponse(Response.SERVICE_UNAVAILABLE));
+        } catch (Exception ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug(
+                        "Could not send 503 -- " + ex.getMessage());
+        }
+        sipStack.removePendingTransaction(st);
+        if (st.passToListener())
+            st.releaseSem();
+    }
+
+    /**
+     * Get the average time in milliseconds that an event waited in a queue
+     * before it was delivered.
+     */
+    public double getAverageDeliveryLatency() {
+        long count = deliveredEventCount.get();
+        if (count == 0)
+            return 0;
+        return (double) totalDeliveryLatency.get() / count / 1000000.0;
+    }
+
+    /**
+     * Get the longest time in milliseconds that an event waited in a queue
+     * before it was delivered.
+     */
+    public double getMaxDeliveryLatency() {
+        return maxDeliveryLatency.get() / 1000000.0;
+    }
+
+    private void recordDeliveryLatency(long latency) {
+        deliveredEventCount.incrementAndGet();
+        totalDeliveryLatency.addAndGet(latency);
+        long max;
+        while (latency > (max = maxDeliveryLatency.get())) {
+            if (maxDeliveryLatency.compareAndSet(max, latency))
+                break;
+        }
+    }
+
     public void deliverEvent(EventWrapper eventWrapper) {
         EventObject sipEvent = eventWrapper.sipEvent;
         if (sipStack.isLoggingEnabled())
@@ -449,63 +625,118 @@ class EventScanner implements Runnable {
 
     /**
      * For the non-re-entrant listener this delivers the events to the listener
-     * from a single queue. If the listener is re-entrant, then the stack just
+     * from one of the queues. If the listener is re-entrant, then the stack just
      * calls the deliverEvent method above.
      */
+    class Dispatcher implements Runnable {
 
-    public void run() {
-        try {
-            // Ask the auditor to monitor this thread
-            ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
-
-            while (true) {
-                EventWrapper eventWrapper = null;
-
-                LinkedList eventsToDeliver;
-                synchronized (this.eventMutex) {
-                    // First, wait for some events to become available.
-                    while (pendingEvents.isEmpty()) {
-                        // There's nothing in the list, check to make sure we
-                        // haven't
-                        // been stopped. If we have, then let the thread die.
-                        if (this.isStopped) {
+        private ConcurrentLinkedQueue<EventWrapper> pendingEvents;
+
+        private AtomicInteger queueSize;
+
+        /*
+         * One permit per queued event. The dispatcher thread blocks on it.
+         */
+        private Semaphore eventsAvailable;
+
+        /*
+         * One permit per free slot in the queue. Producers wait on it for a
+         * bounded time when the listener falls behind.
+         */
+        private Semaphore queueSlots;
+
+        private Thread thread;
+
+        Dispatcher(int capacity) {
+            this.pendingEvents = new ConcurrentLinkedQueue<EventWrapper>();
+            this.queueSize = new AtomicInteger(0);
+            this.eventsAvailable = new Semaphore(0);
+            this.queueSlots = new Semaphore(capacity);
+        }
+
+        void addEvent(EventWrapper eventWrapper) {
+            // The listener itself may cause events (for example by sending a
+            // request that fails). Never block a dispatcher on a queue, its own
+            // or another one whose dispatcher may be waiting on ours.
+            if (isDispatcherThread()) {
+                eventWrapper.holdsQueueSlot = this.queueSlots.tryAcquire();
+            } else {
+                if (!this.queueSlots.tryAcquire()) {
+                    if (sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logDebug(
+                                "Event queue full -- waiting for the listener");
+                    boolean acquired = false;
+                    try {
+                        acquired = queueTimeout > 0
+                                && this.queueSlots.tryAcquire(queueTimeout,
+                                        TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (!acquired) {
+                        if (isSheddable(eventWrapper)) {
+                            dropEvent(eventWrapper);
+                            return;
+                        }
+                        // Never lose a response or a timeout, go over the limit.
+                        eventWrapper.holdsQueueSlot = false;
+                    } else {
+                        eventWrapper.holdsQueueSlot = true;
+                    }
+                } else {
+                    eventWrapper.holdsQueueSlot = true;
+                }
+            }
+            eventWrapper.enqueueTime = System.nanoTime();
+            this.pendingEvents.offer(eventWrapper);
+            this.queueSize.incrementAndGet();
+            this.eventsAvailable.release();
+        }
+
+        public void run() {
+            try {
+                // Ask the auditor to monitor this thread
+                ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
+
+                while (true) {
+                    EventWrapper eventWrapper = this.pendingEvents.poll();
+                    if (eventWrapper == null) {
+                        // There's nothing in the queue, check to make sure we
+                        // haven't been stopped. If we have, then let the
+                        // thread die.
+                        if (isStopped) {
                             if (sipStack.isLoggingEnabled())
                                 sipStack.getStackLogger().logDebug(
                                         "Stopped event scanner!!");
                             return;
                         }
-
-                        // We haven't been stopped, and the event list is indeed
-                        // rather empty. Wait for some events to come along.
                         try {
                             // Send a heartbeat to the thread auditor
                             threadHandle.ping();
 
                             // Wait for events (with a timeout)
-                            eventMutex.wait(threadHandle.getPingIntervalInMillisecs());
+                            long timeout = threadHandle.getPingIntervalInMillisecs();
+                            if (timeout > 0)
+                                this.eventsAvailable.tryAcquire(timeout,
+                                        TimeUnit.MILLISECONDS);
+                            else
+                                this.eventsAvailable.acquire();
                         } catch (InterruptedException ex) {
                             // Let the thread die a normal death
-                        	if (sipStack.isLoggingEnabled())
-                        		sipStack.getStackLogger().logDebug("Interrupted!");
+                            if (sipStack.isLoggingEnabled())
+                                sipStack.getStackLogger().logDebug("Interrupted!");
                             return;
                         }
+                        continue;
                     }
-
-                    // There are events in the 'pending events list' that need
-                    // processing. Hold onto the old 'pending Events' list, but
-                    // make a new one for the other methods to operate on. This
-                    // tap-dancing is to avoid deadlocks and also to ensure that
-                    // the list is not modified while we are iterating over it.
-                    eventsToDeliver = pendingEvents;
-                    pendingEvents = new LinkedList();
-                }
-                ListIterator iterator = eventsToDeliver.listIterator();
-                while (iterator.hasNext()) {
-                    eventWrapper = (EventWrapper) iterator.next();
+                    this.queueSize.decrementAndGet();
+                    if (eventWrapper.holdsQueueSlot)
+                        this.queueSlots.release();
+                    recordDeliveryLatency(System.nanoTime() - eventWrapper.enqueueTime);
                     if (sipStack.isLoggingEnabled()) {
                         sipStack.getStackLogger().logDebug(
                                 "Processing " + eventWrapper + "nevents "
-                                        + eventsToDeliver.size());
+                                        + this.queueSize.get());
                     }
                     try {
                         deliverEvent(eventWrapper);
@@ -515,12 +746,12 @@ class EventScanner implements Runnable {
                                     "Unexpected exception caught while delivering event -- carrying on bravely", e);
                         }
                     }
-                }
-            } // end While
-        } finally {
-            if (sipStack.isLoggingEnabled()) {
-                if (!this.isStopped) {
-                    sipStack.getStackLogger().logFatalError("Event scanner exited abnormally");
+                } // end While
+            } finally {
+                if (sipStack.isLoggingEnabled()) {
+                    if (!isStopped) {
+                        sipStack.getStackLogger().logFatalError("Event scanner exited abnormally");
+                    }
                 }
             }
         }
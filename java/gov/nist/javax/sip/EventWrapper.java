@@ -26,7 +26,10 @@
 package gov.nist.javax.sip;
 
 import  gov.nist.javax.sip.stack.*;
+import  gov.nist.javax.sip.message.*;
 import  java.util.*;
+import  javax.sip.*;
+import  javax.sip.header.CallIdHeader;
 
 /**
  * @version 1.2 $Revision: 1.6 $ $Date: 2009/07/17 18:57:19 $
@@ -36,9 +39,39 @@ class EventWrapper {
     protected EventObject sipEvent;
     protected SIPTransaction transaction;
 
+    /*
+     * When the event was queued (System.nanoTime) and whether it took one of
+     * the bounded queue slots. Used by the EventScanner.
+     */
+    protected long enqueueTime;
+    protected boolean holdsQueueSlot;
+
     EventWrapper(EventObject sipEvent, SIPTransaction transaction) {
         this.sipEvent = sipEvent;
         this.transaction = transaction;
     }
+
+    /**
+     * Get the Call-ID that the event belongs to.
+     *
+     * @return the call id or null if the event is not tied to a call.
+     */
+    String getCallId() {
+        SIPMessage sipMessage = null;
+        if (transaction != null) {
+            sipMessage = transaction.getOriginalRequest();
+        } else if (sipEvent instanceof RequestEvent) {
+            sipMessage = (SIPMessage) ((RequestEvent) sipEvent).getRequest();
+        } else if (sipEvent instanceof ResponseEvent) {
+            sipMessage = (SIPMessage) ((ResponseEvent) sipEvent).getResponse();
+        } else if (sipEvent instanceof DialogTerminatedEvent) {
+            CallIdHeader callId = ((DialogTerminatedEvent) sipEvent).getDialog()
+                    .getCallId();
+            return callId == null ? null : callId.getCallId();
+        }
+        if (sipMessage == null || sipMessage.getCallId() == null)
+            return null;
+        return sipMessage.getCallId().getCallId();
+    }
 }
 
@@ -27,6 +27,20 @@ public interface ListeningPointExt extends ListeningPoint {
      * @since 2.0
      */
     public void sendHeartbeat(String ipAddress, int port) throws IOException ;
+
+    /**
+     * Keep the TCP or TLS connection to the specified Ip address and port
+     * alive with RFC 5626 double CRLF keep-alives sent by the stack. The
+     * connection is closed if a keep-alive gets no answer within the
+     * keep-alive timeout of the stack. Connections of REGISTERs with a reg-id
+     * Contact parameter get keep-alives without this.
+     *
+     * @param interval -- seconds between keep-alives, 0 for the keep-alive
+     *        interval of the stack, -1 to stop sending them.
+     *
+     * @since 2.0
+     */
+    public void setKeepAlive(String ipAddress, int port, int interval) throws IOException ;
     
     /**
      * Create a Via header for this listening point.
@@ -255,6 +255,17 @@ public class ListeningPointImpl implements javax.sip.ListeningPoint, gov.nist.ja
 
     }
 
+
+    public void setKeepAlive(String ipAddress, int port, int interval) throws IOException {
+
+        HostPort targetHostPort  = new HostPort();
+        targetHostPort.setHost(new Host( ipAddress));
+        targetHostPort.setPort(port);
+        MessageChannel messageChannel = this.messageProcessor.createMessageChannel(targetHostPort);
+        sipStack.getConnectionManager().setKeepAlive(messageChannel, interval);
+
+    }
+
     
     public ViaHeader createViaHeader() {
            return this.getViaHeader();
@@ -36,6 +36,7 @@ import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.CallIdShardExecutor;
 import gov.nist.javax.sip.stack.HopImpl;
 import gov.nist.javax.sip.stack.MessageChannel;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
@@ -53,6 +54,7 @@ import java.util.EventObject;
 import java.util.Iterator;
 import java.util.TooManyListenersException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
@@ -182,14 +184,36 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
             sipStack.getStackLogger().logStackTrace();
         }
 
-        EventWrapper eventWrapper = new EventWrapper(sipEvent, transaction);
+        final EventWrapper eventWrapper = new EventWrapper(sipEvent, transaction);
 
-        if (!sipStack.reEntrantListener) {
-            // Run the event in the context of a single thread.
-            this.eventScanner.addEvent(eventWrapper);
-        } else {
+        CallIdShardExecutor shardExecutor = sipStack.getCallIdShardExecutor();
+        String callId = shardExecutor == null ? null : eventWrapper.getCallId();
+        if (sipStack.reEntrantListener) {
             // just call the delivery method
             this.eventScanner.deliverEvent(eventWrapper);
+        } else if (callId != null) {
+            // Deliver on the shard that owns the call so events for a call
+            // stay in order with the messages of the call.
+            if (shardExecutor.isShardThread(callId)) {
+                this.eventScanner.deliverEvent(eventWrapper);
+            } else {
+                try {
+                    shardExecutor.execute(callId, new Runnable() {
+                        public void run() {
+                            eventScanner.deliverEvent(eventWrapper);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    // The shards are stopping. The listener now runs on the event
+                    // scanner, so the transaction needs its semaphore after all.
+                    if (transaction != null)
+                        transaction.holdBypassedSemaphore();
+                    this.eventScanner.addEvent(eventWrapper);
+                }
+            }
+        } else {
+            // Run the event in the context of a single thread.
+            this.eventScanner.addEvent(eventWrapper);
         }
     }
 
@@ -595,10 +619,10 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
 
                         MessageChannel mc = (MessageChannel) sipRequest
                         .getMessageChannel();
-                        transaction = sipStack.createServerTransaction(mc);
-                        if (transaction == null)
+                        if (sipStack.getAdmissionControl().isServerTransactionTableFull())
                             throw new TransactionUnavailableException(
                             "Transaction unavailable -- too many servrer transactions");
+                        transaction = sipStack.createServerTransaction(mc);
 
                         transaction.setOriginalRequest(sipRequest);
                         sipStack.mapTransaction(transaction);
@@ -28,6 +28,7 @@ package gov.nist.javax.sip;
 import gov.nist.core.ServerLogger;
 import gov.nist.core.StackLogger;
 import gov.nist.core.net.AddressResolver;
+import gov.nist.core.net.DnsClient;
 import gov.nist.core.net.NetworkLayer;
 import gov.nist.core.net.SslNetworkLayer;
 import gov.nist.javax.sip.clientauthutils.AccountManager;
@@ -35,10 +36,16 @@ import gov.nist.javax.sip.clientauthutils.AuthenticationHelper;
 import gov.nist.javax.sip.clientauthutils.AuthenticationHelperImpl;
 import gov.nist.javax.sip.clientauthutils.SecureAccountManager;
 import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.stack.AdmissionControl;
+import gov.nist.javax.sip.stack.ConnectionManager;
 import gov.nist.javax.sip.stack.DefaultMessageLogFactory;
 import gov.nist.javax.sip.stack.DefaultRouter;
 import gov.nist.javax.sip.stack.MessageProcessor;
+import gov.nist.javax.sip.stack.PcapCapture;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
+import gov.nist.javax.sip.stack.replication.DialogStore;
+import gov.nist.javax.sip.stack.timers.SipTimer;
+import gov.nist.javax.sip.stack.timers.TimingWheelSipTimer;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -47,6 +54,7 @@ import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.Properties;
@@ -151,7 +159,32 @@ import javax.sip.message.Request;
  * a no arg constructor. This allows to use different logging implementations
  * than the ones provided by default to log sent/received messages by the sip
  * stack. If this property is not defined, the default sip stack ServerLog will
- * be used for logging</li>
+ * be used for logging. Set it to gov.nist.javax.sip.stack.AsyncServerLog to
+ * have messages copied to a buffer and written to a binary trace file by a
+ * background thread instead of on the I/O threads (see that class for its
+ * own properties).</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CAPTURE_FILE = fileName </b><br/>
+ * Write the bytes of every message sent and received over UDP, TCP and TLS
+ * (decrypted) to this file in pcapng format, as IP packets with made up
+ * headers, so that the traffic can be looked at with Wireshark. The packets
+ * are buffered and written by a background thread; when it falls behind
+ * packets are dropped rather than slowing down the stack. An existing file is
+ * replaced. Not set by default.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CAPTURE_BUFFER_SIZE = integer </b><br/>
+ * Bytes buffered for the capture writer thread. Default is 8 MB.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CAPTURE_MAX_FILE_SIZE = integer </b><br/>
+ * Size in bytes at which the capture file is rolled over to
+ * fileName.1, fileName.2 and so on. Default is 64 MB.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CAPTURE_MAX_FILE_AGE = integer </b><br/>
+ * Seconds after which the capture file is rolled over even if it is not full.
+ * Default is 0 (no limit).</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CAPTURE_MAX_FILES = integer </b><br/>
+ * Number of rolled over capture files to keep. Default is 5.</li>
  * 
  * <li><b>gov.nist.javax.sip.AUTOMATIC_DIALOG_ERROR_HANDLING = [true|false] </b>
  * <br/>
@@ -187,6 +220,11 @@ import javax.sip.message.Request;
  * Default is "infinity" -- ie. no limit. This is to prevent DOS attacks
  * launched by writing to a TCP connection until the server chokes.</li>
  * 
+ * <li><b>gov.nist.javax.sip.MAX_HEADER_SIZE = integer</b> <br/>
+ * Maximum size of the headers of a message read from a TCP or TLS connection.
+ * The connection is closed when the headers get larger than that. Default is
+ * MAX_MESSAGE_SIZE.</li>
+ * 
  * <li><b>gov.nist.javax.sip.DELIVER_TERMINATED_EVENT_FOR_NULL_DIALOG = [true|false] </b><br/>
  * If set to false (the default), the application does NOT get notified when a Dialog in the
  * NULL state is terminated. ( Dialogs in the NULL state are not associated with an actual SIP Dialog.
@@ -229,6 +267,23 @@ import javax.sip.message.Request;
  * machine but will run the listener in its own thread.</li>
  * </ul>
  * 
+ * <li><b>gov.nist.javax.sip.UDP_RECEIVER_THREADS = integer </b> <br/>
+ * Number of threads that read datagrams from each UDP listening point and hand
+ * them to the thread pool. Default is 1. The threads share the socket, so the
+ * reads themselves are serialized, but copying the datagram and queueing it
+ * overlap with the next read.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.CALL_ID_SHARDS = integer </b> <br/>
+ * Default is 0 (off). When set, messages read from the network are handed to
+ * one of this many threads chosen by the hash of the Call-ID, and events for
+ * a call are delivered to the listener on the same thread. All work for a
+ * dialog and its transactions then runs in order on one thread and the shard
+ * threads do not take the transaction semaphores. The listener must not block
+ * for long since it holds up every other call on the same shard. With shards
+ * the listener is called from all the shard threads at once, even when
+ * REENTRANT_LISTENER is false: only the events of one call are serialized, so
+ * the listener must be safe for concurrent calls to different Call-IDs.</li>
+ * 
  * <li><b>gov.nist.javax.sip.REENTRANT_LISTENER = true|false </b> <br/>
  * Default is false. Set to true if the listener is re-entrant. If the listener
  * is re-entrant then the stack manages a thread pool and synchronously calls
@@ -237,16 +292,120 @@ import javax.sip.message.Request;
  * multiple threads being active in the listener at the same time. The listener
  * has to be written with this in mind. <b> If you want good performance on a
  * multithreaded machine write your listener to be re-entrant and set this
- * property to be true </b></li>
+ * property to be true </b>. Setting it to false does not make the listener
+ * single threaded when CALL_ID_SHARDS or EVENT_SCANNER_THREADS is set, see
+ * these properties.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.EVENT_SCANNER_THREADS = integer </b> <br/>
+ * Default is 1. Number of threads that deliver events to a listener that is
+ * not re-entrant. Events for the same Call-ID are always delivered by the same
+ * thread, in order, so a listener that keeps its state per call does not need
+ * to be fully re-entrant. Events that belong to no call go to the first
+ * thread.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.EVENT_QUEUE_SIZE = integer </b> <br/>
+ * Default is 10000. Number of events each event delivery thread may hold. When
+ * a queue is full the stack thread that raises the event waits for the
+ * listener to catch up, at most EVENT_QUEUE_TIMEOUT. An event delivery thread
+ * never waits, the event goes over the limit instead.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.EVENT_QUEUE_TIMEOUT = integer </b> <br/>
+ * Default is 1000. Max time in milliseconds that a stack thread waits for room
+ * in a full event queue. A request that starts a transaction is then turned
+ * away with 503 (Service Unavailable) and counted (see getDroppedEventCount).
+ * Any other event (responses, ACKs, timeouts and terminations) is never
+ * dropped, it goes over the limit of the queue. A value of 0 does not wait.</li>
  * 
  * <li><b>gov.nist.javax.sip.MAX_CONNECTIONS = integer </b> <br/>
- * Max number of simultaneous TCP connections handled by stack.</li>
+ * Max number of simultaneous TCP and TLS connections handled by stack,
+ * incoming and outgoing together. Opening a connection beyond the limit
+ * closes the least recently used one, connections that send keep-alives
+ * last. Default is no limit.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.IDLE_CONNECTION_TIMEOUT = integer </b> <br/>
+ * Seconds without traffic after which a TCP or TLS connection is closed.
+ * Connections that send keep-alives are not closed for being idle. Default
+ * is 0, idle connections are kept open. A timeout shorter than the
+ * transaction timeouts (32 seconds) may close connections that still have a
+ * response to carry.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.KEEPALIVE_INTERVAL = integer </b> <br/>
+ * Seconds between the RFC 5626 double CRLF keep-alives on outbound flows:
+ * the connections of REGISTERs with a reg-id Contact parameter, once they
+ * got a 2xx, and connections the application asked keep-alives for. A
+ * Flow-Timer header in the 2xx overrides it. Keep-alives are sent every 80
+ * to 100 percent of the interval. Default is 120.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.KEEPALIVE_TIMEOUT = integer </b> <br/>
+ * Seconds to wait for the answer to a keep-alive before the flow is taken
+ * for dead and its connection closed. Default is 10.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.USE_NIO_TCP = true|false </b> <br/>
+ * Default is false. If set to true, TCP listening points multiplex all their
+ * connections over a small set of selector threads instead of starting a
+ * reader thread (and a parser thread) for every connection. Use this if the
+ * stack has to serve a large number of concurrent TCP connections.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_SELECTOR_THREADS = integer </b> <br/>
+ * Number of selector threads per TCP listening point when USE_NIO_TCP is
+ * true. Default is the number of available processors.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_PROCESSING_THREADS = integer </b> <br/>
+ * Number of threads per NIO listening point that process the messages the
+ * selector threads read, when CALL_ID_SHARDS is not set (with shards the
+ * messages go to the shards). Messages of one connection are processed in
+ * order on one thread, so a listener that blocks holds up the connections
+ * that share its thread but never the selector threads. Default is the number
+ * of available processors.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.USE_NIO_TLS = true|false </b> <br/>
+ * Default is false. If set to true, TLS listening points serve their
+ * connections from selector threads, with an SSLEngine per connection, instead
+ * of a thread per connection doing blocking SSL socket I/O. The expensive
+ * parts of the handshakes run on a separate pool so that they do not hold up
+ * established connections. NIO_SELECTOR_THREADS applies to TLS as well.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_HANDSHAKE_THREADS = integer </b> <br/>
+ * Number of threads per TLS listening point running the handshakes when
+ * USE_NIO_TLS is true. Default is the number of available processors.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE = integer </b> <br/>
+ * Number of TLS sessions kept for resumption on outgoing connections when
+ * USE_NIO_TLS is true (0 means no limit). Default is the JSSE default.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_SESSION_TIMEOUT = integer </b> <br/>
+ * Seconds a TLS session may be resumed on outgoing connections when
+ * USE_NIO_TLS is true (0 means no limit). Default is the JSSE default.</li>
  * 
  * <li><b>gov.nist.javax.sip.MAX_SERVER_TRANSACTIONS = integer </b> <br/>
  * Maximum size of server transaction table. The low water mark is 80% of the
- * high water mark. Requests are selectively dropped in the lowater mark to
- * highwater mark range. Requests are unconditionally accepted if the table is
- * smaller than the low water mark. The default highwater mark is 5000</li>
+ * high water mark. New requests (without To tag) are selectively turned away
+ * in the lowater mark to highwater mark range, requests within a dialog, ACK
+ * and CANCEL only when the table is full. Requests are unconditionally
+ * accepted if the table is smaller than the low water mark. The default
+ * highwater mark is 5000</li>
+ * 
+ * <li><b>gov.nist.javax.sip.MAX_REQUEST_RATE_PER_SOURCE = number </b> <br/>
+ * Default is 0 (no limit). New requests allowed per second from each source
+ * address, enforced with a token bucket per source. Requests within a dialog,
+ * ACK and CANCEL count against the rate but are not turned away by it. Over
+ * UDP, when the message queue is congested, requests from sources over their
+ * rate are dropped first.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.MAX_REQUEST_BURST_PER_SOURCE = number </b> <br/>
+ * Number of requests a source may send at once after being quiet. Default is
+ * one second worth of MAX_REQUEST_RATE_PER_SOURCE.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.MAX_REQUEST_SOURCES = integer </b> <br/>
+ * Number of source addresses to keep a token bucket for. Sources beyond that
+ * share a single bucket until the idle ones are forgotten. Default is
+ * 10000.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.OVERLOAD_RETRY_AFTER = integer </b> <br/>
+ * Requests turned away because of MAX_SERVER_TRANSACTIONS or
+ * MAX_REQUEST_RATE_PER_SOURCE are answered statelessly with 503 Service
+ * Unavailable carrying a Retry-After header of this many seconds. Default is
+ * 5. Set to -1 to drop those requests silently instead.</li>
  * 
  * <li><b>gov.nist.javax.sip.MAX_CLIENT_TRANSACTIONS = integer </b> <br/>
  * Max number of active client transactions before the caller blocks and waits
@@ -284,6 +443,13 @@ import javax.sip.message.Request;
  * is wide open to starvation attacks) and the client can be as slow as it wants
  * to be.</li>
  * 
+ * <li><b>gov.nist.javax.sip.CONNECT_TIMEOUT = integer </b> <br/>
+ * Max time in miliseconds that a thread sending over TCP or TLS waits for an
+ * outgoing connection (and TLS handshake) to be established. Only senders to
+ * the same destination wait for each other, senders to other destinations are
+ * not held up by a slow connect. Default value is 10000. A value of 0 waits
+ * forever.</li>
+ * 
  * <li><b>gov.nist.javax.sip.NETWORK_LAYER = classpath </b> <br/>
  * This is an EXPERIMENTAL property (still under active devlopment). Defines a
  * network layer that allows a client to have control over socket allocations
@@ -302,6 +468,40 @@ import javax.sip.message.Request;
  * resolver (i.e. just returns the input string without doing a resolution). See
  * gov.nist.javax.sip.DefaultAddressResolver.</li>
  * 
+ * <li><b>gov.nist.javax.sip.DNS_SERVER = host[:port] </b><br/>
+ * Resolve names with the procedures of RFC 3263 (NAPTR, SRV, then A and AAAA
+ * records) by asking this DNS server, and cache the answers. Setting this,
+ * DNS_HOSTS_FILE or DNS_CACHE installs
+ * gov.nist.javax.sip.CachingAddressResolver unless an ADDRESS_RESOLVER is
+ * given. Without a DNS server addresses come from the platform resolver and
+ * there are no SRV or NAPTR lookups.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DNS_HOSTS_FILE = file </b><br/>
+ * A file of static address, SRV and NAPTR records that take precedence over
+ * DNS, for example to test against names that are not in DNS. See
+ * gov.nist.javax.sip.CachingAddressResolver for the format.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DNS_CACHE = [true|false] </b><br/>
+ * Default is false. Cache the addresses of the platform resolver.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DNS_MIN_TTL = integer </b><br/>
+ * <b>gov.nist.javax.sip.DNS_MAX_TTL = integer </b><br/>
+ * Bounds in seconds on how long DNS answers are cached. Defaults are 0 and
+ * 3600.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DNS_NEGATIVE_TTL = integer </b><br/>
+ * How long in seconds a name that could not be resolved is remembered as
+ * such. Default is 30.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DNS_TIMEOUT = integer </b><br/>
+ * How long in milliseconds to wait for the DNS server. Each query is sent
+ * twice. Default is 2000.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DNS_FAILOVER_TIME = integer </b><br/>
+ * How long in seconds a server that a request timed out on, or could not be
+ * sent to, is tried after the other servers for the same name. Default is
+ * 30.</li>
+ * 
  * <li><b>gov.nist.javax.sip.AUTO_GENERATE_TIMESTAMP= [true| false] </b><br/>
  * (default is false) Automatically generate a getTimeOfDay timestamp for a
  * retransmitted request if the original request contained a timestamp. This is
@@ -319,6 +519,55 @@ import javax.sip.message.Request;
  * remain disabled. An example of how to use this property is in
  * src/examples/threadaudit.</li>
  * 
+ * <li><b>gov.nist.javax.sip.TIMER_CLASS_NAME = classpath </b> <br/>
+ * The implementation of gov.nist.javax.sip.stack.timers.SipTimer that runs the
+ * transaction, dialog and connection timers of the stack. The default is
+ * gov.nist.javax.sip.stack.timers.TimingWheelSipTimer, a timing wheel that
+ * runs the expired timers on a pool of threads.
+ * gov.nist.javax.sip.stack.timers.DefaultSipTimer runs all the timers on a
+ * single java.util.Timer thread.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TIMER_THREADS = integer </b> <br/>
+ * Number of threads the default timer runs expired timers on. Default is the
+ * number of processors.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TIMER_TICK_MILLISECONDS = integer </b> <br/>
+ * Resolution of the default timer in milliseconds. Default is 10.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TIMER_T1 = integer </b> <br/>
+ * RFC 3261 T1 in milliseconds, the interval retransmissions start at. Timers
+ * B, F, H and J are 64*T1. Each transaction timer is a deadline of its own
+ * rather than a count of 500 ms ticks, so values below 500 suit networks with
+ * a short round-trip time. The resolution is that of the timer. Timer D is
+ * fixed at 32 seconds and follows neither this property nor
+ * Transaction.setRetransmitTimer. Default is 500.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TIMER_T2 = integer </b> <br/>
+ * RFC 3261 T2 in milliseconds, the cap on the retransmit interval of
+ * non-INVITE requests and INVITE responses. Must not be below T1. Default is
+ * 4000.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.TIMER_T4 = integer </b> <br/>
+ * RFC 3261 T4 in milliseconds, the time timers I and K wait for
+ * retransmissions to drain. Default is 5000.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_STORE_CLASS_NAME = classpath </b> <br/>
+ * The implementation of gov.nist.javax.sip.stack.replication.DialogStore the
+ * stack writes a snapshot of each confirmed dialog to whenever its state
+ * changes, so that the dialogs can be restored with
+ * SIPTransactionStack.restoreDialogs after a restart or on a standby node.
+ * gov.nist.javax.sip.stack.replication.FileDialogStore appends them to a
+ * local file, gov.nist.javax.sip.stack.replication.TcpDialogStore streams them
+ * to a gov.nist.javax.sip.stack.replication.DialogReplicaServer, the store of
+ * the standby. Dialogs are not stored by default.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_STORE_FILE = file name </b> <br/>
+ * The file of the FileDialogStore. Default is sipdialogs.dat.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_REPLICA_ADDRESS = host:port </b> <br/>
+ * Where the DialogReplicaServer of the standby listens, and so where the
+ * TcpDialogStore of the primary connects to.</li>
+ * 
  * 
  * 
  * <li><b>gov.nist.javax.sip.COMPUTE_CONTENT_LENGTH_FROM_MESSAGE_BODY =
@@ -329,6 +578,15 @@ import javax.sip.message.Request;
  * parameter in the Message. Otherwise, it will use the content length supplied
  * and generate a parse exception if the content is truncated.
  * 
+ * <li><b>gov.nist.javax.sip.LAZY_HEADER_PARSING = [true|false] </b> <br/>
+ * Default is <it>false</it>. If set to <it>true</it>, only the Via, From, To,
+ * Call-ID, CSeq, Content-Length and Max-Forwards headers of a message are
+ * parsed when it is received. The other headers are kept as received and are
+ * parsed the first time the application or the stack asks for them; headers
+ * that are never accessed are forwarded byte for byte. This saves a lot of
+ * parsing for proxies that pass large header sets through untouched. Note that
+ * a malformed header is then only detected when it is accessed.
+ * 
  * <li><b>gov.nist.javax.sip.CANCEL_CLIENT_TRANSACTION_CHECKED = [true|false]
  * </b> <br/>
  * Default is <it>true</it>. This flag is added in support of load balancers or
@@ -441,6 +699,9 @@ public class SipStackImpl extends SIPTransactionStack implements
 
 	private LinkedList<SipProviderImpl> sipProviders;
 
+	// The configuration properties, kept to restart the timer on re-init.
+	private Properties configurationProperties;
+
 	/**
 	 * Max datagram size.
 	 */
@@ -450,6 +711,16 @@ public class SipStackImpl extends SIPTransactionStack implements
 	// Use this flag with caution.
 	boolean reEntrantListener;
 
+	// Number of threads that deliver events to a non re-entrant listener,
+	// and the number of events each of them may hold.
+	int eventScannerThreads = 1;
+
+	int eventQueueSize = 10000;
+
+	// Max time in milliseconds that a stack thread waits for room in a full
+	// event queue.
+	int eventQueueTimeout = 1000;
+
 	SipListener sipListener;
 
 	// If set to true then a transaction terminated event is
@@ -504,6 +775,16 @@ public class SipStackImpl extends SIPTransactionStack implements
 	 */
 	private void reInitialize() {
 		super.reInit();
+		super.startTimer(createTimer(), this.configurationProperties);
+		super.startCallIdShards();
+		DialogStore dialogStore = createDialogStore();
+		if (dialogStore != null) {
+			try {
+				super.startDialogStore(dialogStore, this.configurationProperties);
+			} catch (IOException ex) {
+				getStackLogger().logError("Could not start dialog store", ex);
+			}
+		}
 		this.eventScanner = new EventScanner(this);
 		this.listeningPoints = new Hashtable<String, ListeningPointImpl>();
 		this.sipProviders = new LinkedList<SipProviderImpl>();
@@ -786,6 +1067,54 @@ public class SipStackImpl extends SIPTransactionStack implements
 			}
 		}
 
+		String dnsServer = configurationProperties
+				.getProperty("gov.nist.javax.sip.DNS_SERVER");
+		String hostsFile = configurationProperties
+				.getProperty("gov.nist.javax.sip.DNS_HOSTS_FILE");
+		boolean dnsCache = Boolean.valueOf(configurationProperties
+				.getProperty("gov.nist.javax.sip.DNS_CACHE", "false"));
+		if (!configurationProperties.containsKey(ADDRESS_RESOLVER_KEY)
+				&& (dnsServer != null || hostsFile != null || dnsCache)) {
+			try {
+				int timeout = Integer.parseInt(configurationProperties
+						.getProperty("gov.nist.javax.sip.DNS_TIMEOUT", "2000"));
+				DnsClient dnsClient = null;
+				if (dnsServer != null) {
+					String host = dnsServer.trim();
+					int port = 53;
+					int colon = host.lastIndexOf(':');
+					if (colon > 0 && (host.indexOf(':') == colon || host
+							.startsWith("[") && colon > host.indexOf(']'))) {
+						port = Integer.parseInt(host.substring(colon + 1));
+						host = host.substring(0, colon);
+					}
+					dnsClient = new DnsClient(new InetSocketAddress(InetAddress
+							.getByName(host), port), timeout, 2);
+				}
+				CachingAddressResolver resolver = new CachingAddressResolver(
+						dnsClient);
+				resolver.setStackLogger(getStackLogger());
+				resolver.setMinTtl(Integer.parseInt(configurationProperties
+						.getProperty("gov.nist.javax.sip.DNS_MIN_TTL", "0")));
+				resolver.setMaxTtl(Integer.parseInt(configurationProperties
+						.getProperty("gov.nist.javax.sip.DNS_MAX_TTL", "3600")));
+				resolver.setNegativeTtl(Integer.parseInt(configurationProperties
+						.getProperty("gov.nist.javax.sip.DNS_NEGATIVE_TTL", "30")));
+				resolver.setFailoverTime(Integer.parseInt(configurationProperties
+						.getProperty("gov.nist.javax.sip.DNS_FAILOVER_TIME", "30")));
+				// Waiting on another thread's query takes as long as its two attempts.
+				resolver.setLookupTimeout(2 * timeout + 1000);
+				if (hostsFile != null)
+					resolver.loadHostsFile(hostsFile);
+				this.addressResolver = resolver;
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Bad DNS property", ex);
+			} catch (IOException ex) {
+				throw new PeerUnavailableException(
+						"can't set up the address resolver: " + ex.getMessage());
+			}
+		}
+
 		String maxConnections = configurationProperties
 				.getProperty("gov.nist.javax.sip.MAX_CONNECTIONS");
 		if (maxConnections != null) {
@@ -798,6 +1127,88 @@ public class SipStackImpl extends SIPTransactionStack implements
 			}
 		}
 
+		try {
+			long idleTimeout = Long.parseLong(configurationProperties
+					.getProperty("gov.nist.javax.sip.IDLE_CONNECTION_TIMEOUT", "0"));
+			long keepAliveInterval = Long.parseLong(configurationProperties
+					.getProperty("gov.nist.javax.sip.KEEPALIVE_INTERVAL", "120"));
+			long keepAliveTimeout = Long.parseLong(configurationProperties
+					.getProperty("gov.nist.javax.sip.KEEPALIVE_TIMEOUT", "10"));
+			super.connectionManager = new ConnectionManager(this,
+					idleTimeout * 1000, keepAliveInterval * 1000,
+					keepAliveTimeout * 1000);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Bad connection timeout property", ex);
+		}
+
+		super.useNioTcp = configurationProperties.getProperty(
+				"gov.nist.javax.sip.USE_NIO_TCP", "false").equalsIgnoreCase(
+				"true");
+
+		String nioSelectorThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.NIO_SELECTOR_THREADS");
+		if (nioSelectorThreads != null) {
+			try {
+				super.nioSelectorThreads = Integer.parseInt(nioSelectorThreads);
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+						"nio selector threads - bad value " + ex.getMessage());
+			}
+		}
+
+		String nioProcessingThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.NIO_PROCESSING_THREADS");
+		if (nioProcessingThreads != null) {
+			try {
+				super.nioProcessingThreads = Integer.parseInt(nioProcessingThreads);
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+						"nio processing threads - bad value " + ex.getMessage());
+			}
+		}
+
+		super.useNioTls = configurationProperties.getProperty(
+				"gov.nist.javax.sip.USE_NIO_TLS", "false").equalsIgnoreCase(
+				"true");
+
+		String tlsHandshakeThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.TLS_HANDSHAKE_THREADS");
+		if (tlsHandshakeThreads != null) {
+			try {
+				super.tlsHandshakeThreads = Integer.parseInt(tlsHandshakeThreads);
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+						"tls handshake threads - bad value " + ex.getMessage());
+			}
+		}
+
+		String tlsSessionCacheSize = configurationProperties
+				.getProperty("gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE");
+		if (tlsSessionCacheSize != null) {
+			try {
+				super.tlsSessionCacheSize = Integer.parseInt(tlsSessionCacheSize);
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+						"tls session cache size - bad value " + ex.getMessage());
+			}
+		}
+
+		String tlsSessionTimeout = configurationProperties
+				.getProperty("gov.nist.javax.sip.TLS_SESSION_TIMEOUT");
+		if (tlsSessionTimeout != null) {
+			try {
+				super.tlsSessionTimeout = Integer.parseInt(tlsSessionTimeout);
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+						"tls session timeout - bad value " + ex.getMessage());
+			}
+		}
+
 		String threadPoolSize = configurationProperties
 				.getProperty("gov.nist.javax.sip.THREAD_POOL_SIZE");
 		if (threadPoolSize != null) {
@@ -810,6 +1221,34 @@ public class SipStackImpl extends SIPTransactionStack implements
 			}
 		}
 
+		String udpReceiverThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.UDP_RECEIVER_THREADS");
+		if (udpReceiverThreads != null) {
+			try {
+				int n = Integer.parseInt(udpReceiverThreads);
+				if (n >= 1)
+					super.udpReceiverThreads = n;
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					this.getStackLogger().logError(
+						"udp receiver threads - bad value " + ex.getMessage());
+			}
+		}
+
+		String callIdShards = configurationProperties
+				.getProperty("gov.nist.javax.sip.CALL_ID_SHARDS");
+		if (callIdShards != null) {
+			try {
+				int n = Integer.parseInt(callIdShards);
+				if (n >= 0)
+					super.callIdShards = n;
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					this.getStackLogger().logError(
+						"call id shards - bad value " + ex.getMessage());
+			}
+		}
+
 		String serverTransactionTableSize = configurationProperties
 				.getProperty("gov.nist.javax.sip.MAX_SERVER_TRANSACTIONS");
 		if (serverTransactionTableSize != null) {
@@ -818,6 +1257,7 @@ public class SipStackImpl extends SIPTransactionStack implements
 						serverTransactionTableSize).intValue();
 				this.serverTransactionTableLowaterMark = this.serverTransactionTableHighwaterMark * 80 / 100;
 				// Lowater is 80% of highwater
+				this.unlimitedServerTransactionTableSize = false;
 			} catch (NumberFormatException ex) {
 				if (isLoggingEnabled())
 					this.getStackLogger()
@@ -831,6 +1271,23 @@ public class SipStackImpl extends SIPTransactionStack implements
 			this.unlimitedServerTransactionTableSize = true;
 		}
 
+		try {
+			double requestRate = Double.parseDouble(configurationProperties
+					.getProperty("gov.nist.javax.sip.MAX_REQUEST_RATE_PER_SOURCE",
+							"0"));
+			double requestBurst = Double.parseDouble(configurationProperties
+					.getProperty("gov.nist.javax.sip.MAX_REQUEST_BURST_PER_SOURCE",
+							String.valueOf(Math.max(1, requestRate))));
+			int requestSources = Integer.parseInt(configurationProperties
+					.getProperty("gov.nist.javax.sip.MAX_REQUEST_SOURCES", "10000"));
+			int retryAfter = Integer.parseInt(configurationProperties
+					.getProperty("gov.nist.javax.sip.OVERLOAD_RETRY_AFTER", "5"));
+			super.admissionControl = new AdmissionControl(this, requestRate,
+					requestBurst, requestSources, retryAfter);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Bad admission control property", ex);
+		}
+
 		String clientTransactionTableSize = configurationProperties
 				.getProperty("gov.nist.javax.sip.MAX_CLIENT_TRANSACTIONS");
 		if (clientTransactionTableSize != null) {
@@ -884,8 +1341,44 @@ public class SipStackImpl extends SIPTransactionStack implements
 			}
 		}
 
+		String connectTimeout = configurationProperties
+				.getProperty("gov.nist.javax.sip.CONNECT_TIMEOUT");
+		if (connectTimeout != null) {
+			try {
+				int ct = Integer.parseInt(connectTimeout);
+				if (ct >= 0) {
+					super.connectTimeout = ct;
+				}
+			} catch (NumberFormatException nfe) {
+				if (isLoggingEnabled())
+					getStackLogger().logError("Bad connect timeout " + connectTimeout);
+			}
+		}
+
 		// Get the address of the stun server.
 
+		String captureFile = configurationProperties
+				.getProperty("gov.nist.javax.sip.CAPTURE_FILE");
+		if (captureFile != null) {
+			try {
+				int bufferSize = Integer.parseInt(configurationProperties
+						.getProperty("gov.nist.javax.sip.CAPTURE_BUFFER_SIZE",
+								"8388608"));
+				long maxFileSize = Long.parseLong(configurationProperties
+						.getProperty("gov.nist.javax.sip.CAPTURE_MAX_FILE_SIZE",
+								"67108864"));
+				long maxFileAge = Long.parseLong(configurationProperties
+						.getProperty("gov.nist.javax.sip.CAPTURE_MAX_FILE_AGE",
+								"0"));
+				int maxFiles = Integer.parseInt(configurationProperties
+						.getProperty("gov.nist.javax.sip.CAPTURE_MAX_FILES", "5"));
+				super.pcapCapture = new PcapCapture(this, captureFile,
+						bufferSize, maxFileSize, maxFileAge * 1000, maxFiles);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Bad capture property", ex);
+			}
+		}
+
 		String stunAddr = configurationProperties
 				.getProperty("gov.nist.javax.sip.STUN_SERVER");
 
@@ -912,10 +1405,50 @@ public class SipStackImpl extends SIPTransactionStack implements
 					"maxMessageSize - bad value " + ex.getMessage());
 		}
 
+		String maxHeaderSize = configurationProperties
+				.getProperty("gov.nist.javax.sip.MAX_HEADER_SIZE");
+		if (maxHeaderSize != null) {
+			try {
+				super.maxHeaderSize = Integer.parseInt(maxHeaderSize);
+			} catch (NumberFormatException ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+						"maxHeaderSize - bad value " + ex.getMessage());
+			}
+		}
+
 		String rel = configurationProperties
 				.getProperty("gov.nist.javax.sip.REENTRANT_LISTENER");
 		this.reEntrantListener = (rel != null && "true".equalsIgnoreCase(rel));
 
+		String eventScannerThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.EVENT_SCANNER_THREADS");
+		String eventQueueSize = configurationProperties
+				.getProperty("gov.nist.javax.sip.EVENT_QUEUE_SIZE");
+		String eventQueueTimeout = configurationProperties
+				.getProperty("gov.nist.javax.sip.EVENT_QUEUE_TIMEOUT");
+		try {
+			if (eventScannerThreads != null
+					&& Integer.parseInt(eventScannerThreads) >= 1)
+				this.eventScannerThreads = Integer.parseInt(eventScannerThreads);
+			if (eventQueueSize != null
+					&& Integer.parseInt(eventQueueSize) >= 1)
+				this.eventQueueSize = Integer.parseInt(eventQueueSize);
+			if (eventQueueTimeout != null
+					&& Integer.parseInt(eventQueueTimeout) >= 0)
+				this.eventQueueTimeout = Integer.parseInt(eventQueueTimeout);
+		} catch (NumberFormatException ex) {
+			if (isLoggingEnabled())
+				this.getStackLogger().logError(
+					"event scanner - bad value " + ex.getMessage());
+		}
+		if (eventScannerThreads != null || eventQueueSize != null
+				|| eventQueueTimeout != null) {
+			// The default scanner was started before the properties were read.
+			this.eventScanner.forceStop();
+			this.eventScanner = new EventScanner(this);
+		}
+
 		// Check if a thread audit interval is specified
 		String interval = configurationProperties
 				.getProperty("gov.nist.javax.sip.THREAD_AUDIT_INTERVAL_IN_MILLISECS");
@@ -973,6 +1506,11 @@ public class SipStackImpl extends SIPTransactionStack implements
 		StringMsgParser
 				.setComputeContentLengthFromMessage(computeContentLength);
 
+		boolean lazyHeaderParsing = configurationProperties.getProperty(
+				"gov.nist.javax.sip.LAZY_HEADER_PARSING", "false")
+				.equalsIgnoreCase("true");
+		StringMsgParser.setLazyHeaderParsing(lazyHeaderParsing);
+
 		String tlsClientProtocols = configurationProperties.getProperty(
 				"gov.nist.javax.sip.TLS_CLIENT_PROTOCOLS");
 		if (tlsClientProtocols != null)
@@ -1049,9 +1587,75 @@ public class SipStackImpl extends SIPTransactionStack implements
 		
 		super.maxForkTime = Integer.parseInt(
 		        configurationProperties.getProperty("gov.nist.javax.sip.MAX_FORK_TIME_SECONDS","0"));
+
+		try {
+			super.timerT1 = Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.TIMER_T1", Integer.toString(BASE_TIMER_INTERVAL)));
+			super.timerT2 = Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.TIMER_T2", "4000"));
+			super.timerT4 = Integer.parseInt(configurationProperties.getProperty(
+					"gov.nist.javax.sip.TIMER_T4", "5000"));
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Bad transaction timer property", ex);
+		}
+		if (timerT1 <= 0 || timerT2 < timerT1 || timerT4 <= 0)
+			throw new IllegalArgumentException("Bad transaction timer property");
+
+		this.configurationProperties = configurationProperties;
+		super.startTimer(createTimer(), configurationProperties);
+		super.startCallIdShards();
+
+		DialogStore dialogStore = createDialogStore();
+		if (dialogStore != null) {
+			try {
+				super.startDialogStore(dialogStore, configurationProperties);
+			} catch (IOException ex) {
+				throw new PeerUnavailableException("Could not start dialog store", ex);
+			}
+		}
 		
 	}
 
+	/**
+	 * Create the timer named by the TIMER_CLASS_NAME property.
+	 */
+	private SipTimer createTimer() {
+		String timerClassName = configurationProperties
+				.getProperty("gov.nist.javax.sip.TIMER_CLASS_NAME");
+		if (timerClassName != null) {
+			try {
+				Class<?> clazz = Class.forName(timerClassName);
+				Constructor<?> c = clazz.getConstructor(new Class[0]);
+				return (SipTimer) c.newInstance(new Object[0]);
+			} catch (Exception ex) {
+				if (isLoggingEnabled())
+					getStackLogger().logError(
+							"Bad configuration value for TIMER_CLASS_NAME -- using default timer");
+			}
+		}
+		return new TimingWheelSipTimer();
+	}
+
+	/**
+	 * Create the dialog store named by the DIALOG_STORE_CLASS_NAME property.
+	 * 
+	 * @return the store or null if dialogs are not stored.
+	 */
+	private DialogStore createDialogStore() {
+		String dialogStoreClassName = configurationProperties
+				.getProperty("gov.nist.javax.sip.DIALOG_STORE_CLASS_NAME");
+		if (dialogStoreClassName == null)
+			return null;
+		try {
+			Class<?> clazz = Class.forName(dialogStoreClassName);
+			Constructor<?> c = clazz.getConstructor(new Class[0]);
+			return (DialogStore) c.newInstance(new Object[0]);
+		} catch (Exception ex) {
+			throw new IllegalArgumentException(
+					"Bad configuration value for DIALOG_STORE_CLASS_NAME", ex);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1363,6 +1967,57 @@ public class SipStackImpl extends SIPTransactionStack implements
 		return eventScanner;
 	}
 
+	/**
+	 * Get the number of events waiting to be delivered to the listener.
+	 */
+	public int getPendingEventCount() {
+		EventScanner scanner = this.eventScanner;
+		return scanner == null ? 0 : scanner.getPendingEventCount();
+	}
+
+	/**
+	 * Get the number of events waiting in the longest event queue.
+	 */
+	public int getMaxEventQueueDepth() {
+		EventScanner scanner = this.eventScanner;
+		return scanner == null ? 0 : scanner.getMaxQueueDepth();
+	}
+
+	/**
+	 * Get the number of events delivered from the event queues.
+	 */
+	public long getDeliveredEventCount() {
+		EventScanner scanner = this.eventScanner;
+		return scanner == null ? 0 : scanner.getDeliveredEventCount();
+	}
+
+	/**
+	 * Get the number of requests turned away because an event queue stayed
+	 * full.
+	 */
+	public long getDroppedEventCount() {
+		EventScanner scanner = this.eventScanner;
+		return scanner == null ? 0 : scanner.getDroppedEventCount();
+	}
+
+	/**
+	 * Get the average time in milliseconds that an event waited to be
+	 * delivered to the listener.
+	 */
+	public double getAverageEventDeliveryLatency() {
+		EventScanner scanner = this.eventScanner;
+		return scanner == null ? 0 : scanner.getAverageDeliveryLatency();
+	}
+
+	/**
+	 * Get the longest time in milliseconds that an event waited to be
+	 * delivered to the listener.
+	 */
+	public double getMaxEventDeliveryLatency() {
+		EventScanner scanner = this.eventScanner;
+		return scanner == null ? 0 : scanner.getMaxDeliveryLatency();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -31,8 +31,10 @@ package gov.nist.javax.sip;
 import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.message.SIPResponse;
 
-import java.security.MessageDigest;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A few utilities that are used in various places by the stack. This is used to
@@ -44,15 +46,36 @@ import java.util.HashSet;
  */
 public class Utils implements UtilsExt {
 
-    private static MessageDigest digester;
-   
     private static java.util.Random rand;
-   
-    private static long counter = 0;
-
-    private static int callIDCounter;
 
     private static String signature ;
+
+    /**
+     * Number of hex digits in the unique part of branch ids and call ids
+     * (the length of the MD5 hex digest that used to be used).
+     */
+    private static final int ID_LENGTH = 32;
+
+    /**
+     * Number of hex digits in a tag.
+     */
+    private static final int TAG_LENGTH = 8;
+
+    /**
+     * Hands out a distinct number to each thread generating identifiers.
+     */
+    private static final AtomicInteger generatorCount = new AtomicInteger();
+
+    /**
+     * Mixed into the mask that hides the generator and sequence numbers.
+     */
+    private static long idSalt;
+
+    private static final ThreadLocal<IdGenerator> idGenerators = new ThreadLocal<IdGenerator>() {
+        protected IdGenerator initialValue() {
+            return new IdGenerator(generatorCount.getAndIncrement());
+        }
+    };
     
     private static Utils instance = new Utils();
 
@@ -64,12 +87,8 @@ public class Utils implements UtilsExt {
             '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
 
     static {
-        try {
-            digester = MessageDigest.getInstance("MD5");
-        } catch (Exception ex) {
-            throw new RuntimeException("Could not intialize Digester ", ex);
-        }
         rand = new java.util.Random();
+        idSalt = rand.nextLong();
         signature = toHexString(Integer.toString(Math.abs( rand.nextInt() % 1000 )).getBytes());
     }
 
@@ -96,6 +115,93 @@ public class Utils implements UtilsExt {
         return new String(c);
     }
 
+    /**
+     * Per thread state for generating identifiers, so that no lock is taken on
+     * the hot path. The unique part of an identifier is 64 random bits from a
+     * xorshift generator followed by the number of the generator and a per
+     * generator sequence number, the latter making identifiers generated by
+     * the same stack unique even if the random bits collide. The second half
+     * is masked with a splitmix64 mix of the random half, so it is no easier
+     * to guess than the random half; two identifiers with the same random half
+     * get the same mask and still differ in their sequence numbers.
+     */
+    private static final class IdGenerator {
+
+        private long seed;
+
+        private final long generatorId;
+
+        private int sequence;
+
+        private final char[] branchBuffer;
+
+        private final char[] buffer = new char[ID_LENGTH];
+
+        IdGenerator(int generatorId) {
+            this.generatorId = ((long) generatorId) << 32;
+            long s;
+            synchronized (rand) {
+                s = rand.nextLong();
+            }
+            this.seed = (s ^ System.nanoTime()) | 1;
+            int cookieLength = SIPConstants.BRANCH_MAGIC_COOKIE.length();
+            this.branchBuffer = new char[cookieLength + ID_LENGTH
+                    + signature.length()];
+            SIPConstants.BRANCH_MAGIC_COOKIE.getChars(0, cookieLength,
+                    branchBuffer, 0);
+            signature.getChars(0, signature.length(), branchBuffer,
+                    cookieLength + ID_LENGTH);
+        }
+
+        private long nextLong() {
+            // xorshift64*
+            long x = seed;
+            x ^= x >>> 12;
+            x ^= x << 25;
+            x ^= x >>> 27;
+            seed = x;
+            return x * 2685821657736338717L;
+        }
+
+        private static void putHex(long value, char[] dest, int offset,
+                int digits) {
+            for (int i = offset + digits - 1; i >= offset; i--) {
+                dest[i] = toHex[(int) value & 0x0f];
+                value >>>= 4;
+            }
+        }
+
+        private static long mix(long z) {
+            // splitmix64 finalizer
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        private void putId(char[] dest, int offset) {
+            long random = nextLong();
+            putHex(random, dest, offset, 16);
+            putHex((generatorId | (sequence++ & 0xffffffffL))
+                    ^ mix(random + idSalt), dest, offset + 16, 16);
+        }
+
+        String branchId() {
+            putId(branchBuffer, SIPConstants.BRANCH_MAGIC_COOKIE.length());
+            return new String(branchBuffer);
+        }
+
+        String callId(String address) {
+            putId(buffer, 0);
+            return new StringBuffer(ID_LENGTH + 1 + address.length()).append(
+                    buffer).append('@').append(address).toString();
+        }
+
+        String tag() {
+            putHex(nextLong() >>> 32, buffer, 0, TAG_LENGTH);
+            return new String(buffer, 0, TAG_LENGTH);
+        }
+    }
+
     /**
      * Put quotes around a string and return it.
      * Any " characters appearing in str are escaped
@@ -132,51 +238,31 @@ public class Utils implements UtilsExt {
      * Generate a call identifier. This is useful when we want to generate a
      * call identifier in advance of generating a message.
      */
-    public synchronized String generateCallIdentifier(String address) {
-
-            String date = Long.toString(System.currentTimeMillis() + callIDCounter++
-                    + rand.nextLong());
-            byte cid[] = digester.digest(date.getBytes());
-
-            String cidString = Utils.toHexString(cid);
-            return cidString + "@" + address;
-
+    public String generateCallIdentifier(String address) {
+        return idGenerators.get().callId(address);
     }
 
     /**
-     * Generate a tag for a FROM header or TO header. Just return a random 4
-     * digit integer (should be enough to avoid any clashes!) Tags only need to
-     * be unique within a call.
+     * Generate a tag for a FROM header or TO header. Just return a random 8
+     * digit hex integer (should be enough to avoid any clashes!) Tags only
+     * need to be unique within a call.
      *
      * @return a string that can be used as a tag parameter.
-     *
-     * synchronized: needed for access to 'rand', else risk to generate same tag
-     * twice
      */
-    public synchronized String generateTag() {
-
-            return Integer.toHexString(rand.nextInt());
-
+    public String generateTag() {
+        return idGenerators.get().tag();
     }
 
     /**
-     * Generate a cryptographically random identifier that can be used to
-     * generate a branch identifier.
+     * Generate a random identifier that can be used as a branch identifier.
+     * It starts with the magic cookie to indicate we are bis09 compatible and
+     * ends with the stack signature checked by responseBelongsToUs.
      *
-     * @return a cryptographically random gloablly unique string that can be
-     *         used as a branch identifier.
+     * @return a random globally unique string that can be used as a branch
+     *         identifier.
      */
-    public synchronized String generateBranchId() {
-        //
-
-
-            long num = rand.nextLong() + Utils.counter++  + System.currentTimeMillis();
-
-            byte bid[] = digester.digest(Long.toString(num).getBytes());
-            // prepend with a magic cookie to indicate we are bis09 compatible.
-            return SIPConstants.BRANCH_MAGIC_COOKIE + Utils.toHexString(bid) + this.signature;
-
-
+    public String generateBranchId() {
+        return idGenerators.get().branchId();
     }
     
     public boolean responseBelongsToUs(SIPResponse response) {
@@ -189,16 +275,59 @@ public class Utils implements UtilsExt {
         return signature;
     }
 
-    public static void main(String[] args) {
-        HashSet branchIds = new HashSet();
-        for (int b = 0; b < 100000; b++) {
-            String bid = Utils.getInstance().generateBranchId();
-            if (branchIds.contains(bid)) {
-                throw new RuntimeException("Duplicate Branch ID");
-            } else {
-                branchIds.add(bid);
-            }
+    /**
+     * Checks that branch ids generated concurrently are unique and prints the
+     * generation rate. Usage: Utils [threads] [idsPerThread]
+     */
+    public static void main(String[] args) throws Exception {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 250000;
+
+        // Throughput, without the cost of checking for duplicates.
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    Utils utils = Utils.getInstance();
+                    for (int b = 0; b < count; b++) {
+                        utils.generateBranchId();
+                        utils.generateTag();
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threadCount; i++)
+            threads[i].start();
+        for (int i = 0; i < threadCount; i++)
+            threads[i].join();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println(threadCount * count + " branch ids and tags in "
+                + elapsed + " ms ("
+                + (threadCount * (long) count * 1000 / elapsed) + "/s)");
+
+        // Uniqueness.
+        final Set<String> branchIds = Collections
+                .synchronizedSet(new HashSet<String>());
+        final String[] duplicate = new String[1];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    Utils utils = Utils.getInstance();
+                    for (int b = 0; b < count; b++) {
+                        String bid = utils.generateBranchId();
+                        String cid = utils.generateCallIdentifier("host");
+                        if (!branchIds.add(bid) || !branchIds.add(cid))
+                            duplicate[0] = bid;
+                    }
+                }
+            };
+            threads[i].start();
         }
+        for (int i = 0; i < threadCount; i++)
+            threads[i].join();
+        if (duplicate[0] != null)
+            throw new RuntimeException("Duplicate Branch ID " + duplicate[0]);
         System.out.println("Done!!");
 
     }
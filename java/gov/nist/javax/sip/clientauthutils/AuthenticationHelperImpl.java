@@ -22,12 +22,12 @@ import gov.nist.javax.sip.address.SipUri;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
+import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import java.text.ParseException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.ListIterator;
-import java.util.Timer;
 
 import javax.sip.ClientTransaction;
 import javax.sip.DialogState;
@@ -79,7 +79,7 @@ public class AuthenticationHelperImpl implements AuthenticationHelper {
 
     private SipStackImpl sipStack;
 
-    Timer timer;
+    SipTimer timer;
 
     /**
      * Default constructor for the security manager. There is one Account manager. There is one
@@ -95,7 +95,7 @@ public class AuthenticationHelperImpl implements AuthenticationHelper {
         this.headerFactory = headerFactory;
         this.sipStack = sipStack;
 
-        this.cachedCredentials = new CredentialsCache(((SIPTransactionStack) sipStack).getTimer());
+        this.cachedCredentials = new CredentialsCache(((SIPTransactionStack) sipStack).getSipTimer());
     }
     
     /**
@@ -112,7 +112,7 @@ public class AuthenticationHelperImpl implements AuthenticationHelper {
         this.headerFactory = headerFactory;
         this.sipStack = sipStack;
 
-        this.cachedCredentials = new CredentialsCache(((SIPTransactionStack) sipStack).getTimer());
+        this.cachedCredentials = new CredentialsCache(((SIPTransactionStack) sipStack).getSipTimer());
     }
     
 
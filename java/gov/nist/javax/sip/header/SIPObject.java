@@ -33,6 +33,13 @@ import gov.nist.core.InternalErrorHandler;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Root class for all singleton objects in this package:
@@ -84,64 +91,29 @@ public abstract class SIPObject extends GenericObject {
             return false;
         SIPObject that = (SIPObject) other;
         Class myclass = this.getClass();
-        Class hisclass = other.getClass();
         while (true) {
-            Field[] fields = myclass.getDeclaredFields();
-            if (!hisclass.equals(myclass))
-                return false;
-            Field[] hisfields = hisclass.getDeclaredFields();
+            Field[] fields = getMatchFields(myclass);
             for (int i = 0; i < fields.length; i++) {
                 Field f = fields[i];
-                Field g = hisfields[i];
-                // Only print protected and public members.
-                int modifier = f.getModifiers();
-                if ((modifier & Modifier.PRIVATE) == Modifier.PRIVATE)
-                    continue;
-                Class fieldType = f.getType();
-                String fieldName = f.getName();
-                if (fieldName.compareTo("stringRepresentation") == 0) {
-                    continue;
-                }
-                if (fieldName.compareTo("indentation") == 0) {
-                    continue;
-                }
                 try {
-                    // Primitive fields are printed with type: value
-                    if (fieldType.isPrimitive()) {
-                        String fname = fieldType.toString();
-                        if (fname.compareTo("int") == 0) {
-                            if (f.getInt(this) != g.getInt(that))
-                                return false;
-                        } else if (fname.compareTo("short") == 0) {
-                            if (f.getShort(this) != g.getShort(that))
-                                return false;
-                        } else if (fname.compareTo("char") == 0) {
-                            if (f.getChar(this) != g.getChar(that))
-                                return false;
-                        } else if (fname.compareTo("long") == 0) {
-                            if (f.getLong(this) != g.getLong(that))
-                                return false;
-                        } else if (fname.compareTo("boolean") == 0) {
-                            if (f.getBoolean(this) != g.getBoolean(that))
-                                return false;
-                        } else if (fname.compareTo("double") == 0) {
-                            if (f.getDouble(this) != g.getDouble(that))
-                                return false;
-                        } else if (fname.compareTo("float") == 0) {
-                            if (f.getFloat(this) != g.getFloat(that))
-                                return false;
-                        }
-                    } else if (g.get(that) == f.get(this))
+                    if (f.getType().isPrimitive()) {
+                        if (!primitiveFieldEquals(f, this, that))
+                            return false;
                         continue;
-                    else if (f.get(this) == null && g.get(that) != null)
+                    }
+                    Object myObj = f.get(this);
+                    Object hisObj = f.get(that);
+                    if (hisObj == myObj)
+                        continue;
+                    else if (myObj == null)
                         return false;
-                    else if (g.get(that) == null && f.get(this) != null)
+                    else if (hisObj == null)
                         return false;
-                    else if (!f.get(this).equals(g.get(that)))
+                    else if (!myObj.equals(hisObj))
                         return false;
                 } catch (IllegalAccessException ex1) {
-                    System.out.println("accessed field " + fieldName);
-                    System.out.println("modifier  " + modifier);
+                    System.out.println("accessed field " + f.getName());
+                    System.out.println("modifier  " + f.getModifiers());
                     System.out.println("modifier.private  " + Modifier.PRIVATE);
                     InternalErrorHandler.handleException(ex1);
                 }
@@ -150,7 +122,6 @@ public abstract class SIPObject extends GenericObject {
                 break;
             else {
                 myclass = myclass.getSuperclass();
-                hisclass = hisclass.getSuperclass();
             }
         }
         return true;
@@ -177,56 +148,19 @@ public abstract class SIPObject extends GenericObject {
             return false;
         GenericObject that = (GenericObject) other;
         Class myclass = this.getClass();
-        Class hisclass = other.getClass();
         while (true) {
-            Field[] fields = myclass.getDeclaredFields();
-            Field[] hisfields = hisclass.getDeclaredFields();
+            Field[] fields = getMatchFields(myclass);
             for (int i = 0; i < fields.length; i++) {
                 Field f = fields[i];
-                Field g = hisfields[i];
-                // Only print protected and public members.
-                int modifier = f.getModifiers();
-                if ((modifier & Modifier.PRIVATE) == Modifier.PRIVATE)
-                    continue;
-                Class fieldType = f.getType();
-                String fieldName = f.getName();
-                if (fieldName.compareTo("stringRepresentation") == 0) {
-                    continue;
-                }
-                if (fieldName.compareTo("indentation") == 0) {
-                    continue;
-                }
                 try {
-                    if (fieldType.isPrimitive()) {
-                        String fname = fieldType.toString();
-                        if (fname.compareTo("int") == 0) {
-                            if (f.getInt(this) != g.getInt(that))
-                                return false;
-                        } else if (fname.compareTo("short") == 0) {
-                            if (f.getShort(this) != g.getShort(that))
-                                return false;
-                        } else if (fname.compareTo("char") == 0) {
-                            if (f.getChar(this) != g.getChar(that))
-                                return false;
-                        } else if (fname.compareTo("long") == 0) {
-                            if (f.getLong(this) != g.getLong(that))
-                                return false;
-                        } else if (fname.compareTo("boolean") == 0) {
-                            if (f.getBoolean(this) != g.getBoolean(that))
-                                return false;
-                        } else if (fname.compareTo("double") == 0) {
-                            if (f.getDouble(this) != g.getDouble(that))
-                                return false;
-                        } else if (fname.compareTo("float") == 0) {
-                            if (f.getFloat(this) != g.getFloat(that))
-                                return false;
-                        } else {
-                            InternalErrorHandler.handleException(
-                                "unknown type");
-                        }
+                    if (f.getType().isPrimitive()) {
+                        if (f.getType() == Byte.TYPE)
+                            InternalErrorHandler.handleException("unknown type");
+                        if (!primitiveFieldEquals(f, this, that))
+                            return false;
                     } else {
                         Object myObj = f.get(this);
-                        Object hisObj = g.get(that);
+                        Object hisObj = f.get(that);
                         if (hisObj != null && myObj == null)
                             return false;
                         else if (hisObj == null && myObj != null)
@@ -274,7 +208,6 @@ public abstract class SIPObject extends GenericObject {
                 break;
             else {
                 myclass = myclass.getSuperclass();
-                hisclass = hisclass.getSuperclass();
             }
         }
         return true;
@@ -399,4 +332,157 @@ public abstract class SIPObject extends GenericObject {
         return this.encode();
     }
 
+    /**
+     * Check the cached field lists and primitiveFieldEquals against the
+     * plain getDeclaredFields walk and the type name dispatch that equals,
+     * match and merge used before the lists were cached. Covers the classes
+     * reachable from a set of parsed headers and prints the mismatches.
+     */
+    public static void main(String[] args) throws Exception {
+        String[] headers = {
+            "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK1;rport\n",
+            "Via: SIP/2.0/TCP [::1]:5070;branch=z9hG4bK2;received=1.2.3.4\n",
+            "From: \"A\" <sip:a@b.com;transport=tcp>;tag=1\n",
+            "To: <sip:c@d.com;user=phone>;tag=9\n",
+            "Call-ID: abc@host\n",
+            "CSeq: 1 INVITE\n",
+            "CSeq: 2 INVITE\n",
+            "Contact: <sip:a@1.2.3.4:5060;transport=tcp>;expires=30;q=0.5\n",
+            "Contact: *\n",
+            "Event: presence;id=1\n",
+            "Max-Forwards: 70\n",
+            "Expires: 60\n",
+            "Content-Type: text/plain;charset=utf-8\n",
+            "Record-Route: <sip:p1@x;lr>,<sip:p2@y>\n",
+            "Subscription-State: active;expires=60\n",
+            "Authorization: Digest username=\"u\", realm=\"r\", nonce=\"n\", "
+                + "uri=\"sip:x\", response=\"abc\", nc=00000001\n",
+            "RSeq: 988789\n",
+            "RAck: 776656 1 INVITE\n",
+            "Retry-After: 10;duration=5\n",
+            "Date: Sat, 13 Nov 2010 23:29:00 GMT\n",
+            "Warning: 370 devnull \"x\"\n",
+            "Session-Expires: 1800;refresher=uac\n",
+            "Replaces: abc@h;to-tag=1;from-tag=2\n",
+            "P-Charging-Vector: icid-value=1;orig-ioi=x\n",
+            "Security-Client: digest;q=0.1\n",
+            "Privacy: id\n",
+        };
+        gov.nist.javax.sip.parser.StringMsgParser parser =
+            new gov.nist.javax.sip.parser.StringMsgParser();
+        List<Object> objects = new ArrayList<Object>();
+        Map<Object, Object> seen = new IdentityHashMap<Object, Object>();
+        for (int i = 0; i < headers.length; i++) {
+            SIPHeader header = parser.parseSIPHeader(headers[i]);
+            collect(header, objects, seen);
+            collect(header.clone(), objects, seen);
+        }
+
+        int mismatches = 0;
+        Set<Class<?>> classes = new HashSet<Class<?>>();
+        for (int i = 0; i < objects.size(); i++) {
+            for (Class<?> c = objects.get(i).getClass();
+                    c != Object.class; c = c.getSuperclass()) {
+                if (!classes.add(c))
+                    continue;
+                List<String> oldMatch = new ArrayList<String>();
+                List<String> oldMerge = new ArrayList<String>();
+                Field[] declared = c.getDeclaredFields();
+                for (int j = 0; j < declared.length; j++) {
+                    int modifier = declared[j].getModifiers();
+                    String name = declared[j].getName();
+                    if (!Modifier.isPrivate(modifier)
+                            && !name.equals("stringRepresentation")
+                            && !name.equals("indentation"))
+                        oldMatch.add(name);
+                    if (!Modifier.isPrivate(modifier)
+                            && !Modifier.isStatic(modifier)
+                            && !Modifier.isInterface(modifier))
+                        oldMerge.add(name);
+                }
+                if (!oldMatch.equals(fieldNames(getMatchFields(c)))) {
+                    System.out.println("match fields differ: " + c.getName());
+                    mismatches++;
+                }
+                if (!oldMerge.equals(fieldNames(getMergeFields(c)))) {
+                    System.out.println("merge fields differ: " + c.getName());
+                    mismatches++;
+                }
+            }
+        }
+
+        int compared = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            for (int j = 0; j < objects.size(); j++) {
+                Object a = objects.get(i);
+                Object b = objects.get(j);
+                if (a.getClass() != b.getClass())
+                    continue;
+                for (Class<?> c = a.getClass();
+                        c != Object.class; c = c.getSuperclass()) {
+                    Field[] fields = getMatchFields(c);
+                    for (int k = 0; k < fields.length; k++) {
+                        Field f = fields[k];
+                        if (!f.getType().isPrimitive())
+                            continue;
+                        String fname = f.getType().toString();
+                        boolean expected;
+                        if (fname.equals("int"))
+                            expected = f.getInt(a) == f.getInt(b);
+                        else if (fname.equals("short"))
+                            expected = f.getShort(a) == f.getShort(b);
+                        else if (fname.equals("char"))
+                            expected = f.getChar(a) == f.getChar(b);
+                        else if (fname.equals("long"))
+                            expected = f.getLong(a) == f.getLong(b);
+                        else if (fname.equals("boolean"))
+                            expected = f.getBoolean(a) == f.getBoolean(b);
+                        else if (fname.equals("double"))
+                            expected = f.getDouble(a) == f.getDouble(b);
+                        else if (fname.equals("float"))
+                            expected = f.getFloat(a) == f.getFloat(b);
+                        else
+                            expected = true;
+                        compared++;
+                        if (primitiveFieldEquals(f, a, b) != expected) {
+                            System.out.println("primitive compare differs: "
+                                + c.getName() + "." + f.getName());
+                            mismatches++;
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println(classes.size() + " classes, " + compared
+            + " primitive comparisons, " + mismatches + " mismatches");
+    }
+
+    private static void collect(Object object, List<Object> objects,
+            Map<Object, Object> seen) throws IllegalAccessException {
+        if (object == null || seen.put(object, object) != null)
+            return;
+        if (object instanceof GenericObjectList) {
+            Iterator<GenericObject> it = ((GenericObjectList) object).iterator();
+            while (it.hasNext())
+                collect(it.next(), objects, seen);
+        } else if (object instanceof GenericObject) {
+            objects.add(object);
+            for (Class<?> c = object.getClass();
+                    c != Object.class; c = c.getSuperclass()) {
+                Field[] fields = getMatchFields(c);
+                for (int i = 0; i < fields.length; i++) {
+                    if (!Modifier.isStatic(fields[i].getModifiers()))
+                        collect(fields[i].get(object), objects, seen);
+                }
+            }
+        }
+    }
+
+    private static List<String> fieldNames(Field[] fields) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < fields.length; i++)
+            names.add(fields[i].getName());
+        return names;
+    }
+
 }
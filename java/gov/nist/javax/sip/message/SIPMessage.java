@@ -79,6 +79,7 @@ import java.text.ParseException;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -126,6 +127,45 @@ import javax.sip.message.Request;
 public abstract class SIPMessage extends MessageObject implements javax.sip.message.Message,
         MessageExt {
 
+    /**
+     * Largest buffer (in chars) kept around between encodings. Buffers grown beyond this by an
+     * unusually large message are dropped so that each thread does not pin it forever.
+     */
+    private static final int MAX_POOLED_ENCODING_SIZE = 16 * 1024;
+
+    /**
+     * Per-thread scratch space used by encodeAsBytes.
+     */
+    private static final class EncodingBuffer {
+        private StringBuffer buffer = new StringBuffer(1024);
+
+        private char[] chars = new char[1024];
+
+        StringBuffer reset() {
+            buffer.setLength(0);
+            return buffer;
+        }
+
+        char[] getChars(int length) {
+            if (chars.length < length)
+                chars = new char[Math.max(length, chars.length * 2)];
+            return chars;
+        }
+
+        void release() {
+            if (buffer.capacity() > MAX_POOLED_ENCODING_SIZE)
+                buffer = new StringBuffer(1024);
+            if (chars.length > MAX_POOLED_ENCODING_SIZE)
+                chars = new char[1024];
+        }
+    }
+
+    private static final ThreadLocal<EncodingBuffer> encodingBuffers = new ThreadLocal<EncodingBuffer>() {
+        protected EncodingBuffer initialValue() {
+            return new EncodingBuffer();
+        }
+    };
+
 	// JvB: use static here?
     private String contentEncodingCharset = MessageFactoryImpl.getDefaultContentEncodingCharset();
     
@@ -172,6 +212,15 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     // Table of headers indexed by name.
     private Hashtable<String, SIPHeader> nameTable;
 
+    /*
+     * Headers that have not been parsed yet, keyed by lower case header name, in the form in
+     * which they were received. Only present for messages parsed with lazy header parsing.
+     */
+    private volatile LinkedHashMap<String, LinkedList<String>> deferredHeaders;
+
+    // Bumped by the setters, so that a kept encoding of the message can be checked before reuse.
+    private volatile int modificationCount;
+
     /**
      * The application data pointer. This is un-interpreted by the stack. This is provided as a
      * convenient way of keeping book-keeping data for applications.
@@ -215,6 +264,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public LinkedList<String> getMessageAsEncodedStrings() {
         LinkedList<String> retval = new LinkedList<String>();
+        this.parseDeferredHeaders();
         Iterator<SIPHeader> li = headers.iterator();
         while (li.hasNext()) {
             SIPHeader sipHeader = (SIPHeader) li.next();
@@ -243,6 +293,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             if (!(siphdr instanceof ContentLength))
                 siphdr.encode(encoding);
         }
+        this.encodeDeferredHeaders(encoding);
 
         return contentLengthHeader.encode(encoding).append(NEWLINE).toString();
     }
@@ -274,6 +325,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (!other.getClass().equals(this.getClass()))
             return false;
         SIPMessage matchObj = (SIPMessage) other;
+        this.parseDeferredHeaders();
         Iterator<SIPHeader> li = matchObj.getHeaders();
         while (li.hasNext()) {
             SIPHeader hisHeaders = (SIPHeader) li.next();
@@ -331,6 +383,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (!template.getClass().equals(this.getClass()))
             throw new IllegalArgumentException("Bad class " + template.getClass());
         SIPMessage templateMessage = (SIPMessage) template;
+        this.parseDeferredHeaders();
+        templateMessage.parseDeferredHeaders();
         Object[] templateHeaders = templateMessage.headers.toArray();
         for (int i = 0; i < templateHeaders.length; i++) {
             SIPHeader hdr = (SIPHeader) templateHeaders[i];
@@ -359,17 +413,20 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public String encode() {
         StringBuffer encoding = new StringBuffer();
-        Iterator<SIPHeader> it = this.headers.iterator();
+        synchronized (this.headers) {
+            Iterator<SIPHeader> it = this.headers.iterator();
 
-        while (it.hasNext()) {
-            SIPHeader siphdr = (SIPHeader) it.next();
-            if (!(siphdr instanceof ContentLength))
-                encoding.append(siphdr.encode());
-        }
-        // Append the unrecognized headers. Headers that are not
-        // recognized are passed through unchanged.
-        for (String unrecognized : this.unrecognizedHeaders) {
-            encoding.append(unrecognized).append(NEWLINE);
+            while (it.hasNext()) {
+                SIPHeader siphdr = (SIPHeader) it.next();
+                if (!(siphdr instanceof ContentLength))
+                    encoding.append(siphdr.encode());
+            }
+            this.encodeDeferredHeaders(encoding);
+            // Append the unrecognized headers. Headers that are not
+            // recognized are passed through unchanged.
+            for (String unrecognized : this.unrecognizedHeaders) {
+                encoding.append(unrecognized).append(NEWLINE);
+            }
         }
 
         encoding.append(contentLengthHeader.encode()).append(NEWLINE);
@@ -409,6 +466,22 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (this instanceof SIPRequest && ((SIPRequest) this).isNullRequest()) {
             return "\r\n\r\n".getBytes();
         }
+        return encodeAsBytes(null, transport);
+    }
+
+    /**
+     * Encode the message, preceded by the given start line, into a single byte array. The
+     * headers are encoded into a per-thread buffer that is reused from one message to the next
+     * and, in the usual case where the encoding is pure ASCII, copied straight into a byte array
+     * sized to hold the headers and the body. Only when a non-ASCII character is present do we
+     * fall back to a charset conversion (UTF-8 for the start line, the content charset for the
+     * headers).
+     * 
+     * @param firstLine the encoded request or status line (may be null).
+     * @param transport the transport to set in the topmost Via header.
+     * @return the encoded message.
+     */
+    protected byte[] encodeAsBytes(String firstLine, String transport) {
         // JvB: added to fix case where application provides the wrong transport
         // in the topmost Via header
         ViaHeader topVia = (ViaHeader) this.getHeader(ViaHeader.NAME);
@@ -418,7 +491,13 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             InternalErrorHandler.handleException(e);
         }
 
-        StringBuffer encoding = new StringBuffer();
+        EncodingBuffer encodingBuffer = encodingBuffers.get();
+        StringBuffer encoding = encodingBuffer.reset();
+        int firstLineLength = 0;
+        if (firstLine != null) {
+            encoding.append(firstLine);
+            firstLineLength = firstLine.length();
+        }
         synchronized (this.headers) {
             Iterator<SIPHeader> it = this.headers.iterator();
 
@@ -428,34 +507,49 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
                     siphdr.encode(encoding);
 
             }
+            this.encodeDeferredHeaders(encoding);
         }
         contentLengthHeader.encode(encoding);
         encoding.append(NEWLINE);
 
-        byte[] retval = null;
         byte[] content = this.getRawContent();
-        if (content != null) {
-            // Append the content
+        int contentLength = content == null ? 0 : content.length;
+        int length = encoding.length();
+        char[] chars = encodingBuffer.getChars(length);
+        encoding.getChars(0, length, chars, 0);
+
+        byte[] retval = new byte[length + contentLength];
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80) {
+                ascii = false;
+                break;
+            }
+            retval[i] = (byte) c;
+        }
 
+        if (!ascii) {
+            byte[] flbytes = null;
             byte[] msgarray = null;
             try {
-                msgarray = encoding.toString().getBytes( getCharset() );
+                flbytes = new String(chars, 0, firstLineLength).getBytes("UTF-8");
+                msgarray = new String(chars, firstLineLength, length - firstLineLength)
+                        .getBytes(getCharset());
             } catch (UnsupportedEncodingException ex) {
                 InternalErrorHandler.handleException(ex);
             }
+            length = flbytes.length + msgarray.length;
+            retval = new byte[length + contentLength];
+            System.arraycopy(flbytes, 0, retval, 0, flbytes.length);
+            System.arraycopy(msgarray, 0, retval, flbytes.length, msgarray.length);
+        }
 
-            retval = new byte[msgarray.length + content.length];
-            System.arraycopy(msgarray, 0, retval, 0, msgarray.length);
-            System.arraycopy(content, 0, retval, msgarray.length, content.length);
-        } else {
-            // Message content does not exist.
-
-            try {
-                retval = encoding.toString().getBytes( getCharset() );
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
+        if (content != null) {
+            // Append the content
+            System.arraycopy(content, 0, retval, length, contentLength);
         }
+        encodingBuffer.release();
         return retval;
     }
 
@@ -491,6 +585,15 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (this.messageContentObject != null)
             retval.messageContentObject = makeClone(messageContentObject);
         retval.unrecognizedHeaders = this.unrecognizedHeaders;
+        LinkedHashMap<String, LinkedList<String>> deferred = this.deferredHeaders;
+        if (deferred != null) {
+            synchronized (this.headers) {
+                retval.deferredHeaders = new LinkedHashMap<String, LinkedList<String>>();
+                for (String name : deferred.keySet()) {
+                    retval.deferredHeaders.put(name, new LinkedList<String>(deferred.get(name)));
+                }
+            }
+        }
         return retval;
     }
 
@@ -501,6 +604,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      *         encode(). This is used mainly for debugging purposes.
      */
     public String debugDump() {
+        this.parseDeferredHeaders();
         stringRepresentation = "";
         sprint("SIPMessage:");
         sprint("{");
@@ -555,6 +659,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param h SIPHeader to attach.
      */
     private void attachHeader(SIPHeader h) {
+        this.messageModified();
         if (h == null)
             throw new IllegalArgumentException("null header!");
         try {
@@ -576,6 +681,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param sipHeader SIPHeader that replaces a header of the same type.
      */
     public void setHeader(Header sipHeader) {
+        this.messageModified();
         SIPHeader header = (SIPHeader) sipHeader;
         if (header == null)
             throw new IllegalArgumentException("null header!");
@@ -599,6 +705,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param headers -- a list of headers to set.
      */
     public void setHeaders(java.util.List<SIPHeader> headers) {
+        this.messageModified();
         ListIterator<SIPHeader> listIterator = headers.listIterator();
         while (listIterator.hasNext()) {
             SIPHeader sipHeader = (SIPHeader) listIterator.next();
@@ -638,6 +745,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
 
     public void attachHeader(SIPHeader header, boolean replaceFlag, boolean top)
             throws SIPDuplicateHeaderException {
+        this.messageModified();
         if (header == null) {
             throw new NullPointerException("null header");
         }
@@ -653,6 +761,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         }
 
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(h.getName());
+        this.parseDeferredHeaders(headerNameLowerCase);
         if (replaceFlag) {
             nameTable.remove(headerNameLowerCase);
         } else if (nameTable.containsKey(headerNameLowerCase) && !(h instanceof SIPHeaderList)) {
@@ -721,8 +830,10 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param top -- flag that indicates which end of header list to process.
      */
     public void removeHeader(String headerName, boolean top) {
+        this.messageModified();
 
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
+        this.parseDeferredHeaders(headerNameLowerCase);
         SIPHeader toRemove = (SIPHeader) nameTable.get(headerNameLowerCase);
         // nothing to do then we are done.
         if (toRemove == null)
@@ -777,10 +888,12 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param headerName is the name of the header to remove.
      */
     public void removeHeader(String headerName) {
+        this.messageModified();
 
         if (headerName == null)
             throw new NullPointerException("null arg");
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
+        this.removeDeferredHeaders(headerNameLowerCase);
         SIPHeader removed = (SIPHeader) nameTable.remove(headerNameLowerCase);
         // nothing to do then we are done.
         if (removed == null)
@@ -901,6 +1014,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return an Iterator for the headers of this message.
      */
     public Iterator<SIPHeader> getHeaders() {
+        this.parseDeferredHeaders();
         return headers.iterator();
     }
 
@@ -916,6 +1030,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     private Header getHeaderLowerCase(String lowerCaseHeaderName) {
         if (lowerCaseHeaderName == null)
             throw new NullPointerException("bad name");
+        this.parseDeferredHeaders(lowerCaseHeaderName);
         SIPHeader sipHeader = (SIPHeader) nameTable.get(lowerCaseHeaderName);
         if (sipHeader instanceof SIPHeaderList)
             return (Header) ((SIPHeaderList) sipHeader).getFirst();
@@ -1008,6 +1123,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param viaList a list of via headers to add.
      */
     public void setVia(java.util.List viaList) {
+        this.messageModified();
         ViaList vList = new ViaList();
         ListIterator it = viaList.listIterator();
         while (it.hasNext()) {
@@ -1024,6 +1140,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
 
     public void setHeader(SIPHeaderList<Via> sipHeaderList) {
+        this.messageModified();
         this.setHeader((Header) sipHeaderList);
     }
 
@@ -1106,6 +1223,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param callId call idHeader (what else could it be?)
      */
     public void setCallId(CallIdHeader callId) {
+        this.messageModified();
         this.setHeader(callId);
     }
 
@@ -1115,6 +1233,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param callId -- the call identifier to be assigned to the call id header
      */
     public void setCallId(String callId) throws java.text.ParseException {
+        this.messageModified();
         if (callIdHeader == null) {
             this.setHeader(new CallID());
         }
@@ -1211,6 +1330,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param messageContent is the messge content as a string.
      */
     public void setMessageContent(String type, String subType, String messageContent) {
+        this.messageModified();
         if (messageContent == null)
             throw new IllegalArgumentException("messgeContent is null");
         ContentType ct = new ContentType(type, subType);
@@ -1231,6 +1351,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public void setContent(Object content, ContentTypeHeader contentTypeHeader)
             throws ParseException {
+        this.messageModified();
         if (content == null)
             throw new NullPointerException("null content");
         this.setHeader(contentTypeHeader);
@@ -1273,6 +1394,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param messageContent is the message content as a byte array.
      */
     public void setMessageContent(String type, String subType, byte[] messageContent) {
+        this.messageModified();
         ContentType ct = new ContentType(type, subType);
         this.setHeader(ct);
         this.setMessageContent(messageContent);
@@ -1287,6 +1409,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public void setMessageContent(String content, boolean strict, boolean computeContentLength, int givenLength)
             throws ParseException {
+        this.messageModified();
         // Note that that this could be a double byte character
         // set - bug report by Masafumi Watanabe
         computeContentLength(content);
@@ -1309,6 +1432,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param content is the content of the message as an array of bytes.
      */
     public void setMessageContent(byte[] content) {
+        this.messageModified();
         computeContentLength(content);
 
         messageContentBytes = content;
@@ -1324,6 +1448,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public void setMessageContent(byte[] content, boolean computeContentLength, int givenLength)
             throws ParseException {
+        this.messageModified();
         computeContentLength(content);
         if ((!computeContentLength) && this.contentLengthHeader.getContentLength() < givenLength) {
             // System.out.println("!!!!!!!!!!! MISMATCH !!!!!!!!!!!");
@@ -1367,6 +1492,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * Remove the message content if it exists.
      */
     public void removeContent() {
+        this.messageModified();
         messageContent = null;
         messageContentBytes = null;
         messageContentObject = null;
@@ -1386,8 +1512,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     public ListIterator<SIPHeader> getHeaders(String headerName) {
         if (headerName == null)
             throw new NullPointerException("null headerName");
-        SIPHeader sipHeader = (SIPHeader) nameTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        String lowerCaseHeaderName = SIPHeaderNamesCache.toLowerCase(headerName);
+        this.parseDeferredHeaders(lowerCaseHeaderName);
+        SIPHeader sipHeader = (SIPHeader) nameTable.get(lowerCaseHeaderName);
         // empty iterator
         if (sipHeader == null)
             return new LinkedList<SIPHeader>().listIterator();
@@ -1407,6 +1534,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public String getHeaderAsFormattedString(String name) {
         String lowerCaseName = name.toLowerCase();
+        this.parseDeferredHeaders(lowerCaseName);
         if (this.nameTable.containsKey(lowerCaseName)) {
             return this.nameTable.get(lowerCaseName).toString();
         } else {
@@ -1415,6 +1543,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     }
 
     private SIPHeader getSIPHeaderListLowerCase(String lowerCaseHeaderName) {
+        this.parseDeferredHeaders(lowerCaseHeaderName);
         return nameTable.get(lowerCaseHeaderName);
     }
 
@@ -1426,8 +1555,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     @SuppressWarnings("unchecked")
     private List<SIPHeader> getHeaderList(String headerName) {
-        SIPHeader sipHeader = (SIPHeader) nameTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        String lowerCaseHeaderName = SIPHeaderNamesCache.toLowerCase(headerName);
+        this.parseDeferredHeaders(lowerCaseHeaderName);
+        SIPHeader sipHeader = (SIPHeader) nameTable.get(lowerCaseHeaderName);
         if (sipHeader == null)
             return null;
         else if (sipHeader instanceof SIPHeaderList)
@@ -1446,7 +1576,15 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return true if the header is present in the message
      */
     public boolean hasHeader(String headerName) {
-        return nameTable.containsKey(SIPHeaderNamesCache.toLowerCase(headerName));
+        String lowerCaseHeaderName = SIPHeaderNamesCache.toLowerCase(headerName);
+        LinkedHashMap<String, LinkedList<String>> deferred = this.deferredHeaders;
+        if (deferred != null) {
+            synchronized (this.headers) {
+                if (deferred.containsKey(lowerCaseHeaderName))
+                    return true;
+            }
+        }
+        return nameTable.containsKey(lowerCaseHeaderName);
     }
 
     /**
@@ -1483,6 +1621,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param tag -- tag to set in the from header.
      */
     public void setFromTag(String tag) {
+        this.messageModified();
         try {
             fromHeader.setTag(tag);
         } catch (ParseException e) {
@@ -1495,6 +1634,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param tag -- tag to set.
      */
     public void setToTag(String tag) {
+        this.messageModified();
         try {
             toHeader.setTag(tag);
         } catch (ParseException e) {
@@ -1519,6 +1659,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param sipHeader -- sip header to add.
      */
     public void addHeader(Header sipHeader) {
+        this.messageModified();
         // Content length is never stored. Just computed.
         SIPHeader sh = (SIPHeader) sipHeader;
         try {
@@ -1544,7 +1685,130 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param unparsed -- unparsed header to add to the list.
      */
     public void addUnparsed(String unparsed) {
-        this.unrecognizedHeaders.add(unparsed);
+        this.messageModified();
+        synchronized (this.headers) {
+            this.unrecognizedHeaders.add(unparsed);
+        }
+    }
+
+    /**
+     * Add a header that will only be parsed when it is first accessed. Until then it is encoded
+     * exactly as given.
+     * 
+     * @param lowerCaseName -- lower case name of the header.
+     * @param header -- the header as received, without the line terminator.
+     */
+    public void addDeferredHeader(String lowerCaseName, String header) {
+        this.messageModified();
+        synchronized (this.headers) {
+            LinkedHashMap<String, LinkedList<String>> deferred = this.deferredHeaders;
+            if (deferred == null) {
+                deferred = new LinkedHashMap<String, LinkedList<String>>();
+            }
+            LinkedList<String> values = deferred.get(lowerCaseName);
+            if (values == null) {
+                values = new LinkedList<String>();
+                deferred.put(lowerCaseName, values);
+            }
+            values.add(header);
+            this.deferredHeaders = deferred;
+        }
+    }
+
+    /**
+     * Parse the deferred headers of the given name, if there are any, and attach them to the
+     * message. A header that fails to parse is kept as an unrecognized header. The headers are
+     * parsed and attached under the lock of the header list, and the deferred table is only
+     * dropped once they are attached, so that another thread never finds a header in neither
+     * place.
+     * 
+     * @param lowerCaseName -- lower case name of the headers to parse.
+     */
+    protected void parseDeferredHeaders(String lowerCaseName) {
+        if (this.deferredHeaders == null)
+            return;
+        synchronized (this.headers) {
+            LinkedHashMap<String, LinkedList<String>> deferred = this.deferredHeaders;
+            if (deferred == null)
+                return;
+            LinkedList<String> values = deferred.remove(lowerCaseName);
+            // attachHeader comes back here for the name being attached, leave
+            // the table alone then.
+            if (values == null)
+                return;
+            for (String header : values) {
+                this.attachDeferredHeader(header);
+            }
+            if (deferred.isEmpty())
+                this.deferredHeaders = null;
+        }
+    }
+
+    /**
+     * Parse all the deferred headers of this message.
+     */
+    protected void parseDeferredHeaders() {
+        if (this.deferredHeaders == null)
+            return;
+        synchronized (this.headers) {
+            LinkedHashMap<String, LinkedList<String>> deferred = this.deferredHeaders;
+            if (deferred == null)
+                return;
+            while (!deferred.isEmpty()) {
+                String lowerCaseName = deferred.keySet().iterator().next();
+                for (String header : deferred.remove(lowerCaseName)) {
+                    this.attachDeferredHeader(header);
+                }
+            }
+            this.deferredHeaders = null;
+        }
+    }
+
+    /**
+     * Parse a deferred header and attach it. Called with the lock of the header list held.
+     */
+    private void attachDeferredHeader(String header) {
+        try {
+            SIPHeader sipHeader = ParserFactory.parseHeader(header + "\n");
+            this.attachHeader(sipHeader, false);
+        } catch (SIPDuplicateHeaderException ex) {
+        } catch (ParseException ex) {
+            this.unrecognizedHeaders.add(header);
+        }
+    }
+
+    /**
+     * Drop the deferred headers of the given name without parsing them.
+     */
+    private void removeDeferredHeaders(String lowerCaseName) {
+        if (this.deferredHeaders == null)
+            return;
+        synchronized (this.headers) {
+            LinkedHashMap<String, LinkedList<String>> deferred = this.deferredHeaders;
+            if (deferred != null) {
+                deferred.remove(lowerCaseName);
+                if (deferred.isEmpty())
+                    this.deferredHeaders = null;
+            }
+        }
+    }
+
+    /**
+     * Append the deferred headers, as received, to an encoding.
+     */
+    private void encodeDeferredHeaders(StringBuffer encoding) {
+        if (this.deferredHeaders == null)
+            return;
+        synchronized (this.headers) {
+            LinkedHashMap<String, LinkedList<String>> deferred = this.deferredHeaders;
+            if (deferred != null) {
+                for (LinkedList<String> values : deferred.values()) {
+                    for (String header : values) {
+                        encoding.append(header).append(NEWLINE);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -1554,6 +1818,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
 
     public void addHeader(String sipHeader) {
+        this.messageModified();
         String hdrString = sipHeader.trim() + "\n";
         try {
             HeaderParser parser = ParserFactory.createParser(sipHeader);
@@ -1580,6 +1845,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      *         are present in the message.
      */
     public ListIterator<String> getHeaderNames() {
+        this.parseDeferredHeaders();
         Iterator<SIPHeader> li = this.headers.iterator();
         LinkedList<String> retval = new LinkedList<String>();
         while (li.hasNext()) {
@@ -1600,6 +1866,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             return false;
         }
         SIPMessage otherMessage = (SIPMessage) other;
+        this.parseDeferredHeaders();
+        otherMessage.parseDeferredHeaders();
         Collection<SIPHeader> values = this.nameTable.values();
         Iterator<SIPHeader> it = values.iterator();
         if (nameTable.size() != otherMessage.nameTable.size()) {
@@ -1723,12 +1991,31 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         return this.size;
     }
 
+    /**
+     * Record a change to the start line, the headers or the body of the message.
+     */
+    protected void messageModified() {
+        this.modificationCount++;
+    }
+
+    /**
+     * Get the number of changes made to the message through its setters. An encoding of the
+     * message may be reused only while this count stays the same. Changes made directly to a
+     * header object taken from the message are not counted.
+     * 
+     * @return the modification count.
+     */
+    public int getModificationCount() {
+        return this.modificationCount;
+    }
+
     /*
      * (non-Javadoc)
      * 
      * @see javax.sip.message.Message#addLast(javax.sip.header.Header)
      */
     public void addLast(Header header) throws SipException, NullPointerException {
+        this.messageModified();
         if (header == null)
             throw new NullPointerException("null arg!");
 
@@ -1746,6 +2033,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @see javax.sip.message.Message#addFirst(javax.sip.header.Header)
      */
     public void addFirst(Header header) throws SipException, NullPointerException {
+        this.messageModified();
 
         if (header == null)
             throw new NullPointerException("null arg!");
@@ -1764,6 +2052,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @see javax.sip.message.Message#removeFirst(java.lang.String)
      */
     public void removeFirst(String headerName) throws NullPointerException {
+        this.messageModified();
         if (headerName == null)
             throw new NullPointerException("Null argument Provided!");
         this.removeHeader(headerName, true);
@@ -1776,6 +2065,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @see javax.sip.message.Message#removeLast(java.lang.String)
      */
     public void removeLast(String headerName) {
+        this.messageModified();
         if (headerName == null)
             throw new NullPointerException("Null argument Provided!");
         this.removeHeader(headerName, false);
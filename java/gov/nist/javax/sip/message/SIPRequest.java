@@ -177,6 +177,7 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
      */
 
     public void setRequestLine(RequestLine requestLine) {
+        this.messageModified();
         this.requestLine = requestLine;
     }
 
@@ -377,6 +378,7 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
      * @param uri the new Request URI of this request message
      */
     public void setRequestURI(URI uri) {
+        this.messageModified();
         if ( uri == null ) {
             throw new NullPointerException("Null request URI");
         }
@@ -394,6 +396,7 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
      * @throws IllegalArgumentException if the method is null
      */
     public void setMethod(String method) {
+        this.messageModified();
         if (method == null)
             throw new IllegalArgumentException("null method");
         if (this.requestLine == null) {
@@ -627,19 +630,7 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
             return new byte[0];
         }
 
-        byte[] rlbytes = null;
-        if (requestLine != null) {
-            try {
-                rlbytes = requestLine.encode().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
-        }
-        byte[] superbytes = super.encodeAsBytes(transport);
-        byte[] retval = new byte[rlbytes.length + superbytes.length];
-        System.arraycopy(rlbytes, 0, retval, 0, rlbytes.length);
-        System.arraycopy(superbytes, 0, retval, rlbytes.length, superbytes.length);
-        return retval;
+        return super.encodeAsBytes(requestLine.encode(), transport);
     }
 
     /**
@@ -696,7 +687,10 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
             newResponse.setReasonPhrase(reasonPhrase);
         else
             newResponse.setReasonPhrase(SIPResponse.getReasonPhrase(statusCode));
-        headerIterator = getHeaders();
+        // Only the headers copied below need to be parsed.
+        parseDeferredHeaders(SIPHeaderNamesCache.toLowerCase(RecordRouteHeader.NAME));
+        parseDeferredHeaders(SIPHeaderNamesCache.toLowerCase(TimeStampHeader.NAME));
+        headerIterator = this.headers.iterator();
         while (headerIterator.hasNext()) {
             nextHeader = (SIPHeader) headerIterator.next();
             if (nextHeader instanceof From
@@ -1108,6 +1102,7 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
      * @param sipVersion the sip version to set.
      */
     public void setSIPVersion(String sipVersion) throws ParseException {
+        this.messageModified();
         if (sipVersion == null || !sipVersion.equalsIgnoreCase("SIP/2.0"))
             throw new ParseException("sipVersion", 0);
         this.requestLine.setSipVersion(sipVersion);
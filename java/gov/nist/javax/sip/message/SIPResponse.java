@@ -303,6 +303,7 @@ public final class SIPResponse
      *@throws IlegalArgumentException if invalid status code.
      */
     public void setStatusCode(int statusCode) throws ParseException {
+        this.messageModified();
 
       // RFC3261 defines statuscode as 3DIGIT, 606 is the highest officially
       // defined code but extensions may add others (in theory up to 999,
@@ -334,6 +335,7 @@ public final class SIPResponse
      *@throws IllegalArgumentException if null string
      */
     public void setReasonPhrase(String reasonPhrase) {
+        this.messageModified();
         if (reasonPhrase == null)
             throw new IllegalArgumentException("Bad reason phrase");
         if (this.statusLine == null)
@@ -371,6 +373,7 @@ public final class SIPResponse
      *@param sl Status line to set.
      */
     public void setStatusLine(StatusLine sl) {
+        this.messageModified();
         statusLine = sl;
     }
 
@@ -531,20 +534,7 @@ public final class SIPResponse
      */
 
     public byte[] encodeAsBytes( String transport ) {
-        byte[] slbytes = null;
-        if (statusLine != null) {
-            try {
-                slbytes = statusLine.encode().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
-        }
-        byte[] superbytes = super.encodeAsBytes( transport );
-        byte[] retval = new byte[slbytes.length + superbytes.length];
-        System.arraycopy(slbytes, 0, retval, 0, slbytes.length);
-        System.arraycopy(superbytes, 0, retval, slbytes.length,
-                superbytes.length);
-        return retval;
+        return super.encodeAsBytes(statusLine.encode(), transport);
     }
 
 
@@ -657,6 +647,7 @@ public final class SIPResponse
     }
 
     public void setSIPVersion(String sipVersion) {
+        this.messageModified();
         this.statusLine.setSipVersion(sipVersion);
     }
 
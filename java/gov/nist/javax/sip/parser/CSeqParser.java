@@ -52,7 +52,41 @@ public class CSeqParser extends HeaderParser {
         super(lexer);
     }
 
+    /**
+     * Single pass parse of the common CSeq syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private CSeq fastParse() throws ParseException {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.CSEQ, null))
+            return null;
+        long number = scanner.number(18);
+        if (number == -1)
+            return null;
+        scanner.SPorHT();
+        String m = scanner.method();
+        if (m == null)
+            return null;
+        scanner.SPorHT();
+        if (!scanner.match('\n'))
+            return null;
+        CSeq c = new CSeq();
+        try {
+            c.setSeqNumber(number);
+        } catch (InvalidArgumentException ex) {
+            return null;
+        }
+        c.setMethod(m);
+        scanner.commit();
+        return c;
+    }
+
     public SIPHeader parse() throws ParseException {
+        CSeq cseq = fastParse();
+        if (cseq != null)
+            return cseq;
         try {
             CSeq c = new CSeq();
 
@@ -59,7 +59,29 @@ public class CallIDParser extends HeaderParser {
      * @return SIPHeader (CallID object)
      * @throws ParseException if the message does not respect the spec.
      */
+    /**
+     * Single pass parse of the common Call-ID syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private CallID fastParse() throws ParseException {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.CALL_ID, TokenNames.I))
+            return null;
+        String rest = scanner.rest();
+        if (rest == null)
+            return null;
+        CallID callID = new CallID();
+        callID.setCallId(rest.trim());
+        scanner.commit();
+        return callID;
+    }
+
     public SIPHeader parse() throws ParseException {
+        CallID fast = fastParse();
+        if (fast != null)
+            return fast;
         if (debug)
             dbg_enter("parse");
         try {
@@ -28,6 +28,7 @@ import gov.nist.javax.sip.address.SipUri;
 import gov.nist.javax.sip.header.Contact;
 import gov.nist.javax.sip.header.ContactList;
 import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderNames;
 
 import javax.sip.address.URI;
 import java.text.ParseException;
@@ -51,10 +52,45 @@ public class ContactParser extends AddressParametersParser {
         this.lexer = lexer;
     }
 
+    /**
+     * Single pass parse of the common Contact syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private ContactList fastParse() {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.CONTACT, TokenNames.M))
+            return null;
+        ContactList contactList = new ContactList();
+        while (true) {
+            if (scanner.lookAhead() == '*')
+                return null;
+            Contact contact = new Contact();
+            if (!scanner.addressParameters(contact))
+                return null;
+            contactList.add(contact);
+            scanner.SPorHT();
+            char la = scanner.lookAhead();
+            if (la == ',') {
+                scanner.match(',');
+                scanner.SPorHT();
+            } else if (la == '\n' || la == '\0')
+                break;
+            else
+                return null;
+        }
+        scanner.commit();
+        return contactList;
+    }
+
     public SIPHeader parse() throws ParseException {
+        ContactList retval = fastParse();
+        if (retval != null)
+            return retval;
         // past the header name and the colon.
         headerName(TokenTypes.CONTACT);
-        ContactList retval = new ContactList();
+        retval = new ContactList();
         while (true) {
             Contact contact = new Contact();
             if (lexer.lookAhead(0) == '*') {
@@ -49,7 +49,36 @@ public class ContentLengthParser extends HeaderParser {
         super(lexer);
     }
 
+    /**
+     * Single pass parse of the common Content-Length syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private ContentLength fastParse() {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.CONTENT_LENGTH, TokenNames.L))
+            return null;
+        int number = (int) scanner.number(9);
+        if (number == -1)
+            return null;
+        scanner.SPorHT();
+        if (!scanner.match('\n'))
+            return null;
+        ContentLength header = new ContentLength();
+        try {
+            header.setContentLength(number);
+        } catch (InvalidArgumentException ex) {
+            return null;
+        }
+        scanner.commit();
+        return header;
+    }
+
     public SIPHeader parse() throws ParseException {
+        ContentLength header = fastParse();
+        if (header != null)
+            return header;
         if (debug)
             dbg_enter("ContentLengthParser.enter");
         try {
@@ -26,6 +26,7 @@
 package gov.nist.javax.sip.parser;
 import gov.nist.javax.sip.header.From;
 import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderNames;
 
 import java.text.ParseException;
 
@@ -48,9 +49,29 @@ public class FromParser extends AddressParametersParser {
         super(lexer);
     }
 
+    /**
+     * Single pass parse of the common From syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private From fastParse() {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.FROM, TokenNames.F))
+            return null;
+        From from = new From();
+        if (!scanner.addressParameters(from) || !scanner.match('\n'))
+            return null;
+        scanner.commit();
+        return from;
+    }
+
     public SIPHeader parse() throws ParseException {
 
-        From from = new From();
+        From from = fastParse();
+        if (from != null)
+            return from;
+        from = new From();
 
         this.lexer.match(TokenTypes.FROM);
         this.lexer.SPorHT();
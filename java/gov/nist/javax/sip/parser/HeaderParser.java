@@ -161,6 +161,16 @@ public class HeaderParser extends Parser {
         this.lexer.selectLexer("command_keywordLexer");
     }
 
+    /**
+     * Reuse this parser for another header. Only parsers created from a
+     * String can be reset.
+     *
+     * @param header the new header to parse.
+     */
+    void reset(String header) {
+        ((Lexer) this.lexer).reset("command_keywordLexer", header);
+    }
+
     /**
      * Parse the SIP header from the buffer and return a parsed
      * structure.
@@ -0,0 +1,773 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.parser;
+
+import gov.nist.core.GenericObject;
+import gov.nist.core.Host;
+import gov.nist.core.HostPort;
+import gov.nist.core.LexerCore;
+import gov.nist.core.NameValue;
+import gov.nist.javax.sip.address.AddressImpl;
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.header.AddressParametersHeader;
+import gov.nist.javax.sip.header.ParametersHeader;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.sip.message.Request;
+
+/**
+ * Single pass scanner used by the parsers of the most frequent headers
+ * (Via, From, To, Contact, CSeq, Call-ID, Content-Length, Max-Forwards and
+ * the request and status lines).
+ * <p>
+ * The scanner works directly on the buffer of the lexer and builds the same
+ * objects the general parsers build, without creating tokens or looking up
+ * keyword tables. It only understands the common syntax: every method
+ * returns null (or false) as soon as it sees something it does not handle
+ * (IPv6 references, escaped characters, non ascii tokens, comments, ...).
+ * The caller then leaves the lexer untouched and runs the general parser,
+ * which is also the one reporting syntax errors. The lexer is only advanced
+ * by {@link #commit()} once the whole header has been scanned.
+ *
+ * @version 1.2
+ */
+final class HeaderScanner {
+
+    private static final String[] METHODS = {
+        Request.INVITE, Request.ACK, Request.BYE, Request.CANCEL,
+        Request.OPTIONS, Request.REGISTER, Request.SUBSCRIBE,
+        Request.NOTIFY, Request.PUBLISH, Request.MESSAGE, Request.INFO,
+        Request.PRACK, Request.UPDATE, Request.REFER };
+
+    /*
+     * The parsers only try the scanner when this is set. main clears it to
+     * run the general parsers on their own.
+     */
+    static boolean enabled = true;
+
+    private final LexerCore lexer;
+
+    private final String buffer;
+
+    private final int length;
+
+    private int ptr;
+
+    HeaderScanner(LexerCore lexer) {
+        this.lexer = lexer;
+        this.buffer = lexer.getBuffer();
+        this.length = buffer.length();
+        this.ptr = lexer.getPtr();
+    }
+
+    /**
+     * Advance the lexer past the characters consumed by this scanner.
+     */
+    void commit() {
+        lexer.consume(ptr - lexer.getPtr());
+    }
+
+    char lookAhead() {
+        return ptr < length ? buffer.charAt(ptr) : '\0';
+    }
+
+    boolean match(char ch) {
+        if (ptr < length && buffer.charAt(ptr) == ch) {
+            ptr++;
+            return true;
+        }
+        return false;
+    }
+
+    void SPorHT() {
+        while (ptr < length) {
+            char ch = buffer.charAt(ptr);
+            if (ch != ' ' && ch != '\t')
+                break;
+            ptr++;
+        }
+    }
+
+    /**
+     * Match the header name (or its compact form), the colon and the white
+     * space around it.
+     */
+    boolean headerName(String name, String compactName) {
+        int end = tokenEnd(ptr);
+        if (end == -1)
+            return false;
+        int len = end - ptr;
+        if (!(len == name.length() && buffer.regionMatches(true, ptr, name, 0, len))
+                && !(compactName != null && len == compactName.length()
+                        && buffer.regionMatches(true, ptr, compactName, 0, len)))
+            return false;
+        ptr = end;
+        SPorHT();
+        if (!match(':'))
+            return false;
+        SPorHT();
+        return true;
+    }
+
+    /**
+     * Scan a token. Returns null if there is none.
+     */
+    String token() {
+        int end = tokenEnd(ptr);
+        if (end == -1 || end == ptr)
+            return null;
+        String token = buffer.substring(ptr, end);
+        ptr = end;
+        return token;
+    }
+
+    /**
+     * Scan one of the standard request methods, returning the method
+     * constant. Returns null for extension methods.
+     */
+    String method() {
+        int end = tokenEnd(ptr);
+        if (end == -1)
+            return null;
+        int len = end - ptr;
+        for (int i = 0; i < METHODS.length; i++) {
+            String method = METHODS[i];
+            if (len == method.length()
+                    && buffer.regionMatches(ptr, method, 0, len)) {
+                ptr = end;
+                return method;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scan at most maxDigits decimal digits. Returns -1 if there are none,
+     * or too many.
+     */
+    long number(int maxDigits) {
+        int start = ptr;
+        long value = 0;
+        while (ptr < length) {
+            char ch = buffer.charAt(ptr);
+            if (ch >= '0' && ch <= '9') {
+                value = value * 10 + (ch - '0');
+                ptr++;
+            } else if (ch >= 0x80) {
+                return -1;
+            } else {
+                break;
+            }
+        }
+        int digits = ptr - start;
+        if (digits == 0 || digits > maxDigits)
+            return -1;
+        return value;
+    }
+
+    /**
+     * Scan a quoted string, returning its content without the quotes.
+     * Returns null if the string is not terminated.
+     */
+    String quotedString() {
+        if (lookAhead() != '\"')
+            return null;
+        int start = ptr + 1;
+        int i = start;
+        while (i < length) {
+            char ch = buffer.charAt(i);
+            if (ch == '\"') {
+                ptr = i + 1;
+                return buffer.substring(start, i);
+            } else if (ch == '\0') {
+                return null;
+            } else if (ch == '\\') {
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scan up to the end of the line or the next ';' or ','.
+     */
+    String byteStringNoSemicolon() {
+        int start = ptr;
+        while (ptr < length) {
+            char ch = buffer.charAt(ptr);
+            if (ch == '\0' || ch == '\n' || ch == ';' || ch == ',')
+                break;
+            ptr++;
+        }
+        return buffer.substring(start, ptr);
+    }
+
+    /**
+     * Return what is left of the buffer. Returns null at the end of it.
+     */
+    String rest() {
+        if (ptr >= length)
+            return null;
+        String rest = buffer.substring(ptr);
+        ptr = length;
+        return rest;
+    }
+
+    /**
+     * Scan the literal SIP/2.0 protocol version.
+     */
+    boolean sipVersion() {
+        int end = tokenEnd(ptr);
+        if (end - ptr != 3 || !buffer.regionMatches(true, ptr, "SIP", 0, 3))
+            return false;
+        ptr = end;
+        if (!match('/'))
+            return false;
+        end = tokenEnd(ptr);
+        if (end - ptr != 3 || !buffer.regionMatches(ptr, "2.0", 0, 3))
+            return false;
+        ptr = end;
+        return true;
+    }
+
+    /**
+     * Scan host[:port] where the host is a host name or IPv4 address.
+     *
+     * @param allowWS - whether white space is allowed around ':', only true
+     *            for Via headers
+     */
+    HostPort hostPort(boolean allowWS) {
+        if (lookAhead() == '[' || isIPv6Address())
+            return null;
+        int start = ptr;
+        while (ptr < length) {
+            char ch = buffer.charAt(ptr);
+            if (isAlphaDigit(ch) || ch == '-' || ch == '.')
+                ptr++;
+            else if (ch >= 0x80)
+                return null;
+            else
+                break;
+        }
+        if (ptr == start)
+            return null;
+        Host host = new Host(buffer.substring(start, ptr));
+        HostPort hostPort = new HostPort();
+        hostPort.setHost(host);
+        if (allowWS)
+            SPorHT();
+        if (ptr < length) {
+            char ch = buffer.charAt(ptr);
+            if (ch == ':') {
+                ptr++;
+                if (allowWS)
+                    SPorHT();
+                int port = (int) number(9);
+                if (port == -1)
+                    return null;
+                hostPort.setPort(port);
+            } else if (!allowWS) {
+                switch (ch) {
+                case ',':
+                case ';':
+                case '?':
+                case '>':
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\n':
+                case '/':
+                    break;
+                default:
+                    return null;
+                }
+            }
+        }
+        return hostPort;
+    }
+
+    /**
+     * Scan a sip or sips URI without escaped characters or headers.
+     */
+    SipUri sipURL(boolean inBrackets) {
+        int end = tokenEnd(ptr);
+        String scheme;
+        if (end - ptr == 3
+                && buffer.regionMatches(true, ptr, TokenNames.SIP, 0, 3))
+            scheme = TokenNames.SIP;
+        else if (end - ptr == 4
+                && buffer.regionMatches(true, ptr, TokenNames.SIPS, 0, 4))
+            scheme = TokenNames.SIPS;
+        else
+            return null;
+        if (end >= length || buffer.charAt(end) != ':')
+            return null;
+        ptr = end + 1;
+        SipUri uri = new SipUri();
+        uri.setScheme(scheme);
+
+        // name:password@ or host:port
+        int startOfUser = ptr;
+        while (ptr < length) {
+            char ch = buffer.charAt(ptr);
+            if (URLParser.isUnreserved(ch) || URLParser.isUserUnreserved(ch))
+                ptr++;
+            else if (ch == '%' || ch >= 0x80)
+                return null;
+            else
+                break;
+        }
+        int endOfUser = ptr;
+        String password = null;
+        if (match(':')) {
+            int startOfPassword = ptr;
+            while (ptr < length) {
+                char ch = buffer.charAt(ptr);
+                if (URLParser.isUnreserved(ch) || ch == '&' || ch == '='
+                        || ch == '+' || ch == '$' || ch == ',')
+                    ptr++;
+                else if (ch == '%' || ch >= 0x80)
+                    return null;
+                else
+                    break;
+            }
+            password = buffer.substring(startOfPassword, ptr);
+        }
+        if (match('@')) {
+            uri.setUser(buffer.substring(startOfUser, endOfUser));
+            if (password != null)
+                uri.setUserPassword(password);
+        } else {
+            ptr = startOfUser;
+        }
+
+        HostPort hostPort = hostPort(false);
+        if (hostPort == null)
+            return null;
+        uri.setHostPort(hostPort);
+
+        while (inBrackets && match(';')) {
+            String pname = paramNameOrValue();
+            if (pname == null)
+                return null;
+            String pvalue = "";
+            boolean isFlagParam = true;
+            if (match('=')) {
+                pvalue = paramNameOrValue();
+                if (pvalue == null)
+                    return null;
+                isFlagParam = false;
+            }
+            if (pname.length() != 0 || pvalue.length() != 0)
+                uri.setUriParameter(new NameValue(pname, pvalue, isFlagParam));
+        }
+        if (lookAhead() == '?')
+            return null;
+        return uri;
+    }
+
+    /**
+     * Scan a name-addr or an addr-spec with a sip or sips URI.
+     */
+    AddressImpl address() {
+        int k = ptr;
+        while (true) {
+            if (k >= length)
+                return null;
+            char ch = buffer.charAt(k);
+            if (ch == '<' || ch == '\"' || ch == ':' || ch == '/')
+                break;
+            else if (ch == '\0')
+                return null;
+            k++;
+        }
+        char ch = buffer.charAt(k);
+        if (ch == ':' || ch == '/') {
+            AddressImpl addr = new AddressImpl();
+            SipUri uri = sipURL(false);
+            if (uri == null)
+                return null;
+            addr.setAddressType(AddressImpl.ADDRESS_SPEC);
+            addr.setURI(uri);
+            return addr;
+        }
+
+        AddressImpl addr = new AddressImpl();
+        addr.setAddressType(AddressImpl.NAME_ADDR);
+        if (lookAhead() != '<') {
+            String name;
+            if (lookAhead() == '\"') {
+                name = quotedString();
+                if (name == null)
+                    return null;
+                SPorHT();
+            } else {
+                int end = ptr;
+                while (end < length && buffer.charAt(end) != '<') {
+                    if (buffer.charAt(end) == '\0')
+                        return null;
+                    end++;
+                }
+                if (end == length)
+                    return null;
+                name = buffer.substring(ptr, end);
+                ptr = end;
+            }
+            addr.setDisplayName(name.trim());
+        }
+        if (!match('<'))
+            return null;
+        SPorHT();
+        SipUri uri = sipURL(true);
+        if (uri == null)
+            return null;
+        addr.setURI(uri);
+        SPorHT();
+        if (!match('>'))
+            return null;
+        return addr;
+    }
+
+    /**
+     * Scan the address and the parameters of a From, To or Contact header.
+     */
+    boolean addressParameters(AddressParametersHeader header) {
+        AddressImpl addr = address();
+        if (addr == null)
+            return false;
+        header.setAddress(addr);
+        return parameters(header);
+    }
+
+    /**
+     * Scan the ;name=value parameters of a header.
+     */
+    boolean parameters(ParametersHeader header) {
+        SPorHT();
+        char la = lookAhead();
+        if (la != '\0' && la != '\n' && (la >= 0x80 || LexerCore.isTokenChar(la)))
+            return false;
+        while (match(';')) {
+            SPorHT();
+            String name = token();
+            if (name == null)
+                return false;
+            SPorHT();
+            NameValue nv;
+            if (match('=')) {
+                SPorHT();
+                if (lookAhead() == '\"') {
+                    String value = quotedString();
+                    if (value == null)
+                        return false;
+                    nv = new NameValue(name, value, false);
+                    nv.setQuotedValue();
+                } else {
+                    String value = token();
+                    if (value == null)
+                        return false;
+                    nv = new NameValue(name, value, false);
+                }
+            } else {
+                nv = new NameValue(name, "", true);
+            }
+            header.setParameter(nv);
+            SPorHT();
+        }
+        return true;
+    }
+
+    /**
+     * Scan a URI parameter name or value. Returns null on escaped
+     * characters.
+     */
+    private String paramNameOrValue() {
+        int start = ptr;
+        while (ptr < length) {
+            char ch = buffer.charAt(ptr);
+            switch (ch) {
+            case '[':
+            case ']':
+            case '/':
+            case ':':
+            case '&':
+            case '+':
+            case '$':
+                ptr++;
+                continue;
+            }
+            if (URLParser.isUnreserved(ch))
+                ptr++;
+            else if (ch == '%' || ch >= 0x80)
+                return null;
+            else
+                break;
+        }
+        return buffer.substring(start, ptr);
+    }
+
+    /**
+     * Same test as HostNameParser: two colons before the parameters mean
+     * the host is an IPv6 address without brackets.
+     */
+    private boolean isIPv6Address() {
+        if (ptr >= length)
+            return true;
+        int hostEnd = buffer.indexOf('?', ptr);
+        int semiColonIndex = buffer.indexOf(';', ptr);
+        if (hostEnd == -1 || (semiColonIndex != -1 && hostEnd > semiColonIndex))
+            hostEnd = semiColonIndex;
+        if (hostEnd == -1)
+            hostEnd = length;
+        int firstColonIndex = buffer.indexOf(':', ptr);
+        if (firstColonIndex == -1 || firstColonIndex >= hostEnd)
+            return false;
+        int secondColonIndex = buffer.indexOf(':', firstColonIndex + 1);
+        return secondColonIndex != -1 && secondColonIndex < hostEnd;
+    }
+
+    /**
+     * Return the end of the token starting at the given index, or -1 if it
+     * runs into a non ascii character.
+     */
+    private int tokenEnd(int start) {
+        int i = start;
+        while (i < length) {
+            char ch = buffer.charAt(i);
+            if (ch >= 0x80)
+                return -1;
+            if (!LexerCore.isTokenChar(ch))
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isAlphaDigit(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+                || (ch >= '0' && ch <= '9');
+    }
+
+    /*
+     * Headers, request lines and status lines for the differential check in
+     * main. They cover the syntax the scanner handles and much of what it
+     * leaves to the general parsers.
+     */
+    private static final String[] HEADERS = {
+        "Via: SIP/2.0/UDP 192.168.1.1:5060;branch=z9hG4bK776asdhds;rport\n",
+        "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKnashds8;received=192.0.2.1\n",
+        "v: SIP/2.0/TCP host.example.com:5061 ;branch=z9hG4bK1 ; received = 10.0.0.1 , SIP/2.0/UDP b.com;branch=z9hG4bK2\n",
+        "Via: SIP / 2.0 / UDP host : 5060 ; branch=abc\n",
+        "Via: SIP/2.0/UDP [::1]:5060;branch=z9hG4bKx\n",
+        "Via: SIP/2.0/UDP 2001:db8::1;branch=z9hG4bKx\n",
+        "Via: SIP/2.0/UDP host;branch=\"quoted\"\n",
+        "Via: SIP/2.0/UDP host;branch\n",
+        "Via: SIP/2.0/UDP host;received=[2001:db8::9];rport=5060;branch=z9hG4bKa\n",
+        "Via: SIP/2.0/UDP host (comment)\n",
+        "Via: SIP/2.0/UDP host;ttl=16;maddr=224.2.0.1;branch=z9hG4bKa,SIP/2.0/TLS x.y:5\n",
+        "VIA: SIP/2.0/UDP h\n",
+        "Via: SIP/2.0/UDP h:5060\n",
+        "Via: SIP/2.0/UDP h:99999999999\n",
+        "Via: SIP/2.0/UDP h\u00e9.com;branch=z\n",
+        "From: \"Alice\" <sip:alice@atlanta.com>;tag=1928301774\n",
+        "From: Bob <sips:bob@biloxi.com:5061;transport=tls>;tag=a6c85cf\n",
+        "f: sip:+12125551212@server.phone2net.com;tag=887s\n",
+        "From: <sip:user:pass@host;lr;maddr=1.2.3.4>;tag=x;foo=\"bar baz\";flag\n",
+        "From: \"A \\\"quoted\\\" name\" <sip:a@b>;tag=1\n",
+        "From: \"Zo\u00eb \u00dcnicode\" <sip:zoe@example.com>;tag=u\n",
+        "From: Zo\u00eb <sip:zoe@example.com>;tag=u\n",
+        "From: <tel:+1-201-555-0123>;tag=t\n",
+        "From: <sip:a%20b@host>;tag=e\n",
+        "From: <sip:a@host?subject=x>;tag=q\n",
+        "From: sip:a@host;tag=x;other\n",
+        "From: <sip:a@[::1]:5060>;tag=6\n",
+        "From: <sip:a@host> tag=x\n",
+        "From: \"unterminated <sip:a@b>\n",
+        "From: <sip:a@host;transport=udp>  ;  tag = abc ; x=\"y\"\n",
+        "From: Anonymous <sip:anonymous@anonymous.invalid>;tag=hyh8\n",
+        "From: <sip:alice@atlanta.com>;tag=\n",
+        "From: <SIP:alice@Atlanta.COM>;TAG=ABC\n",
+        "From: <sip:alice@atlanta.com;user=phone;=x;;>;tag=1\n",
+        "To: Bob <sip:bob@biloxi.com>\n",
+        "t: <sip:bob@biloxi.com>;tag=a6c85cf\n",
+        "To: sip:bob@biloxi.com\n",
+        "To: \"Bob\"<sip:bob@192.0.2.4>\n",
+        "To: <sip:+1-650-555-2222@ss1.wcom.com;user=phone>;tag=5617\n",
+        "To: T. A. Watson <sip:watson@bell-telephone.com;param=something>\n",
+        "Contact: <sip:alice@pc33.atlanta.com>\n",
+        "m: <sip:a@1.2.3.4:5060;transport=tcp>;expires=3600;q=0.7, \"B\" <sip:b@h>;expires=0\n",
+        "Contact: *\n",
+        "Contact: <sip:a@h>;+sip.instance=\"<urn:uuid:00000000-0000-1000-8000-000A95A0E128>\";reg-id=1\n",
+        "Contact: sip:a@h;expires=30\n",
+        "Contact: <sip:a@h>,<sip:b@h>\n",
+        "Contact: <sip:a@h>;expires=30 junk\n",
+        "Contact: <sip:a@h:5060;ob>;methods=\"INVITE, BYE\"\n",
+        "CSeq: 4711 INVITE\n",
+        "CSeq: 1 ACK \n",
+        "CSeq:   101   REGISTER\n",
+        "CSeq: 1 invite\n",
+        "CSeq: 1 FOO\n",
+        "CSeq: 99999999999 BYE\n",
+        "CSeq: 2147483648 BYE\n",
+        "CSeq: 1 TO\n",
+        "CSeq: x INVITE\n",
+        "Call-ID: a84b4c76e66710@pc33.atlanta.com\n",
+        "i: f81d4fae-7dec-11d0-a765-00a0c91e6bf6@foo.bar.com  \n",
+        "Call-ID:\n",
+        "Call-ID: \n",
+        "Content-Length: 142\n",
+        "l: 0\n",
+        "Content-Length: 12345678901\n",
+        "Content-Length: -1\n",
+        "Content-Length:   5  \n",
+        "Max-Forwards: 70\n",
+        "Max-Forwards: 300\n",
+        "Max-Forwards: 70 x\n",
+    };
+
+    private static final String[] REQUEST_LINES = {
+        "INVITE sip:bob@biloxi.com SIP/2.0\n",
+        "REGISTER sip:registrar.biloxi.com SIP/2.0\n",
+        "ACK sip:bob@192.0.2.4:5060;transport=udp SIP/2.0\n",
+        "FOO sip:bob@h SIP/2.0\n",
+        "invite sip:bob@h SIP/2.0\n",
+        "INVITE tel:+1234 SIP/2.0\n",
+        "INVITE sip:[::1] SIP/2.0\n",
+        "INVITE sip:bob@h SIP/3.0\n",
+        "INVITE sip:bob@h sip/2.0\n",
+        "OPTIONS sip:h;lr SIP/2.0 \n",
+        "INVITE sip:bob@h?x=y SIP/2.0\n",
+        "CANCEL sips:bob@h:5061 SIP/2.0\n",
+    };
+
+    private static final String[] STATUS_LINES = {
+        "SIP/2.0 200 OK\n",
+        "SIP/2.0 180 Ringing\n",
+        "SIP/2.0 487 Request Terminated \n",
+        "SIP/2.0 100\n",
+        "SIP/2.0 200\n",
+        "sip/2.0 200 OK\n",
+        "SIP/3.0 200 OK\n",
+        "BOO 200 OK\n",
+        "SIP/2.0  404   Not Found\n",
+        "SIP/2.0 99999999999 X\n",
+    };
+
+    /**
+     * Parse a header ('H'), request line ('R') or status line ('S') and
+     * describe the result: its encoding and debug dump, or the exception.
+     */
+    private static String describe(char kind, String line) {
+        try {
+            Object parsed;
+            if (kind == 'R')
+                parsed = new RequestLineParser(line).parse();
+            else if (kind == 'S')
+                parsed = new StatusLineParser(line).parse();
+            else
+                parsed = ParserFactory.createParser(line).parse();
+            GenericObject object = (GenericObject) parsed;
+            return (object.encode() + "|" + object.debugDump())
+                    .replaceAll("@[0-9a-f]+", "");
+        } catch (Throwable ex) {
+            return "EXC " + ex.getClass().getName() + " " + ex.getMessage();
+        }
+    }
+
+    private static String mutate(Random random, String line) {
+        String chars = " \t;:,<>\"@=?%[]/.\\*(x5\n\0\u00e9A";
+        StringBuffer buffer = new StringBuffer(line);
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count && buffer.length() > 1; i++) {
+            int index = 1 + random.nextInt(buffer.length() - 1);
+            char ch = chars.charAt(random.nextInt(chars.length()));
+            switch (random.nextInt(3)) {
+            case 0:
+                buffer.insert(index, ch);
+                break;
+            case 1:
+                buffer.deleteCharAt(index);
+                break;
+            default:
+                buffer.setCharAt(index, ch);
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Differential check of the fast paths: every line is parsed with and
+     * without the scanner and the results must be the same. The lines are
+     * the ones above plus random mutations of them.
+     * Usage: HeaderScanner [mutations] [seed]
+     */
+    public static void main(String[] args) {
+        int mutations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 13);
+        ArrayList<String> cases = new ArrayList<String>();
+        for (int i = 0; i < HEADERS.length; i++)
+            cases.add("H" + HEADERS[i]);
+        for (int i = 0; i < REQUEST_LINES.length; i++)
+            cases.add("R" + REQUEST_LINES[i]);
+        for (int i = 0; i < STATUS_LINES.length; i++)
+            cases.add("S" + STATUS_LINES[i]);
+        int base = cases.size();
+        for (int i = 0; i < mutations; i++) {
+            String c = cases.get(random.nextInt(base));
+            String mutated = mutate(random, c.substring(1));
+            // The general Via parser never finishes a comment that is not closed.
+            if (mutated.indexOf('(') == -1)
+                cases.add(c.charAt(0) + mutated);
+        }
+
+        int mismatches = 0;
+        for (int i = 0; i < cases.size(); i++) {
+            String c = cases.get(i);
+            char kind = c.charAt(0);
+            String line = c.substring(1);
+            enabled = true;
+            String fast = describe(kind, line);
+            enabled = false;
+            String general = describe(kind, line);
+            if (!fast.equals(general)) {
+                mismatches++;
+                System.out.println("Mismatch for " + line.replace("\n", "\\n")
+                        + "\n  scanner: " + fast.replace("\n", "\\n")
+                        + "\n  parser:  " + general.replace("\n", "\\n"));
+            }
+        }
+        enabled = true;
+        System.out.println(cases.size() + " lines checked, " + mismatches
+                + " mismatches");
+    }
+}
@@ -88,13 +88,36 @@ public class Lexer extends LexerCore {
         return headerValue;
     }
 
+    /**
+     * Reuse this lexer for a new buffer, starting with the given keyword table.
+     *
+     * @param lexerName the keyword table to select.
+     * @param buffer the new buffer to tokenize.
+     */
+    public void reset(String lexerName, String buffer) {
+        this.buffer = buffer;
+        this.bufferLen = buffer.length();
+        this.ptr = 0;
+        this.savedPtr = 0;
+        this.currentMatch = null;
+        this.selectLexer(lexerName);
+    }
+
     public void selectLexer(String lexerName) {
+        // Keyword tables are only published once they are complete, so
+        // the common case of an existing table needs no lock.
+        Object table = lexerTables.get(lexerName);
+        if (table != null) {
+            currentLexer = (Hashtable) table;
+            this.currentLexerName = lexerName;
+            return;
+        }
         synchronized (lexerTables) {
             // Synchronization Bug fix by Robert Rosen.
             currentLexer = (Hashtable) lexerTables.get(lexerName);
             this.currentLexerName = lexerName;
             if (currentLexer == null) {
-                addLexer(lexerName);
+                currentLexer = new Hashtable<String, Integer>();
                 if (lexerName.equals("method_keywordLexer")) {
                     addKeyword(TokenNames.REGISTER, TokenTypes.REGISTER);
                     addKeyword(TokenNames.ACK, TokenTypes.ACK);
@@ -318,7 +341,17 @@ public class Lexer extends LexerCore {
                     addKeyword(TokenNames.SIP.toUpperCase(), TokenTypes.SIP);
                     addKeyword(TokenNames.SIPS.toUpperCase(), TokenTypes.SIPS);
                 }
+                publishLexer(lexerName, currentLexer);
             }
         }
     }
+
+    /**
+     * Make a complete keyword table visible to selectLexer. The warning is
+     * suppressed because lexerTables is a raw Hashtable in LexerCore.
+     */
+    @SuppressWarnings("unchecked")
+    private static void publishLexer(String lexerName, Object table) {
+        lexerTables.put(lexerName, table);
+    }
 }
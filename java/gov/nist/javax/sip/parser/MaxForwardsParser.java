@@ -48,7 +48,36 @@ public class MaxForwardsParser extends HeaderParser {
         super(lexer);
     }
 
+    /**
+     * Single pass parse of the common Max-Forwards syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private MaxForwards fastParse() {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.MAX_FORWARDS, null))
+            return null;
+        int number = (int) scanner.number(9);
+        if (number == -1)
+            return null;
+        scanner.SPorHT();
+        if (!scanner.match('\n'))
+            return null;
+        MaxForwards header = new MaxForwards();
+        try {
+            header.setMaxForwards(number);
+        } catch (InvalidArgumentException ex) {
+            return null;
+        }
+        scanner.commit();
+        return header;
+    }
+
     public SIPHeader parse() throws ParseException {
+        MaxForwards header = fastParse();
+        if (header != null)
+            return header;
         if (debug)
             dbg_enter("MaxForwardsParser.enter");
         try {
@@ -0,0 +1,345 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.parser;
+
+import java.io.IOException;
+
+/**
+ * Splits the byte stream of a stream transport (TCP, TLS) into SIP messages. Bytes are added as
+ * they are read from the connection and complete messages (headers and body) are handed out as
+ * byte arrays ready for StringMsgParser.parseSIPMessage(byte[]). The stream is scanned a buffer
+ * at a time for the empty line that ends the headers and for the Content-Length header; no
+ * Strings are built for framing. Blank lines (CRLF keepalives) between messages are skipped, the
+ * double CRLF pings among them are counted for takePings().
+ * 
+ * <p>
+ * When nothing is left over from a previous read the bytes are framed directly out of the array
+ * given to addBytes, only the bytes of an incomplete message are copied. The caller must therefore
+ * call nextMessage until it returns null before reusing that array.
+ * 
+ * <p>
+ * If the header block grows beyond the max header size an IOException is thrown. If a message
+ * announces a body that would make it exceed the max message size, only its headers are returned
+ * (isTruncated() returns true) so that the caller can reject it, after which the framer refuses
+ * any further input.
+ * 
+ * <p>
+ * This class is not thread safe, it is meant to be owned by the reader of one connection.
+ * 
+ * @see PipelinedMsgParser
+ */
+public final class MessageFramer {
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+
+    private int maxHeaderSize;
+
+    private int maxMessageSize;
+
+    private byte[] buffer;
+
+    // true if buffer is the array that was passed to addBytes.
+    private boolean borrowed;
+
+    // Bytes between start and end have not been handed out yet.
+    private int start;
+
+    private int end;
+
+    // The header block of the current message has been searched up to here.
+    private int scanned;
+
+    // Start of the body of the current message, -1 if the headers are not complete.
+    private int bodyStart = -1;
+
+    private int contentLength;
+
+    private boolean truncated;
+
+    // Line feeds skipped since the last message, and keep-alive pings found.
+    private int blankLines;
+
+    private int pings;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxHeaderSize -- max size of the header block of a message, 0 for the max message
+     *        size.
+     * @param maxMessageSize -- max size of a message, 0 for no limit.
+     */
+    public MessageFramer(int maxHeaderSize, int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+        this.maxHeaderSize = maxHeaderSize > 0 ? maxHeaderSize : maxMessageSize;
+    }
+
+    /**
+     * Add bytes read from the connection.
+     * 
+     * @param bytes -- the array holding the bytes.
+     * @param offset -- offset of the first byte.
+     * @param length -- number of bytes.
+     */
+    public void addBytes(byte[] bytes, int offset, int length) {
+        if (length <= 0)
+            return;
+        if (start == end) {
+            // A single CRLF followed later by another is two pongs, not a ping.
+            this.blankLines = 0;
+            this.buffer = bytes;
+            this.borrowed = true;
+            this.start = offset;
+            this.end = offset + length;
+            this.scanned = offset;
+            this.bodyStart = -1;
+            return;
+        }
+        makeRoom(length);
+        System.arraycopy(bytes, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * Return the next complete message.
+     * 
+     * @return the bytes of the message, or null if no complete message has been received yet.
+     * @throws IOException if the header block is too large, the Content-Length header is bad, or
+     *         a truncated message was returned before.
+     */
+    public byte[] nextMessage() throws IOException {
+        if (truncated)
+            throw new IOException("Max size exceeded!");
+        if (bodyStart == -1) {
+            // Skip keepalives and blank lines between messages.
+            while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+                if (buffer[start] == '\n' && ++blankLines == 2) {
+                    pings++;
+                    blankLines = 0;
+                }
+                start++;
+            }
+            if (start == end) {
+                release();
+                return null;
+            }
+            blankLines = 0;
+            if (scanned < start)
+                scanned = start;
+            int eoh = findEndOfHeaders(buffer, Math.max(start, scanned - 2), end);
+            if (eoh == -1) {
+                scanned = end;
+                if (maxHeaderSize > 0 && end - start > maxHeaderSize)
+                    throw new IOException("Max header size exceeded!");
+                keep();
+                return null;
+            }
+            if (maxHeaderSize > 0 && eoh - start > maxHeaderSize)
+                throw new IOException("Max header size exceeded!");
+            // A body may not take the message over the max size, nor the frame end past the
+            // largest int.
+            int maxContentLength = maxMessageSize > 0 ? maxMessageSize - (eoh - start)
+                    : Integer.MAX_VALUE - eoh;
+            contentLength = findContentLength(buffer, start, eoh, maxContentLength);
+            bodyStart = eoh;
+            if (contentLength > maxContentLength) {
+                // Hand out the headers so that the message can be rejected.
+                byte[] headers = copy(start, eoh);
+                truncated = true;
+                start = end = 0;
+                buffer = null;
+                borrowed = false;
+                return headers;
+            }
+        }
+        int frameEnd = bodyStart + contentLength;
+        if (frameEnd > end) {
+            keep();
+            return null;
+        }
+        byte[] msg = copy(start, frameEnd);
+        start = frameEnd;
+        scanned = frameEnd;
+        bodyStart = -1;
+        return msg;
+    }
+
+    /**
+     * @return true if the last message returned by nextMessage is only the headers of a message
+     *         that exceeds the max message size.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Get the number of double CRLF keep-alive pings (RFC 5626) seen between messages since the
+     * last call. The caller answers each with a single CRLF.
+     */
+    public int takePings() {
+        int retval = pings;
+        pings = 0;
+        return retval;
+    }
+
+    /**
+     * @return true if part of a message has been received.
+     */
+    public boolean hasPartialMessage() {
+        return end > start;
+    }
+
+    private byte[] copy(int from, int to) {
+        byte[] retval = new byte[to - from];
+        System.arraycopy(buffer, from, retval, 0, retval.length);
+        return retval;
+    }
+
+    /*
+     * Nothing left, forget the array of the caller.
+     */
+    private void release() {
+        if (borrowed) {
+            buffer = null;
+            borrowed = false;
+        }
+        start = end = scanned = 0;
+        bodyStart = -1;
+    }
+
+    /*
+     * Copy an incomplete message out of the array of the caller.
+     */
+    private void keep() {
+        if (borrowed)
+            makeRoom(0);
+    }
+
+    /*
+     * Move the unconsumed bytes to the beginning of an owned buffer with room for extra bytes.
+     */
+    private void makeRoom(int extra) {
+        int size = end - start;
+        if (!borrowed && buffer.length - end >= extra)
+            return;
+        byte[] target;
+        if (!borrowed && buffer.length >= size + extra)
+            target = buffer;
+        else
+            target = new byte[Math.max(size + extra, Math.max(size * 2, 4096))];
+        System.arraycopy(buffer, start, target, 0, size);
+        scanned -= start;
+        if (bodyStart != -1)
+            bodyStart -= start;
+        end = size;
+        start = 0;
+        buffer = target;
+        borrowed = false;
+    }
+
+    /**
+     * @return the offset just past the empty line that ends the header block, or -1 if the
+     *         header block is not complete yet.
+     */
+    private static int findEndOfHeaders(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '\n') {
+                if (i + 1 < end && buf[i + 1] == '\n')
+                    return i + 2;
+                if (i + 2 < end && buf[i + 1] == '\r' && buf[i + 2] == '\n')
+                    return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the value of the Content-Length (or compact form "l") header in a header block.
+     * 
+     * The digits are read only as long as the value stays within maxContentLength, a longer
+     * one is not accumulated.
+     * 
+     * @return the content length, 0 if there is none, or maxContentLength + 1 if it is larger
+     *         than maxContentLength.
+     * @throws IOException if the value is not a number.
+     */
+    private static int findContentLength(byte[] buf, int start, int end, int maxContentLength)
+            throws IOException {
+        int i = start;
+        while (i < end) {
+            // i is at the beginning of a line.
+            int nameEnd = i;
+            while (nameEnd < end && buf[nameEnd] != ':' && buf[nameEnd] != '\n')
+                nameEnd++;
+            if (nameEnd < end && buf[nameEnd] == ':') {
+                int n = nameEnd;
+                while (n > i && (buf[n - 1] == ' ' || buf[n - 1] == '\t'))
+                    n--;
+                if (matchesContentLength(buf, i, n)) {
+                    int j = nameEnd + 1;
+                    while (j < end && (buf[j] == ' ' || buf[j] == '\t'))
+                        j++;
+                    int value = 0;
+                    int ndigits = 0;
+                    while (j < end && buf[j] >= '0' && buf[j] <= '9') {
+                        int digit = buf[j] - '0';
+                        if (value > (maxContentLength - digit) / 10)
+                            return maxContentLength + 1;
+                        value = value * 10 + digit;
+                        j++;
+                        ndigits++;
+                    }
+                    if (ndigits == 0)
+                        throw new IOException("Bad Content-Length");
+                    return value;
+                }
+            }
+            while (i < end && buf[i] != '\n')
+                i++;
+            i++;
+        }
+        return 0;
+    }
+
+    private static boolean matchesContentLength(byte[] buf, int start, int end) {
+        int len = end - start;
+        if (len == 1)
+            return buf[start] == 'l' || buf[start] == 'L';
+        if (len != CONTENT_LENGTH.length)
+            return false;
+        for (int i = 0; i < len; i++) {
+            int c = buf[start + i];
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            if (c != CONTENT_LENGTH[i])
+                return false;
+        }
+        return true;
+    }
+
+}
@@ -26,12 +26,12 @@
 package gov.nist.javax.sip.parser;
 import gov.nist.javax.sip.parser.ims.*;
 import gov.nist.javax.sip.header.ims.*;
-import java.util.Hashtable;
-import java.lang.reflect.*;
+import java.util.HashMap;
 import javax.sip.header.*;
 import java.text.ParseException;
 import gov.nist.core.*;
 import gov.nist.javax.sip.header.extensions.*;
+import gov.nist.javax.sip.header.SIPHeader;
 import gov.nist.javax.sip.header.SIPHeaderNamesCache;
 import gov.nist.javax.sip.parser.extensions.*;
 
@@ -48,268 +48,555 @@ import gov.nist.javax.sip.parser.extensions.*;
  */
 public class ParserFactory {
 
-    private static Hashtable<String,Class<? extends HeaderParser>> parserTable;
-    private static Class[] constructorArgs;
-    private static Hashtable parserConstructorCache;
+    /**
+     * Creates a parser for one kind of header. Each registered header has one
+     * of these so that no reflection is needed to instantiate its parser.
+     */
+    private static abstract class ParserCreator {
+        public abstract HeaderParser createParser(String line);
+    }
+
+    /**
+     * Parsers indexed by lower case header name (including compact forms).
+     * Only written by the static initializer.
+     */
+    private static HashMap<String, ParserCreator> parserTable;
+
+    private static final ParserCreator genericParserCreator = new ParserCreator() {
+        public HeaderParser createParser(String line) {
+            // Just generate a generic SIPHeader. We define
+            // parsers only for the registered headers.
+            return new HeaderParser(line);
+        }
+    };
+
+    /**
+     * Parsers that are not in use, per thread and per kind of header, so that
+     * parseHeader can reset and reuse them instead of allocating new ones.
+     */
+    private static final ThreadLocal<HashMap<ParserCreator, HeaderParser>> idleParsers =
+        new ThreadLocal<HashMap<ParserCreator, HeaderParser>>() {
+            protected HashMap<ParserCreator, HeaderParser> initialValue() {
+                return new HashMap<ParserCreator, HeaderParser>();
+            }
+        };
 
     static {
-        parserTable = new Hashtable<String,Class<? extends HeaderParser>>();
-        parserConstructorCache = new Hashtable();
-        constructorArgs = new Class[1];
-        constructorArgs[0] = String.class;
-        parserTable.put(ReplyToHeader.NAME.toLowerCase(), ReplyToParser.class);
+        parserTable = new HashMap<String, ParserCreator>();
+        parserTable.put(ReplyToHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ReplyToParser(line);
+            }
+        });
 
-        parserTable.put(
-            InReplyToHeader.NAME.toLowerCase(),
-            InReplyToParser.class);
+        parserTable.put(InReplyToHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new InReplyToParser(line);
+            }
+        });
 
-        parserTable.put(
-            AcceptEncodingHeader.NAME.toLowerCase(),
-            AcceptEncodingParser.class);
+        parserTable.put(AcceptEncodingHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AcceptEncodingParser(line);
+            }
+        });
 
-        parserTable.put(
-            AcceptLanguageHeader.NAME.toLowerCase(),
-            AcceptLanguageParser.class);
+        parserTable.put(AcceptLanguageHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AcceptLanguageParser(line);
+            }
+        });
 
-        parserTable.put("t", ToParser.class);
-        parserTable.put(ToHeader.NAME.toLowerCase(), ToParser.class);
+        ParserCreator toParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ToParser(line);
+            }
+        };
+        parserTable.put("t", toParser);
+        parserTable.put(ToHeader.NAME.toLowerCase(), toParser);
 
-        parserTable.put(FromHeader.NAME.toLowerCase(), FromParser.class);
-        parserTable.put("f", FromParser.class);
+        ParserCreator fromParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new FromParser(line);
+            }
+        };
+        parserTable.put(FromHeader.NAME.toLowerCase(), fromParser);
+        parserTable.put("f", fromParser);
 
-        parserTable.put(CSeqHeader.NAME.toLowerCase(), CSeqParser.class);
+        parserTable.put(CSeqHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new CSeqParser(line);
+            }
+        });
 
-        parserTable.put(ViaHeader.NAME.toLowerCase(), ViaParser.class);
-        parserTable.put("v", ViaParser.class);
+        ParserCreator viaParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ViaParser(line);
+            }
+        };
+        parserTable.put(ViaHeader.NAME.toLowerCase(), viaParser);
+        parserTable.put("v", viaParser);
 
-        parserTable.put(ContactHeader.NAME.toLowerCase(), ContactParser.class);
-        parserTable.put("m", ContactParser.class);
+        ParserCreator contactParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ContactParser(line);
+            }
+        };
+        parserTable.put(ContactHeader.NAME.toLowerCase(), contactParser);
+        parserTable.put("m", contactParser);
 
-        parserTable.put(
-            ContentTypeHeader.NAME.toLowerCase(),
-            ContentTypeParser.class);
-        parserTable.put("c", ContentTypeParser.class);
+        ParserCreator contentTypeParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ContentTypeParser(line);
+            }
+        };
+        parserTable.put(ContentTypeHeader.NAME.toLowerCase(), contentTypeParser);
+        parserTable.put("c", contentTypeParser);
 
-        parserTable.put(
-            ContentLengthHeader.NAME.toLowerCase(),
-            ContentLengthParser.class);
-        parserTable.put("l", ContentLengthParser.class);
+        ParserCreator contentLengthParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ContentLengthParser(line);
+            }
+        };
+        parserTable.put(ContentLengthHeader.NAME.toLowerCase(), contentLengthParser);
+        parserTable.put("l", contentLengthParser);
 
-        parserTable.put(
-            AuthorizationHeader.NAME.toLowerCase(),
-            AuthorizationParser.class);
+        parserTable.put(AuthorizationHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AuthorizationParser(line);
+            }
+        });
 
-        parserTable.put(
-            WWWAuthenticateHeader.NAME.toLowerCase(),
-            WWWAuthenticateParser.class);
+        parserTable.put(WWWAuthenticateHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new WWWAuthenticateParser(line);
+            }
+        });
 
-        parserTable.put(CallIdHeader.NAME.toLowerCase(), CallIDParser.class);
-        parserTable.put("i", CallIDParser.class);
+        ParserCreator callIDParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new CallIDParser(line);
+            }
+        };
+        parserTable.put(CallIdHeader.NAME.toLowerCase(), callIDParser);
+        parserTable.put("i", callIDParser);
 
-        parserTable.put(RouteHeader.NAME.toLowerCase(), RouteParser.class);
+        parserTable.put(RouteHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new RouteParser(line);
+            }
+        });
 
-        parserTable.put(
-            RecordRouteHeader.NAME.toLowerCase(),
-            RecordRouteParser.class);
+        parserTable.put(RecordRouteHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new RecordRouteParser(line);
+            }
+        });
 
-        parserTable.put(DateHeader.NAME.toLowerCase(), DateParser.class);
+        parserTable.put(DateHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new DateParser(line);
+            }
+        });
 
-        parserTable.put(
-            ProxyAuthorizationHeader.NAME.toLowerCase(),
-            ProxyAuthorizationParser.class);
+        parserTable.put(ProxyAuthorizationHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ProxyAuthorizationParser(line);
+            }
+        });
 
-        parserTable.put(
-            ProxyAuthenticateHeader.NAME.toLowerCase(),
-            ProxyAuthenticateParser.class);
+        parserTable.put(ProxyAuthenticateHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ProxyAuthenticateParser(line);
+            }
+        });
 
-        parserTable.put(
-            RetryAfterHeader.NAME.toLowerCase(),
-            RetryAfterParser.class);
+        parserTable.put(RetryAfterHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new RetryAfterParser(line);
+            }
+        });
 
-        parserTable.put(RequireHeader.NAME.toLowerCase(), RequireParser.class);
+        parserTable.put(RequireHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new RequireParser(line);
+            }
+        });
 
-        parserTable.put(
-            ProxyRequireHeader.NAME.toLowerCase(),
-            ProxyRequireParser.class);
+        parserTable.put(ProxyRequireHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ProxyRequireParser(line);
+            }
+        });
 
-        parserTable.put(
-            TimeStampHeader.NAME.toLowerCase(),
-            TimeStampParser.class);
+        parserTable.put(TimeStampHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new TimeStampParser(line);
+            }
+        });
 
-        parserTable.put(
-            UnsupportedHeader.NAME.toLowerCase(),
-            UnsupportedParser.class);
+        parserTable.put(UnsupportedHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new UnsupportedParser(line);
+            }
+        });
 
-        parserTable.put(
-            UserAgentHeader.NAME.toLowerCase(),
-            UserAgentParser.class);
+        parserTable.put(UserAgentHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new UserAgentParser(line);
+            }
+        });
 
-        parserTable.put(
-            SupportedHeader.NAME.toLowerCase(),
-            SupportedParser.class);
+        ParserCreator supportedParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SupportedParser(line);
+            }
+        };
+        parserTable.put(SupportedHeader.NAME.toLowerCase(), supportedParser);
         // bug fix by Steve Crosley
-        parserTable.put("k", SupportedParser.class);
+        parserTable.put("k", supportedParser);
 
-        parserTable.put(ServerHeader.NAME.toLowerCase(), ServerParser.class);
+        parserTable.put(ServerHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ServerParser(line);
+            }
+        });
 
-        parserTable.put(SubjectHeader.NAME.toLowerCase(), SubjectParser.class);
-        parserTable.put( "s", SubjectParser.class); // JvB: added
+        ParserCreator subjectParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SubjectParser(line);
+            }
+        };
+        parserTable.put(SubjectHeader.NAME.toLowerCase(), subjectParser);
+        parserTable.put("s", subjectParser); // JvB: added
 
-        parserTable.put(
-            SubscriptionStateHeader.NAME.toLowerCase(),
-            SubscriptionStateParser.class);
+        parserTable.put(SubscriptionStateHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SubscriptionStateParser(line);
+            }
+        });
 
-        parserTable.put(
-            MaxForwardsHeader.NAME.toLowerCase(),
-            MaxForwardsParser.class);
+        parserTable.put(MaxForwardsHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new MaxForwardsParser(line);
+            }
+        });
 
-        parserTable.put(
-            MimeVersionHeader.NAME.toLowerCase(),
-            MimeVersionParser.class);
+        parserTable.put(MimeVersionHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new MimeVersionParser(line);
+            }
+        });
 
-        parserTable.put(
-            MinExpiresHeader.NAME.toLowerCase(),
-            MinExpiresParser.class);
+        parserTable.put(MinExpiresHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new MinExpiresParser(line);
+            }
+        });
 
-        parserTable.put(
-            OrganizationHeader.NAME.toLowerCase(),
-            OrganizationParser.class);
+        parserTable.put(OrganizationHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new OrganizationParser(line);
+            }
+        });
 
-        parserTable.put(
-            PriorityHeader.NAME.toLowerCase(),
-            PriorityParser.class);
+        parserTable.put(PriorityHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PriorityParser(line);
+            }
+        });
 
-        parserTable.put(RAckHeader.NAME.toLowerCase(), RAckParser.class);
+        parserTable.put(RAckHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new RAckParser(line);
+            }
+        });
 
-        parserTable.put(RSeqHeader.NAME.toLowerCase(), RSeqParser.class);
+        parserTable.put(RSeqHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new RSeqParser(line);
+            }
+        });
 
-        parserTable.put(ReasonHeader.NAME.toLowerCase(), ReasonParser.class);
+        parserTable.put(ReasonHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ReasonParser(line);
+            }
+        });
 
-        parserTable.put(WarningHeader.NAME.toLowerCase(), WarningParser.class);
+        parserTable.put(WarningHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new WarningParser(line);
+            }
+        });
 
-        parserTable.put(ExpiresHeader.NAME.toLowerCase(), ExpiresParser.class);
+        parserTable.put(ExpiresHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ExpiresParser(line);
+            }
+        });
 
-        parserTable.put(EventHeader.NAME.toLowerCase(), EventParser.class);
-        parserTable.put("o", EventParser.class);
+        ParserCreator eventParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new EventParser(line);
+            }
+        };
+        parserTable.put(EventHeader.NAME.toLowerCase(), eventParser);
+        parserTable.put("o", eventParser);
 
-        parserTable.put(
-            ErrorInfoHeader.NAME.toLowerCase(),
-            ErrorInfoParser.class);
+        parserTable.put(ErrorInfoHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ErrorInfoParser(line);
+            }
+        });
 
-        parserTable.put(
-            ContentLanguageHeader.NAME.toLowerCase(),
-            ContentLanguageParser.class);
+        parserTable.put(ContentLanguageHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ContentLanguageParser(line);
+            }
+        });
 
-        parserTable.put(
-            ContentEncodingHeader.NAME.toLowerCase(),
-            ContentEncodingParser.class);
-        parserTable.put("e", ContentEncodingParser.class);
+        ParserCreator contentEncodingParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ContentEncodingParser(line);
+            }
+        };
+        parserTable.put(ContentEncodingHeader.NAME.toLowerCase(), contentEncodingParser);
+        parserTable.put("e", contentEncodingParser);
 
-        parserTable.put(
-            ContentDispositionHeader.NAME.toLowerCase(),
-            ContentDispositionParser.class);
+        parserTable.put(ContentDispositionHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ContentDispositionParser(line);
+            }
+        });
 
-        parserTable.put(
-            CallInfoHeader.NAME.toLowerCase(),
-            CallInfoParser.class);
+        parserTable.put(CallInfoHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new CallInfoParser(line);
+            }
+        });
 
-        parserTable.put(
-            AuthenticationInfoHeader.NAME.toLowerCase(),
-            AuthenticationInfoParser.class);
+        parserTable.put(AuthenticationInfoHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AuthenticationInfoParser(line);
+            }
+        });
 
-        parserTable.put(AllowHeader.NAME.toLowerCase(), AllowParser.class);
+        parserTable.put(AllowHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AllowParser(line);
+            }
+        });
 
-        parserTable.put(
-            AllowEventsHeader.NAME.toLowerCase(),
-            AllowEventsParser.class);
-        parserTable.put("u", AllowEventsParser.class);
+        ParserCreator allowEventsParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AllowEventsParser(line);
+            }
+        };
+        parserTable.put(AllowEventsHeader.NAME.toLowerCase(), allowEventsParser);
+        parserTable.put("u", allowEventsParser);
 
-        parserTable.put(
-            AlertInfoHeader.NAME.toLowerCase(),
-            AlertInfoParser.class);
+        parserTable.put(AlertInfoHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AlertInfoParser(line);
+            }
+        });
 
-        parserTable.put(AcceptHeader.NAME.toLowerCase(), AcceptParser.class);
+        parserTable.put(AcceptHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new AcceptParser(line);
+            }
+        });
 
-        parserTable.put(ReferToHeader.NAME.toLowerCase(), ReferToParser.class);
+        ParserCreator referToParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ReferToParser(line);
+            }
+        };
+        parserTable.put(ReferToHeader.NAME.toLowerCase(), referToParser);
         // Was missing (bug noticed by Steve Crossley)
-        parserTable.put("r", ReferToParser.class);
+        parserTable.put("r", referToParser);
 
         // JvB: added to support RFC3903 PUBLISH
-        parserTable.put(SIPETagHeader.NAME.toLowerCase(), SIPETagParser.class);
-        parserTable.put(SIPIfMatchHeader.NAME.toLowerCase(), SIPIfMatchParser.class);
+        parserTable.put(SIPETagHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SIPETagParser(line);
+            }
+        });
+        parserTable.put(SIPIfMatchHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SIPIfMatchParser(line);
+            }
+        });
 
         //IMS headers
-        parserTable.put(PAccessNetworkInfoHeader.NAME.toLowerCase(), PAccessNetworkInfoParser.class);
-        parserTable.put(PAssertedIdentityHeader.NAME.toLowerCase(), PAssertedIdentityParser.class);
-        parserTable.put(PPreferredIdentityHeader.NAME.toLowerCase(), PPreferredIdentityParser.class);
-        parserTable.put(PChargingVectorHeader.NAME.toLowerCase(), PChargingVectorParser.class);
-        parserTable.put(PChargingFunctionAddressesHeader.NAME.toLowerCase(), PChargingFunctionAddressesParser.class);
-        parserTable.put(PMediaAuthorizationHeader.NAME.toLowerCase(), PMediaAuthorizationParser.class);
-        parserTable.put(PathHeader.NAME.toLowerCase(), PathParser.class);
-        parserTable.put(PrivacyHeader.NAME.toLowerCase(), PrivacyParser.class);
-        parserTable.put(ServiceRouteHeader.NAME.toLowerCase(), ServiceRouteParser.class);
-        parserTable.put(PVisitedNetworkIDHeader.NAME.toLowerCase(), PVisitedNetworkIDParser.class);
+        parserTable.put(PAccessNetworkInfoHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PAccessNetworkInfoParser(line);
+            }
+        });
+        parserTable.put(PAssertedIdentityHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PAssertedIdentityParser(line);
+            }
+        });
+        parserTable.put(PPreferredIdentityHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PPreferredIdentityParser(line);
+            }
+        });
+        parserTable.put(PChargingVectorHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PChargingVectorParser(line);
+            }
+        });
+        parserTable.put(PChargingFunctionAddressesHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PChargingFunctionAddressesParser(line);
+            }
+        });
+        parserTable.put(PMediaAuthorizationHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PMediaAuthorizationParser(line);
+            }
+        });
+        parserTable.put(PathHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PathParser(line);
+            }
+        });
+        parserTable.put(PrivacyHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PrivacyParser(line);
+            }
+        });
+        parserTable.put(ServiceRouteHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ServiceRouteParser(line);
+            }
+        });
+        parserTable.put(PVisitedNetworkIDHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PVisitedNetworkIDParser(line);
+            }
+        });
 
-        parserTable.put(PAssociatedURIHeader.NAME.toLowerCase(), PAssociatedURIParser.class);
-        parserTable.put(PCalledPartyIDHeader.NAME.toLowerCase(), PCalledPartyIDParser.class);
+        parserTable.put(PAssociatedURIHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PAssociatedURIParser(line);
+            }
+        });
+        parserTable.put(PCalledPartyIDHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new PCalledPartyIDParser(line);
+            }
+        });
 
-        parserTable.put(SecurityServerHeader.NAME.toLowerCase(), SecurityServerParser.class);
-        parserTable.put(SecurityClientHeader.NAME.toLowerCase(), SecurityClientParser.class);
-        parserTable.put(SecurityVerifyHeader.NAME.toLowerCase(), SecurityVerifyParser.class);
+        parserTable.put(SecurityServerHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SecurityServerParser(line);
+            }
+        });
+        parserTable.put(SecurityClientHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SecurityClientParser(line);
+            }
+        });
+        parserTable.put(SecurityVerifyHeader.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SecurityVerifyParser(line);
+            }
+        });
 
 
         // Per RFC 3892 (pmusgrave)
-        parserTable.put(ReferredBy.NAME.toLowerCase(), ReferredByParser.class);
-        parserTable.put("b", ReferToParser.class);
+        parserTable.put(ReferredBy.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ReferredByParser(line);
+            }
+        });
+        parserTable.put("b", referToParser);
 
         // Per RFC4028 Session Timers (pmusgrave)
-        parserTable.put(SessionExpires.NAME.toLowerCase(), SessionExpiresParser.class);
-        parserTable.put("x", SessionExpiresParser.class);
-        parserTable.put(MinSE.NAME.toLowerCase(), MinSEParser.class);
+        ParserCreator sessionExpiresParser = new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new SessionExpiresParser(line);
+            }
+        };
+        parserTable.put(SessionExpires.NAME.toLowerCase(), sessionExpiresParser);
+        parserTable.put("x", sessionExpiresParser);
+        parserTable.put(MinSE.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new MinSEParser(line);
+            }
+        });
         // (RFC4028 does not give a short form header for MinSE)
 
         // Per RFC3891 (pmusgrave)
-        parserTable.put(Replaces.NAME.toLowerCase(), ReplacesParser.class);
+        parserTable.put(Replaces.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ReplacesParser(line);
+            }
+        });
 
         // Per RFC3911 (jean deruelle)
-        parserTable.put(Join.NAME.toLowerCase(), JoinParser.class);
+        parserTable.put(Join.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new JoinParser(line);
+            }
+        });
         
         //http://tools.ietf.org/html/draft-worley-references-05
-        parserTable.put(References.NAME.toLowerCase(), ReferencesParser.class);
+        parserTable.put(References.NAME.toLowerCase(), new ParserCreator() {
+            public HeaderParser createParser(String line) {
+                return new ReferencesParser(line);
+            }
+        });
     }
 
-    /**
-     * create a parser for a header. This is the parser factory.
-     */
-    public static HeaderParser createParser(String line)
+    private static ParserCreator getParserCreator(String line)
         throws ParseException {
         String headerName = Lexer.getHeaderName(line);
         String headerValue = Lexer.getHeaderValue(line);
         if (headerName == null || headerValue == null)
             throw new ParseException("The header name or value is null", 0);
 
-        Class parserClass = (Class) parserTable.get(SIPHeaderNamesCache.toLowerCase(headerName));
-        if (parserClass != null) {
-            try {
-                Constructor cons = (Constructor) parserConstructorCache.get(parserClass);
-                if (cons == null) {
-                    cons = parserClass.getConstructor(constructorArgs);
-                    parserConstructorCache.put(parserClass, cons);
-                }
-                Object[] args = new Object[1];
-                args[0] = line;
-                HeaderParser retval = (HeaderParser) cons.newInstance(args);
-                return retval;
+        ParserCreator creator = parserTable.get(SIPHeaderNamesCache.toLowerCase(headerName));
+        return creator != null ? creator : genericParserCreator;
+    }
 
-            } catch (Exception ex) {
-                InternalErrorHandler.handleException(ex);
-                return null; // to placate the compiler.
-            }
+    /**
+     * create a parser for a header. This is the parser factory.
+     */
+    public static HeaderParser createParser(String line)
+        throws ParseException {
+        return getParserCreator(line).createParser(line);
+    }
 
+    /**
+     * Parse a header. This is equivalent to createParser(line).parse() but
+     * reuses a parser (and its lexer) that this thread created earlier for
+     * the same kind of header.
+     *
+     * @param line the header to parse, terminated by a newline.
+     * @return the parsed header.
+     * @throws ParseException if the header could not be parsed.
+     */
+    public static SIPHeader parseHeader(String line) throws ParseException {
+        ParserCreator creator = getParserCreator(line);
+        HashMap<ParserCreator, HeaderParser> idle = idleParsers.get();
+        // Take the parser out while it is in use in case parsing this
+        // header ends up parsing another one of the same kind.
+        HeaderParser parser = idle.remove(creator);
+        if (parser == null) {
+            parser = creator.createParser(line);
         } else {
-            // Just generate a generic SIPHeader. We define
-            // parsers only for the above.
-            return new HeaderParser(line);
+            parser.reset(line);
+        }
+        try {
+            return parser.parse();
+        } finally {
+            idle.put(creator, parser);
         }
     }
 }
@@ -27,6 +27,7 @@ package gov.nist.javax.sip.parser;
 
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import java.io.*;
 import java.util.*;
@@ -47,13 +48,13 @@ public class Pipeline extends InputStream {
 
     private boolean isClosed;
 
-    private Timer timer;
+    private SipTimer timer;
 
     private InputStream pipe;
 
     private int readTimeout;
 
-    private TimerTask myTimerTask;
+    private SIPStackTimerTask myTimerTask;
 
     class MyTimer extends SIPStackTimerTask {
         Pipeline pipeline;
@@ -119,7 +120,7 @@ public class Pipeline extends InputStream {
             this.myTimerTask.cancel();
     }
 
-    public Pipeline(InputStream pipe, int readTimeout, Timer timer) {
+    public Pipeline(InputStream pipe, int readTimeout, SipTimer timer) {
         // pipe is the Socket stream
         // this is recorded here to implement a timeout.
         this.timer = timer;
@@ -159,6 +160,38 @@ public class Pipeline extends InputStream {
         this.pipe.close();
     }
 
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        synchronized (this.buffList) {
+            try {
+                if (currentBuffer == null || currentBuffer.ptr >= currentBuffer.length) {
+                    // Bug fix contributed by Rob Daugherty.
+                    if (this.isClosed && this.buffList.isEmpty())
+                        return -1;
+                    // wait till something is posted.
+                    while (this.buffList.isEmpty()) {
+                        this.buffList.wait();
+                        if (this.isClosed)
+                            return -1;
+                    }
+                    currentBuffer = (Buffer) this.buffList.removeFirst();
+                }
+                int nbytes = Math.min(length, currentBuffer.length - currentBuffer.ptr);
+                System.arraycopy(currentBuffer.bytes, currentBuffer.ptr, bytes, offset, nbytes);
+                currentBuffer.ptr += nbytes;
+                if (currentBuffer.ptr == currentBuffer.length)
+                    this.currentBuffer = null;
+                return nbytes;
+            } catch (InterruptedException ex) {
+                throw new IOException(ex.getMessage());
+            } catch (NoSuchElementException ex) {
+                ex.printStackTrace();
+                throw new IOException(ex.getMessage());
+            }
+        }
+    }
+
     public int read() throws IOException {
         // if (this.isClosed) return -1;
         synchronized (this.buffList) {
@@ -38,7 +38,6 @@ package gov.nist.javax.sip.parser;
  */
 import gov.nist.core.*;
 import gov.nist.javax.sip.message.*;
-import gov.nist.javax.sip.header.*;
 import java.text.ParseException;
 import java.io.*;
 
@@ -48,19 +47,21 @@ import java.io.*;
  * an input stream from which input is read and fed to a message parser. It
  * keeps reading from the input stream and process messages in a never ending
  * interpreter loop. The message listener interface gets called for processing
- * messages or for processing errors. The payload specified by the
- * content-length header is read directly from the input stream. This can be
- * accessed from the SIPMessage using the getContent and getContentBytes methods
- * provided by the SIPMessage class.
+ * messages or for processing errors. The input is read a buffer at a time and
+ * split into messages by a MessageFramer. The payload specified by the
+ * content-length header can be accessed from the SIPMessage using the
+ * getContent and getContentBytes methods provided by the SIPMessage class.
  *
  * @version 1.2 $Revision: 1.23 $ $Date: 2009/08/16 17:28:28 $
  *
  * @author M. Ranganathan
  *
  * @see SIPMessageListener
+ * @see MessageFramer
  */
 public final class PipelinedMsgParser implements Runnable {
 
+    private static final int READ_BUFFER_SIZE = 4096;
 
 
     /**
@@ -73,8 +74,10 @@ public final class PipelinedMsgParser implements Runnable {
     //private boolean errorFlag;
     private Pipeline rawInputStream;
     private int maxMessageSize;
-    private int sizeCounter;
+    private int maxHeaderSize;
     //private int messageSize;
+    private LatencyHistogram parseTime;
+    private Runnable pingHandler;
 
     /**
      * default constructor.
@@ -104,10 +107,31 @@ public final class PipelinedMsgParser implements Runnable {
      */
     public PipelinedMsgParser(SIPMessageListener sipMessageListener,
             Pipeline in, boolean debug, int maxMessageSize) {
+        this(sipMessageListener, in, maxMessageSize, 0);
+    }
+
+    /**
+     * Constructor when we are given a message listener, an input stream and
+     * size limits.
+     *
+     * @param sipMessageListener
+     *            Message listener which has methods that get called back from
+     *            the parser when a parse is complete
+     * @param in
+     *            Input stream from which to read the input.
+     * @param maxMessageSize
+     *            Max size of a message, 0 for no limit.
+     * @param maxHeaderSize
+     *            Max size of the headers of a message, 0 to use the max
+     *            message size.
+     */
+    public PipelinedMsgParser(SIPMessageListener sipMessageListener,
+            Pipeline in, int maxMessageSize, int maxHeaderSize) {
         this();
         this.sipMessageListener = sipMessageListener;
         rawInputStream = in;
         this.maxMessageSize = maxMessageSize;
+        this.maxHeaderSize = maxHeaderSize;
         mythread = new Thread(this);
         mythread.setName("PipelineThread-" + getNewUid());
 
@@ -139,6 +163,25 @@ public final class PipelinedMsgParser implements Runnable {
         this(null, in, false, 0);
     }
 
+    /**
+     * Record the time taken to parse each message.
+     *
+     * @param parseTime -- where to record the times, null for none.
+     */
+    public void setParseTimeHistogram(LatencyHistogram parseTime) {
+        this.parseTime = parseTime;
+    }
+
+    /**
+     * Set what to run for each double CRLF keep-alive ping read between
+     * messages.
+     *
+     * @param pingHandler -- answers the ping, null to ignore pings.
+     */
+    public void setPingHandler(Runnable pingHandler) {
+        this.pingHandler = pingHandler;
+    }
+
     /**
      * Start reading and processing input.
      */
@@ -174,177 +217,88 @@ public final class PipelinedMsgParser implements Runnable {
         sipMessageListener = mlistener;
     }
 
-    /**
-     * read a line of input (I cannot use buffered reader because we may need to
-     * switch encodings mid-stream!
-     */
-    private String readLine(InputStream inputStream) throws IOException {
-        StringBuffer retval = new StringBuffer("");
-        while (true) {
-            char ch;
-            int i = inputStream.read();
-            if (i == -1) {
-                throw new IOException("End of stream");
-            } else
-                ch = (char) i;
-            // reduce the available read size by 1 ("size" of a char).
-            if (this.maxMessageSize > 0) {
-                this.sizeCounter--;
-                if (this.sizeCounter <= 0)
-                    throw new IOException("Max size exceeded!");
-            }
-            if (ch != '\r')
-                retval.append(ch);
-            if (ch == '\n') {
-                break;
-            }
-        }
-        return retval.toString();
-    }
-
     /**
      * This is input reading thread for the pipelined parser. You feed it input
      * through the input stream (see the constructor) and it calls back an event
-     * listener interface for message processing or error. It cleans up the
-     * input - dealing with things like line continuation
+     * listener interface for message processing or error. The bytes are framed
+     * into messages with a MessageFramer and each message is parsed in one go.
      */
     public void run() {
 
         Pipeline inputStream = this.rawInputStream;
-        // inputStream = new MyFilterInputStream(this.rawInputStream);
-        // I cannot use buffered reader here because we may need to switch
-        // encodings to read the message body.
+        MessageFramer framer = new MessageFramer(this.maxHeaderSize,
+                this.maxMessageSize);
+        StringMsgParser smp = new StringMsgParser(sipMessageListener);
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
         try {
             while (true) {
-                this.sizeCounter = this.maxMessageSize;
-                // this.messageSize = 0;
-                StringBuffer inputBuffer = new StringBuffer();
-
-                if (Debug.parserDebug)
-                    Debug.println("Starting parse!");
-
-                String line1;
-                String line2 = null;
-
-                while (true) {
-                    try {
-                        line1 = readLine(inputStream);
-                        // ignore blank lines.
-                        if (line1.equals("\n")) {
-                            if (Debug.parserDebug) {
-                                Debug.println("Discarding blank line. ");
-                            }
-                            continue;
-                        } else
-                            break;
-                    } catch (IOException ex) {
-                        Debug.printStackTrace(ex);
+                // Guard against bad guys. Once the first byte of a message is
+                // in, the other end must keep writing or we close the pipe.
+                boolean inMessage = framer.hasPartialMessage();
+                int nbytes;
+                if (inMessage)
+                    this.rawInputStream.startTimer();
+                try {
+                    nbytes = inputStream.read(readBuffer, 0, readBuffer.length);
+                } catch (IOException ex) {
+                    Debug.printStackTrace(ex);
+                    return;
+                } finally {
+                    // Stop the timer that will kill the read.
+                    if (inMessage)
                         this.rawInputStream.stopTimer();
-                        return;
-
-                    }
                 }
+                if (nbytes == -1) {
+                    if (Debug.parserDebug)
+                        Debug.println("End of stream");
+                    return;
+                }
+                framer.addBytes(readBuffer, 0, nbytes);
 
-                inputBuffer.append(line1);
-                // Guard against bad guys.
-                this.rawInputStream.startTimer();
-
-                Debug.println("Reading Input Stream");
                 while (true) {
+                    byte[] msg;
                     try {
-                        line2 = readLine(inputStream);
-                        inputBuffer.append(line2);
-                        if (line2.trim().equals(""))
-                            break;
+                        msg = framer.nextMessage();
                     } catch (IOException ex) {
-                        this.rawInputStream.stopTimer();
                         Debug.printStackTrace(ex);
                         return;
-
                     }
-                }
-
-                // Stop the timer that will kill the read.
-                this.rawInputStream.stopTimer();
-                inputBuffer.append(line2);
-                StringMsgParser smp = new StringMsgParser(sipMessageListener);
-                smp.readBody = false;
-                SIPMessage sipMessage = null;
-
-                try {
-                    if (Debug.debug) {
-                        Debug.println("About to parse : " + inputBuffer.toString());
+                    if (msg == null) {
+                        for (int pings = framer.takePings(); pings > 0
+                                && pingHandler != null; pings--)
+                            pingHandler.run();
+                        break;
                     }
-                    sipMessage = smp.parseSIPMessage(inputBuffer.toString());
-                    if (sipMessage == null) {
-                        this.rawInputStream.stopTimer();
+
+                    // Content length too large - process the headers and
+                    // return error from there.
+                    smp.readBody = !framer.isTruncated();
+                    SIPMessage sipMessage = null;
+                    try {
+                        long start = parseTime == null ? 0 : System.nanoTime();
+                        sipMessage = smp.parseSIPMessage(msg);
+                        if (parseTime != null)
+                            parseTime.recordSince(start);
+                        if (sipMessage == null)
+                            continue;
+                    } catch (ParseException ex) {
+                        // Just ignore the parse exception.
+                        Debug.logError("Detected a parse error", ex);
                         continue;
                     }
-                } catch (ParseException ex) {
-                    // Just ignore the parse exception.
-                    Debug.logError("Detected a parse error", ex);
-                    continue;
-                }
-
-                if (Debug.debug) {
-                    Debug.println("Completed parsing message");
-                }
-                ContentLength cl = (ContentLength) sipMessage
-                        .getContentLength();
-                int contentLength = 0;
-                if (cl != null) {
-                    contentLength = cl.getContentLength();
-                } else {
-                    contentLength = 0;
-                }
-
-                if (Debug.debug) {
-                    Debug.println("contentLength " + contentLength);
-                }
 
-                if (contentLength == 0) {
-                    sipMessage.removeContent();
-                } else if (maxMessageSize == 0
-                        || contentLength < this.sizeCounter) {
-                    byte[] message_body = new byte[contentLength];
-                    int nread = 0;
-                    while (nread < contentLength) {
-                        // Start my starvation timer.
-                        // This ensures that the other end
-                        // writes at least some data in
-                        // or we will close the pipe from
-                        // him. This prevents DOS attack
-                        // that takes up all our connections.
-                        this.rawInputStream.startTimer();
+                    if (Debug.debug) {
+                        Debug.println("Completed parsing message");
+                    }
+                    if (sipMessageListener != null) {
                         try {
-
-                            int readlength = inputStream.read(message_body,
-                                    nread, contentLength - nread);
-                            if (readlength > 0) {
-                                nread += readlength;
-                            } else {
-                                break;
-                            }
-                        } catch (IOException ex) {
-                            Debug.logError("Exception Reading Content",ex);
-                            break;
-                        } finally {
-                            // Stop my starvation timer.
-                            this.rawInputStream.stopTimer();
+                            sipMessageListener.processMessage(sipMessage);
+                        } catch (Exception ex) {
+                            // fatal error in processing - close the
+                            // connection.
+                            return;
                         }
                     }
-                    sipMessage.setMessageContent(message_body);
-                }
-                // Content length too large - process the message and
-                // return error from there.
-                if (sipMessageListener != null) {
-                    try {
-                        sipMessageListener.processMessage(sipMessage);
-                    } catch (Exception ex) {
-                        // fatal error in processing - close the
-                        // connection.
-                        break;
-                    }
                 }
             }
         } finally {
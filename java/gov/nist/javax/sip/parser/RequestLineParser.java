@@ -47,7 +47,40 @@ public class RequestLineParser extends Parser {
         this.lexer.selectLexer("method_keywordLexer");
     }
 
+    /**
+     * Single pass parse of a request line with a standard method, a sip or
+     * sips URI and SIP/2.0. Returns null, without moving the lexer, if the
+     * line has to go through the general parser.
+     */
+    private RequestLine fastParse() {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        String m = scanner.method();
+        if (m == null)
+            return null;
+        scanner.SPorHT();
+        SipUri url = scanner.sipURL(true);
+        if (url == null)
+            return null;
+        scanner.SPorHT();
+        if (!scanner.sipVersion())
+            return null;
+        scanner.SPorHT();
+        if (!scanner.match('\n'))
+            return null;
+        RequestLine retval = new RequestLine();
+        retval.setMethod(m);
+        retval.setUri(url);
+        retval.setSipVersion("SIP/2.0");
+        scanner.commit();
+        return retval;
+    }
+
     public RequestLine parse() throws ParseException {
+        RequestLine requestLine = fastParse();
+        if (requestLine != null)
+            return requestLine;
         if (debug)
             dbg_enter("parse");
         try {
@@ -69,7 +69,36 @@ public class StatusLineParser extends Parser {
         return this.lexer.getRest().trim();
     }
 
+    /**
+     * Single pass parse of a SIP/2.0 status line. Returns null, without
+     * moving the lexer, if the line has to go through the general parser.
+     */
+    private StatusLine fastParse() throws ParseException {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.sipVersion())
+            return null;
+        scanner.SPorHT();
+        int scode = (int) scanner.number(9);
+        if (scode == -1)
+            return null;
+        scanner.SPorHT();
+        String rp = scanner.rest();
+        if (rp == null)
+            return null;
+        StatusLine retval = new StatusLine();
+        retval.setSipVersion("SIP/2.0");
+        retval.setStatusCode(scode);
+        retval.setReasonPhrase(rp.trim());
+        scanner.commit();
+        return retval;
+    }
+
     public StatusLine parse() throws ParseException {
+        StatusLine statusLine = fastParse();
+        if (statusLine != null)
+            return statusLine;
         try {
             if (debug)
                 dbg_enter("parse");
@@ -44,6 +44,8 @@ import gov.nist.javax.sip.message.SIPResponse;
 
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
+import java.util.HashSet;
+import java.util.Set;
 /*
  * Acknowledgement: 1/12/2007: Yanick Belanger rewrote the parsing loops to make them
  * simpler and quicker.
@@ -59,9 +61,11 @@ import java.text.ParseException;
  * accessible from the parsed message using the getContent and getContentBytes
  * methods provided by the SIPMessage class. If SDP parsing is enabled using the
  * parseContent method, then the SDP body is also parsed and can be accessed
- * from the message using the getSDPAnnounce method. Currently only eager
- * parsing of the message is supported (i.e. the entire message is parsed in one
- * feld swoop).
+ * from the message using the getSDPAnnounce method. By default the entire
+ * message is parsed in one feld swoop. When lazy header parsing is enabled,
+ * only the headers the stack itself needs (Via, From, To, Call-ID, CSeq,
+ * Content-Length and Max-Forwards) are parsed here; the others are kept in
+ * the message as received and parsed the first time they are accessed.
  *
  *
  * @version 1.2 $Revision: 1.26 $ $Date: 2009/10/22 10:27:38 $
@@ -79,6 +83,24 @@ public class StringMsgParser {
 
     private static boolean computeContentLengthFromMessage = false;
 
+    private static boolean lazyHeaderParsing = false;
+
+    /**
+     * Lower case names of the headers that are always parsed, even when lazy
+     * header parsing is enabled.
+     */
+    private static final Set<String> eagerHeaders = new HashSet<String>();
+
+    static {
+        eagerHeaders.add(SIPHeaderNamesCache.toLowerCase(Via.NAME));
+        eagerHeaders.add(SIPHeaderNamesCache.toLowerCase(From.NAME));
+        eagerHeaders.add(SIPHeaderNamesCache.toLowerCase(To.NAME));
+        eagerHeaders.add(SIPHeaderNamesCache.toLowerCase(CallID.NAME));
+        eagerHeaders.add(SIPHeaderNamesCache.toLowerCase(CSeq.NAME));
+        eagerHeaders.add(SIPHeaderNamesCache.toLowerCase(ContentLength.NAME));
+        eagerHeaders.add(SIPHeaderNamesCache.toLowerCase(MaxForwards.NAME));
+    }
+
     /**
      * @since v0.9
      */
@@ -110,6 +132,16 @@ public class StringMsgParser {
         parseExceptionListener = pexhandler;
     }
 
+    /**
+     * Set whether parseSIPMessage(byte[]) takes the bytes after the headers as the message body.
+     * Set it to false to parse a header block only.
+     *
+     * @param readBody -- false to ignore the body.
+     */
+    public void setReadBody(boolean readBody) {
+        this.readBody = readBody;
+    }
+
     /**
      * Parse a buffer containing a single SIP Message where the body is an array
      * of un-interpreted bytes. This is intended for parsing the message from a
@@ -391,25 +423,35 @@ public class StringMsgParser {
         if (header == null || header.length() == 0)
             return;
 
-        HeaderParser headerParser = null;
-        try {
-            headerParser = ParserFactory.createParser(header + "\n");
-        } catch (ParseException ex) {
-            this.parseExceptionListener.handleException(ex, message, null,
-                    header, rawStringMessage);
-            return;
+        if (lazyHeaderParsing) {
+            int colon = header.indexOf(':');
+            if (colon > 0) {
+                String headerName = header.substring(0, colon).trim();
+                // Compact forms are single letters and always parsed.
+                if (headerName.length() > 1) {
+                    String lowerCaseName = SIPHeaderNamesCache.toLowerCase(headerName);
+                    if (!eagerHeaders.contains(lowerCaseName)) {
+                        message.addDeferredHeader(lowerCaseName, header);
+                        return;
+                    }
+                }
+            }
         }
 
         try {
-            SIPHeader sipHeader = headerParser.parse();
+            SIPHeader sipHeader = ParserFactory.parseHeader(header + "\n");
             message.attachHeader(sipHeader, false);
         } catch (ParseException ex) {
             if (this.parseExceptionListener != null) {
                 String headerName = Lexer.getHeaderName(header);
-                Class headerClass = NameMap.getClassFromName(headerName);
-                if (headerClass == null) {
-                    headerClass = ExtensionHeaderImpl.class;
+                Class headerClass = null;
+                // No header class if the header has no name at all.
+                if (headerName != null) {
+                    headerClass = NameMap.getClassFromName(headerName);
+                    if (headerClass == null) {
+                        headerClass = ExtensionHeaderImpl.class;
 
+                    }
                 }
                 this.parseExceptionListener.handleException(ex, message,
                         headerClass, header, rawStringMessage);
@@ -572,10 +614,7 @@ public class StringMsgParser {
         buffer.append(header.substring(lineStart, i));
         buffer.append('\n');
 
-        HeaderParser hp = ParserFactory.createParser(buffer.toString());
-        if (hp == null)
-            throw new ParseException("could not create parser", 0);
-        return hp.parse();
+        return ParserFactory.parseHeader(buffer.toString());
     }
 
     /**
@@ -616,6 +655,19 @@ public class StringMsgParser {
         StringMsgParser.computeContentLengthFromMessage = computeContentLengthFromMessage;
     }
 
+    /**
+     * Enable or disable lazy header parsing. When enabled, headers other than
+     * the ones the stack needs for transaction and dialog matching are stored
+     * unparsed in the message and parsed on first access. Headers that are
+     * never accessed are encoded exactly as they were received.
+     *
+     * @param lazyHeaderParsing
+     *            true to defer parsing of the other headers.
+     */
+    public static void setLazyHeaderParsing(boolean lazyHeaderParsing) {
+        StringMsgParser.lazyHeaderParsing = lazyHeaderParsing;
+    }
+
 
 
     /**
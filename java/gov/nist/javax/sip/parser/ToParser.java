@@ -52,10 +52,30 @@ public class ToParser extends AddressParametersParser {
         super(lexer);
     }
 
+    /**
+     * Single pass parse of the common To syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private To fastParse() {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.TO, TokenNames.T))
+            return null;
+        To to = new To();
+        if (!scanner.addressParameters(to) || !scanner.match('\n'))
+            return null;
+        scanner.commit();
+        return to;
+    }
+
     public SIPHeader parse() throws ParseException {
 
+        To to = fastParse();
+        if (to != null)
+            return to;
         headerName(TokenTypes.TO);
-        To to = new To();
+        to = new To();
         super.parse(to);
         this.lexer.match('\n');        
         return to;
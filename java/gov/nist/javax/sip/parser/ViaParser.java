@@ -194,11 +194,89 @@ public class ViaParser extends HeaderParser {
 
     }
 
+    /**
+     * Single pass parse of the common Via syntax. Returns null, without
+     * moving the lexer, if the header has to go through the general parser.
+     */
+    private ViaList fastParse() {
+        if (!HeaderScanner.enabled)
+            return null;
+        HeaderScanner scanner = new HeaderScanner(getLexer());
+        if (!scanner.headerName(SIPHeaderNames.VIA, TokenNames.V))
+            return null;
+        ViaList viaList = new ViaList();
+        while (true) {
+            Via v = new Via();
+            String protocolName = scanner.token();
+            scanner.SPorHT();
+            if (protocolName == null || !scanner.match('/'))
+                return null;
+            scanner.SPorHT();
+            String protocolVersion = scanner.token();
+            scanner.SPorHT();
+            if (protocolVersion == null || !scanner.match('/'))
+                return null;
+            scanner.SPorHT();
+            String transport = scanner.token();
+            if (transport == null)
+                return null;
+            scanner.SPorHT();
+            Protocol protocol = new Protocol();
+            protocol.setProtocolName(protocolName);
+            protocol.setProtocolVersion(protocolVersion);
+            protocol.setTransport(transport);
+            v.setSentProtocol(protocol);
+            HostPort hostPort = scanner.hostPort(true);
+            if (hostPort == null)
+                return null;
+            v.setSentBy(hostPort);
+            scanner.SPorHT();
+            while (scanner.match(';')) {
+                scanner.SPorHT();
+                String name = scanner.token();
+                if (name == null)
+                    return null;
+                scanner.SPorHT();
+                String value = null;
+                if (scanner.match('=')) {
+                    scanner.SPorHT();
+                    if (name.equalsIgnoreCase(Via.RECEIVED)) {
+                        value = scanner.byteStringNoSemicolon();
+                    } else if (scanner.lookAhead() != '\"') {
+                        value = scanner.token();
+                    }
+                    if (value == null)
+                        return null;
+                }
+                name = name.toLowerCase();
+                if (value == null && name.equals(Via.BRANCH))
+                    return null;
+                v.setParameter(new NameValue(name, value));
+                scanner.SPorHT();
+            }
+            if (scanner.lookAhead() == '(')
+                return null;
+            viaList.add(v);
+            scanner.SPorHT();
+            if (scanner.match(','))
+                scanner.SPorHT();
+            else if (scanner.lookAhead() != '\n')
+                return null;
+            if (scanner.match('\n'))
+                break;
+        }
+        scanner.commit();
+        return viaList;
+    }
+
     public SIPHeader parse() throws ParseException {
         if (debug)
             dbg_enter("parse");
         try {
-            ViaList viaList = new ViaList();
+            ViaList viaList = fastParse();
+            if (viaList != null)
+                return viaList;
+            viaList = new ViaList();
             // The first via header.
             this.lexer.match(TokenTypes.VIA);
             this.lexer.SPorHT(); // ignore blanks
@@ -0,0 +1,663 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.perf;
+
+import gov.nist.core.LatencyHistogram;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+import gov.nist.javax.sip.stack.StackMetrics;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Load generator. Starts two stacks in this JVM, a UAC and a UAS, and runs
+ * one of the following scenarios between them over the loopback interface
+ * at a given rate:
+ * <ul>
+ * <li>invite -- INVITE, 200, ACK, hold, BYE, 200.
+ * <li>register -- REGISTER, 200.
+ * <li>subscribe -- SUBSCRIBE, 200, NOTIFY, 200, hold, SUBSCRIBE with
+ * Expires: 0, 200, NOTIFY (terminated), 200.
+ * <li>message -- MESSAGE, 200.
+ * </ul>
+ * Every second a line of progress is printed; at the end the throughput,
+ * the response times of every request the UAC sent, the number of
+ * retransmissions on both stacks and the reasons of the failures. Usage:
+ * 
+ * <pre>
+ * java gov.nist.javax.sip.perf.LoadGenerator [-s scenario] [-t udp|tcp|tls]
+ *     [-r callsPerSecond] [-c maxConcurrentCalls] [-h holdMillis]
+ *     [-n calls] [-d seconds] [property=value ...]
+ * </pre>
+ * 
+ * The generator stops starting calls once -n calls are started or -d
+ * seconds have passed, whichever comes first, and then waits for the calls
+ * in progress. When the number of calls in progress reaches -c, new calls
+ * wait, so the rate achieved may be lower than the rate asked for. The
+ * property=value pairs are passed to both stacks; for TLS give
+ * javax.net.ssl.keyStore, javax.net.ssl.keyStorePassword and
+ * javax.net.ssl.keyStoreType. Both stacks use a reentrant listener with 8
+ * threads unless told otherwise.
+ * 
+ * @since 2.0
+ */
+public class LoadGenerator {
+
+    private String scenario = "invite";
+
+    private String transport = ListeningPoint.UDP;
+
+    private double rate = 100;
+
+    private int concurrency = 1000;
+
+    private long holdMillis = 0;
+
+    private long calls = 10000;
+
+    /**
+     * 0 for no limit.
+     */
+    private long durationSeconds;
+
+    private Properties stackProperties = new Properties();
+
+    private SipStack uacStack;
+
+    private SipStack uasStack;
+
+    private SipProvider uacProvider;
+
+    private SipProvider uasProvider;
+
+    private MessageFactory messageFactory;
+
+    private HeaderFactory headerFactory;
+
+    private AddressFactory addressFactory;
+
+    private Address uacContact;
+
+    private Address uasContact;
+
+    private SipURI target;
+
+    private ScheduledExecutorService timer;
+
+    private Semaphore slots;
+
+    /**
+     * The calls in progress by Call-ID.
+     */
+    private ConcurrentHashMap<String, Call> activeCalls = new ConcurrentHashMap<String, Call>();
+
+    private AtomicLong started = new AtomicLong();
+
+    private AtomicLong completed = new AtomicLong();
+
+    private AtomicLong failed = new AtomicLong();
+
+    /**
+     * Time from sending a request to receiving its final response, by method.
+     */
+    private ConcurrentHashMap<String, LatencyHistogram> responseTimes = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Time from starting a call to its end, hold time included.
+     */
+    private LatencyHistogram callTimes = new LatencyHistogram();
+
+    private ConcurrentHashMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * A call in progress.
+     */
+    static class Call {
+        final String callId;
+
+        final long startNanos = System.nanoTime();
+
+        /**
+         * Set once the call is being taken down.
+         */
+        volatile boolean ending;
+
+        Call(String callId) {
+            this.callId = callId;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-s"))
+                generator.scenario = args[++i].toLowerCase();
+            else if (args[i].equals("-t"))
+                generator.transport = args[++i].toUpperCase();
+            else if (args[i].equals("-r"))
+                generator.rate = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-c"))
+                generator.concurrency = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-h"))
+                generator.holdMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-n"))
+                generator.calls = Long.parseLong(args[++i]);
+            else if (args[i].equals("-d"))
+                generator.durationSeconds = Long.parseLong(args[++i]);
+            else if (args[i].indexOf('=') > 0)
+                generator.stackProperties.setProperty(args[i].substring(0, args[i]
+                        .indexOf('=')), args[i].substring(args[i].indexOf('=') + 1));
+            else
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+        }
+        if (!generator.scenario.equals("invite") && !generator.scenario.equals("register")
+                && !generator.scenario.equals("subscribe")
+                && !generator.scenario.equals("message"))
+            throw new IllegalArgumentException("Unknown scenario " + generator.scenario);
+        generator.run();
+    }
+
+    private void run() throws Exception {
+        start();
+        try {
+            final long runStart = System.nanoTime();
+            timer.scheduleAtFixedRate(new Runnable() {
+                private long lastCompleted;
+
+                public void run() {
+                    long done = completed.get();
+                    System.out.println(Math.round((System.nanoTime() - runStart) / 1e9) + "s started="
+                            + started.get() + " completed=" + done + " failed=" + failed.get()
+                            + " active=" + activeCalls.size() + " calls/s=" + (done - lastCompleted));
+                    lastCompleted = done;
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            long interval = (long) (1e9 / rate);
+            long deadline = runStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+            long next = runStart;
+            while (started.get() < calls) {
+                long now = System.nanoTime();
+                if (durationSeconds > 0 && now >= deadline)
+                    break;
+                if (next > now)
+                    LockSupport.parkNanos(next - now);
+                slots.acquire();
+                startCall();
+                next += interval;
+            }
+            long sendingDone = System.nanoTime();
+
+            // Timer B and F are 32 seconds.
+            long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(holdMillis)
+                    + TimeUnit.SECONDS.toNanos(40);
+            while (!activeCalls.isEmpty() && System.nanoTime() < drainDeadline)
+                Thread.sleep(100);
+            for (Iterator<Call> it = activeCalls.values().iterator(); it.hasNext();) {
+                it.next();
+                it.remove();
+                failed.incrementAndGet();
+                countFailure("unfinished");
+            }
+            report(sendingDone - runStart, System.nanoTime() - runStart);
+        } finally {
+            stop();
+        }
+    }
+
+    private void start() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        messageFactory = sipFactory.createMessageFactory();
+        headerFactory = sipFactory.createHeaderFactory();
+        addressFactory = sipFactory.createAddressFactory();
+        uacStack = createStack(sipFactory, "uac");
+        uasStack = createStack(sipFactory, "uas");
+        int uacPort = MessageBenchmark.freePort();
+        int uasPort = MessageBenchmark.freePort();
+        uacProvider = uacStack.createSipProvider(uacStack.createListeningPoint("127.0.0.1",
+                uacPort, transport));
+        uasProvider = uasStack.createSipProvider(uasStack.createListeningPoint("127.0.0.1",
+                uasPort, transport));
+        uacProvider.addSipListener(new Uac());
+        uasProvider.addSipListener(new Uas());
+        String scheme = transport.equals(ListeningPoint.TLS) ? "sips:" : "sip:";
+        uacContact = addressFactory.createAddress(scheme + "uac@127.0.0.1:" + uacPort
+                + ";transport=" + transport.toLowerCase());
+        uasContact = addressFactory.createAddress(scheme + "uas@127.0.0.1:" + uasPort
+                + ";transport=" + transport.toLowerCase());
+        target = (SipURI) uasContact.getURI().clone();
+        timer = Executors.newScheduledThreadPool(1);
+        slots = new Semaphore(concurrency);
+        System.out.println("scenario=" + scenario + " transport=" + transport + " rate=" + rate
+                + " concurrency=" + concurrency + " hold=" + holdMillis + "ms calls=" + calls);
+    }
+
+    private SipStack createStack(SipFactory sipFactory, String name) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", name);
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        properties.setProperty("gov.nist.javax.sip.REENTRANT_LISTENER", "true");
+        properties.setProperty("gov.nist.javax.sip.THREAD_POOL_SIZE", "8");
+        // Calls come and go faster than the defaults allow for.
+        properties.setProperty("gov.nist.javax.sip.MAX_SERVER_TRANSACTIONS", "100000");
+        properties.setProperty("gov.nist.javax.sip.MAX_CLIENT_TRANSACTIONS", "100000");
+        // Current JVMs turn SSLv3 and often TLSv1 off, the stack default.
+        properties.setProperty("gov.nist.javax.sip.TLS_CLIENT_PROTOCOLS", "TLSv1.2, TLSv1.1, TLSv1");
+        for (Enumeration<?> e = stackProperties.propertyNames(); e.hasMoreElements();) {
+            String key = (String) e.nextElement();
+            properties.setProperty(key, stackProperties.getProperty(key));
+        }
+        return sipFactory.createSipStack(properties);
+    }
+
+    private void stop() {
+        timer.shutdownNow();
+        uacStack.stop();
+        uasStack.stop();
+    }
+
+    private void startCall() {
+        CallIdHeader callId = uacProvider.getNewCallId();
+        Call call = new Call(callId.getCallId());
+        activeCalls.put(call.callId, call);
+        started.incrementAndGet();
+        try {
+            String method;
+            if (scenario.equals("invite"))
+                method = Request.INVITE;
+            else if (scenario.equals("register"))
+                method = Request.REGISTER;
+            else if (scenario.equals("subscribe"))
+                method = Request.SUBSCRIBE;
+            else
+                method = Request.MESSAGE;
+            List<ViaHeader> vias = new ArrayList<ViaHeader>();
+            vias.add(headerFactory.createViaHeader("127.0.0.1", uacProvider.getListeningPoint(
+                    transport).getPort(), transport, null));
+            Request request = messageFactory.createRequest(target, method, callId, headerFactory
+                    .createCSeqHeader(1L, method), headerFactory.createFromHeader(uacContact,
+                    Utils.getInstance().generateTag()), headerFactory.createToHeader(uasContact,
+                    null), vias, headerFactory.createMaxForwardsHeader(70));
+            request.addHeader(headerFactory.createContactHeader(uacContact));
+            if (method.equals(Request.REGISTER)) {
+                request.addHeader(headerFactory.createExpiresHeader(3600));
+            } else if (method.equals(Request.SUBSCRIBE)) {
+                request.addHeader(headerFactory.createEventHeader("presence"));
+                request.addHeader(headerFactory.createExpiresHeader(3600));
+            } else if (method.equals(Request.MESSAGE)) {
+                request.setContent("Load test message " + call.callId, headerFactory
+                        .createContentTypeHeader("text", "plain"));
+            }
+            send(uacProvider.getNewClientTransaction(request), null);
+        } catch (Exception ex) {
+            fail(call, "send " + ex.getClass().getName());
+        }
+    }
+
+    /**
+     * Send a request and remember when it left, for its response time.
+     */
+    private void send(ClientTransaction clientTransaction, Dialog dialog) throws Exception {
+        clientTransaction.setApplicationData(Long.valueOf(System.nanoTime()));
+        if (dialog == null)
+            clientTransaction.sendRequest();
+        else
+            dialog.sendRequest(clientTransaction);
+    }
+
+    /**
+     * Take a call down after the hold time.
+     */
+    private void hangUpLater(final Call call, final Dialog dialog) {
+        timer.schedule(new Runnable() {
+            public void run() {
+                if (!activeCalls.containsKey(call.callId))
+                    return;
+                call.ending = true;
+                try {
+                    if (scenario.equals("invite")) {
+                        send(uacProvider.getNewClientTransaction(dialog
+                                .createRequest(Request.BYE)), dialog);
+                    } else {
+                        Request unsubscribe = dialog.createRequest(Request.SUBSCRIBE);
+                        unsubscribe.setHeader(headerFactory.createEventHeader("presence"));
+                        unsubscribe.setHeader(headerFactory.createExpiresHeader(0));
+                        send(uacProvider.getNewClientTransaction(unsubscribe), dialog);
+                    }
+                } catch (Exception ex) {
+                    fail(call, "hang up " + ex.getClass().getName());
+                }
+            }
+        }, holdMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(Call call) {
+        if (activeCalls.remove(call.callId) == null)
+            return;
+        callTimes.recordSince(call.startNanos);
+        completed.incrementAndGet();
+        slots.release();
+    }
+
+    private void fail(Call call, String reason) {
+        if (activeCalls.remove(call.callId) == null)
+            return;
+        failed.incrementAndGet();
+        countFailure(reason);
+        slots.release();
+    }
+
+    /**
+     * Count a failure by reason, whether or not it ended a call.
+     */
+    private void countFailure(String reason) {
+        AtomicLong count = failures.get(reason);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = failures.putIfAbsent(reason, newCount);
+            if (count == null)
+                count = newCount;
+        }
+        count.incrementAndGet();
+    }
+
+    private LatencyHistogram getResponseTime(String method) {
+        LatencyHistogram histogram = responseTimes.get(method);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = responseTimes.putIfAbsent(method, newHistogram);
+            if (histogram == null)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * Answer a request, in its transaction if the stack made one.
+     */
+    private ServerTransaction respond(SipProvider sipProvider, RequestEvent requestEvent,
+            int statusCode) throws Exception {
+        Request request = requestEvent.getRequest();
+        ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+        if (serverTransaction == null)
+            serverTransaction = sipProvider.getNewServerTransaction(request);
+        Response response = messageFactory.createResponse(statusCode, request);
+        ToHeader to = (ToHeader) response.getHeader(ToHeader.NAME);
+        if (to.getTag() == null)
+            to.setTag(Utils.getInstance().generateTag());
+        String method = request.getMethod();
+        if (method.equals(Request.INVITE) || method.equals(Request.SUBSCRIBE))
+            response.addHeader(headerFactory.createContactHeader(uasContact));
+        if (method.equals(Request.REGISTER) || method.equals(Request.SUBSCRIBE))
+            response.addHeader(request.getHeader(ExpiresHeader.NAME));
+        if (method.equals(Request.REGISTER))
+            response.addHeader(request.getHeader("Contact"));
+        serverTransaction.sendResponse(response);
+        return serverTransaction;
+    }
+
+    private void report(long sendingNanos, long totalNanos) {
+        System.out.println();
+        System.out.println("started=" + started.get() + " completed=" + completed.get()
+                + " failed=" + failed.get() + " in " + Math.round(totalNanos / 1e6) + "ms");
+        System.out.println("offered calls/s=" + format(started.get() * 1e9 / sendingNanos)
+                + " completed calls/s=" + format(completed.get() * 1e9 / totalNanos));
+        System.out.println();
+        System.out.println(pad("ms", 12) + pad("count", 10) + pad("mean", 10) + pad("p50", 10)
+                + pad("p90", 10) + pad("p99", 10) + "max");
+        Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(
+                responseTimes);
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet())
+            printHistogram(entry.getKey(), entry.getValue());
+        printHistogram("call", callTimes);
+        System.out.println("(percentiles are bucket upper bounds, at most twice the real value)");
+        System.out.println();
+        printRetransmissions("uac", uacStack);
+        printRetransmissions("uas", uasStack);
+        if (!failures.isEmpty()) {
+            System.out.println();
+            System.out.println("failures:");
+            for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(failures)
+                    .entrySet())
+                System.out.println("  " + pad(entry.getKey(), 40) + entry.getValue());
+        }
+    }
+
+    private void printHistogram(String name, LatencyHistogram histogram) {
+        System.out.println(pad(name, 12) + pad(String.valueOf(histogram.getCount()), 10)
+                + pad(format(histogram.getMeanMicros() / 1000), 10)
+                + pad(format(histogram.getPercentileMicros(50) / 1000), 10)
+                + pad(format(histogram.getPercentileMicros(90) / 1000), 10)
+                + pad(format(histogram.getPercentileMicros(99) / 1000), 10)
+                + format(histogram.getMaxMicros() / 1000));
+    }
+
+    private void printRetransmissions(String name, SipStack sipStack) {
+        StackMetrics metrics = ((SIPTransactionStack) sipStack).getStackMetrics();
+        System.out.println(name + " retransmissions sent=" + metrics.getRetransmissionsSent().get()
+                + " absorbed=" + metrics.getRetransmissionsAbsorbed().get() + " udp drops="
+                + metrics.getUdpDrops().get());
+    }
+
+    private static String format(double value) {
+        if (value >= 100)
+            return String.valueOf(Math.round(value));
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+
+    private static String pad(String s, int width) {
+        StringBuilder sb = new StringBuilder(s);
+        while (sb.length() < width)
+            sb.append(' ');
+        return sb.append(' ').toString();
+    }
+
+    /**
+     * The calling side. Every call ends or fails here.
+     */
+    class Uac implements SipListener {
+
+        public void processResponse(ResponseEvent responseEvent) {
+            ClientTransaction clientTransaction = responseEvent.getClientTransaction();
+            Response response = responseEvent.getResponse();
+            int statusCode = response.getStatusCode();
+            // Retransmitted 2xx responses to INVITE come without transaction.
+            if (clientTransaction == null || statusCode < 200)
+                return;
+            String method = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getMethod();
+            Object sent = clientTransaction.getApplicationData();
+            if (sent != null)
+                getResponseTime(method).recordSince(((Long) sent).longValue());
+            Call call = activeCalls.get(((CallIdHeader) response.getHeader(CallIdHeader.NAME))
+                    .getCallId());
+            if (call == null)
+                return;
+            if (statusCode >= 300) {
+                fail(call, method + " " + statusCode);
+                return;
+            }
+            try {
+                Dialog dialog = responseEvent.getDialog();
+                if (method.equals(Request.INVITE)) {
+                    dialog.sendAck(dialog.createAck(((CSeqHeader) response
+                            .getHeader(CSeqHeader.NAME)).getSeqNumber()));
+                    hangUpLater(call, dialog);
+                } else if (method.equals(Request.SUBSCRIBE)) {
+                    // The last NOTIFY ends the call.
+                    if (!call.ending)
+                        hangUpLater(call, dialog);
+                } else {
+                    complete(call);
+                }
+            } catch (Exception ex) {
+                fail(call, method + " " + ex.getClass().getName());
+            }
+        }
+
+        public void processRequest(RequestEvent requestEvent) {
+            Request request = requestEvent.getRequest();
+            try {
+                respond(uacProvider, requestEvent, Response.OK);
+            } catch (Exception ex) {
+                countFailure("uac answer " + request.getMethod() + " "
+                        + ex.getClass().getName());
+                return;
+            }
+            if (request.getMethod().equals(Request.NOTIFY)
+                    && ((SubscriptionStateHeader) request
+                            .getHeader(SubscriptionStateHeader.NAME)).getState()
+                            .equalsIgnoreCase(SubscriptionStateHeader.TERMINATED)) {
+                Call call = activeCalls.get(((CallIdHeader) request.getHeader(CallIdHeader.NAME))
+                        .getCallId());
+                if (call != null)
+                    complete(call);
+            }
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            if (timeoutEvent.isServerTransaction()) {
+                countFailure("uac timeout "
+                        + timeoutEvent.getServerTransaction().getRequest().getMethod());
+                return;
+            }
+            Request request = timeoutEvent.getClientTransaction().getRequest();
+            Call call = activeCalls.get(((CallIdHeader) request.getHeader(CallIdHeader.NAME))
+                    .getCallId());
+            if (call != null)
+                fail(call, "timeout " + request.getMethod());
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            countFailure("uac I/O error");
+        }
+
+        public void processTransactionTerminated(TransactionTerminatedEvent event) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent event) {
+        }
+    }
+
+    /**
+     * The called side. Accepts everything.
+     */
+    class Uas implements SipListener {
+
+        public void processRequest(RequestEvent requestEvent) {
+            Request request = requestEvent.getRequest();
+            String method = request.getMethod();
+            if (method.equals(Request.ACK))
+                return;
+            try {
+                ServerTransaction serverTransaction = respond(uasProvider, requestEvent,
+                        Response.OK);
+                if (method.equals(Request.SUBSCRIBE)) {
+                    Dialog dialog = serverTransaction.getDialog();
+                    Request notify = dialog.createRequest(Request.NOTIFY);
+                    notify.setHeader(headerFactory.createEventHeader("presence"));
+                    SubscriptionStateHeader state;
+                    if (((ExpiresHeader) request.getHeader(ExpiresHeader.NAME)).getExpires() == 0) {
+                        state = headerFactory
+                                .createSubscriptionStateHeader(SubscriptionStateHeader.TERMINATED);
+                        state.setReasonCode("timeout");
+                    } else {
+                        state = headerFactory
+                                .createSubscriptionStateHeader(SubscriptionStateHeader.ACTIVE);
+                        state.setExpires(3600);
+                    }
+                    notify.setHeader(state);
+                    dialog.sendRequest(uasProvider.getNewClientTransaction(notify));
+                }
+            } catch (Exception ex) {
+                countFailure("uas answer " + method + " " + ex.getClass().getName());
+            }
+        }
+
+        public void processResponse(ResponseEvent responseEvent) {
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            countFailure("uas timeout "
+                    + (timeoutEvent.isServerTransaction() ? timeoutEvent.getServerTransaction()
+                            .getRequest().getMethod() : timeoutEvent.getClientTransaction()
+                            .getRequest().getMethod()));
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            countFailure("uas I/O error");
+        }
+
+        public void processTransactionTerminated(TransactionTerminatedEvent event) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent event) {
+        }
+    }
+}
@@ -0,0 +1,668 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.perf;
+
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.header.HeaderFactoryImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Micro benchmarks for the hot paths of the stack: parsing, encoding,
+ * cloning and answering messages, creating headers and branch ids, finding
+ * transactions and dialogs, and a whole call over the loopback interface.
+ * <p>
+ * Each benchmark is run for a number of warm up iterations, whose results
+ * are thrown away, and then for a number of measured iterations of a fixed
+ * duration. The time per operation and, when the JVM can count the bytes
+ * allocated by a thread, the bytes allocated per operation on the calling
+ * thread are printed for the measured iterations. Usage:
+ * 
+ * <pre>
+ * java gov.nist.javax.sip.perf.MessageBenchmark [-w warmups] [-i iterations]
+ *     [-t milliseconds] [-n tableSize] [name ...]
+ * </pre>
+ * 
+ * Only the benchmarks whose names start with one of the given names are
+ * run, all of them if no name is given.
+ * 
+ * @since 2.0
+ */
+public class MessageBenchmark {
+
+    private static final String INVITE = "INVITE sip:bob@biloxi.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP pc33.atlanta.example.com:5060;branch=z9hG4bK776asdhds\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: Bob <sip:bob@biloxi.example.com>\r\n"
+            + "From: Alice <sip:alice@atlanta.example.com>;tag=1928301774\r\n"
+            + "Call-ID: a84b4c76e66710@pc33.atlanta.example.com\r\n"
+            + "CSeq: 314159 INVITE\r\n"
+            + "Contact: <sip:alice@pc33.atlanta.example.com>\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 142\r\n"
+            + "\r\n"
+            + "v=0\r\n"
+            + "o=alice 2890844526 2890844526 IN IP4 pc33.atlanta.example.com\r\n"
+            + "s=-\r\n"
+            + "c=IN IP4 192.0.2.101\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 49172 RTP/AVP 0\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n";
+
+    private static final String REGISTER = "REGISTER sip:registrar.biloxi.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP bobspc.biloxi.example.com:5060;branch=z9hG4bKnashds7;rport\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: Bob <sip:bob@biloxi.example.com>\r\n"
+            + "From: Bob <sip:bob@biloxi.example.com>;tag=456248\r\n"
+            + "Call-ID: 843817637684230@998sdasdh09\r\n"
+            + "CSeq: 1826 REGISTER\r\n"
+            + "Contact: <sip:bob@192.0.2.4>;expires=7200;+sip.instance=\"<urn:uuid:00000000-0000-1000-8000-000A95A0E128>\";reg-id=1\r\n"
+            + "Authorization: Digest username=\"bob\", realm=\"biloxi.example.com\", "
+            + "nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\", uri=\"sip:registrar.biloxi.example.com\", "
+            + "qop=auth, nc=00000001, cnonce=\"0a4f113b\", "
+            + "response=\"6629fae49393a05397450978507c4ef1\", opaque=\"5ccc069c403ebaf9f0171e9517f40e41\", "
+            + "algorithm=MD5\r\n"
+            + "Supported: path, outbound, gruu\r\n"
+            + "User-Agent: Example/1.0\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private static final String IMS_INVITE = "INVITE tel:+12125551212;phone-context=ims.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP scscf1.home1.example.net:5060;branch=z9hG4bK332b33.3\r\n"
+            + "Via: SIP/2.0/UDP pcscf1.visited1.example.net:5060;branch=z9hG4bK240f34.1\r\n"
+            + "Via: SIP/2.0/UDP [5555::aaa:bbb:ccc:ddd]:1357;comp=sigcomp;branch=z9hG4bKnashds7\r\n"
+            + "Max-Forwards: 68\r\n"
+            + "Route: <sip:scscf2.home2.example.net;lr>, <sip:orig@scscf1.home1.example.net;lr>\r\n"
+            + "Record-Route: <sip:scscf1.home1.example.net;lr>, <sip:pcscf1.visited1.example.net;lr>\r\n"
+            + "P-Asserted-Identity: \"John Doe\" <sip:user1_public1@home1.example.net>, <tel:+1-212-555-1111>\r\n"
+            + "P-Access-Network-Info: 3GPP-UTRAN-TDD; utran-cell-id-3gpp=234151D0FCE11\r\n"
+            + "P-Charging-Vector: icid-value=\"AyretyU0dm+6O2IrT5tAFrbHLso=023551024\"; orig-ioi=home1.example.net\r\n"
+            + "P-Charging-Function-Addresses: ccf=[5555::b99:c88:d77:e66]; ccf=[5555::a55:b44:c33:d22]; "
+            + "ecf=[5555::1ff:2ee:3dd:4cc]; ecf=[5555::6aa:7bb:8cc:9dd]\r\n"
+            + "P-Visited-Network-ID: \"Visited network number 1\"\r\n"
+            + "P-Preferred-Service: urn:urn-7:3gpp-service.ims.icsi.mmtel\r\n"
+            + "Privacy: none\r\n"
+            + "From: <sip:user1_public1@home1.example.net>;tag=171828\r\n"
+            + "To: <tel:+1-212-555-2222>\r\n"
+            + "Call-ID: cb03a0s09a2sdfglkj490333\r\n"
+            + "CSeq: 127 INVITE\r\n"
+            + "Require: sec-agree, precondition\r\n"
+            + "Proxy-Require: sec-agree\r\n"
+            + "Supported: 100rel, timer\r\n"
+            + "Security-Verify: ipsec-3gpp; q=0.1; alg=hmac-sha-1-96; spi-c=98765432; spi-s=87654321; "
+            + "port-c=8642; port-s=7531\r\n"
+            + "Contact: <sip:[5555::aaa:bbb:ccc:ddd]:1357;comp=sigcomp>;+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.mmtel\"\r\n"
+            + "Accept-Contact: *;+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.mmtel\"\r\n"
+            + "Allow: INVITE, ACK, CANCEL, BYE, PRACK, UPDATE, REFER, MESSAGE\r\n"
+            + "Session-Expires: 1800;refresher=uac\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private static final String MULTIPART_BODY = "--boundary1\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "\r\n"
+            + "v=0\r\n"
+            + "o=- 2987933615 2987933615 IN IP6 5555::aaa:bbb:ccc:ddd\r\n"
+            + "s=-\r\n"
+            + "c=IN IP6 5555::aaa:bbb:ccc:ddd\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 3456 RTP/AVP 97 96\r\n"
+            + "a=rtpmap:97 AMR/8000\r\n"
+            + "a=rtpmap:96 telephone-event/8000\r\n"
+            + "a=curr:qos local none\r\n"
+            + "a=des:qos mandatory local sendrecv\r\n"
+            + "\r\n"
+            + "--boundary1\r\n"
+            + "Content-Type: application/isup; version=itu-t92+\r\n"
+            + "Content-Disposition: signal; handling=optional\r\n"
+            + "\r\n"
+            + "01 00 49 00 00 03 02 00 07 03 10 89 67 45 23 01 0a 03 06 0d 03 80 90 a2\r\n"
+            + "--boundary1--\r\n";
+
+    private static final String MULTIPART_INVITE = "INVITE sip:bob@biloxi.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP client.atlanta.example.com:5060;branch=z9hG4bK74bf9\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "From: Alice <sip:alice@atlanta.example.com>;tag=9fxced76sl\r\n"
+            + "To: Bob <sip:bob@biloxi.example.com>\r\n"
+            + "Call-ID: 3848276298220188511@atlanta.example.com\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Contact: <sip:alice@client.atlanta.example.com;transport=tcp>\r\n"
+            + "MIME-Version: 1.0\r\n"
+            + "Content-Type: multipart/mixed;boundary=boundary1\r\n"
+            + "Content-Length: " + MULTIPART_BODY.length() + "\r\n"
+            + "\r\n" + MULTIPART_BODY;
+
+    private static final String[][] CORPUS = { { "invite", INVITE },
+            { "register", REGISTER }, { "imsInvite", IMS_INVITE },
+            { "multipart", MULTIPART_INVITE } };
+
+    /**
+     * Results go here so that the JIT can't drop the work.
+     */
+    private static volatile int sink;
+
+    private static int warmups = 3;
+
+    private static int iterations = 5;
+
+    private static long iterationMillis = 1000;
+
+    private static int tableSize = 10000;
+
+    /**
+     * A benchmark. setUp and tearDown are not timed.
+     */
+    abstract static class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        void setUp() throws Exception {
+        }
+
+        /**
+         * Do the operation being measured once.
+         * 
+         * @param i -- the number of the operation, for picking inputs.
+         * @return something that depends on the work done.
+         */
+        abstract Object run(int i) throws Exception;
+
+        void tearDown() throws Exception {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-w"))
+                warmups = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-i"))
+                iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-t"))
+                iterationMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-n"))
+                tableSize = Integer.parseInt(args[++i]);
+            else
+                filters.add(args[i]);
+        }
+        System.out.println(pad("benchmark", 28) + pad("ns/op", 14) + pad("min", 12)
+                + pad("max", 12) + pad("ops/s", 14) + "B/op");
+        for (Benchmark benchmark : benchmarks()) {
+            boolean selected = filters.isEmpty();
+            for (String filter : filters)
+                selected |= benchmark.name.startsWith(filter);
+            if (selected)
+                measure(benchmark);
+        }
+    }
+
+    private static List<Benchmark> benchmarks() throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final String[] corpus : CORPUS) {
+            final byte[] bytes = corpus[1].getBytes("UTF-8");
+            final SIPMessage message = new StringMsgParser().parseSIPMessage(bytes);
+            benchmarks.add(new Benchmark("parse." + corpus[0]) {
+                StringMsgParser parser = new StringMsgParser();
+
+                Object run(int i) throws Exception {
+                    return parser.parseSIPMessage(bytes);
+                }
+            });
+            benchmarks.add(new Benchmark("parseAndRead." + corpus[0]) {
+                StringMsgParser parser = new StringMsgParser();
+
+                Object run(int i) throws Exception {
+                    // Touch the headers a stack touches for every message.
+                    SIPMessage parsed = parser.parseSIPMessage(bytes);
+                    return parsed.getTopmostVia().getBranch().length()
+                            + parsed.getFrom().getTag().length()
+                            + parsed.getCallId().getCallId().length()
+                            + parsed.getCSeq().getMethod().length()
+                            + parsed.getContentLength().getContentLength();
+                }
+            });
+            benchmarks.add(new Benchmark("encode." + corpus[0]) {
+                Object run(int i) {
+                    return message.encodeAsBytes("UDP");
+                }
+            });
+            benchmarks.add(new Benchmark("clone." + corpus[0]) {
+                Object run(int i) {
+                    return message.clone();
+                }
+            });
+            benchmarks.add(new Benchmark("createResponse." + corpus[0]) {
+                Object run(int i) {
+                    return ((SIPRequest) message).createResponse(200);
+                }
+            });
+        }
+        benchmarks.add(new Benchmark("headerFactory") {
+            HeaderFactory headerFactory = new HeaderFactoryImpl();
+
+            AddressFactory addressFactory;
+
+            void setUp() throws Exception {
+                addressFactory = SipFactory.getInstance().createAddressFactory();
+            }
+
+            Object run(int i) throws Exception {
+                return headerFactory.createViaHeader("192.0.2.1", 5060, "udp",
+                        "z9hG4bK" + i).hashCode()
+                        + headerFactory.createFromHeader(
+                                addressFactory.createAddress("sip:alice@atlanta.example.com"),
+                                "1928301774").hashCode()
+                        + headerFactory.createToHeader(
+                                addressFactory.createAddress("sip:bob@biloxi.example.com"),
+                                null).hashCode()
+                        + headerFactory.createCSeqHeader(1L, Request.INVITE).hashCode()
+                        + headerFactory.createCallIdHeader("a84b4c76e66710").hashCode()
+                        + headerFactory.createMaxForwardsHeader(70).hashCode();
+            }
+        });
+        benchmarks.add(new Benchmark("branchId") {
+            Object run(int i) {
+                return Utils.getInstance().generateBranchId();
+            }
+        });
+        benchmarks.add(new TableBenchmark("findTransaction", false));
+        benchmarks.add(new TableBenchmark("getDialog", true));
+        benchmarks.add(new CallBenchmark("call.udp", ListeningPoint.UDP));
+        benchmarks.add(new CallBenchmark("call.tcp", ListeningPoint.TCP));
+        return benchmarks;
+    }
+
+    private static void measure(Benchmark benchmark) throws Exception {
+        try {
+            benchmark.setUp();
+            int op = 0;
+            double[] nanosPerOp = new double[iterations];
+            double allocated = 0;
+            long measuredOps = 0;
+            for (int iteration = -warmups; iteration < iterations; iteration++) {
+                long bytesBefore = allocatedBytes();
+                long start = System.nanoTime();
+                long deadline = start + TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+                long ops = 0;
+                int result = 0;
+                long now;
+                do {
+                    // Check the clock every few operations only.
+                    for (int k = 0; k < 16; k++) {
+                        Object o = benchmark.run(op++);
+                        result += o == null ? 0 : o.hashCode();
+                    }
+                    ops += 16;
+                    now = System.nanoTime();
+                } while (now < deadline);
+                sink += result;
+                if (iteration >= 0) {
+                    nanosPerOp[iteration] = (double) (now - start) / ops;
+                    allocated += allocatedBytes() - bytesBefore;
+                    measuredOps += ops;
+                }
+            }
+            double sum = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (double value : nanosPerOp) {
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            double mean = sum / iterations;
+            System.out.println(pad(benchmark.name, 28) + pad(format(mean), 14)
+                    + pad(format(min), 12) + pad(format(max), 12)
+                    + pad(format(1e9 / mean), 14)
+                    + (allocatedBytes() < 0 ? "n/a" : format(allocated / measuredOps)));
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private static Object threadBean;
+
+    private static Method allocatedBytesMethod;
+
+    static {
+        // Not on every JVM, so looked up by name.
+        try {
+            threadBean = Class.forName("java.lang.management.ManagementFactory").getMethod(
+                    "getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (beanClass.isInstance(threadBean)) {
+                allocatedBytesMethod = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+                beanClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(
+                        threadBean, Boolean.TRUE);
+            }
+        } catch (Throwable ex) {
+            allocatedBytesMethod = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes allocated by the calling thread so far, -1
+     *         if the JVM does not tell.
+     */
+    private static long allocatedBytes() {
+        if (allocatedBytesMethod == null)
+            return -1;
+        try {
+            return ((Long) allocatedBytesMethod.invoke(threadBean, Thread.currentThread()
+                    .getId())).longValue();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    private static String format(double value) {
+        if (value >= 100)
+            return String.valueOf(Math.round(value));
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+
+    private static String pad(String s, int width) {
+        StringBuilder sb = new StringBuilder(s);
+        while (sb.length() < width)
+            sb.append(' ');
+        return sb.append(' ').toString();
+    }
+
+    /**
+     * @return a port nobody listens on right now, the stack does not take 0.
+     */
+    static int freePort() throws java.io.IOException {
+        java.net.ServerSocket socket = new java.net.ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static SipStack createStack(String name) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", name);
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        SipFactory sipFactory = SipFactory.getInstance();
+        SipStack sipStack = sipFactory.createSipStack(properties);
+        return sipStack;
+    }
+
+    /**
+     * Looks up client transactions by response, or dialogs by in dialog
+     * request, in tables holding tableSize entries.
+     */
+    static class TableBenchmark extends Benchmark {
+        private boolean dialogs;
+
+        private SipStack sipStack;
+
+        private SIPMessage[] lookups;
+
+        TableBenchmark(String name, boolean dialogs) {
+            super(name);
+            this.dialogs = dialogs;
+        }
+
+        void setUp() throws Exception {
+            sipStack = createStack(name);
+            ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", freePort(),
+                    ListeningPoint.UDP);
+            SipProviderImpl sipProvider = (SipProviderImpl) sipStack
+                    .createSipProvider(listeningPoint);
+            SIPTransactionStack transactionStack = (SIPTransactionStack) sipStack;
+            StringMsgParser parser = new StringMsgParser();
+            lookups = new SIPMessage[tableSize];
+            for (int i = 0; i < tableSize; i++) {
+                // Route to ourselves so that no name needs to be resolved.
+                SIPRequest request = (SIPRequest) parser.parseSIPMessage(INVITE.replace(
+                        "bob@biloxi.example.com SIP", "bob@127.0.0.1:" + listeningPoint.getPort()
+                                + " SIP").replace("776asdhds", "776asdhds" + i).replace(
+                        "a84b4c76e66710", "a84b4c76e66710-" + i).getBytes("UTF-8"));
+                ClientTransaction clientTransaction = sipProvider
+                        .getNewClientTransaction(request);
+                SIPResponse response = request.createResponse(200);
+                response.getTo().setTag("to" + i);
+                if (dialogs) {
+                    transactionStack.putDialog(new SIPDialog(sipProvider, response));
+                    SIPRequest bye = (SIPRequest) request.clone();
+                    bye.getCSeq().setMethod(Request.BYE);
+                    bye.getCSeq().setSeqNumber(314160);
+                    bye.setMethod(Request.BYE);
+                    // Sent by the peer, so From and To trade places.
+                    bye.getTo().setTag(request.getFrom().getTag());
+                    bye.getFrom().setTag("to" + i);
+                    lookups[i] = bye;
+                } else {
+                    transactionStack.addTransaction((SIPClientTransaction) clientTransaction);
+                    lookups[i] = response;
+                }
+            }
+        }
+
+        Object run(int i) {
+            SIPTransactionStack transactionStack = (SIPTransactionStack) sipStack;
+            SIPMessage message = lookups[i % lookups.length];
+            Object found;
+            if (dialogs)
+                found = transactionStack.getDialog(((SIPRequest) message).getDialogId(true));
+            else
+                found = transactionStack.findTransaction(message, false);
+            if (found == null)
+                throw new IllegalStateException(name + ": nothing found for "
+                        + message.getFirstLine());
+            return found;
+        }
+
+        void tearDown() {
+            if (sipStack != null)
+                sipStack.stop();
+        }
+    }
+
+    /**
+     * A call over the loopback interface between two stacks: INVITE, 200,
+     * ACK, BYE, 200. One operation is one call; only the allocations of the
+     * thread starting the calls are counted.
+     */
+    static class CallBenchmark extends Benchmark implements SipListener {
+        private String transport;
+
+        private SipStack callerStack;
+
+        private SipStack calleeStack;
+
+        private SipProvider caller;
+
+        private SipProvider callee;
+
+        private MessageFactory messageFactory;
+
+        private HeaderFactory headerFactory;
+
+        private AddressFactory addressFactory;
+
+        private Semaphore callDone = new Semaphore(0);
+
+        private volatile Exception failure;
+
+        CallBenchmark(String name, String transport) {
+            super(name);
+            this.transport = transport;
+        }
+
+        void setUp() throws Exception {
+            SipFactory sipFactory = SipFactory.getInstance();
+            messageFactory = sipFactory.createMessageFactory();
+            headerFactory = sipFactory.createHeaderFactory();
+            addressFactory = sipFactory.createAddressFactory();
+            callerStack = createStack(name + ".caller");
+            calleeStack = createStack(name + ".callee");
+            caller = callerStack.createSipProvider(callerStack.createListeningPoint(
+                    "127.0.0.1", freePort(), transport));
+            callee = calleeStack.createSipProvider(calleeStack.createListeningPoint(
+                    "127.0.0.1", freePort(), transport));
+            caller.addSipListener(this);
+            callee.addSipListener(this);
+        }
+
+        Object run(int i) throws Exception {
+            int port = callee.getListeningPoint(transport).getPort();
+            javax.sip.address.SipURI requestUri = addressFactory.createSipURI("bob",
+                    "127.0.0.1:" + port);
+            requestUri.setTransportParam(transport);
+            List<javax.sip.header.ViaHeader> vias = new ArrayList<javax.sip.header.ViaHeader>();
+            vias.add(headerFactory.createViaHeader("127.0.0.1", caller.getListeningPoint(
+                    transport).getPort(), transport, null));
+            Request invite = messageFactory.createRequest(requestUri, Request.INVITE, caller
+                    .getNewCallId(), headerFactory.createCSeqHeader(1L, Request.INVITE),
+                    headerFactory.createFromHeader(addressFactory
+                            .createAddress("sip:alice@127.0.0.1"), "a" + i), headerFactory
+                            .createToHeader(addressFactory.createAddress("sip:bob@127.0.0.1"),
+                                    null), vias, headerFactory.createMaxForwardsHeader(70));
+            invite.addHeader(headerFactory.createContactHeader(addressFactory
+                    .createAddress("sip:alice@127.0.0.1:"
+                            + caller.getListeningPoint(transport).getPort() + ";transport="
+                            + transport)));
+            caller.getNewClientTransaction(invite).sendRequest();
+            if (!callDone.tryAcquire(10, TimeUnit.SECONDS))
+                throw new IllegalStateException(name + ": call " + i + " did not complete");
+            if (failure != null)
+                throw failure;
+            return invite;
+        }
+
+        public void processRequest(RequestEvent requestEvent) {
+            try {
+                Request request = requestEvent.getRequest();
+                if (request.getMethod().equals(Request.ACK))
+                    return;
+                ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+                if (serverTransaction == null)
+                    serverTransaction = callee.getNewServerTransaction(request);
+                Response response = messageFactory.createResponse(Response.OK, request);
+                if (request.getMethod().equals(Request.INVITE)) {
+                    ((javax.sip.header.ToHeader) response.getHeader("To")).setTag("b"
+                            + System.nanoTime());
+                    response.addHeader(headerFactory.createContactHeader(addressFactory
+                            .createAddress("sip:bob@127.0.0.1:"
+                                    + callee.getListeningPoint(transport).getPort()
+                                    + ";transport=" + transport)));
+                }
+                serverTransaction.sendResponse(response);
+            } catch (Exception ex) {
+                fail(ex);
+            }
+        }
+
+        public void processResponse(ResponseEvent responseEvent) {
+            try {
+                Response response = responseEvent.getResponse();
+                if (response.getStatusCode() != Response.OK)
+                    return;
+                CSeqHeader cseq = (CSeqHeader) response.getHeader(CSeqHeader.NAME);
+                Dialog dialog = responseEvent.getDialog();
+                if (cseq.getMethod().equals(Request.INVITE)) {
+                    dialog.sendAck(dialog.createAck(cseq.getSeqNumber()));
+                    Request bye = dialog.createRequest(Request.BYE);
+                    dialog.sendRequest(caller.getNewClientTransaction(bye));
+                } else if (cseq.getMethod().equals(Request.BYE)) {
+                    callDone.release();
+                }
+            } catch (Exception ex) {
+                fail(ex);
+            }
+        }
+
+        private void fail(Exception ex) {
+            failure = ex;
+            callDone.release();
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            fail(new IllegalStateException(name + ": transaction timed out"));
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            fail(new IllegalStateException(name + ": I/O error"));
+        }
+
+        public void processTransactionTerminated(TransactionTerminatedEvent event) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent event) {
+        }
+
+        void tearDown() {
+            if (callerStack != null)
+                callerStack.stop();
+            if (calleeStack != null)
+                calleeStack.stop();
+        }
+    }
+}
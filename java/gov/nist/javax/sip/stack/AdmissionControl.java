@@ -0,0 +1,260 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.header.RetryAfter;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Decides whether a request read from the network may start a new server
+ * transaction.
+ * <p>
+ * Every source address gets a token bucket that fills at a given rate up
+ * to a given burst. A new request (one without To tag, other than ACK and
+ * CANCEL) needs a token. A request within a dialog, an ACK or a CANCEL takes
+ * a token if there is one but gets in anyway, so that calls already set up
+ * can finish while their peer is over its rate. Responses and
+ * retransmissions absorbed by existing transactions are never looked at.
+ * <p>
+ * When the size of the server transaction table is bounded, new requests
+ * are also turned away with a probability that grows from 0 at the low
+ * water mark to 1 at the high water mark; other requests but ACK only once
+ * the table is full.
+ * <p>
+ * Requests turned away are answered statelessly with 503 Service
+ * Unavailable and a Retry-After header, or dropped if so configured. ACKs
+ * are always dropped.
+ *
+ * @since 2.0
+ */
+public class AdmissionControl {
+
+    private final SIPTransactionStack sipStack;
+
+    /**
+     * Tokens per second, 0 if sources are not limited.
+     */
+    private final double rate;
+
+    private final double burst;
+
+    private final int maxSources;
+
+    /**
+     * Seconds for the Retry-After header, -1 to drop instead of answering.
+     */
+    private final int retryAfter;
+
+    private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<InetAddress, Bucket>();
+
+    /**
+     * Shared by the sources that don't fit in the table, which only happens
+     * when many sources send at once.
+     */
+    private final Bucket overflow;
+
+    private volatile long lastPurge;
+
+    static final class Bucket {
+        private double tokens;
+
+        private long refilled;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilled = now;
+        }
+
+        synchronized double refill(long now, double rate, double burst) {
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            return tokens;
+        }
+
+        synchronized boolean take(long now, double rate, double burst) {
+            if (refill(now, rate, burst) < 1)
+                return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * @param sipStack -- the stack.
+     * @param rate -- requests per second allowed from each source, 0 for no
+     *        limit.
+     * @param burst -- requests a source may send at once after being quiet.
+     * @param maxSources -- number of sources to keep track of.
+     * @param retryAfter -- seconds to give in the Retry-After header of the
+     *        503 responses, -1 to drop requests turned away instead.
+     */
+    public AdmissionControl(SIPTransactionStack sipStack, double rate, double burst,
+            int maxSources, int retryAfter) {
+        if (rate < 0 || (rate > 0 && burst < 1) || maxSources < 1)
+            throw new IllegalArgumentException("Bad admission control limits");
+        this.sipStack = sipStack;
+        this.rate = rate;
+        this.burst = burst;
+        this.maxSources = maxSources;
+        this.retryAfter = retryAfter;
+        long now = System.nanoTime();
+        this.overflow = new Bucket(burst, now);
+        // nanoTime has an arbitrary origin, so start from it rather than 0.
+        this.lastPurge = now - 1000000000L;
+    }
+
+    /**
+     * Decide whether a request that matches no transaction may start one.
+     *
+     * @param request -- the request.
+     * @param source -- the address it came from, may be null.
+     * @return false if the request should be turned away.
+     */
+    public boolean admit(SIPRequest request, InetAddress source) {
+        boolean preferred = isPreferred(request);
+        // An ACK does not hold its transaction for long, and dropping it would keep the
+        // INVITE transaction it acknowledges in the table.
+        if (!sipStack.unlimitedServerTransactionTableSize
+                && !request.getMethod().equals(Request.ACK)) {
+            int size = sipStack.getServerTransactionTableSize();
+            int high = sipStack.serverTransactionTableHighwaterMark;
+            int low = sipStack.serverTransactionTableLowaterMark;
+            if (size >= high)
+                return false;
+            if (!preferred && size > low
+                    && Math.random() < ((float) (size - low)) / ((float) (high - low)))
+                return false;
+        }
+        if (rate > 0 && source != null) {
+            boolean gotToken = getBucket(source).take(System.nanoTime(), rate, burst);
+            if (!gotToken && !preferred)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the server transaction table has reached its high water
+     *         mark.
+     */
+    public boolean isServerTransactionTableFull() {
+        return !sipStack.unlimitedServerTransactionTableSize
+                && sipStack.getServerTransactionTableSize() >= sipStack.serverTransactionTableHighwaterMark;
+    }
+
+    /**
+     * @return true if the source has no token left. Does not take one.
+     */
+    public boolean isOverRate(InetAddress source) {
+        if (rate <= 0 || source == null)
+            return false;
+        Bucket bucket = buckets.get(source);
+        return bucket != null && bucket.refill(System.nanoTime(), rate, burst) < 1;
+    }
+
+    /**
+     * Turn a request away: answer it with 503 and Retry-After, or drop it.
+     *
+     * @param request -- the request.
+     * @param channel -- the channel it came in on.
+     */
+    public void reject(SIPRequest request, MessageChannel channel) {
+        sipStack.getStackMetrics().getRequestsRejected().increment();
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "Overload -- turning away " + request.getFirstLine().trim() + " from "
+                            + channel.getPeerAddress());
+        if (retryAfter < 0 || request.getMethod().equals(Request.ACK))
+            return;
+        try {
+            SIPResponse response = request.createResponse(Response.SERVICE_UNAVAILABLE);
+            RetryAfter retryAfterHeader = new RetryAfter();
+            retryAfterHeader.setRetryAfter(retryAfter);
+            response.setHeader(retryAfterHeader);
+            channel.sendMessage(response);
+        } catch (Exception ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Could not send 503 -- " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of sources being tracked.
+     */
+    public int getSourceCount() {
+        return buckets.size();
+    }
+
+    /**
+     * Requests within a dialog and those that end a transaction keep going
+     * when new ones are turned away.
+     */
+    private static boolean isPreferred(SIPRequest request) {
+        String method = request.getMethod();
+        return method.equals(Request.ACK) || method.equals(Request.CANCEL)
+                || request.getToTag() != null;
+    }
+
+    private Bucket getBucket(InetAddress source) {
+        Bucket bucket = buckets.get(source);
+        if (bucket != null)
+            return bucket;
+        long now = System.nanoTime();
+        if (buckets.size() >= maxSources) {
+            purge(now);
+            if (buckets.size() >= maxSources)
+                return overflow;
+        }
+        Bucket newBucket = new Bucket(burst, now);
+        bucket = buckets.putIfAbsent(source, newBucket);
+        return bucket == null ? newBucket : bucket;
+    }
+
+    /**
+     * Forget the sources whose bucket has filled up again, at most once a
+     * second since it walks the whole table.
+     */
+    private void purge(long now) {
+        if (now - lastPurge < 1000000000L)
+            return;
+        lastPurge = now;
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+            if (it.next().refill(now, rate, burst) >= burst)
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends records to a file from a background thread. Producers copy their
+ * records into a preallocated ring buffer and return; the drain thread
+ * writes the buffer out, rolls the file over when it gets too big or too old
+ * and syncs it to disk at most once per sync interval. When the buffer is
+ * full the record is dropped and counted rather than blocking the producer.
+ * <p>
+ * A record is written while holding the lock on the writer:
+ * 
+ * <pre>
+ * synchronized (writer) {
+ *     if (writer.reserve(length)) {
+ *         writer.putInt(...);
+ *         ...
+ *         writer.commit();
+ *     }
+ * }
+ * </pre>
+ * 
+ * No more than the reserved number of bytes may be put before the commit. Files
+ * are only rolled over between records, and every new file starts with the
+ * file header.
+ * 
+ * @since 2.0
+ */
+class AsyncFileWriter implements Runnable {
+
+    /**
+     * How long the drain thread sleeps when the buffer is less than half full.
+     */
+    private static final long DRAIN_INTERVAL = 100;
+
+    private SIPTransactionStack sipStack;
+
+    private String fileName;
+
+    private byte[] fileHeader;
+
+    private boolean overwrite;
+
+    private long maxFileSize;
+
+    private long maxFileAge;
+
+    private int maxFiles;
+
+    private long syncInterval;
+
+    /*
+     * The ring buffer. Producers write at head; the used bytes before head are
+     * owned by the drain thread until it gives them back by decrementing used.
+     * head, used, dropped, written and closed are guarded by this.
+     */
+    private byte[] ring;
+
+    private int head;
+
+    private int used;
+
+    private long dropped;
+
+    private long written;
+
+    private boolean closed;
+
+    private Thread drainThread;
+
+    /*
+     * Only touched by the drain thread.
+     */
+    private FileOutputStream out;
+
+    private long fileSize;
+
+    private long fileOpened;
+
+    private long lastSync;
+
+    /**
+     * @param sipStack -- the stack to log errors to.
+     * @param fileName -- the file to write.
+     * @param fileHeader -- bytes written at the start of each new file.
+     * @param bufferSize -- size of the ring buffer.
+     * @param overwrite -- truncate an existing file instead of appending.
+     * @param maxFileSize -- roll the file over when it is this big.
+     * @param maxFileAge -- roll the file over when it is this many
+     *        milliseconds old, 0 for no limit.
+     * @param maxFiles -- the number of rolled over files (fileName.1 being the
+     *        most recent) to keep.
+     * @param syncInterval -- milliseconds between syncs of the file to disk.
+     */
+    AsyncFileWriter(SIPTransactionStack sipStack, String fileName, byte[] fileHeader,
+            int bufferSize, boolean overwrite, long maxFileSize, long maxFileAge,
+            int maxFiles, long syncInterval) {
+        this.sipStack = sipStack;
+        this.fileName = fileName;
+        this.fileHeader = fileHeader;
+        this.ring = new byte[bufferSize];
+        this.overwrite = overwrite;
+        this.maxFileSize = maxFileSize;
+        this.maxFileAge = maxFileAge;
+        this.maxFiles = maxFiles;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Start the drain thread.
+     */
+    void start(String threadName) {
+        drainThread = new Thread(this, threadName);
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * Stop the drain thread after it has written out what is in the buffer and
+     * close the file.
+     */
+    void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+            thread = drainThread;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full.
+     */
+    synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of records copied to the buffer.
+     */
+    synchronized long getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * Make room for a record. Must be called holding the lock on this writer.
+     * 
+     * @return false if the record does not fit and has been counted as
+     *         dropped.
+     */
+    boolean reserve(int length) {
+        if (closed || length > ring.length - used) {
+            dropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finish the record put since the last reserve.
+     */
+    void commit() {
+        written++;
+        if (used > ring.length / 2)
+            notifyAll();
+    }
+
+    void putByte(int b) {
+        ring[head] = (byte) b;
+        if (++head == ring.length)
+            head = 0;
+        used++;
+    }
+
+    void putShort(int s) {
+        putByte(s >>> 8);
+        putByte(s);
+    }
+
+    void putInt(int i) {
+        putByte(i >>> 24);
+        putByte(i >>> 16);
+        putByte(i >>> 8);
+        putByte(i);
+    }
+
+    void putLong(long l) {
+        putInt((int) (l >>> 32));
+        putInt((int) l);
+    }
+
+    void put(byte[] bytes, int offset, int length) {
+        int first = Math.min(length, ring.length - head);
+        System.arraycopy(bytes, offset, ring, head, first);
+        System.arraycopy(bytes, offset + first, ring, 0, length - first);
+        head = (head + length) % ring.length;
+        used += length;
+    }
+
+    /**
+     * The drain thread.
+     */
+    public void run() {
+        while (true) {
+            int start;
+            int length;
+            boolean stop;
+            synchronized (this) {
+                if (!closed && used <= ring.length / 2) {
+                    try {
+                        wait(DRAIN_INTERVAL);
+                    } catch (InterruptedException ex) {
+                        // Drain now.
+                    }
+                }
+                length = used;
+                start = head - used;
+                if (start < 0)
+                    start += ring.length;
+                stop = closed;
+            }
+            if (length > 0)
+                write(start, length);
+            synchronized (this) {
+                used -= length;
+            }
+            long now = System.currentTimeMillis();
+            if (out != null && (stop || now - lastSync >= syncInterval)) {
+                try {
+                    out.getFD().sync();
+                } catch (IOException ex) {
+                    // Best effort.
+                }
+                lastSync = now;
+            }
+            if (out != null && maxFileAge > 0 && now - fileOpened >= maxFileAge
+                    && fileSize > fileHeader.length) {
+                try {
+                    rollOver();
+                } catch (IOException ex) {
+                    logError(ex);
+                }
+            }
+            if (stop && length == 0)
+                break;
+        }
+        closeFile();
+    }
+
+    private void write(int start, int length) {
+        try {
+            if (out == null)
+                openFile();
+            int first = Math.min(length, ring.length - start);
+            out.write(ring, start, first);
+            if (length > first)
+                out.write(ring, 0, length - first);
+            fileSize += length;
+            if (fileSize >= maxFileSize)
+                rollOver();
+        } catch (IOException ex) {
+            logError(ex);
+            closeFile();
+        }
+    }
+
+    private void openFile() throws IOException {
+        File file = new File(fileName);
+        boolean append = !overwrite;
+        out = new FileOutputStream(file, append);
+        fileSize = append ? file.length() : 0;
+        fileOpened = System.currentTimeMillis();
+        if (fileSize == 0) {
+            out.write(fileHeader);
+            fileSize = fileHeader.length;
+        }
+        // Later opens (after a roll over or an error) always append.
+        overwrite = false;
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // Ignore.
+            }
+            out = null;
+        }
+    }
+
+    private void rollOver() throws IOException {
+        out.getFD().sync();
+        closeFile();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File from = new File(fileName + "." + i);
+            if (from.exists()) {
+                File to = new File(fileName + "." + (i + 1));
+                to.delete();
+                from.renameTo(to);
+            }
+        }
+        File file = new File(fileName);
+        if (maxFiles > 0) {
+            File to = new File(fileName + ".1");
+            to.delete();
+            file.renameTo(to);
+        }
+        // The next write starts a new file.
+        overwrite = true;
+    }
+
+    private void logError(IOException ex) {
+        if (sipStack != null && sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logError("Could not write " + fileName, ex);
+    }
+}
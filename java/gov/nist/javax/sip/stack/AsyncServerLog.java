@@ -0,0 +1,315 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.ServerLoggerExt;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.message.SIPMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.sip.SipStack;
+
+/**
+ * Message trace logger that keeps the I/O threads off the disk. Select it by
+ * setting gov.nist.javax.sip.SERVER_LOGGER to this class.
+ * <p>
+ * Logging a message only copies its bytes (the bytes that went on the wire
+ * when the channel hands them over, see {@link ServerLoggerExt}) and a few
+ * fields into a preallocated ring buffer. A background thread drains the
+ * buffer to a binary trace file, rolls the file when it gets too big and
+ * syncs it to disk at most once per sync interval. When the buffer is full
+ * the message is dropped and counted rather than blocking the caller.
+ * <p>
+ * The following stack properties are read:
+ * <ul>
+ * <li>gov.nist.javax.sip.SERVER_LOG - the trace file. Nothing is logged if
+ * it is not set.</li>
+ * <li>gov.nist.javax.sip.SERVER_LOG_OVERWRITE - start a new file instead of
+ * appending to an existing one.</li>
+ * <li>gov.nist.javax.sip.LOG_MESSAGE_CONTENT - log message bodies.</li>
+ * <li>gov.nist.javax.sip.SERVER_LOG_BUFFER_SIZE - size of the ring buffer in
+ * bytes (default 4 MB).</li>
+ * <li>gov.nist.javax.sip.SERVER_LOG_MAX_FILE_SIZE - size in bytes at which
+ * the file is rolled over (default 64 MB).</li>
+ * <li>gov.nist.javax.sip.SERVER_LOG_MAX_FILES - number of rolled over files
+ * (file.1 being the most recent) to keep (default 5).</li>
+ * <li>gov.nist.javax.sip.SERVER_LOG_SYNC_INTERVAL - milliseconds between
+ * syncs of the file to disk (default 1000).</li>
+ * </ul>
+ * <p>
+ * A trace file starts with the 8 bytes SIPTRC01, followed by records made of
+ * (big endian): int length of the rest of the record, long time, byte flags
+ * (1 if the stack sent the message), then the from, to and status fields as
+ * an unsigned short length followed by ascii characters, then an int length
+ * followed by the message bytes. Run the main method of this class on a
+ * trace file to print it.
+ *
+ * @since 2.0
+ */
+public class AsyncServerLog implements ServerLoggerExt {
+
+    private static final byte[] FILE_MAGIC = { 'S', 'I', 'P', 'T', 'R', 'C',
+            '0', '1' };
+
+    private static final int FLAG_SENDER = 1;
+
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+    private static final int DEFAULT_MAX_FILES = 5;
+
+    private static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    private SIPTransactionStack sipStack;
+
+    private StackLogger stackLogger;
+
+    private boolean logContent;
+
+    /*
+     * Null until a trace file is configured.
+     */
+    private volatile AsyncFileWriter writer;
+
+    public AsyncServerLog() {
+    }
+
+    public void setSipStack(SipStack sipStack) {
+        if (sipStack instanceof SIPTransactionStack) {
+            this.sipStack = (SIPTransactionStack) sipStack;
+            this.stackLogger = this.sipStack.getStackLogger();
+        } else
+            throw new IllegalArgumentException("sipStack must be a SIPTransactionStack");
+    }
+
+    public void setStackProperties(Properties configurationProperties) {
+        String logFileName = configurationProperties
+                .getProperty("gov.nist.javax.sip.SERVER_LOG");
+        boolean overwrite = Boolean.valueOf(configurationProperties
+                .getProperty("gov.nist.javax.sip.SERVER_LOG_OVERWRITE"));
+        this.logContent = "true".equals(configurationProperties
+                .getProperty("gov.nist.javax.sip.LOG_MESSAGE_CONTENT"));
+        int bufferSize;
+        long maxFileSize;
+        int maxFiles;
+        long syncInterval;
+        try {
+            bufferSize = Integer.parseInt(configurationProperties.getProperty(
+                    "gov.nist.javax.sip.SERVER_LOG_BUFFER_SIZE", String
+                            .valueOf(DEFAULT_BUFFER_SIZE)));
+            maxFileSize = Long.parseLong(configurationProperties
+                    .getProperty("gov.nist.javax.sip.SERVER_LOG_MAX_FILE_SIZE",
+                            String.valueOf(DEFAULT_MAX_FILE_SIZE)));
+            maxFiles = Integer.parseInt(configurationProperties
+                    .getProperty("gov.nist.javax.sip.SERVER_LOG_MAX_FILES",
+                            String.valueOf(DEFAULT_MAX_FILES)));
+            syncInterval = Long.parseLong(configurationProperties
+                    .getProperty("gov.nist.javax.sip.SERVER_LOG_SYNC_INTERVAL",
+                            String.valueOf(DEFAULT_SYNC_INTERVAL)));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad AsyncServerLog property", ex);
+        }
+        if (bufferSize < 1024)
+            throw new IllegalArgumentException(
+                    "gov.nist.javax.sip.SERVER_LOG_BUFFER_SIZE is too small");
+
+        if (logFileName == null)
+            return;
+        synchronized (this) {
+            if (writer != null)
+                return;
+            AsyncFileWriter asyncFileWriter = new AsyncFileWriter(sipStack,
+                    logFileName, FILE_MAGIC, bufferSize, overwrite, maxFileSize,
+                    0, maxFiles, syncInterval);
+            asyncFileWriter.start("AsyncServerLog");
+            writer = asyncFileWriter;
+        }
+    }
+
+    /**
+     * Stop the drain thread after it has written out what is in the buffer and
+     * close the file.
+     */
+    public void closeLogFile() {
+        AsyncFileWriter asyncFileWriter = writer;
+        if (asyncFileWriter != null)
+            asyncFileWriter.close();
+    }
+
+    public void logMessage(SIPMessage message, byte[] encoded, String from,
+            String to, boolean sender, long time) {
+        int length = encoded.length;
+        if (!logContent) {
+            // Headers only, like SIPMessage.encodeMessage()
+            for (int i = 0; i + 3 < encoded.length; i++) {
+                if (encoded[i] == '\r' && encoded[i + 1] == '\n'
+                        && encoded[i + 2] == '\r' && encoded[i + 3] == '\n') {
+                    length = i + 4;
+                    break;
+                }
+            }
+        }
+        append(time, sender, from, to, null, encoded, length);
+    }
+
+    public void logMessage(SIPMessage message, String from, String to,
+            boolean sender, long time) {
+        logMessage(message, from, to, null, sender, time);
+    }
+
+    public void logMessage(SIPMessage message, String from, String to,
+            String status, boolean sender, long time) {
+        if (writer == null || message.getFirstLine() == null)
+            return;
+        String text = logContent ? message.encode() : message.encodeMessage();
+        byte[] bytes;
+        try {
+            bytes = text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            bytes = text.getBytes();
+        }
+        append(time, sender, from, to, status, bytes, bytes.length);
+    }
+
+    public void logMessage(SIPMessage message, String from, String to,
+            String status, boolean sender) {
+        logMessage(message, from, to, status, sender, System.currentTimeMillis());
+    }
+
+    public void logException(Exception ex) {
+        if (sipStack != null && sipStack.isLoggingEnabled())
+            stackLogger.logException(ex);
+    }
+
+    /**
+     * @return the number of messages dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        AsyncFileWriter asyncFileWriter = writer;
+        return asyncFileWriter == null ? 0 : asyncFileWriter.getDroppedCount();
+    }
+
+    /**
+     * @return the number of messages copied to the buffer.
+     */
+    public long getLoggedCount() {
+        AsyncFileWriter asyncFileWriter = writer;
+        return asyncFileWriter == null ? 0 : asyncFileWriter.getWrittenCount();
+    }
+
+    private void append(long time, boolean sender, String from, String to,
+            String status, byte[] message, int length) {
+        AsyncFileWriter asyncFileWriter = writer;
+        if (asyncFileWriter == null)
+            return;
+        int recordLength = 8 + 1 + fieldLength(from) + fieldLength(to)
+                + fieldLength(status) + 4 + length;
+        synchronized (asyncFileWriter) {
+            if (!asyncFileWriter.reserve(4 + recordLength))
+                return;
+            asyncFileWriter.putInt(recordLength);
+            asyncFileWriter.putLong(time);
+            asyncFileWriter.putByte(sender ? FLAG_SENDER : 0);
+            putField(asyncFileWriter, from);
+            putField(asyncFileWriter, to);
+            putField(asyncFileWriter, status);
+            asyncFileWriter.putInt(length);
+            asyncFileWriter.put(message, 0, length);
+            asyncFileWriter.commit();
+        }
+    }
+
+    private static int fieldLength(String field) {
+        return 2 + (field == null ? 0 : Math.min(field.length(), 0xffff));
+    }
+
+    private static void putField(AsyncFileWriter asyncFileWriter, String field) {
+        int length = fieldLength(field) - 2;
+        asyncFileWriter.putShort(length);
+        for (int i = 0; i < length; i++) {
+            char ch = field.charAt(i);
+            asyncFileWriter.putByte(ch < 0x80 ? ch : '?');
+        }
+    }
+
+    /**
+     * Print a trace file written by this logger.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: AsyncServerLog traceFile");
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(args[0])));
+        try {
+            byte[] magic = new byte[FILE_MAGIC.length];
+            in.readFully(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != FILE_MAGIC[i])
+                    throw new IOException(args[0] + " is not a trace file");
+            }
+            while (true) {
+                try {
+                    in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                long time = in.readLong();
+                int flags = in.readByte();
+                String from = readField(in);
+                String to = readField(in);
+                String status = readField(in);
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                System.out.println(new Date(time) + " " + from + " -> " + to
+                        + ((flags & FLAG_SENDER) != 0 ? " sent" : " received")
+                        + (status.length() == 0 ? "" : " " + status));
+                System.out.println(new String(message, "UTF-8"));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readField(DataInputStream in) throws IOException {
+        byte[] field = new byte[in.readUnsignedShort()];
+        in.readFully(field);
+        return new String(field, "US-ASCII");
+    }
+}
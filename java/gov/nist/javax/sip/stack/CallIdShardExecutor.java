@@ -0,0 +1,140 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A fixed set of single threaded executors. Work is assigned to a shard by
+ * the hash of its Call-ID, so everything that happens to a call (its dialog
+ * and all of its transactions) runs in order on one thread. The stack uses
+ * this when the gov.nist.javax.sip.CALL_ID_SHARDS property is set.
+ */
+public class CallIdShardExecutor {
+
+    private final ExecutorService[] shards;
+
+    private final Thread[] shardThreads;
+
+    /**
+     * Create the executor and its threads.
+     *
+     * @param nshards -- number of shards (threads).
+     */
+    public CallIdShardExecutor(int nshards) {
+        this(nshards, "CallIdShardThread-");
+    }
+
+    /**
+     * Create the executor and its threads. Any string that must keep its work
+     * in order can serve as the key, not only a Call-ID.
+     *
+     * @param nshards -- number of shards (threads).
+     * @param threadName -- prefix of the names of the threads.
+     */
+    public CallIdShardExecutor(int nshards, final String threadName) {
+        this.shards = new ExecutorService[nshards];
+        this.shardThreads = new Thread[nshards];
+        for (int i = 0; i < nshards; i++) {
+            final int index = i;
+            shards[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName(threadName + index);
+                    thread.setDaemon(true);
+                    shardThreads[index] = thread;
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the shard that owns a given Call-ID.
+     */
+    private int getShard(String callId) {
+        return (callId.hashCode() & 0x7fffffff) % shards.length;
+    }
+
+    /**
+     * Run a task on the shard that owns the given Call-ID.
+     *
+     * @param callId -- the call id of the message or event.
+     * @param task -- the work to do.
+     */
+    public void execute(String callId, Runnable task) {
+        shards[getShard(callId)].execute(task);
+    }
+
+    /**
+     * Return true if the calling thread is one of the shard threads.
+     */
+    public boolean isShardThread() {
+        Thread current = Thread.currentThread();
+        for (int i = 0; i < shardThreads.length; i++) {
+            if (shardThreads[i] == current)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the calling thread is the shard thread that owns the
+     * given Call-ID.
+     */
+    public boolean isShardThread(String callId) {
+        return shardThreads[getShard(callId)] == Thread.currentThread();
+    }
+
+    /**
+     * Get the number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Return true once the shards are stopped and refuse new work.
+     */
+    public boolean isShutdown() {
+        return shards[0].isShutdown();
+    }
+
+    /**
+     * Stop the shard threads. Pending work is discarded.
+     */
+    public void shutdown() {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].shutdownNow();
+        }
+    }
+
+}
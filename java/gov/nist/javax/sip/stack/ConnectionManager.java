@@ -0,0 +1,367 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.header.Contact;
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.timers.SipTimer;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.header.ContactHeader;
+
+/**
+ * Keeps track of the stream (TCP and TLS) connections of the stack.
+ * <p>
+ * The channels note the time of the last bytes read and written on their
+ * connection. Once a second a task on the stack timer goes over the open
+ * connections and:
+ * <ul>
+ * <li>closes the connections that have been idle for longer than the idle
+ * timeout, if there is one;</li>
+ * <li>sends an RFC 5626 double CRLF keep-alive ping on the outbound flows
+ * that are due for one, and closes the flows that did not get anything back
+ * within the keep-alive timeout.</li>
+ * </ul>
+ * A flow is outbound once a REGISTER with a reg-id Contact parameter got a
+ * 2xx over it, or if the application asked for keep-alives on it. Pings
+ * are sent every 80 to 100 percent of the Flow-Timer of the registrar, or
+ * of the keep-alive interval of the stack. Any bytes received count as the
+ * pong. Pings received from peers are answered by the channels with a
+ * single CRLF.
+ * <p>
+ * When the stack has a connection limit, opening a connection beyond it
+ * closes the least recently used one instead of turning the new one away.
+ * Outbound flows are only closed if nothing else is left.
+ *
+ * @since 2.0
+ */
+public class ConnectionManager {
+
+    private static final long SWEEP_PERIOD = 1000;
+
+    private static final byte[] PING = { '\r', '\n', '\r', '\n' };
+
+    /**
+     * The single CRLF that answers a ping.
+     */
+    static final byte[] PONG = { '\r', '\n' };
+
+    private final SIPTransactionStack sipStack;
+
+    /**
+     * Milliseconds, 0 to keep idle connections open.
+     */
+    private final long idleTimeout;
+
+    private final long keepAliveInterval;
+
+    private final long keepAliveTimeout;
+
+    private final ConcurrentHashMap<MessageChannel, MessageChannel> connections = new ConcurrentHashMap<MessageChannel, MessageChannel>();
+
+    private final ConcurrentHashMap<MessageChannel, Flow> flows = new ConcurrentHashMap<MessageChannel, Flow>();
+
+    private final Random random = new Random();
+
+    private final AtomicLong idleClosed = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    private final AtomicLong keepAliveFailures = new AtomicLong();
+
+    /**
+     * The keep-alive state of an outbound flow. Only the sweep task changes
+     * nextPing and pingSent.
+     */
+    static final class Flow {
+        volatile long interval;
+
+        long nextPing;
+
+        long pingSent;
+
+        Flow(long interval) {
+            this.interval = interval;
+        }
+    }
+
+    /**
+     * @param sipStack -- the stack.
+     * @param idleTimeout -- milliseconds without traffic after which a
+     *        connection is closed, 0 to keep idle connections open.
+     * @param keepAliveInterval -- milliseconds between keep-alives on outbound
+     *        flows when the registrar gave no Flow-Timer.
+     * @param keepAliveTimeout -- milliseconds to wait for the answer to a
+     *        keep-alive.
+     */
+    public ConnectionManager(SIPTransactionStack sipStack, long idleTimeout,
+            long keepAliveInterval, long keepAliveTimeout) {
+        if (idleTimeout < 0 || keepAliveInterval <= 0 || keepAliveTimeout <= 0)
+            throw new IllegalArgumentException("Bad connection timeouts");
+        this.sipStack = sipStack;
+        this.idleTimeout = idleTimeout;
+        this.keepAliveInterval = keepAliveInterval;
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Schedule the sweep on a newly started stack timer.
+     */
+    void start(SipTimer timer) {
+        timer.scheduleWithFixedDelay(new SIPStackTimerTask() {
+            protected void runTask() {
+                sweep(System.currentTimeMillis());
+            }
+        }, SWEEP_PERIOD, SWEEP_PERIOD);
+    }
+
+    /**
+     * Called by a channel when its connection is up. Makes room for it if
+     * the stack is at its connection limit.
+     */
+    public void connectionOpened(MessageChannel channel) {
+        channel.connectionActivity(true);
+        if (connections.put(channel, channel) != null)
+            return;
+        int maxConnections = sipStack.maxConnections;
+        while (maxConnections > 0 && connections.size() > maxConnections) {
+            MessageChannel victim = leastRecentlyUsed(channel);
+            if (victim == null)
+                break;
+            if (connections.remove(victim) == null)
+                continue;
+            flows.remove(victim);
+            evicted.incrementAndGet();
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug(
+                        "Connection limit reached -- closing " + victim.getKey());
+            victim.close();
+        }
+    }
+
+    /**
+     * Called by a channel when its connection went away.
+     */
+    public void connectionClosed(MessageChannel channel) {
+        connections.remove(channel);
+        flows.remove(channel);
+    }
+
+    /**
+     * The connection with the oldest traffic, preferring connections that
+     * are not outbound flows.
+     */
+    private MessageChannel leastRecentlyUsed(MessageChannel exclude) {
+        MessageChannel lru = null;
+        MessageChannel lruFlow = null;
+        for (MessageChannel channel : connections.keySet()) {
+            if (channel == exclude)
+                continue;
+            if (flows.containsKey(channel)) {
+                if (lruFlow == null || channel.lastActivity < lruFlow.lastActivity)
+                    lruFlow = channel;
+            } else if (lru == null || channel.lastActivity < lru.lastActivity) {
+                lru = channel;
+            }
+        }
+        return lru != null ? lru : lruFlow;
+    }
+
+    /**
+     * Send keep-alives on a connection.
+     *
+     * @param channel -- the channel of the connection.
+     * @param interval -- seconds between keep-alives, 0 for the keep-alive
+     *        interval of the stack, -1 to stop sending keep-alives.
+     */
+    public void setKeepAlive(MessageChannel channel, int interval) {
+        if (interval < 0) {
+            if (flows.remove(channel) != null && sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Keep-alives stopped on " + channel.getKey());
+            return;
+        }
+        if (!channel.isReliable())
+            throw new IllegalArgumentException("Keep-alives need a stream connection");
+        long millis = interval > 0 ? interval * 1000L : keepAliveInterval;
+        Flow flow = flows.get(channel);
+        if (flow != null) {
+            flow.interval = millis;
+            return;
+        }
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "Keep-alives every " + millis + " ms on " + channel.getKey());
+        flows.put(channel, new Flow(millis));
+    }
+
+    /**
+     * Start or stop keep-alives on the flow of a REGISTER that got a 2xx. Only REGISTERs that carry a reg-id (RFC 5626 outbound
+     * registrations) are looked at.
+     *
+     * @param request -- the REGISTER.
+     * @param response -- its final response, failures leave the flow as it is.
+     * @param channel -- the channel the REGISTER went out on.
+     */
+    public void registerResponse(SIPRequest request, SIPResponse response,
+            MessageChannel channel) {
+        int statusCode = response.getStatusCode();
+        if (statusCode < 200 || statusCode >= 300 || channel == null || !channel.isReliable())
+            return;
+        Contact contact = (Contact) request.getHeader(ContactHeader.NAME);
+        if (contact == null)
+            return;
+        if (contact.isWildCard()) {
+            this.setKeepAlive(channel, -1);
+            return;
+        }
+        if (contact.getParameter("reg-id") == null)
+            return;
+        int expires = contact.getExpires();
+        if (expires == -1 && request.getExpires() != null)
+            expires = request.getExpires().getExpires();
+        if (expires == 0) {
+            this.setKeepAlive(channel, -1);
+            return;
+        }
+        int flowTimer = 0;
+        SIPHeader header = (SIPHeader) response.getHeader("Flow-Timer");
+        if (header != null) {
+            try {
+                flowTimer = Integer.parseInt(header.getHeaderValue().trim());
+            } catch (NumberFormatException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug("Bad Flow-Timer " + header);
+            }
+        }
+        if (connections.containsKey(channel))
+            this.setKeepAlive(channel, flowTimer > 0 ? flowTimer : 0);
+    }
+
+    /**
+     * Close idle connections and run the keep-alives.
+     */
+    void sweep(long now) {
+        for (MessageChannel channel : connections.keySet()) {
+            Flow flow = flows.get(channel);
+            if (flow != null) {
+                this.keepAlive(channel, flow, now);
+            } else if (idleTimeout > 0 && now - channel.lastActivity > idleTimeout) {
+                if (connections.remove(channel) == null)
+                    continue;
+                idleClosed.incrementAndGet();
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug("Closing idle connection " + channel.getKey());
+                channel.close();
+            }
+        }
+    }
+
+    private void keepAlive(MessageChannel channel, Flow flow, long now) {
+        if (flow.pingSent != 0) {
+            if (channel.lastReceived >= flow.pingSent) {
+                flow.pingSent = 0;
+                flow.nextPing = now + jitter(flow.interval);
+            } else if (now - flow.pingSent > keepAliveTimeout) {
+                this.flowFailed(channel, "no answer to keep-alive");
+            }
+            return;
+        }
+        if (flow.nextPing == 0) {
+            flow.nextPing = now + jitter(flow.interval);
+        } else if (now >= flow.nextPing) {
+            try {
+                channel.sendKeepAlive(PING);
+                flow.pingSent = now;
+            } catch (IOException ex) {
+                this.flowFailed(channel, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Somewhere between 80 and 100 percent of the interval (RFC 5626 4.4.1).
+     */
+    private long jitter(long interval) {
+        synchronized (random) {
+            return interval - (long) (interval * 0.2 * random.nextDouble());
+        }
+    }
+
+    private void flowFailed(MessageChannel channel, String reason) {
+        keepAliveFailures.incrementAndGet();
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "Outbound flow " + channel.getKey() + " failed -- " + reason);
+        this.connectionClosed(channel);
+        channel.close();
+    }
+
+    /**
+     * @return the number of open stream connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return the number of connections that send keep-alives.
+     */
+    public int getOutboundFlowCount() {
+        return flows.size();
+    }
+
+    /**
+     * @return the number of connections closed for being idle.
+     */
+    public long getIdleClosed() {
+        return idleClosed.get();
+    }
+
+    /**
+     * @return the number of connections closed to stay within the
+     *         connection limit.
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return the number of outbound flows closed because a keep-alive got
+     *         no answer.
+     */
+    public long getKeepAliveFailures() {
+        return keepAliveFailures.get();
+    }
+}
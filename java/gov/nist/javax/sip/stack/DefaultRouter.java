@@ -298,10 +298,11 @@ public class DefaultRouter implements Router {
 
         // sipUri.removeParameter("transport");
 
-        int port;
-        if (sipUri.getPort() != -1) {
-            port = sipUri.getPort();
-        } else {
+        // Without a port the resolvers of the stack may look for SRV records
+        // (RFC 3263). Resolvers set by the application get the default port,
+        // as they always did.
+        int port = sipUri.getPort();
+        if (port == -1 && !this.sipStack.hasStackAddressResolver()) {
             if (transport.equalsIgnoreCase(SIPConstants.TLS))
                 port = 5061;
             else
@@ -310,8 +311,16 @@ public class DefaultRouter implements Router {
         String host = sipUri.getMAddrParam() != null ? sipUri.getMAddrParam()
                 : sipUri.getHost();
         AddressResolver addressResolver = this.sipStack.getAddressResolver();
-        return addressResolver
+        Hop hop = addressResolver
                 .resolveAddress(new HopImpl(host, port, transport));
+        if (hop.getPort() == -1) {
+            if (transport.equalsIgnoreCase(SIPConstants.TLS))
+                port = 5061;
+            else
+                port = 5060; // TCP or UDP
+            hop = new HopImpl(hop.getHost(), port, hop.getTransport());
+        }
+        return hop;
 
     }
 
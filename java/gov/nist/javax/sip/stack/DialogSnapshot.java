@@ -0,0 +1,325 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.address.AddressImpl;
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.CallID;
+import gov.nist.javax.sip.header.Contact;
+import gov.nist.javax.sip.header.ContactList;
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.Route;
+import gov.nist.javax.sip.header.RouteList;
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.AddressParser;
+import gov.nist.javax.sip.parser.ParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Iterator;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.address.Address;
+import javax.sip.header.EventHeader;
+
+/**
+ * The state of a confirmed dialog in the compact binary form that is written
+ * to a {@link gov.nist.javax.sip.stack.replication.DialogStore}. It holds what
+ * RFC 3261 section 12 calls the dialog state (the Call-ID, the tags, the
+ * local and remote URIs, the CSeq numbers, the remote target, the route set
+ * and the secure flag) plus what the stack needs to send and match requests in
+ * the dialog after it has been restored on another node. Headers and
+ * addresses are kept in their encoded form, so a snapshot is a few hundred
+ * bytes.
+ * <p>
+ * The first byte is the format version. A snapshot of another version is
+ * rejected when decoded; fields are only ever added at the end, with the
+ * version bumped.
+ *
+ * @since 2.0
+ */
+final class DialogSnapshot {
+
+    static final int VERSION = 1;
+
+    String dialogId;
+
+    String callId;
+
+    String method;
+
+    String localTag;
+
+    String remoteTag;
+
+    String localParty;
+
+    String remoteParty;
+
+    String remoteTarget;
+
+    String routeSet;
+
+    long localSequenceNumber;
+
+    long remoteSequenceNumber;
+
+    long originalLocalSequenceNumber;
+
+    int state;
+
+    boolean server;
+
+    boolean secure;
+
+    boolean terminateOnBye;
+
+    String transport;
+
+    String firstTransactionMethod;
+
+    String firstTransactionId;
+
+    int firstTransactionPort;
+
+    String eventHeader;
+
+    String contactHeader;
+
+    byte[] applicationData;
+
+    private DialogSnapshot() {
+    }
+
+    /**
+     * Take a snapshot of a dialog.
+     *
+     * @param dialog -- the dialog, which must have a dialog id and a last
+     *        response.
+     * @param applicationData -- the serialized application data or null.
+     */
+    DialogSnapshot(SIPDialog dialog, byte[] applicationData) {
+        this.dialogId = dialog.getDialogId();
+        this.callId = dialog.getCallId().getCallId();
+        this.method = dialog.getMethod();
+        this.localTag = dialog.getLocalTag();
+        this.remoteTag = dialog.getRemoteTag();
+        this.localParty = encode(dialog.getLocalParty());
+        this.remoteParty = encode(dialog.getRemoteParty());
+        this.remoteTarget = encode(dialog.getRemoteTarget());
+        RouteList routeList = new RouteList();
+        for (Iterator<?> it = dialog.getRouteSet(); it.hasNext();)
+            routeList.add((Route) it.next());
+        this.routeSet = routeList.isEmpty() ? null : routeList.encode();
+        this.localSequenceNumber = dialog.getLocalSeqNumber();
+        this.remoteSequenceNumber = dialog.getRemoteSeqNumber();
+        this.originalLocalSequenceNumber = dialog.getOriginalLocalSequenceNumber();
+        this.state = dialog.getState().getValue();
+        this.server = dialog.isServer();
+        this.secure = dialog.isSecure();
+        this.terminateOnBye = dialog.isTerminatedOnBye();
+        this.transport = dialog.getLastResponse().getTopmostVia().getTransport();
+        this.firstTransactionMethod = dialog.firstTransactionMethod;
+        this.firstTransactionId = dialog.firstTransactionId;
+        this.firstTransactionPort = dialog.firstTransactionPort;
+        EventHeader event = dialog.getEventHeader();
+        this.eventHeader = event == null ? null : ((SIPHeader) event).encode();
+        Contact contact = dialog.getMyContactHeader();
+        this.contactHeader = contact == null ? null : contact.encode();
+        this.applicationData = applicationData;
+    }
+
+    /**
+     * Encode the snapshot.
+     */
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeUTF(dialogId);
+        out.writeUTF(callId);
+        writeString(out, method);
+        writeString(out, localTag);
+        writeString(out, remoteTag);
+        writeString(out, localParty);
+        writeString(out, remoteParty);
+        writeString(out, remoteTarget);
+        writeString(out, routeSet);
+        out.writeLong(localSequenceNumber);
+        out.writeLong(remoteSequenceNumber);
+        out.writeLong(originalLocalSequenceNumber);
+        out.writeInt(state);
+        out.writeBoolean(server);
+        out.writeBoolean(secure);
+        out.writeBoolean(terminateOnBye);
+        out.writeUTF(transport);
+        writeString(out, firstTransactionMethod);
+        writeString(out, firstTransactionId);
+        out.writeInt(firstTransactionPort);
+        writeString(out, eventHeader);
+        writeString(out, contactHeader);
+        if (applicationData == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(applicationData.length);
+            out.write(applicationData);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a snapshot written by {@link #encode()}.
+     *
+     * @throws IOException if the snapshot is truncated or of another version.
+     */
+    static DialogSnapshot decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported dialog snapshot version " + version);
+        DialogSnapshot snapshot = new DialogSnapshot();
+        snapshot.dialogId = in.readUTF();
+        snapshot.callId = in.readUTF();
+        snapshot.method = readString(in);
+        snapshot.localTag = readString(in);
+        snapshot.remoteTag = readString(in);
+        snapshot.localParty = readString(in);
+        snapshot.remoteParty = readString(in);
+        snapshot.remoteTarget = readString(in);
+        snapshot.routeSet = readString(in);
+        snapshot.localSequenceNumber = in.readLong();
+        snapshot.remoteSequenceNumber = in.readLong();
+        snapshot.originalLocalSequenceNumber = in.readLong();
+        snapshot.state = in.readInt();
+        snapshot.server = in.readBoolean();
+        snapshot.secure = in.readBoolean();
+        snapshot.terminateOnBye = in.readBoolean();
+        snapshot.transport = in.readUTF();
+        snapshot.firstTransactionMethod = readString(in);
+        snapshot.firstTransactionId = readString(in);
+        snapshot.firstTransactionPort = in.readInt();
+        snapshot.eventHeader = readString(in);
+        snapshot.contactHeader = readString(in);
+        int length = in.readInt();
+        if (length >= 0) {
+            snapshot.applicationData = new byte[length];
+            in.readFully(snapshot.applicationData);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Build the response a restored dialog creates its requests from. Only
+     * the headers that SIPResponse.createRequest copies or looks at are
+     * present: the From and To of the request that created the dialog, the
+     * Call-ID, the CSeq and a Via with the transport of the dialog.
+     */
+    SIPResponse createLastResponse() throws ParseException {
+        SIPResponse response = new SIPResponse();
+        response.setStatusCode(200);
+        response.setReasonPhrase("OK");
+        CallID callIdHeader = new CallID();
+        callIdHeader.setCallId(callId);
+        response.setHeader(callIdHeader);
+        From from = new From();
+        To to = new To();
+        if (server) {
+            from.setAddress(parseAddress(remoteParty));
+            if (remoteTag != null)
+                from.setTag(remoteTag);
+            to.setAddress(parseAddress(localParty));
+            if (localTag != null)
+                to.setTag(localTag);
+        } else {
+            from.setAddress(parseAddress(localParty));
+            if (localTag != null)
+                from.setTag(localTag);
+            to.setAddress(parseAddress(remoteParty));
+            if (remoteTag != null)
+                to.setTag(remoteTag);
+        }
+        response.setHeader(from);
+        response.setHeader(to);
+        CSeq cseq = new CSeq();
+        try {
+            cseq.setSeqNumber(server ? remoteSequenceNumber : originalLocalSequenceNumber);
+        } catch (InvalidArgumentException ex) {
+            throw new ParseException(ex.getMessage(), 0);
+        }
+        cseq.setMethod(method);
+        response.setHeader(cseq);
+        Via via = new Via();
+        via.setTransport(transport);
+        response.setHeader(via);
+        return response;
+    }
+
+    static AddressImpl parseAddress(String address) throws ParseException {
+        return address == null ? null : new AddressParser(address).address(true);
+    }
+
+    static SIPHeader parseHeader(String header) throws ParseException {
+        if (header == null)
+            return null;
+        // The header parsers expect a single LF at the end.
+        return ParserFactory.createParser(header.trim() + "\n").parse();
+    }
+
+    /**
+     * Parse the encoded Contact header of the dialog.
+     */
+    Contact parseContactHeader() throws ParseException {
+        SIPHeader header = parseHeader(contactHeader);
+        if (header instanceof ContactList)
+            return (Contact) ((ContactList) header).getFirst();
+        return (Contact) header;
+    }
+
+    private static String encode(Address address) {
+        return address == null ? null : ((AddressImpl) address).encode();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -32,6 +32,10 @@ public class HandshakeCompletedListenerImpl implements HandshakeCompletedListene
         tlsMessageChannel.setHandshakeCompletedListener(this);
     }
 
+    public HandshakeCompletedListenerImpl(NioTlsMessageChannel nioTlsMessageChannel) {
+        nioTlsMessageChannel.setHandshakeCompletedListener(this);
+    }
+
     
     public void handshakeCompleted(HandshakeCompletedEvent handshakeCompletedEvent) {
        this.handshakeCompletedEvent = handshakeCompletedEvent;
@@ -34,9 +34,16 @@ import gov.nist.javax.sip.SipStackImpl;
 import java.io.*;
 import java.net.*;
 import java.util.Enumeration;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLSocket;
@@ -59,7 +66,18 @@ import javax.net.ssl.SSLSocket;
 
 class IOHandler {
 
-    private Semaphore ioSemaphore = new Semaphore(1);
+    /*
+     * One lock per destination (host:port). Senders to the same destination are serialized so
+     * that only one connection gets created, senders to different destinations proceed in
+     * parallel.
+     */
+    private ConcurrentHashMap<String, Semaphore> socketCreationMap;
+
+    /*
+     * Connects (and TLS handshakes) are run here so that the sending thread can give up after
+     * the stack connect timeout.
+     */
+    private ExecutorService connectExecutor;
 
     private SipStackImpl sipStack;
 
@@ -80,6 +98,15 @@ class IOHandler {
     protected IOHandler(SIPTransactionStack sipStack) {
         this.sipStack = (SipStackImpl) sipStack;
         this.socketTable = new ConcurrentHashMap<String, Socket>();
+        this.socketCreationMap = new ConcurrentHashMap<String, Semaphore>();
+        this.connectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName("IOHandlerConnectThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
 
     }
 
@@ -94,6 +121,174 @@ class IOHandler {
 
     protected void removeSocket(String key) {
         socketTable.remove(key);
+        removeLock(key);
+    }
+
+    /**
+     * Remove a closed socket, unless the key maps to another one by now.
+     */
+    protected void removeSocket(String key, Socket sock) {
+        if (socketTable.remove(key, sock))
+            removeLock(key);
+    }
+
+    /**
+     * Drop the lock of a destination that has no socket any more, unless a sender holds it.
+     * A sender that was waiting for the dropped lock finds out in acquireLock and takes the
+     * current one instead.
+     */
+    private void removeLock(String key) {
+        Semaphore lock = socketCreationMap.get(key);
+        if (lock != null && lock.tryAcquire()) {
+            socketCreationMap.remove(key, lock);
+            lock.release();
+        }
+    }
+
+    /**
+     * Acquire the lock for the given destination key. Senders to the destination wait for
+     * each other at most the stack connect timeout ( 0 waits forever ).
+     */
+    private Semaphore acquireLock(String key) throws IOException {
+        int timeout = sipStack.getConnectTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            Semaphore lock = socketCreationMap.get(key);
+            if (lock == null) {
+                Semaphore newLock = new Semaphore(1);
+                lock = socketCreationMap.putIfAbsent(key, newLock);
+                if (lock == null)
+                    lock = newLock;
+            }
+            try {
+                if (timeout > 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait < 0 || !lock.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                        throw new IOException("Could not acquire IO Semaphore for " + key
+                                + " after " + timeout + " ms -- giving up ");
+                    }
+                } else {
+                    lock.acquire();
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException("exception in acquiring sem");
+            }
+            if (socketCreationMap.get(key) == lock)
+                return lock;
+            // The lock was dropped with the socket while we waited.
+            lock.release();
+        }
+    }
+
+    /**
+     * Creates the socket to the destination in the connect executor and waits at most the stack
+     * connect timeout for it. A connection that completes after we gave up is closed.
+     */
+    private Socket connect(InetAddress receiverAddress, int contactPort,
+            InetAddress senderAddress, String transport, MessageChannel messageChannel)
+            throws IOException {
+        ConnectTask task = new ConnectTask(receiverAddress, contactPort, senderAddress,
+                transport, messageChannel);
+        Future<Socket> future = connectExecutor.submit(task);
+        int timeout = sipStack.getConnectTimeout();
+        try {
+            if (timeout > 0)
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            else
+                return future.get();
+        } catch (TimeoutException ex) {
+            task.abandon();
+            throw new IOException("Timed out connecting to " + receiverAddress + ":"
+                    + contactPort);
+        } catch (InterruptedException ex) {
+            task.abandon();
+            throw new IOException("Interrupted connecting to " + receiverAddress + ":"
+                    + contactPort);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Could not connect to " + receiverAddress + ":"
+                    + contactPort + " " + cause);
+        }
+    }
+
+    /**
+     * Connect (and for TLS, handshake) with a destination.
+     */
+    class ConnectTask implements Callable<Socket> {
+        private InetAddress receiverAddress;
+
+        private int contactPort;
+
+        private InetAddress senderAddress;
+
+        private String transport;
+
+        private MessageChannel messageChannel;
+
+        private Socket socket;
+
+        private boolean abandoned;
+
+        ConnectTask(InetAddress receiverAddress, int contactPort, InetAddress senderAddress,
+                String transport, MessageChannel messageChannel) {
+            this.receiverAddress = receiverAddress;
+            this.contactPort = contactPort;
+            this.senderAddress = senderAddress;
+            this.transport = transport;
+            this.messageChannel = messageChannel;
+        }
+
+        public Socket call() throws IOException {
+            Socket clientSock;
+            if (transport.compareToIgnoreCase(TLS) == 0) {
+                clientSock = sipStack.getNetworkLayer().createSSLSocket(receiverAddress,
+                        contactPort, senderAddress);
+                SSLSocket sslsock = (SSLSocket) clientSock;
+                HandshakeCompletedListener listner = new HandshakeCompletedListenerImpl(
+                        (TLSMessageChannel) messageChannel);
+                ((TLSMessageChannel) messageChannel).setHandshakeCompletedListener(listner);
+                sslsock.addHandshakeCompletedListener(listner);
+                sslsock.setEnabledProtocols(sipStack.getEnabledProtocols());
+                try {
+                    sslsock.startHandshake();
+                } catch (IOException ex) {
+                    try {
+                        sslsock.close();
+                    } catch (IOException e) {
+                    }
+                    throw ex;
+                }
+            } else {
+                // note that the IP Address for stack may not be
+                // assigned.
+                // sender address is the address of the listening point.
+                // in version 1.1 all listening points have the same IP
+                // address (i.e. that of the stack). In version 1.2
+                // the IP address is on a per listening point basis.
+                clientSock = sipStack.getNetworkLayer().createSocket(receiverAddress,
+                        contactPort, senderAddress);
+            }
+            synchronized (this) {
+                if (!abandoned) {
+                    this.socket = clientSock;
+                    return clientSock;
+                }
+            }
+            clientSock.close();
+            return null;
+        }
+
+        synchronized void abandon() {
+            this.abandoned = true;
+            if (this.socket != null) {
+                try {
+                    this.socket.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
     }
 
     /**
@@ -134,12 +329,18 @@ class IOHandler {
             InetAddress localAddress, int localPort) throws IOException {
         String key = makeKey(dst, dstPort);
 
-        Socket clientSock = getSocket(key);
+        Semaphore lock = acquireLock(key);
+        Socket clientSock;
+        try {
+            clientSock = getSocket(key);
 
-        if (clientSock == null) {
-            clientSock = sipStack.getNetworkLayer().createSocket(dst, dstPort, localAddress,
-                    localPort);
-            putSocket(key, clientSock);
+            if (clientSock == null) {
+                clientSock = sipStack.getNetworkLayer().createSocket(dst, dstPort, localAddress,
+                        localPort);
+                putSocket(key, clientSock);
+            }
+        } finally {
+            lock.release();
         }
 
         return clientSock.getLocalSocketAddress();
@@ -176,15 +377,7 @@ class IOHandler {
             // This should be in a synchronized block ( reported by
             // Jayashenkhar ( lucent ).
 
-            try {
-                boolean retval = this.ioSemaphore.tryAcquire(10000, TimeUnit.MILLISECONDS); 
-                if (!retval) {
-                    throw new IOException(
-                            "Could not acquire IO Semaphore after 10 seconds -- giving up ");
-                }
-            } catch (InterruptedException ex) {
-                throw new IOException("exception in acquiring sem");
-            }
+            Semaphore lock = acquireLock(key);
             Socket clientSock = getSocket(key);
 
             try {
@@ -195,14 +388,8 @@ class IOHandler {
                             sipStack.getStackLogger().logDebug("inaddr = " + receiverAddress);
                             sipStack.getStackLogger().logDebug("port = " + contactPort);
                         }
-                        // note that the IP Address for stack may not be
-                        // assigned.
-                        // sender address is the address of the listening point.
-                        // in version 1.1 all listening points have the same IP
-                        // address (i.e. that of the stack). In version 1.2
-                        // the IP address is on a per listening point basis.
-                        clientSock = sipStack.getNetworkLayer().createSocket(receiverAddress,
-                                contactPort, senderAddress);
+                        clientSock = connect(receiverAddress, contactPort, senderAddress,
+                                transport, messageChannel);
                         OutputStream outputStream = clientSock.getOutputStream();
                         writeChunks(outputStream, bytes, length);
                         putSocket(key, clientSock);
@@ -229,7 +416,7 @@ class IOHandler {
                     }
                 }
             } finally {
-                ioSemaphore.release();
+                lock.release();
             }
 
             if (clientSock == null) {
@@ -249,13 +436,7 @@ class IOHandler {
             // Copied and modified from the former section for TCP
         } else if (transport.compareToIgnoreCase(TLS) == 0) {
             String key = makeKey(receiverAddress, contactPort);
-            try {
-                boolean retval = this.ioSemaphore.tryAcquire(10000, TimeUnit.MILLISECONDS);
-                if (!retval)
-                    throw new IOException("Timeout acquiring IO SEM");
-            } catch (InterruptedException ex) {
-                throw new IOException("exception in acquiring sem");
-            }
+            Semaphore lock = acquireLock(key);
             Socket clientSock = getSocket(key);
 
             try {
@@ -266,16 +447,8 @@ class IOHandler {
                             sipStack.getStackLogger().logDebug("port = " + contactPort);
                         }
 
-                        clientSock = sipStack.getNetworkLayer().createSSLSocket(receiverAddress,
-                                contactPort, senderAddress);
-                        SSLSocket sslsock = (SSLSocket) clientSock;
-                        HandshakeCompletedListener listner = new HandshakeCompletedListenerImpl(
-                                (TLSMessageChannel) messageChannel);
-                        ((TLSMessageChannel) messageChannel)
-                                .setHandshakeCompletedListener(listner);
-                        sslsock.addHandshakeCompletedListener(listner);
-                        sslsock.setEnabledProtocols(sipStack.getEnabledProtocols());
-                        sslsock.startHandshake();
+                        clientSock = connect(receiverAddress, contactPort, senderAddress,
+                                transport, messageChannel);
 
                         OutputStream outputStream = clientSock.getOutputStream();
                         writeChunks(outputStream, bytes, length);
@@ -302,7 +475,7 @@ class IOHandler {
                     }
                 }
             } finally {
-                ioSemaphore.release();
+                lock.release();
             }
             if (clientSock == null) {
                 throw new IOException("Could not connect to " + receiverAddress + ":"
@@ -334,6 +507,8 @@ class IOHandler {
             } catch (IOException ex) {
             }
         }
+        socketCreationMap.clear();
+        connectExecutor.shutdownNow();
 
     }
 
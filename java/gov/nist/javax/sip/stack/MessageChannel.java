@@ -33,6 +33,7 @@ import gov.nist.core.Host;
 import gov.nist.core.HostPort;
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.core.ServerLogger;
+import gov.nist.core.ServerLoggerExt;
 import gov.nist.javax.sip.address.AddressImpl;
 import gov.nist.javax.sip.header.ContentLength;
 import gov.nist.javax.sip.header.ContentType;
@@ -84,6 +85,14 @@ public abstract class MessageChannel {
      */
     protected transient MessageProcessor messageProcessor;
 
+    /**
+     * Times of the last bytes read or written and of the last bytes read on a stream
+     * connection, see ConnectionManager.
+     */
+    protected volatile long lastActivity;
+
+    protected volatile long lastReceived;
+
     /**
      * Close the message channel.
      */
@@ -168,6 +177,29 @@ public abstract class MessageChannel {
     protected abstract void sendMessage(byte[] message, InetAddress receiverAddress,
             int receiverPort, boolean reconnectFlag) throws IOException;
 
+    /**
+     * Note traffic on the connection of a stream channel.
+     * 
+     * @param received -- true for bytes read, false for bytes written.
+     */
+    protected void connectionActivity(boolean received) {
+        long now = System.currentTimeMillis();
+        this.lastActivity = now;
+        if (received)
+            this.lastReceived = now;
+    }
+
+    /**
+     * Write a keep-alive on the current connection of a stream channel. Does not open a new
+     * connection.
+     * 
+     * @param bytes -- the keep-alive.
+     * @throws IOException if the channel has no open connection.
+     */
+    protected void sendKeepAlive(byte[] bytes) throws IOException {
+        throw new IOException("Not a stream channel");
+    }
+
     /**
      * Get the host of this message channel.
      * 
@@ -198,7 +230,7 @@ public abstract class MessageChannel {
      */
     public void sendMessage(SIPMessage sipMessage, Hop hop) throws IOException {
         long time = System.currentTimeMillis();
-        InetAddress hopAddr = InetAddress.getByName(hop.getHost());
+        InetAddress hopAddr = getSIPStack().getInetAddress(hop.getHost());
 
         try {
 
@@ -217,9 +249,10 @@ public abstract class MessageChannel {
 
                 }
             }
-            byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+            byte[] msg = encode(sipMessage);
 
             this.sendMessage(msg, hopAddr, hop.getPort(), sipMessage instanceof SIPRequest);
+            messageSent(sipMessage);
 
         } catch (IOException ioe) {
             throw ioe;
@@ -245,10 +278,49 @@ public abstract class MessageChannel {
      */
     public void sendMessage(SIPMessage sipMessage, InetAddress receiverAddress, int receiverPort)
             throws IOException {
+        sendMessage(sipMessage, encode(sipMessage), receiverAddress,
+                receiverPort);
+    }
+
+    /**
+     * Send a message that has already been encoded for this channel, for example a
+     * retransmission whose encoding was kept by the transaction.
+     * 
+     * @param sipMessage is the message that was encoded (used for logging).
+     * @param bytes is the encoding of sipMessage for this channel's transport.
+     * @param receiverAddress is the address to which we want to send
+     * @param receiverPort is the port to which we want to send
+     */
+    public void sendMessage(SIPMessage sipMessage, byte[] bytes, InetAddress receiverAddress,
+            int receiverPort) throws IOException {
         long time = System.currentTimeMillis();
-        byte[] bytes = sipMessage.encodeAsBytes(this.getTransport());
         sendMessage(bytes, receiverAddress, receiverPort, sipMessage instanceof SIPRequest);
-        logMessage(sipMessage, receiverAddress, receiverPort, time);
+        messageSent(sipMessage);
+        logMessage(sipMessage, bytes, receiverAddress, receiverPort, time);
+    }
+
+    /**
+     * Encode a message for the transport of this channel. The time it took to encode it is
+     * counted in the stack metrics; the message itself is counted by messageSent once it has
+     * been written.
+     * 
+     * @param sipMessage is the message to send.
+     * @return the bytes to send.
+     */
+    protected byte[] encode(SIPMessage sipMessage) {
+        long start = System.nanoTime();
+        byte[] bytes = sipMessage.encodeAsBytes(this.getTransport());
+        getSIPStack().getStackMetrics().getEncodeTime().recordSince(start);
+        return bytes;
+    }
+
+    /**
+     * Count a message in the stack metrics after it has been written to the transport.
+     * 
+     * @param sipMessage is the message that was sent.
+     */
+    protected void messageSent(SIPMessage sipMessage) {
+        getSIPStack().getStackMetrics().messageSent(sipMessage);
     }
 
     /**
@@ -266,6 +338,25 @@ public abstract class MessageChannel {
         return rawIpSourceAddress;
     }
 
+    /**
+     * The hop a request says it came from in its top Via, with the default
+     * port of the transport if the Via has none. The resolvers of the stack
+     * do not look the name in the Via up: this runs on the threads reading
+     * the network, and the received parameter has to be added for a name
+     * anyway (RFC 3261 section 18.2.1). A resolver registered by the
+     * application is still consulted, as it always was. Responses are routed
+     * to the Via through the address resolver.
+     */
+    protected Hop getSentByHop(Via via) {
+        Hop hop = via.getHop();
+        if (!getSIPStack().hasStackAddressResolver())
+            hop = getSIPStack().getAddressResolver().resolveAddress(hop);
+        if (hop.getPort() != -1)
+            return hop;
+        return new HopImpl(hop.getHost(), MessageProcessor.getDefaultPort(hop.getTransport()),
+                hop.getTransport());
+    }
+
     /**
      * generate a key given the inet address port and transport.
      */
@@ -341,14 +432,34 @@ public abstract class MessageChannel {
      * @param port is the port to which the message is directed.
      */
     protected void logMessage(SIPMessage sipMessage, InetAddress address, int port, long time) {
+        logMessage(sipMessage, null, address, port, time);
+    }
+
+    /**
+     * Log a message sent to an address and port via the default interface. The bytes that were
+     * sent are handed to loggers implementing ServerLoggerExt so that they do not encode the
+     * message again.
+     * 
+     * @param sipMessage is the message to log.
+     * @param bytes is what was sent, or null if not known.
+     * @param address is the inet address to which the message is sent.
+     * @param port is the port to which the message is directed.
+     */
+    protected void logMessage(SIPMessage sipMessage, byte[] bytes, InetAddress address,
+            int port, long time) {
         if (!getSIPStack().getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
             return;
 
         // Default port.
         if (port == -1)
             port = 5060;
-        getSIPStack().serverLogger.logMessage(sipMessage, this.getHost() + ":" + this.getPort(),
-                address.getHostAddress().toString() + ":" + port, true, time);
+        ServerLogger serverLogger = getSIPStack().serverLogger;
+        String from = this.getHost() + ":" + this.getPort();
+        String to = address.getHostAddress().toString() + ":" + port;
+        if (bytes != null && serverLogger instanceof ServerLoggerExt)
+            ((ServerLoggerExt) serverLogger).logMessage(sipMessage, bytes, from, to, true, time);
+        else
+            serverLogger.logMessage(sipMessage, from, to, true, time);
     }
 
     /**
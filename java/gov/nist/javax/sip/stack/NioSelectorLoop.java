@@ -0,0 +1,286 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that multiplexes reads and writes for a set of non-blocking TCP
+ * connections. The NIO TCP message processor owns a small, fixed number of these loops and
+ * spreads its connections across them so that the thread count stays constant no matter how
+ * many peers are connected.
+ * 
+ * Registration and interest set changes requested by other threads are queued and run on the
+ * selector thread, since a channel may not be (re)registered while a select is in progress.
+ * 
+ * @see NioTcpMessageProcessor
+ * @see NioTcpMessageChannel
+ * 
+ */
+class NioSelectorLoop implements Runnable {
+
+    /*
+     * Size of the scratch buffer that every read on this loop goes through.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * How long a select may block before we look at the read timeouts again.
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /*
+     * Set on the selector threads of all the loops.
+     */
+    private static final ThreadLocal<NioSelectorLoop> currentLoop = new ThreadLocal<NioSelectorLoop>();
+
+    private Selector selector;
+
+    private SIPTransactionStack sipStack;
+
+    private ConcurrentLinkedQueue<Runnable> pendingTasks;
+
+    private ByteBuffer readBuffer;
+
+    private Thread thread;
+
+    private volatile boolean isRunning;
+
+    private String name;
+
+    private long lastTimeoutCheck;
+
+    protected NioSelectorLoop(SIPTransactionStack sipStack, String name) throws IOException {
+        this.sipStack = sipStack;
+        this.name = name;
+        this.selector = Selector.open();
+        this.pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Start the selector thread.
+     */
+    protected void start() {
+        this.isRunning = true;
+        this.thread = new Thread(this);
+        this.thread.setName(name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop the selector thread. The channels registered with this loop are closed by the loop
+     * as it exits.
+     */
+    protected void stop() {
+        this.isRunning = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Run a task on the selector thread.
+     * 
+     * @param task -- the task to run.
+     */
+    protected void invokeLater(Runnable task) {
+        this.pendingTasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Register a message channel with this loop.
+     * 
+     * @param channel -- the selectable channel of the connection.
+     * @param ops -- the initial interest set.
+     * @param messageChannel -- the message channel that handles the events.
+     */
+    protected void register(final SelectableChannel channel, final int ops,
+            final NioTcpMessageChannel messageChannel) {
+        invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    SelectionKey key = channel.register(selector, ops, messageChannel);
+                    messageChannel.setSelectionKey(key);
+                } catch (IOException ex) {
+                    if (sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logDebug(
+                                "Could not register " + messageChannel + " " + ex);
+                    messageChannel.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Change the interest set of a registered key.
+     * 
+     * @param key -- the selection key.
+     * @param ops -- the new interest set.
+     */
+    protected void setInterestOps(final SelectionKey key, final int ops) {
+        if (Thread.currentThread() == this.thread) {
+            if (key.isValid())
+                key.interestOps(ops);
+        } else {
+            invokeLater(new Runnable() {
+                public void run() {
+                    if (key.isValid())
+                        key.interestOps(ops);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true if the caller is running on this selector thread.
+     */
+    protected boolean isSelectorThread() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * @return true if the caller is running on the selector thread of any loop. Such a thread
+     *         must never wait for a connection, the loop serving it may be its own.
+     */
+    protected static boolean isAnySelectorThread() {
+        return currentLoop.get() != null;
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                // A failed task must not end the loop and with it every connection.
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logError("Selector task failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Close a channel from the selector thread, whatever goes wrong on the way.
+     */
+    private void closeChannel(NioTcpMessageChannel messageChannel) {
+        try {
+            messageChannel.close();
+        } catch (Exception ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logError("Could not close " + messageChannel, ex);
+        }
+    }
+
+    /**
+     * The select loop. Dispatches connect, read and write readiness to the message channel
+     * attached to each key.
+     */
+    public void run() {
+        currentLoop.set(this);
+        try {
+            while (this.isRunning) {
+                runPendingTasks();
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                } catch (IOException ex) {
+                    if (sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logException(ex);
+                    continue;
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioTcpMessageChannel messageChannel = (NioTcpMessageChannel) key
+                            .attachment();
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        if (key.isConnectable())
+                            messageChannel.connectReady();
+                        if (key.isValid() && key.isReadable())
+                            messageChannel.readReady(readBuffer);
+                        if (key.isValid() && key.isWritable())
+                            messageChannel.writeReady();
+                    } catch (IOException ex) {
+                        if (sipStack.isLoggingEnabled())
+                            sipStack.getStackLogger().logDebug(
+                                    "IOException on " + messageChannel + " closing " + ex);
+                        closeChannel(messageChannel);
+                    } catch (CancelledKeyException ex) {
+                        // Closed by another thread while we were at it.
+                        closeChannel(messageChannel);
+                    } catch (Exception ex) {
+                        // Only this connection is in trouble, the loop keeps serving the others.
+                        if (sipStack.isLoggingEnabled())
+                            sipStack.getStackLogger().logError(
+                                    "Unexpected exception on " + messageChannel + " closing", ex);
+                        closeChannel(messageChannel);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= SELECT_TIMEOUT) {
+                    lastTimeoutCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        NioTcpMessageChannel messageChannel = (NioTcpMessageChannel) key
+                                .attachment();
+                        try {
+                            if (key.isValid() && messageChannel.isReadTimedOut(now)) {
+                                if (sipStack.isLoggingEnabled())
+                                    sipStack.getStackLogger().logDebug(
+                                            "Timeout -- closing " + messageChannel);
+                                closeChannel(messageChannel);
+                            }
+                        } catch (CancelledKeyException ex) {
+                            // Closed meanwhile.
+                        }
+                    }
+                }
+            }
+        } finally {
+            runPendingTasks();
+            for (SelectionKey key : selector.keys()) {
+                closeChannel((NioTcpMessageChannel) key.attachment());
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Ignore.
+            }
+        }
+    }
+}
@@ -0,0 +1,866 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.InternalErrorHandler;
+import gov.nist.core.ServerLogger;
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.CallID;
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.RequestLine;
+import gov.nist.javax.sip.header.StatusLine;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.MessageFramer;
+import gov.nist.javax.sip.parser.SIPMessageListener;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.sip.address.Hop;
+
+/**
+ * A TCP message channel over a non-blocking socket channel. The channel does not own a
+ * thread: the selector loop it is registered with calls back when the connection becomes
+ * readable or writable. Incoming bytes are framed incrementally (header block terminated by an
+ * empty line followed by Content-Length bytes of body) and each complete message is parsed and
+ * handed to the transaction stack just like the TCPMessageChannel does. Outgoing messages are
+ * written directly when the socket accepts them and queued for the selector loop otherwise.
+ * 
+ * @see NioTcpMessageProcessor
+ * 
+ */
+public class NioTcpMessageChannel extends MessageChannel implements SIPMessageListener,
+        RawMessageChannel {
+
+    protected SocketChannel socketChannel;
+
+    protected SelectionKey selectionKey;
+
+    protected NioSelectorLoop selectorLoop;
+
+    protected NioTcpMessageProcessor nioTcpMessageProcessor;
+
+    protected SIPTransactionStack sipStack;
+
+    protected String key;
+
+    protected boolean isCached;
+
+    protected String myAddress;
+
+    protected int myPort;
+
+    protected InetAddress peerAddress;
+
+    protected int peerPort;
+
+    protected String peerProtocol;
+
+    protected boolean isConnected;
+
+    // True for a connection accepted by the processor.
+    protected boolean isIncoming;
+
+    protected boolean isClosed;
+
+    protected IOException connectException;
+
+    // Time at which the outgoing connection was started.
+    private long connectStart;
+
+    // Splits the received bytes into messages.
+    private MessageFramer framer;
+
+    // Time at which the first byte of the partial message was read.
+    private long partialSince;
+
+    protected LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    private StringMsgParser smp = new StringMsgParser(this);
+
+    /*
+     * The state of this connection in the packet capture.
+     */
+    private PcapCapture.Flow captureFlow;
+
+    /**
+     * Constructor - gets called from the acceptor thread with a freshly accepted channel.
+     * 
+     * @param socketChannel -- the accepted channel.
+     * @param sipStack -- the SIP stack.
+     * @param msgProcessor -- the message processor that accepted the connection.
+     * @param selectorLoop -- the selector loop that serves this connection.
+     */
+    protected NioTcpMessageChannel(SocketChannel socketChannel, SIPTransactionStack sipStack,
+            NioTcpMessageProcessor msgProcessor, NioSelectorLoop selectorLoop)
+            throws IOException {
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug("creating new NioTcpMessageChannel ");
+        }
+        this.socketChannel = socketChannel;
+        this.sipStack = sipStack;
+        this.peerAddress = socketChannel.socket().getInetAddress();
+        this.peerPort = socketChannel.socket().getPort();
+        this.nioTcpMessageProcessor = msgProcessor;
+        this.myAddress = msgProcessor.getIpAddress().getHostAddress();
+        this.myPort = msgProcessor.getPort();
+        super.messageProcessor = msgProcessor;
+        this.isConnected = true;
+        this.isIncoming = true;
+        this.selectorLoop = selectorLoop;
+        this.framer = new MessageFramer(sipStack.getMaxHeaderSize(), sipStack.getMaxMessageSize());
+        socketChannel.configureBlocking(false);
+        selectorLoop.register(socketChannel, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Constructor - for outgoing connections. The connection is only opened when the first
+     * message is sent.
+     * 
+     * @param inetAddr -- inet address to connect to.
+     * @param port -- port to connect to.
+     * @param sipStack -- the SIP stack.
+     * @param msgProcessor -- the message processor that created us.
+     */
+    protected NioTcpMessageChannel(InetAddress inetAddr, int port, SIPTransactionStack sipStack,
+            NioTcpMessageProcessor msgProcessor) {
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug("creating new NioTcpMessageChannel ");
+        }
+        this.peerAddress = inetAddr;
+        this.peerPort = port;
+        this.peerProtocol = getTransport();
+        this.sipStack = sipStack;
+        this.nioTcpMessageProcessor = msgProcessor;
+        this.myAddress = msgProcessor.getIpAddress().getHostAddress();
+        this.myPort = msgProcessor.getPort();
+        this.key = MessageChannel.getKey(peerAddress, peerPort, getTransport());
+        super.messageProcessor = msgProcessor;
+    }
+
+    /**
+     * Called from the selector loop once the channel is registered.
+     */
+    protected void setSelectionKey(SelectionKey selectionKey) throws IOException {
+        this.selectionKey = selectionKey;
+        if (isConnected)
+            this.connectionEstablished();
+    }
+
+    /**
+     * Called from the selector loop when the connection is up and registered, whether it was
+     * accepted, connected at once or connected later.
+     */
+    protected void connectionEstablished() throws IOException {
+        synchronized (this) {
+            this.isConnected = true;
+            selectionKey.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            this.notifyAll();
+        }
+        sipStack.getConnectionManager().connectionOpened(this);
+    }
+
+    /**
+     * @return true once messages can be written, which for TCP is as soon as the connection
+     *         is up.
+     */
+    protected boolean isReadyForData() {
+        return isConnected;
+    }
+
+    /**
+     * Open the outgoing connection. Must be called with the channel lock held.
+     */
+    private void connect() throws IOException {
+        SocketChannel sc = SocketChannel.open();
+        sc.configureBlocking(false);
+        InetAddress localAddress = nioTcpMessageProcessor.getIpAddress();
+        if (!localAddress.isAnyLocalAddress())
+            sc.socket().bind(new InetSocketAddress(localAddress, 0));
+        this.socketChannel = sc;
+        this.isClosed = false;
+        this.connectException = null;
+        this.connectStart = System.currentTimeMillis();
+        this.framer = new MessageFramer(sipStack.getMaxHeaderSize(), sipStack.getMaxMessageSize());
+        this.isConnected = sc.connect(new InetSocketAddress(peerAddress, peerPort));
+        if (this.selectorLoop == null)
+            this.selectorLoop = nioTcpMessageProcessor.nextSelectorLoop();
+        if (this.isCached)
+            nioTcpMessageProcessor.recacheMessageChannel(this);
+        selectorLoop.register(sc, isConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
+                this);
+    }
+
+    /**
+     * Called from the selector loop when the outgoing connection is established (or failed).
+     */
+    protected void connectReady() throws IOException {
+        try {
+            socketChannel.finishConnect();
+            this.connectionEstablished();
+        } catch (IOException ex) {
+            synchronized (this) {
+                this.connectException = ex;
+                this.notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Called from the selector loop when there are bytes to read.
+     * 
+     * @param readBuffer -- scratch buffer owned by the selector loop.
+     */
+    protected void readReady(ByteBuffer readBuffer) throws Exception {
+        readBuffer.clear();
+        int nbytes = socketChannel.read(readBuffer);
+        if (nbytes == -1) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Connection closed by peer " + this);
+            this.close();
+            return;
+        }
+        if (nbytes == 0)
+            return;
+        connectionActivity(true);
+        // The bytes are used straight out of the scratch buffer, they are consumed before
+        // returning.
+        this.bytesReceived(readBuffer.array(), 0, nbytes);
+    }
+
+    /**
+     * Frame and process bytes received on the connection.
+     */
+    protected void bytesReceived(byte[] bytes, int offset, int length) throws Exception {
+        if (!framer.hasPartialMessage())
+            this.partialSince = System.currentTimeMillis();
+        capture(false, bytes, offset, length);
+        framer.addBytes(bytes, offset, length);
+        processFrames();
+        for (int pings = framer.takePings(); pings > 0; pings--)
+            this.sendKeepAlive(ConnectionManager.PONG);
+    }
+
+    /**
+     * Parse and process all complete messages received so far.
+     */
+    private void processFrames() throws Exception {
+        byte[] msg;
+        while ((msg = framer.nextMessage()) != null) {
+            this.partialSince = System.currentTimeMillis();
+
+            // A message that is too large comes as headers only, processMessage rejects it.
+            smp.setReadBody(!framer.isTruncated());
+            SIPMessage sipMessage = null;
+            try {
+                long start = System.nanoTime();
+                sipMessage = smp.parseSIPMessage(msg);
+                sipStack.getStackMetrics().getParseTime().recordSince(start);
+            } catch (ParseException ex) {
+                // Just ignore the parse exception.
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug("Detected a parse error " + ex);
+                continue;
+            }
+            if (sipMessage != null)
+                this.dispatchMessage(sipMessage);
+        }
+    }
+
+    /**
+     * @return true if a partial message has been pending for longer than the read timeout, or
+     *         the connection has been pending for longer than the connect timeout.
+     */
+    protected boolean isReadTimedOut(long now) {
+        int connectTimeout = sipStack.getConnectTimeout();
+        if (!isConnected && connectStart > 0 && connectTimeout > 0)
+            return now - connectStart > connectTimeout;
+        return sipStack.readTimeout > 0 && framer.hasPartialMessage()
+                && now - partialSince > sipStack.readTimeout;
+    }
+
+    /**
+     * Called from the selector loop when the socket can take more bytes.
+     */
+    protected synchronized void writeReady() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buf = writeQueue.getFirst();
+            socketChannel.write(buf);
+            if (buf.hasRemaining())
+                return;
+            writeQueue.removeFirst();
+        }
+        selectionKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Returns "true" as this is a reliable transport.
+     */
+    public boolean isReliable() {
+        return true;
+    }
+
+    /**
+     * Close the message channel.
+     */
+    public void close() {
+        synchronized (this) {
+            if (isClosed || socketChannel == null)
+                return;
+            isClosed = true;
+            isConnected = false;
+            writeQueue.clear();
+            this.notifyAll();
+        }
+        try {
+            if (selectionKey != null)
+                selectionKey.cancel();
+            socketChannel.close();
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Closing message Channel " + this);
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Error closing socket " + ex);
+        }
+        this.nioTcpMessageProcessor.remove(this);
+        sipStack.getConnectionManager().connectionClosed(this);
+    }
+
+    /**
+     * Write a keep-alive on the current connection.
+     */
+    protected void sendKeepAlive(byte[] bytes) throws IOException {
+        synchronized (this) {
+            if (socketChannel == null || isClosed || !isConnected)
+                throw new IOException("Connection to " + peerAddress + ":" + peerPort
+                        + " is closed");
+            this.write(bytes);
+        }
+    }
+
+    /**
+     * Get my SIP Stack.
+     * 
+     * @return The SIP Stack for this message channel.
+     */
+    public SIPTransactionStack getSIPStack() {
+        return sipStack;
+    }
+
+    /**
+     * get the transport string.
+     * 
+     * @return "tcp" in this case.
+     */
+    public String getTransport() {
+        return "TCP";
+    }
+
+    /**
+     * get the address of the client that sent the data to us.
+     * 
+     * @return Address of the client that sent us data that resulted in this channel being
+     *         created.
+     */
+    public String getPeerAddress() {
+        if (peerAddress != null) {
+            return peerAddress.getHostAddress();
+        } else
+            return getHost();
+    }
+
+    protected InetAddress getPeerInetAddress() {
+        return peerAddress;
+    }
+
+    public String getPeerProtocol() {
+        return this.peerProtocol;
+    }
+
+    /**
+     * Write bytes to the peer, opening the connection first if needed.
+     * 
+     * @param msg -- the bytes to send.
+     * @param retry -- reconnect if the connection has gone away.
+     */
+    private void sendMessage(byte[] msg, boolean retry) throws IOException {
+        if (sipStack.isLoggingEnabled() && sipStack.isLogStackTraceOnMessageSend()) {
+            sipStack.getStackLogger().logStackTrace(ServerLogger.TRACE_INFO);
+        }
+        IOException writeException = null;
+        synchronized (this) {
+            if (socketChannel == null || isClosed) {
+                if (socketChannel != null && !retry)
+                    throw new IOException("Connection to " + peerAddress + ":" + peerPort
+                            + " is closed");
+                this.connect();
+            }
+            if (!isReadyForData() && connectException == null && !isClosed
+                    && NioSelectorLoop.isAnySelectorThread()) {
+                // A selector thread cannot wait for a connection, the loop that has to
+                // complete it may be its own. The message goes out once it is up.
+                this.queueMessage(msg);
+                return;
+            }
+            int connectTimeout = sipStack.getConnectTimeout();
+            long deadline = connectTimeout > 0 ? System.currentTimeMillis() + connectTimeout
+                    : Long.MAX_VALUE;
+            while (!isReadyForData() && connectException == null && !isClosed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted while connecting");
+                }
+            }
+            if (isReadyForData()) {
+                try {
+                    this.write(msg);
+                    return;
+                } catch (IOException ex) {
+                    writeException = ex;
+                }
+            }
+        }
+        // Close outside of the channel lock -- closing touches the processor tables.
+        this.close();
+        if (writeException == null) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logError(
+                        "Could not connect to " + peerAddress + ":" + peerPort);
+            throw new IOException("Could not connect to " + peerAddress + ":" + peerPort);
+        }
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug("IOException occured writing to " + this);
+        if (!retry)
+            throw writeException;
+        // The old connection is bad -- try once more on a new one.
+        synchronized (this) {
+            if (isClosed)
+                this.socketChannel = null;
+        }
+        this.sendMessage(msg, false);
+    }
+
+    /**
+     * Write a message on the connection. Called with the channel lock held once the channel is
+     * ready for data.
+     */
+    protected void write(byte[] msg) throws IOException {
+        capture(true, msg, 0, msg.length);
+        this.writeNetwork(ByteBuffer.wrap(msg));
+    }
+
+    /**
+     * Hold a message until the connection is up. Called with the channel lock held.
+     */
+    protected void queueMessage(byte[] msg) {
+        capture(true, msg, 0, msg.length);
+        writeQueue.add(ByteBuffer.wrap(msg));
+    }
+
+    /**
+     * Write bytes to the socket, queueing what it does not take for the selector loop. Called
+     * with the channel lock held.
+     */
+    protected void writeNetwork(ByteBuffer buf) throws IOException {
+        connectionActivity(false);
+        if (writeQueue.isEmpty())
+            socketChannel.write(buf);
+        if (buf.hasRemaining()) {
+            writeQueue.add(buf);
+            if (selectionKey != null)
+                selectorLoop.setInterestOps(selectionKey, SelectionKey.OP_READ
+                        | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Return a formatted message to the client.
+     * 
+     * @param sipMessage Message to send.
+     * @throws IOException If there is an error sending the message
+     */
+    public void sendMessage(SIPMessage sipMessage) throws IOException {
+        byte[] msg = encode(sipMessage);
+
+        long time = System.currentTimeMillis();
+
+        this.sendMessage(msg, true);
+
+        messageSent(sipMessage);
+
+        if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
+            logMessage(sipMessage, msg, peerAddress, peerPort, time);
+    }
+
+    /**
+     * Send a message to a specified address. If this is not the peer of this channel, the
+     * message goes through the (possibly new) channel to that address.
+     * 
+     * @param message Pre-formatted message to send.
+     * @param receiverAddress Address to send it to.
+     * @param receiverPort Receiver port.
+     * @throws IOException If there is a problem connecting or sending.
+     */
+    public void sendMessage(byte message[], InetAddress receiverAddress, int receiverPort,
+            boolean retry) throws IOException {
+        if (message == null || receiverAddress == null)
+            throw new IllegalArgumentException("Null argument");
+        if (receiverAddress.equals(this.peerAddress) && receiverPort == this.peerPort) {
+            this.sendMessage(message, retry);
+        } else {
+            NioTcpMessageChannel messageChannel = (NioTcpMessageChannel) nioTcpMessageProcessor
+                    .createMessageChannel(receiverAddress, receiverPort);
+            messageChannel.sendMessage(message, retry);
+        }
+    }
+
+    /**
+     * Exception processor for exceptions detected from the parser. (This is invoked by the parser
+     * when an error is detected).
+     * 
+     * @param sipMessage -- the message that incurred the error.
+     * @param ex -- parse exception detected by the parser.
+     * @param header -- header that caused the error.
+     * @throws ParseException Thrown if we want to reject the message.
+     */
+    public void handleException(ParseException ex, SIPMessage sipMessage, Class hdrClass,
+            String header, String message) throws ParseException {
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logException(ex);
+        // Log the bad message for later reference.
+        if ((hdrClass != null)
+                && (hdrClass.equals(From.class) || hdrClass.equals(To.class)
+                        || hdrClass.equals(CSeq.class) || hdrClass.equals(Via.class)
+                        || hdrClass.equals(CallID.class) || hdrClass.equals(RequestLine.class) || hdrClass
+                        .equals(StatusLine.class))) {
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug(
+                        "Encountered Bad Message \n" + sipMessage.toString());
+            }
+
+            // JvB: send a 400 response for requests (except ACK)
+            String msgString = sipMessage.toString();
+            if (!msgString.startsWith("SIP/") && !msgString.startsWith("ACK ")) {
+
+                String badReqRes = createBadReqRes(msgString, ex);
+                if (badReqRes != null) {
+                    if (sipStack.isLoggingEnabled()) {
+                        sipStack.getStackLogger().logDebug("Sending automatic 400 Bad Request:");
+                        sipStack.getStackLogger().logDebug(badReqRes);
+                    }
+                    try {
+                        this.sendMessage(badReqRes.getBytes(), false);
+                    } catch (IOException e) {
+                        this.sipStack.getStackLogger().logException(e);
+                    }
+                } else {
+                    if (sipStack.isLoggingEnabled()) {
+                        sipStack.getStackLogger().logDebug(
+                                "Could not formulate automatic 400 Bad Request");
+                    }
+                }
+            }
+
+            throw ex;
+        } else {
+            sipMessage.addUnparsed(header);
+        }
+    }
+
+    /**
+     * Hand a message read by the selector loop to the shard that owns its Call-ID or, without
+     * shards, to the processing thread of this connection, so that the selector thread never
+     * runs the listener.
+     *
+     * @param sipMessage -- the parsed message.
+     */
+    private void dispatchMessage(final SIPMessage sipMessage) {
+        CallIdShardExecutor shardExecutor = sipStack.getCallIdShardExecutor();
+        String key;
+        if (shardExecutor != null && sipMessage.getCallId() != null) {
+            key = sipMessage.getCallId().getCallId();
+        } else {
+            shardExecutor = nioTcpMessageProcessor.getProcessingExecutor();
+            key = this.getKey();
+        }
+        try {
+            shardExecutor.execute(key, new Runnable() {
+                public void run() {
+                    try {
+                        processMessage(sipMessage);
+                    } catch (Exception ex) {
+                        sipStack.getStackLogger().logError(
+                                "Error while processing incoming TCP message", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug(
+                        "Message processing stopped -- dropping message");
+        }
+    }
+
+    /**
+     * Gets invoked on a shard or processing thread for each complete message read from the
+     * connection.
+     * 
+     * @param sipMessage Mesage to process (this calls the application for processing the
+     *        message).
+     */
+    public void processMessage(SIPMessage sipMessage) throws Exception {
+        if (sipMessage.getFrom() == null || sipMessage.getTo() == null
+                || sipMessage.getCallId() == null || sipMessage.getCSeq() == null
+                || sipMessage.getViaHeaders() == null) {
+            String badmsg = sipMessage.encode();
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug(">>> Dropped Bad Msg");
+                sipStack.getStackLogger().logDebug(badmsg);
+            }
+
+            return;
+        }
+
+        ViaList viaList = sipMessage.getViaHeaders();
+        // For a request
+        // first via header tells where the message is coming from.
+        // For response, this has already been recorded in the outgoing
+        // message.
+        if (sipMessage instanceof SIPRequest) {
+            Via v = (Via) viaList.getFirst();
+            Hop hop = getSentByHop(v);
+            this.peerProtocol = v.getTransport();
+            try {
+                // JvB: if sender added 'rport', must always set received
+                if (v.hasParameter(Via.RPORT)
+                        || !hop.getHost().equals(this.peerAddress.getHostAddress())) {
+                    v.setParameter(Via.RECEIVED, this.peerAddress.getHostAddress());
+                }
+                v.setParameter(Via.RPORT, Integer.toString(this.peerPort));
+            } catch (java.text.ParseException ex) {
+                InternalErrorHandler.handleException(ex, sipStack.getStackLogger());
+            }
+            // Use this for outgoing messages as well.
+            if (!this.isCached) {
+                nioTcpMessageProcessor.cacheMessageChannel(this);
+                this.isCached = true;
+            }
+        }
+
+        long receptionTime = System.currentTimeMillis();
+
+        if (sipMessage instanceof SIPRequest) {
+            // This is a request - process the request.
+            SIPRequest sipRequest = (SIPRequest) sipMessage;
+
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug("----Processing Message---");
+            }
+
+            if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES)) {
+                sipStack.serverLogger.logMessage(sipMessage, this.getPeerHostPort().toString(),
+                        this.getMessageProcessor().getIpAddress().getHostAddress() + ":"
+                                + this.getMessageProcessor().getPort(), false, receptionTime);
+
+            }
+
+            // Check for reasonable size - reject message
+            // if it is too long.
+            if (sipStack.getMaxMessageSize() > 0
+                    && sipRequest.getSize()
+                            + (sipRequest.getContentLength() == null ? 0 : sipRequest
+                                    .getContentLength().getContentLength()) > sipStack
+                            .getMaxMessageSize()) {
+                SIPResponse sipResponse = sipRequest
+                        .createResponse(SIPResponse.MESSAGE_TOO_LARGE);
+                byte[] resp = encode(sipResponse);
+                this.sendMessage(resp, false);
+                messageSent(sipResponse);
+                throw new IOException("Message size exceeded");
+            }
+
+            ServerRequestInterface sipServerRequest = sipStack.newSIPServerRequest(sipRequest,
+                    this);
+
+            if (sipServerRequest != null) {
+                try {
+                    sipServerRequest.processRequest(sipRequest, this);
+                } finally {
+                    if (sipServerRequest instanceof SIPTransaction) {
+                        SIPServerTransaction sipServerTx = (SIPServerTransaction) sipServerRequest;
+                        if (!sipServerTx.passToListener())
+                            ((SIPTransaction) sipServerRequest).releaseSem();
+                    }
+                }
+            } else {
+                if (sipStack.isLoggingEnabled())
+                    this.sipStack.getStackLogger().logWarning(
+                            "Dropping request -- could not acquire semaphore in 10 sec");
+            }
+
+        } else {
+            SIPResponse sipResponse = (SIPResponse) sipMessage;
+            try {
+                sipResponse.checkHeaders();
+            } catch (ParseException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logError(
+                            "Dropping Badly formatted response message >>> " + sipResponse);
+                return;
+            }
+            // This is a response message - process it.
+            // Check the size of the response.
+            // If it is too large dump it silently.
+            if (sipStack.getMaxMessageSize() > 0
+                    && sipResponse.getSize()
+                            + (sipResponse.getContentLength() == null ? 0 : sipResponse
+                                    .getContentLength().getContentLength()) > sipStack
+                            .getMaxMessageSize()) {
+                if (sipStack.isLoggingEnabled())
+                    this.sipStack.getStackLogger().logDebug("Message size exceeded");
+                return;
+
+            }
+            ServerResponseInterface sipServerResponse = sipStack.newSIPServerResponse(
+                    sipResponse, this);
+            if (sipServerResponse != null) {
+                try {
+                    if (sipServerResponse instanceof SIPClientTransaction
+                            && !((SIPClientTransaction) sipServerResponse)
+                                    .checkFromTag(sipResponse)) {
+                        if (sipStack.isLoggingEnabled())
+                            sipStack.getStackLogger().logError(
+                                    "Dropping response message with invalid tag >>> "
+                                            + sipResponse);
+                        return;
+                    }
+
+                    sipServerResponse.processResponse(sipResponse, this);
+                } finally {
+                    if (sipServerResponse instanceof SIPTransaction
+                            && !((SIPTransaction) sipServerResponse).passToListener())
+                        ((SIPTransaction) sipServerResponse).releaseSem();
+                }
+            } else {
+                sipStack.getStackLogger().logWarning(
+                        "Application is blocked -- could not acquire semaphore -- dropping response");
+            }
+        }
+    }
+
+    protected void uncache() {
+        if (isCached && isClosed) {
+            this.nioTcpMessageProcessor.remove(this);
+        }
+    }
+
+    /**
+     * Get an identifying key. This key is used to cache the connection and re-use it if
+     * necessary.
+     */
+    public String getKey() {
+        if (this.key != null) {
+            return this.key;
+        } else {
+            this.key = MessageChannel.getKey(this.peerAddress, this.peerPort, getTransport());
+            return this.key;
+        }
+    }
+
+    /**
+     * Get the host to assign to outgoing messages.
+     * 
+     * @return the host to assign to the via header.
+     */
+    public String getViaHost() {
+        return myAddress;
+    }
+
+    /**
+     * Get the port for outgoing messages sent from the channel.
+     * 
+     * @return the port to assign to the via header.
+     */
+    public int getViaPort() {
+        return myPort;
+    }
+
+    /**
+     * Get the port of the peer to whom we are sending messages.
+     * 
+     * @return the peer port.
+     */
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public int getPeerPacketSourcePort() {
+        return this.peerPort;
+    }
+
+    public InetAddress getPeerPacketSourceAddress() {
+        return this.peerAddress;
+    }
+
+    /**
+     * TCP Is not a secure protocol.
+     */
+    public boolean isSecure() {
+        return false;
+    }
+
+    /**
+     * Hand bytes sent or received on the connection to the packet capture, if
+     * there is one.
+     */
+    protected synchronized void capture(boolean sent, byte[] bytes, int offset, int length) {
+        if (sipStack.pcapCapture != null)
+            captureFlow = sipStack.pcapCapture.captureStream(captureFlow, socketChannel.socket(),
+                    sent, bytes, offset, length);
+    }
+}
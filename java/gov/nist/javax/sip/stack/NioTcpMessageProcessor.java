@@ -0,0 +1,326 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.HostPort;
+import gov.nist.core.InternalErrorHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP message processor built on non-blocking channels. Instead of a reader thread (plus a
+ * pipelined parser thread) per connection, all connections are multiplexed over a small,
+ * fixed set of selector loops. A single acceptor thread hands new connections to the loops
+ * in round-robin order. This processor is used instead of the TCPMessageProcessor when the
+ * stack is configured with <code>gov.nist.javax.sip.USE_NIO_TCP=true</code>.
+ * 
+ * Note that the NIO processor does not go through the NetworkLayer socket factory since the
+ * factory hands out blocking sockets.
+ * 
+ * @see NioTcpMessageChannel
+ * @see NioSelectorLoop
+ * 
+ */
+public class NioTcpMessageProcessor extends MessageProcessor {
+
+    private boolean isRunning;
+
+    private ServerSocketChannel serverSocketChannel;
+
+    private NioSelectorLoop[] selectorLoops;
+
+    private AtomicInteger nextSelectorLoop = new AtomicInteger(0);
+
+    private ConcurrentHashMap<String, NioTcpMessageChannel> nioMessageChannels;
+
+    private ConcurrentHashMap<NioTcpMessageChannel, NioTcpMessageChannel> incomingNioMessageChannels;
+
+    /*
+     * Processes the messages read by the selector loops, keyed by connection so that the
+     * messages of a connection stay in order. Not used with Call-ID shards.
+     */
+    private CallIdShardExecutor processingExecutor;
+
+    protected int useCount;
+
+    /**
+     * Constructor.
+     * 
+     * @param ipAddress -- ip address where we listen.
+     * @param sipStack -- the SIP stack structure.
+     * @param port -- port where this message processor listens.
+     */
+    protected NioTcpMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack,
+            int port) {
+        this(ipAddress, sipStack, port, "tcp");
+    }
+
+    /**
+     * Constructor for a stream transport layered on TCP.
+     *
+     * @param transport -- the transport of the listening point.
+     */
+    protected NioTcpMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack,
+            int port, String transport) {
+        super(ipAddress, port, transport, sipStack);
+        this.sipStack = sipStack;
+        this.nioMessageChannels = new ConcurrentHashMap<String, NioTcpMessageChannel>();
+        this.incomingNioMessageChannels = new ConcurrentHashMap<NioTcpMessageChannel, NioTcpMessageChannel>();
+    }
+
+    /**
+     * Start the processor. Binds the server channel and starts the selector loops and the
+     * acceptor thread.
+     */
+    public void start() throws IOException {
+        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel.socket().bind(new InetSocketAddress(getIpAddress(), getPort()));
+        if (getIpAddress().getHostAddress().equals(IN_ADDR_ANY)
+                || getIpAddress().getHostAddress().equals(IN6_ADDR_ANY)) {
+            // Store the address to which we are actually bound
+            super.setIpAddress(serverSocketChannel.socket().getInetAddress());
+        }
+        int nloops = sipStack.nioSelectorThreads > 0 ? sipStack.nioSelectorThreads : Runtime
+                .getRuntime().availableProcessors();
+        this.selectorLoops = new NioSelectorLoop[nloops];
+        for (int i = 0; i < nloops; i++) {
+            selectorLoops[i] = new NioSelectorLoop(sipStack, "NioSelectorThread-" + getPort()
+                    + "-" + i);
+            selectorLoops[i].start();
+        }
+        int nthreads = sipStack.nioProcessingThreads > 0 ? sipStack.nioProcessingThreads
+                : Runtime.getRuntime().availableProcessors();
+        this.processingExecutor = new CallIdShardExecutor(nthreads, "Nio"
+                + getTransport().toUpperCase() + "ProcessingThread-" + getPort() + "-");
+        Thread thread = new Thread(this);
+        thread.setName("Nio" + getTransport().toUpperCase() + "MessageProcessorThread");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        this.isRunning = true;
+        thread.start();
+    }
+
+    /**
+     * Get the executor that processes the messages read by the selector loops.
+     */
+    protected CallIdShardExecutor getProcessingExecutor() {
+        return processingExecutor;
+    }
+
+    /**
+     * Pick the selector loop for a new connection.
+     */
+    protected NioSelectorLoop nextSelectorLoop() {
+        int next = (nextSelectorLoop.getAndIncrement() & Integer.MAX_VALUE) % selectorLoops.length;
+        return selectorLoops[next];
+    }
+
+    /**
+     * Run method for the acceptor thread.
+     */
+    public void run() {
+        while (this.isRunning) {
+            try {
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                if (sipStack.isLoggingEnabled()) {
+                    getSIPStack().getStackLogger().logDebug("Accepting new connection!");
+                }
+                NioTcpMessageChannel messageChannel = this.createMessageChannel(socketChannel,
+                        nextSelectorLoop());
+                incomingNioMessageChannels.put(messageChannel, messageChannel);
+            } catch (ClosedChannelException ex) {
+                this.isRunning = false;
+            } catch (IOException ex) {
+                // Problem accepting connection.
+                if (sipStack.isLoggingEnabled())
+                    getSIPStack().getStackLogger().logException(ex);
+                continue;
+            } catch (Exception ex) {
+                InternalErrorHandler.handleException(ex);
+            }
+        }
+    }
+
+    /**
+     * Return the transport string.
+     * 
+     * @return the transport string
+     */
+    public String getTransport() {
+        return "tcp";
+    }
+
+    /**
+     * Returns the stack.
+     * 
+     * @return my sip stack.
+     */
+    public SIPTransactionStack getSIPStack() {
+        return sipStack;
+    }
+
+    /**
+     * Stop the message processor. Closes the server channel, all connections and the selector
+     * loops.
+     */
+    public synchronized void stop() {
+        isRunning = false;
+        try {
+            serverSocketChannel.close();
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logException(ex);
+        }
+
+        for (Iterator<NioTcpMessageChannel> it = nioMessageChannels.values().iterator(); it
+                .hasNext();) {
+            it.next().close();
+        }
+        for (Iterator<NioTcpMessageChannel> it = incomingNioMessageChannels.keySet().iterator(); it
+                .hasNext();) {
+            it.next().close();
+        }
+        for (int i = 0; i < selectorLoops.length; i++) {
+            selectorLoops[i].stop();
+        }
+        processingExecutor.shutdown();
+
+        this.notify();
+    }
+
+    /**
+     * Called by a message channel when its connection goes away.
+     */
+    protected void remove(NioTcpMessageChannel messageChannel) {
+        String key = messageChannel.getKey();
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug(Thread.currentThread() + " removing " + key);
+        }
+
+        /** May have been removed already */
+        nioMessageChannels.remove(key, messageChannel);
+
+        incomingNioMessageChannels.remove(messageChannel);
+    }
+
+    public MessageChannel createMessageChannel(HostPort targetHostPort) throws IOException {
+        return this.createMessageChannel(targetHostPort.getInetAddress(), targetHostPort
+                .getPort());
+    }
+
+    public synchronized MessageChannel createMessageChannel(InetAddress host, int port)
+            throws IOException {
+        String key = MessageChannel.getKey(host, port, getTransport());
+        NioTcpMessageChannel retval = nioMessageChannels.get(key);
+        if (retval != null) {
+            return retval;
+        } else {
+            retval = this.createOutgoingMessageChannel(host, port);
+            this.nioMessageChannels.put(key, retval);
+            retval.isCached = true;
+            if (sipStack.isLoggingEnabled()) {
+                sipStack.getStackLogger().logDebug("key " + key);
+                sipStack.getStackLogger().logDebug("Creating " + retval);
+            }
+            return retval;
+        }
+    }
+
+    /**
+     * Create the channel for an accepted connection.
+     */
+    protected NioTcpMessageChannel createMessageChannel(SocketChannel socketChannel,
+            NioSelectorLoop selectorLoop) throws IOException {
+        return new NioTcpMessageChannel(socketChannel, sipStack, this, selectorLoop);
+    }
+
+    /**
+     * Create the channel for a connection to be opened to a peer.
+     */
+    protected NioTcpMessageChannel createOutgoingMessageChannel(InetAddress host, int port) {
+        return new NioTcpMessageChannel(host, port, sipStack, this);
+    }
+
+    /**
+     * Make an accepted connection available for outgoing messages to the same peer.
+     */
+    protected synchronized void cacheMessageChannel(NioTcpMessageChannel messageChannel) {
+        String key = messageChannel.getKey();
+        NioTcpMessageChannel currentChannel = nioMessageChannels.get(key);
+        if (currentChannel != null && currentChannel != messageChannel) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("Closing " + key);
+            currentChannel.close();
+        }
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug("Caching " + key);
+        this.nioMessageChannels.put(key, messageChannel);
+    }
+
+    /**
+     * Put a cached channel back in the table after it re-opened its connection. Does not
+     * replace a channel that was cached in the meantime.
+     */
+    protected void recacheMessageChannel(NioTcpMessageChannel messageChannel) {
+        this.nioMessageChannels.putIfAbsent(messageChannel.getKey(), messageChannel);
+    }
+
+    /**
+     * TCP can handle an unlimited number of bytes.
+     */
+    public int getMaximumMessageSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    public boolean inUse() {
+        return this.useCount != 0;
+    }
+
+    /**
+     * Default target port for TCP
+     */
+    public int getDefaultTargetPort() {
+        return 5060;
+    }
+
+    /**
+     * TCP is not a secure protocol.
+     */
+    public boolean isSecure() {
+        return false;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS message channel over a non-blocking socket channel. The TLS records are handled by an
+ * SSLEngine sitting between the socket and the message framing of the NIO TCP channel, so the
+ * connection is served by a selector loop like a TCP one and no thread ever blocks in a
+ * handshake. The wrap and unwrap steps of the handshake run on the selector loop; the
+ * expensive parts (the delegated tasks of the engine: key exchange and certificate checks) run
+ * on the handshake pool of the processor, after which the handshake carries on in the
+ * selector loop.
+ * 
+ * A sender waits for the handshake like it waits for the connection, up to the connect
+ * timeout. Messages sent from a selector thread are held until the connection is up and the
+ * handshake done, a selector thread never waits. When the handshake completes the HandshakeCompletedListenerImpl of the channel gets
+ * an event for the session, just like with the TLSMessageChannel, which is where transactions
+ * get the cipher suite and certificates from.
+ * 
+ * @see NioTlsMessageProcessor
+ * 
+ */
+public class NioTlsMessageChannel extends NioTcpMessageChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private SSLEngine sslEngine;
+
+    // Bytes received from the network that have not been unwrapped yet, in write mode.
+    private ByteBuffer netIn;
+
+    // Plain text produced by unwrap. Only used by the selector thread.
+    private ByteBuffer appIn;
+
+    private volatile boolean handshakeDone;
+
+    private boolean tasksRunning;
+
+    private volatile long handshakeStart;
+
+    // Messages sent from a selector thread before the handshake was done.
+    private List<byte[]> pendingMessages = new LinkedList<byte[]>();
+
+    private HandshakeCompletedListener handshakeCompletedListener;
+
+    /**
+     * Constructor - gets called from the acceptor thread with a freshly accepted channel.
+     */
+    protected NioTlsMessageChannel(SocketChannel socketChannel, SIPTransactionStack sipStack,
+            NioTlsMessageProcessor msgProcessor, NioSelectorLoop selectorLoop)
+            throws IOException {
+        super(socketChannel, sipStack, msgProcessor, selectorLoop);
+    }
+
+    /**
+     * Constructor - for outgoing connections. The connection is only opened when the first
+     * message is sent.
+     */
+    protected NioTlsMessageChannel(InetAddress inetAddr, int port,
+            SIPTransactionStack sipStack, NioTlsMessageProcessor msgProcessor) {
+        super(inetAddr, port, sipStack, msgProcessor);
+    }
+
+    /**
+     * Start the handshake on a new connection. Runs on the selector thread.
+     */
+    protected void connectionEstablished() throws IOException {
+        NioTlsMessageProcessor processor = (NioTlsMessageProcessor) nioTcpMessageProcessor;
+        synchronized (this) {
+            this.sslEngine = processor.createSSLEngine(peerAddress, peerPort, !isIncoming);
+            SSLSession session = sslEngine.getSession();
+            this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            this.handshakeDone = false;
+            this.tasksRunning = false;
+            this.handshakeStart = System.currentTimeMillis();
+            sslEngine.beginHandshake();
+        }
+        super.connectionEstablished();
+        synchronized (this) {
+            this.handshake();
+        }
+    }
+
+    /**
+     * Ready once the handshake is done. A selector thread may not wait for the handshake
+     * since it may be the one doing it, what it sends is held until then.
+     */
+    protected boolean isReadyForData() {
+        return isConnected && (handshakeDone || NioSelectorLoop.isAnySelectorThread());
+    }
+
+    /**
+     * Hold a message until the connection is up and the handshake done. Called with the
+     * channel lock held.
+     */
+    protected void queueMessage(byte[] msg) {
+        capture(true, msg, 0, msg.length);
+        pendingMessages.add(msg);
+    }
+
+    /**
+     * Unwrap the bytes received, move the handshake along, and process the plain text.
+     * 
+     * @param bytes -- bytes read from the socket, or null to just carry on with the
+     *        handshake.
+     */
+    protected void bytesReceived(byte[] bytes, int offset, int length) throws Exception {
+        ByteBuffer plain;
+        synchronized (this) {
+            if (sslEngine == null || isClosed)
+                return;
+            if (bytes != null) {
+                if (netIn.remaining() < length) {
+                    ByteBuffer larger = ByteBuffer.allocate(netIn.position() + length);
+                    netIn.flip();
+                    larger.put(netIn);
+                    netIn = larger;
+                }
+                netIn.put(bytes, offset, length);
+            }
+            plain = this.handshake();
+        }
+        if (plain.hasRemaining())
+            super.bytesReceived(plain.array(), plain.position(), plain.remaining());
+    }
+
+    /**
+     * Unwrap what was received so far, counting a failure before the handshake is done as a
+     * failed handshake. Called with the channel lock held.
+     */
+    private ByteBuffer handshake() throws IOException {
+        try {
+            return this.unwrap();
+        } catch (SSLException ex) {
+            if (!handshakeDone)
+                sipStack.getStackMetrics().getTlsHandshakeFailures().increment();
+            throw ex;
+        }
+    }
+
+    /**
+     * Unwrap as much as there is and do whatever else the engine asks for on the way. Called
+     * on the selector thread with the channel lock held.
+     * 
+     * @return the plain text, in read mode.
+     */
+    private ByteBuffer unwrap() throws IOException {
+        appIn.clear();
+        while (!tasksRunning) {
+            SSLEngineResult.HandshakeStatus status = sslEngine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                this.runDelegatedTasks();
+                break;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                this.wrap(EMPTY);
+                continue;
+            }
+            if (netIn.position() == 0)
+                break;
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = sslEngine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+                this.handshakeFinished();
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                ByteBuffer larger = ByteBuffer.allocate(appIn.capacity()
+                        + sslEngine.getSession().getApplicationBufferSize());
+                appIn.flip();
+                larger.put(appIn);
+                appIn = larger;
+            } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                int size = sslEngine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < size) {
+                    ByteBuffer larger = ByteBuffer.allocate(size);
+                    netIn.flip();
+                    larger.put(netIn);
+                    netIn = larger;
+                }
+                break;
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug("TLS session closed by peer " + this);
+                break;
+            } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                    && sslEngine.getHandshakeStatus() == status) {
+                break;
+            }
+        }
+        // A handshake that ended on a wrap or a task reports FINISHED there, or not at all.
+        if (!handshakeDone && !tasksRunning
+                && sslEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+            this.handshakeFinished();
+        appIn.flip();
+        return appIn;
+    }
+
+    /**
+     * Wrap plain text (or nothing, for the handshake) and write the records. Called with the
+     * channel lock held.
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        do {
+            ByteBuffer out = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+            SSLEngineResult result = sslEngine.wrap(src, out);
+            out.flip();
+            if (out.hasRemaining())
+                this.writeNetwork(out);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new IOException("TLS session to " + peerAddress + ":" + peerPort
+                        + " is closed");
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+                this.handshakeFinished();
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                break;
+        } while (src.hasRemaining());
+    }
+
+    /**
+     * Hand the delegated tasks of the engine to the handshake pool. The handshake carries on
+     * in the selector loop when they are done. Called with the channel lock held.
+     */
+    private void runDelegatedTasks() throws IOException {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Runnable task;
+        while ((task = sslEngine.getDelegatedTask()) != null)
+            tasks.add(task);
+        this.tasksRunning = true;
+        final SSLEngine engine = this.sslEngine;
+        try {
+            ((NioTlsMessageProcessor) nioTcpMessageProcessor).getHandshakeExecutor().execute(
+                    new Runnable() {
+                        public void run() {
+                            for (Runnable t : tasks)
+                                t.run();
+                            selectorLoop.invokeLater(new Runnable() {
+                                public void run() {
+                                    tasksDone(engine);
+                                }
+                            });
+                        }
+                    });
+        } catch (RejectedExecutionException ex) {
+            throw new IOException("TLS handshake pool is stopped");
+        }
+    }
+
+    /**
+     * Carry on with the handshake after the delegated tasks. Runs on the selector thread.
+     */
+    private void tasksDone(SSLEngine engine) {
+        synchronized (this) {
+            if (engine != this.sslEngine)
+                return;
+            this.tasksRunning = false;
+        }
+        try {
+            this.bytesReceived(null, 0, 0);
+        } catch (Exception ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug("TLS handshake failed on " + this + " " + ex);
+            this.close();
+        }
+    }
+
+    /**
+     * Called with the channel lock held when the handshake is done.
+     */
+    private void handshakeFinished() throws IOException {
+        if (handshakeDone)
+            return;
+        this.handshakeDone = true;
+        SSLSession session = sslEngine.getSession();
+        StackMetrics metrics = sipStack.getStackMetrics();
+        metrics.getTlsHandshakeTime().record(
+                (System.currentTimeMillis() - handshakeStart) * 1000000L);
+        // A resumed session was made by an earlier handshake.
+        if (session.getCreationTime() < handshakeStart)
+            metrics.getTlsSessionsResumed().increment();
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "TLS handshake done on " + this + " " + session.getProtocol() + " "
+                            + session.getCipherSuite());
+        HandshakeCompletedListener listener = new HandshakeCompletedListenerImpl(this);
+        listener.handshakeCompleted(new HandshakeCompletedEvent(
+                ((NioTlsMessageProcessor) nioTcpMessageProcessor).getEventSocket(), session));
+        for (byte[] msg : pendingMessages)
+            this.wrap(ByteBuffer.wrap(msg));
+        pendingMessages.clear();
+        this.notifyAll();
+    }
+
+    /**
+     * Encrypt and write a message. Called with the channel lock held.
+     */
+    protected void write(byte[] msg) throws IOException {
+        capture(true, msg, 0, msg.length);
+        if (!handshakeDone)
+            pendingMessages.add(msg);
+        else
+            this.wrap(ByteBuffer.wrap(msg));
+    }
+
+    /**
+     * Bound the time a handshake may take by the connect timeout.
+     */
+    protected boolean isReadTimedOut(long now) {
+        int connectTimeout = sipStack.getConnectTimeout();
+        return super.isReadTimedOut(now)
+                || (connectTimeout > 0 && isConnected && !handshakeDone
+                        && handshakeStart > 0 && now - handshakeStart > connectTimeout);
+    }
+
+    /**
+     * Send close_notify, if it fits in the socket, and close the connection.
+     */
+    public void close() {
+        synchronized (this) {
+            if (sslEngine != null && !isClosed && handshakeDone && writeQueue.isEmpty()) {
+                try {
+                    sslEngine.closeOutbound();
+                    ByteBuffer out = ByteBuffer.allocate(sslEngine.getSession()
+                            .getPacketBufferSize());
+                    sslEngine.wrap(EMPTY, out);
+                    out.flip();
+                    socketChannel.write(out);
+                } catch (IOException ex) {
+                    // The connection is going away anyway.
+                }
+            }
+            // A new connection needs a new handshake.
+            this.handshakeDone = false;
+            this.pendingMessages.clear();
+        }
+        super.close();
+    }
+
+    public String getTransport() {
+        return "TLS";
+    }
+
+    public boolean isSecure() {
+        return true;
+    }
+
+    public void setHandshakeCompletedListener(
+            HandshakeCompletedListener handshakeCompletedListenerImpl) {
+        this.handshakeCompletedListener = handshakeCompletedListenerImpl;
+    }
+
+    /**
+     * @return the handshake completed listener, null until the handshake is done.
+     */
+    public HandshakeCompletedListenerImpl getHandshakeCompletedListener() {
+        return (HandshakeCompletedListenerImpl) handshakeCompletedListener;
+    }
+}
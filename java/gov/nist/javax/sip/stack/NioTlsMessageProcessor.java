@@ -0,0 +1,212 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.net.NetworkLayer;
+import gov.nist.core.net.SslNetworkLayer;
+import gov.nist.javax.sip.SipStackImpl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A TLS message processor built on the non-blocking TCP processor. Connections are served by
+ * the selector loops, with an SSLEngine per connection doing the TLS records. The CPU heavy
+ * parts of the handshakes run on a small pool of handshake threads, so that a burst of new
+ * connections does not hold up the connections that are already up. This processor is used
+ * instead of the TLSMessageProcessor when the stack is configured with
+ * <code>gov.nist.javax.sip.USE_NIO_TLS=true</code>.
+ * 
+ * The engines come from the SSL context of the SslNetworkLayer when the stack was configured
+ * with a key store, from the default SSL context otherwise. Outgoing engines are created for
+ * the host and port of the peer so that reconnecting to a peer resumes the session cached by
+ * the context instead of doing a full handshake.
+ * 
+ * @see NioTlsMessageChannel
+ * 
+ */
+public class NioTlsMessageProcessor extends NioTcpMessageProcessor {
+
+    private SSLContext sslContext;
+
+    private ThreadPoolExecutor handshakeExecutor;
+
+    private SSLSocket eventSocket;
+
+    /**
+     * Constructor.
+     * 
+     * @param ipAddress -- ip address where we listen.
+     * @param sipStack -- the SIP stack structure.
+     * @param port -- port where this message processor listens.
+     */
+    protected NioTlsMessageProcessor(InetAddress ipAddress, SIPTransactionStack sipStack,
+            int port) {
+        super(ipAddress, sipStack, port, "tls");
+    }
+
+    /**
+     * Start the processor. Sets up the SSL context and the handshake threads and starts
+     * listening.
+     */
+    public void start() throws IOException {
+        NetworkLayer networkLayer = sipStack.getNetworkLayer();
+        if (networkLayer instanceof SslNetworkLayer)
+            this.sslContext = ((SslNetworkLayer) networkLayer).getSSLContext();
+        else {
+            try {
+                this.sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException("No SSL context: " + ex.getMessage());
+            }
+        }
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            if (sipStack.tlsSessionCacheSize >= 0)
+                sessionContext.setSessionCacheSize(sipStack.tlsSessionCacheSize);
+            if (sipStack.tlsSessionTimeout >= 0)
+                sessionContext.setSessionTimeout(sipStack.tlsSessionTimeout);
+        }
+
+        int nthreads = sipStack.tlsHandshakeThreads > 0 ? sipStack.tlsHandshakeThreads
+                : Runtime.getRuntime().availableProcessors();
+        final String prefix = "TLSHandshakeThread-" + getPort() + "-";
+        this.handshakeExecutor = new ThreadPoolExecutor(nthreads, nthreads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private AtomicInteger count = new AtomicInteger(0);
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.handshakeExecutor.allowCoreThreadTimeOut(true);
+        super.start();
+    }
+
+    /**
+     * Stop the processor and its handshake threads.
+     */
+    public synchronized void stop() {
+        super.stop();
+        if (handshakeExecutor != null)
+            handshakeExecutor.shutdownNow();
+    }
+
+    /**
+     * Create the engine for a connection.
+     * 
+     * @param peerAddress -- the address of the peer.
+     * @param peerPort -- the port of the peer.
+     * @param clientMode -- true for a connection we opened.
+     */
+    protected SSLEngine createSSLEngine(InetAddress peerAddress, int peerPort,
+            boolean clientMode) {
+        SSLEngine engine;
+        if (clientMode) {
+            // The host and port are the key for resuming a cached session.
+            engine = sslContext.createSSLEngine(peerAddress.getHostAddress(), peerPort);
+            engine.setUseClientMode(true);
+            String[] protocols = ((SipStackImpl) sipStack).getEnabledProtocols();
+            if (protocols != null)
+                engine.setEnabledProtocols(protocols);
+        } else {
+            engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.setNeedClientAuth(true);
+            String[] cipherSuites = ((SipStackImpl) sipStack).getEnabledCipherSuites();
+            if (cipherSuites != null)
+                engine.setEnabledCipherSuites(cipherSuites);
+        }
+        return engine;
+    }
+
+    /**
+     * @return the pool that runs the delegated tasks of the handshakes.
+     */
+    protected ExecutorService getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    /**
+     * The source of the HandshakeCompletedEvents of the channels. The event wants a socket,
+     * which engine based connections do not have, so they all get an unconnected one.
+     */
+    protected synchronized SSLSocket getEventSocket() throws IOException {
+        if (eventSocket == null)
+            eventSocket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+        return eventSocket;
+    }
+
+    protected NioTcpMessageChannel createMessageChannel(SocketChannel socketChannel,
+            NioSelectorLoop selectorLoop) throws IOException {
+        return new NioTlsMessageChannel(socketChannel, sipStack, this, selectorLoop);
+    }
+
+    protected NioTcpMessageChannel createOutgoingMessageChannel(InetAddress host, int port) {
+        return new NioTlsMessageChannel(host, port, sipStack, this);
+    }
+
+    /**
+     * Return the transport string.
+     * 
+     * @return the transport string
+     */
+    public String getTransport() {
+        return "tls";
+    }
+
+    /**
+     * Default target port for TLS
+     */
+    public int getDefaultTargetPort() {
+        return 5061;
+    }
+
+    /**
+     * TLS is a secure protocol.
+     */
+    public boolean isSecure() {
+        return true;
+    }
+}
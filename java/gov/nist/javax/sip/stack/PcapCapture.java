@@ -0,0 +1,335 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Writes the SIP payloads the stack sends and receives to a pcapng file that
+ * Wireshark can open. Enable it with gov.nist.javax.sip.CAPTURE_FILE (see
+ * {@link gov.nist.javax.sip.SipStackImpl}).
+ * <p>
+ * The message channels hand over the bytes as they go to or come from the
+ * socket (after decryption for TLS) and each payload is recorded as a raw IP
+ * packet with made up IPv4 or IPv6 and UDP or TCP headers. TCP sequence
+ * numbers are kept per connection so that the stream can be followed.
+ * Checksums of the UDP and TCP headers are left at zero, which Wireshark
+ * does not check by default. Records go through an {@link AsyncFileWriter},
+ * so capturing only costs the I/O threads a copy of the payload, and packets
+ * are dropped and counted when the writer falls behind.
+ * <p>
+ * The file is made of one section header block, one interface description
+ * block (LINKTYPE_RAW) and an enhanced packet block per packet, all big
+ * endian. Each file the capture rolls over to starts with the same header.
+ * 
+ * @since 2.0
+ */
+public class PcapCapture {
+
+    /*
+     * Section header block: type, length, byte order magic, version 1.0,
+     * section length unknown, length.
+     */
+    private static final byte[] FILE_HEADER = {
+            0x0a, 0x0d, 0x0d, 0x0a, 0, 0, 0, 28, 0x1a, 0x2b, 0x3c, 0x4d, 0, 1, 0, 0,
+            -1, -1, -1, -1, -1, -1, -1, -1, 0, 0, 0, 28,
+            // Interface description block: type, length, LINKTYPE_RAW, no
+            // snap length, length.
+            0, 0, 0, 1, 0, 0, 0, 20, 0, 101, 0, 0, 0, 0, 0, 0, 0, 0, 0, 20 };
+
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+
+    /*
+     * Block type, length, interface, timestamp, captured and original length
+     * before the packet data and the length again after it.
+     */
+    private static final int BLOCK_OVERHEAD = 32;
+
+    private static final int IPV4_HEADER = 20;
+
+    private static final int IPV6_HEADER = 40;
+
+    private static final int UDP_HEADER = 8;
+
+    private static final int TCP_HEADER = 20;
+
+    private static final int PROTOCOL_TCP = 6;
+
+    private static final int PROTOCOL_UDP = 17;
+
+    private static final int TCP_PSH_ACK = 0x18;
+
+    /**
+     * Larger TCP payloads are split so that every packet fits the 16 bit IP
+     * length field.
+     */
+    private static final int MAX_SEGMENT = 65000;
+
+    private static final byte[] IPV4_MAPPED_PREFIX = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1 };
+
+    private AsyncFileWriter writer;
+
+    /*
+     * Guarded by the writer.
+     */
+    private int ipId;
+
+    /**
+     * The state of one direction pair of a captured TCP or TLS connection.
+     * Message channels keep the flow returned by
+     * {@link PcapCapture#captureStream} and pass it back with the next
+     * payload of the connection.
+     */
+    public static class Flow {
+        private Socket socket;
+
+        private byte[] localAddress;
+
+        private byte[] remoteAddress;
+
+        private int localPort;
+
+        private int remotePort;
+
+        private int localSequence = 1;
+
+        private int remoteSequence = 1;
+    }
+
+    /**
+     * @param sipStack -- the stack to log errors to.
+     * @param fileName -- the capture file. An existing file is replaced.
+     * @param bufferSize -- bytes buffered for the writer thread.
+     * @param maxFileSize -- roll the file over when it is this big.
+     * @param maxFileAge -- roll the file over when it is this many
+     *        milliseconds old, 0 for no limit.
+     * @param maxFiles -- the number of rolled over files to keep.
+     */
+    public PcapCapture(SIPTransactionStack sipStack, String fileName, int bufferSize,
+            long maxFileSize, long maxFileAge, int maxFiles) {
+        if (bufferSize < 2 * (BLOCK_OVERHEAD + IPV6_HEADER + TCP_HEADER + MAX_SEGMENT))
+            throw new IllegalArgumentException("Capture buffer is too small");
+        this.writer = new AsyncFileWriter(sipStack, fileName, FILE_HEADER, bufferSize, true,
+                maxFileSize, maxFileAge, maxFiles, 1000);
+        this.writer.start("PcapCapture");
+    }
+
+    /**
+     * Write out what is buffered and close the file.
+     */
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * @return the number of payloads dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return writer.getDroppedCount();
+    }
+
+    /**
+     * @return the number of payloads captured.
+     */
+    public long getCapturedCount() {
+        return writer.getWrittenCount();
+    }
+
+    /**
+     * Record a UDP datagram.
+     */
+    public void captureDatagram(InetAddress source, int sourcePort, InetAddress destination,
+            int destinationPort, byte[] data, int offset, int length) {
+        byte[] src = source.getAddress();
+        byte[] dst = destination.getAddress();
+        if (src.length != dst.length) {
+            src = toIpv6(src);
+            dst = toIpv6(dst);
+        }
+        long time = System.currentTimeMillis();
+        int packetLength = ipHeaderLength(src) + UDP_HEADER + length;
+        synchronized (writer) {
+            if (!writer.reserve(blockLength(packetLength)))
+                return;
+            putBlockHeader(time, packetLength);
+            putIpHeader(src, dst, PROTOCOL_UDP, packetLength);
+            writer.putShort(sourcePort);
+            writer.putShort(destinationPort);
+            writer.putShort(UDP_HEADER + length);
+            writer.putShort(0);
+            writer.put(data, offset, length);
+            putBlockTrailer(packetLength);
+            writer.commit();
+        }
+    }
+
+    /**
+     * Record bytes sent or received on a TCP or TLS connection.
+     * 
+     * @param flow -- the flow returned for the previous payload of the
+     *        channel or null.
+     * @param socket -- the connection.
+     * @param sent -- true if the stack sent the bytes.
+     * @return the flow to pass in with the next payload.
+     */
+    public Flow captureStream(Flow flow, Socket socket, boolean sent, byte[] data, int offset,
+            int length) {
+        if (length <= 0)
+            return flow;
+        if (flow == null || flow.socket != socket) {
+            InetAddress local = socket.getLocalAddress();
+            InetAddress remote = socket.getInetAddress();
+            if (local == null || remote == null)
+                return flow;
+            flow = new Flow();
+            flow.socket = socket;
+            flow.localAddress = local.getAddress();
+            flow.remoteAddress = remote.getAddress();
+            if (flow.localAddress.length != flow.remoteAddress.length) {
+                flow.localAddress = toIpv6(flow.localAddress);
+                flow.remoteAddress = toIpv6(flow.remoteAddress);
+            }
+            flow.localPort = socket.getLocalPort();
+            flow.remotePort = socket.getPort();
+        }
+        long time = System.currentTimeMillis();
+        int headerLength = ipHeaderLength(flow.localAddress) + TCP_HEADER;
+        int segments = (length + MAX_SEGMENT - 1) / MAX_SEGMENT;
+        int total = segments * blockLength(headerLength) + length + 3 * segments;
+        synchronized (writer) {
+            boolean reserved = writer.reserve(total);
+            for (int done = 0; done < length; done += MAX_SEGMENT) {
+                int segment = Math.min(MAX_SEGMENT, length - done);
+                int sequence;
+                int ack;
+                if (sent) {
+                    sequence = flow.localSequence;
+                    ack = flow.remoteSequence;
+                    flow.localSequence += segment;
+                } else {
+                    sequence = flow.remoteSequence;
+                    ack = flow.localSequence;
+                    flow.remoteSequence += segment;
+                }
+                if (!reserved)
+                    continue;
+                int packetLength = headerLength + segment;
+                putBlockHeader(time, packetLength);
+                if (sent) {
+                    putIpHeader(flow.localAddress, flow.remoteAddress, PROTOCOL_TCP, packetLength);
+                    writer.putShort(flow.localPort);
+                    writer.putShort(flow.remotePort);
+                } else {
+                    putIpHeader(flow.remoteAddress, flow.localAddress, PROTOCOL_TCP, packetLength);
+                    writer.putShort(flow.remotePort);
+                    writer.putShort(flow.localPort);
+                }
+                writer.putInt(sequence);
+                writer.putInt(ack);
+                writer.putShort((TCP_HEADER / 4) << 12 | TCP_PSH_ACK);
+                writer.putShort(0xffff);
+                writer.putInt(0);
+                writer.put(data, offset + done, segment);
+                putBlockTrailer(packetLength);
+            }
+            if (reserved)
+                writer.commit();
+        }
+        return flow;
+    }
+
+    private static byte[] toIpv6(byte[] address) {
+        if (address.length == 16)
+            return address;
+        byte[] mapped = new byte[16];
+        System.arraycopy(IPV4_MAPPED_PREFIX, 0, mapped, 0, 12);
+        System.arraycopy(address, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    private static int ipHeaderLength(byte[] address) {
+        return address.length == 4 ? IPV4_HEADER : IPV6_HEADER;
+    }
+
+    /**
+     * The length of the block for a packet. The packet data is padded to 32
+     * bits.
+     */
+    private static int blockLength(int packetLength) {
+        return BLOCK_OVERHEAD + ((packetLength + 3) & ~3);
+    }
+
+    private void putBlockHeader(long time, int packetLength) {
+        long micros = time * 1000;
+        writer.putInt(ENHANCED_PACKET_BLOCK);
+        writer.putInt(blockLength(packetLength));
+        writer.putInt(0);
+        writer.putLong(micros);
+        writer.putInt(packetLength);
+        writer.putInt(packetLength);
+    }
+
+    private void putBlockTrailer(int packetLength) {
+        for (int i = packetLength; (i & 3) != 0; i++)
+            writer.putByte(0);
+        writer.putInt(blockLength(packetLength));
+    }
+
+    private void putIpHeader(byte[] src, byte[] dst, int protocol, int packetLength) {
+        if (src.length == 4) {
+            int id = ipId++ & 0xffff;
+            // Version 4, 20 byte header, don't fragment, ttl 64.
+            int checksum = 0x4500 + packetLength + id + 0x4000 + (64 << 8 | protocol)
+                    + sum(src) + sum(dst);
+            while ((checksum >>> 16) != 0)
+                checksum = (checksum & 0xffff) + (checksum >>> 16);
+            writer.putShort(0x4500);
+            writer.putShort(packetLength);
+            writer.putShort(id);
+            writer.putShort(0x4000);
+            writer.putShort(64 << 8 | protocol);
+            writer.putShort(~checksum);
+            writer.put(src, 0, 4);
+            writer.put(dst, 0, 4);
+        } else {
+            writer.putInt(0x60000000);
+            writer.putShort(packetLength - IPV6_HEADER);
+            writer.putShort(protocol << 8 | 64);
+            writer.put(src, 0, 16);
+            writer.put(dst, 0, 16);
+        }
+    }
+
+    private static int sum(byte[] address) {
+        return ((address[0] & 0xff) << 8 | (address[1] & 0xff))
+                + ((address[2] & 0xff) << 8 | (address[3] & 0xff));
+    }
+}
@@ -47,7 +47,6 @@ import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.util.ListIterator;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -207,75 +206,6 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 
     private int callingStateTimeoutCount;
 
-    public class TransactionTimer extends SIPStackTimerTask {
-
-        public TransactionTimer() {
-
-        }
-
-        protected void runTask() {
-            SIPClientTransaction clientTransaction;
-            SIPTransactionStack sipStack;
-            clientTransaction = SIPClientTransaction.this;
-            sipStack = clientTransaction.sipStack;
-
-            // If the transaction has terminated,
-            if (clientTransaction.isTerminated()) {
-
-                if (sipStack.isLoggingEnabled()) {
-                    sipStack.getStackLogger().logDebug(
-                            "removing  = " + clientTransaction + " isReliable "
-                                    + clientTransaction.isReliable());
-                }
-
-                sipStack.removeTransaction(clientTransaction);
-
-                try {
-                    this.cancel();
-
-                } catch (IllegalStateException ex) {
-                    if (!sipStack.isAlive())
-                        return;
-                }
-
-                // Client transaction terminated. Kill connection if
-                // this is a TCP after the linger timer has expired.
-                // The linger timer is needed to allow any pending requests to
-                // return responses.
-                if ((!sipStack.cacheClientConnections) && clientTransaction.isReliable()) {
-
-                    int newUseCount = --clientTransaction.getMessageChannel().useCount;
-                    if (newUseCount <= 0) {
-                        // Let the connection linger for a while and then close
-                        // it.
-                        TimerTask myTimer = new LingerTimer();
-                        sipStack.getTimer().schedule(myTimer,
-                                SIPTransactionStack.CONNECTION_LINGER_TIME * 1000);
-                    }
-
-                } else {
-                    // Cache the client connections so dont close the
-                    // connection. This keeps the connection open permanently
-                    // until the client disconnects.
-                    if (sipStack.isLoggingEnabled() && clientTransaction.isReliable()) {
-                       	int useCount = clientTransaction.getMessageChannel().useCount;
-                       	if (sipStack.isLoggingEnabled())
-                       		sipStack.getStackLogger().logDebug("Client Use Count = " + useCount);
-                    }
-                }
-
-            } else {
-                // If this transaction has not
-                // terminated,
-                // Fire the transaction timer.
-                clientTransaction.fireTimer();
-
-            }
-
-        }
-
-    }
-
     /**
      * Creates a new client transaction.
      * 
@@ -509,6 +439,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
         if ((TransactionState.COMPLETED == this.getState() || TransactionState.TERMINATED == this
                 .getState())
                 && transactionResponse.getStatusCode() / 100 == 1) {
+            sipStack.getStackMetrics().getRetransmissionsAbsorbed().increment();
             return;
         }
 
@@ -609,7 +540,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
         if (TransactionState.TRYING == this.getState()) {
             if (statusCode / 100 == 1) {
                 this.setState(TransactionState.PROCEEDING);
-                enableRetransmissionTimer(MAXIMUM_RETRANSMISSION_TICK_COUNT);
+                enableRetransmissionTimer(T2);
                 enableTimeoutTimer(TIMER_F);
                 // According to RFC, the TU has to be informed on
                 // this transition.
@@ -659,6 +590,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
                 sipStack.getStackLogger().logDebug(
                         " Not sending response to TU! " + getState());
             }
+            sipStack.getStackMetrics().getRetransmissionsAbsorbed().increment();
             this.semRelease();
         }
     }
@@ -865,6 +797,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
             }
         } else if (TransactionState.COMPLETED == this.getState()) {
             if (300 <= statusCode && statusCode <= 699) {
+                sipStack.getStackMetrics().getRetransmissionsAbsorbed().increment();
                 // Send back an ACK request
                 try {
                     sendMessage((SIPRequest) createErrorAck());
@@ -968,6 +901,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 
         } catch (IOException ex) {
             this.setState(TransactionState.TERMINATED);
+            sipStack.markHopFailed(this.nextHop);
             throw new SipException("IO Error sending request", ex);
 
         }
@@ -1008,8 +942,11 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
                             InternalErrorHandler.handleException(ex);
                         }
                         lastRequest.setHeader(timeStamp);
+                        // The request changed so it has to be encoded again.
+                        super.sendMessage(lastRequest);
+                    } else {
+                        super.resendMessage(lastRequest);
                     }
-                    super.sendMessage(lastRequest);
                     if (this.notifyOnRetransmit) {
                         TimeoutEvent txTimeout = new TimeoutEvent(this.getSipProvider(), this,
                                 Timeout.RETRANSMIT);
@@ -1030,6 +967,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 
             }
         } catch (IOException e) {
+            sipStack.markHopFailed(this.nextHop);
             this.raiseIOExceptionEvent();
             raiseErrorEvent(SIPTransactionErrorEvent.TRANSPORT_ERROR);
         }
@@ -1071,6 +1009,9 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
             }
         }
         if (TransactionState.COMPLETED != this.getState()) {
+            // Nothing at all came back from the next hop: try another one next time.
+            if (this.lastResponse == null)
+                sipStack.markHopFailed(this.nextHop);
             raiseErrorEvent(SIPTransactionErrorEvent.TIMEOUT_ERROR);
             // Got a timeout error on a cancel.
             if (this.getOriginalRequest().getMethod().equalsIgnoreCase(Request.CANCEL)) {
@@ -1300,14 +1241,39 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
     }
 
     /**
-     * Start the timer task.
+     * Remove the terminated transaction from the stack.
      */
-    protected  void startTransactionTimer() {
-        if (this.transactionTimerStarted.compareAndSet(false, true)) {
-	        TimerTask myTimer = new TransactionTimer();
-	        if ( sipStack.getTimer() != null ) {
-	            sipStack.getTimer().schedule(myTimer, BASE_TIMER_INTERVAL, BASE_TIMER_INTERVAL);
-	        }
+    protected void fireTerminatedTimer() {
+        if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug(
+                    "removing  = " + this + " isReliable " + this.isReliable());
+        }
+
+        sipStack.removeTransaction(this);
+
+        // Client transaction terminated. Kill connection if
+        // this is a TCP after the linger timer has expired.
+        // The linger timer is needed to allow any pending requests to
+        // return responses.
+        if ((!sipStack.cacheClientConnections) && this.isReliable()) {
+
+            int newUseCount = --this.getMessageChannel().useCount;
+            if (newUseCount <= 0) {
+                // Let the connection linger for a while and then close
+                // it.
+                SIPStackTimerTask myTimer = new LingerTimer();
+                sipStack.getSipTimer().schedule(myTimer,
+                        SIPTransactionStack.CONNECTION_LINGER_TIME * 1000);
+            }
+
+        } else {
+            // Cache the client connections so dont close the
+            // connection. This keeps the connection open permanently
+            // until the client disconnects.
+            if (sipStack.isLoggingEnabled() && this.isReliable()) {
+                int useCount = this.getMessageChannel().useCount;
+                sipStack.getStackLogger().logDebug("Client Use Count = " + useCount);
+            }
         }
     }
 
@@ -1373,6 +1339,11 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
             dialog = this.getDialog(dialogId);
         }
 
+        // An outbound registration keeps its connection alive.
+        if (method.equals(Request.REGISTER) && sipResponse.getStatusCode() / 100 == 2)
+            sipStack.getConnectionManager().registerResponse(getOriginalRequest(), sipResponse,
+                    getMessageChannel());
+
         // JvB: Check all conditions required for creating a new Dialog
         if (dialog == null) {
             int code = sipResponse.getStatusCode();
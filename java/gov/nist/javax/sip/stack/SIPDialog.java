@@ -59,6 +59,8 @@ import gov.nist.javax.sip.message.MessageFactoryImpl;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.replication.ApplicationDataSerializer;
+import gov.nist.javax.sip.stack.replication.DialogStore;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -188,10 +190,6 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
     protected transient Long nextSeqno;
 
-    private transient int retransmissionTicksLeft;
-
-    private transient int prevRetransmissionTicks;
-
     private long originalLocalSequenceNumber;
 
     // This is for debugging only.
@@ -271,6 +269,9 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
     protected int firstTransactionPort = 5060;   
     protected Contact contactHeader;
 
+    // Set once a snapshot of this dialog is in the dialog store of the stack.
+    private transient boolean snapshotStored;
+
     // //////////////////////////////////////////////////////
     // Inner classes
     // //////////////////////////////////////////////////////
@@ -384,13 +385,18 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
     }
 
     class DialogTimerTask extends SIPStackTimerTask implements Serializable {
-        int nRetransmissions;
+        // Milliseconds to the next retransmission.
+        int interval;
+
+        // When the dialog gives up on the ACK.
+        long deadline;
 
         SIPServerTransaction transaction;
 
         public DialogTimerTask(SIPServerTransaction transaction) {
             this.transaction = transaction;
-            this.nRetransmissions = 0;
+            this.interval = transaction.T1;
+            this.deadline = System.currentTimeMillis() + transaction.TIMER_H;
         }
 
         protected void runTask() {
@@ -399,8 +405,14 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             SIPDialog dialog = SIPDialog.this;
             if (sipStack.isLoggingEnabled())
                 sipStack.getStackLogger().logDebug("Running dialog timer");
-            nRetransmissions++;
             SIPServerTransaction transaction = this.transaction;
+            // Stop running this timer if the dialog is in the
+            // confirmed state or ack seen if retransmit filter on.
+            if (dialog.timerTask != this || transaction == null || dialog.isAckSeen()
+                    || dialog.dialogState == TERMINATED_STATE) {
+                this.transaction = null;
+                return;
+            }
             /*
              * Issue 106. Section 13.3.1.4 RFC 3261 The 2xx response is passed to the transport
              * with an interval that starts at T1 seconds and doubles for each retransmission
@@ -408,56 +420,41 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
              * seconds without receiving an ACK, the dialog is confirmed, but the session SHOULD
              * be terminated.
              */
-
-            if (nRetransmissions > 64 * SIPTransaction.T1) {
+            long now = System.currentTimeMillis();
+            if (now >= this.deadline) {
                 if (sipProvider.getSipListener() != null && sipProvider.getSipListener() instanceof SipListenerExt ) {
                     raiseErrorEvent(SIPDialogErrorEvent.DIALOG_ACK_NOT_RECEIVED_TIMEOUT);
                 } else  {
                     dialog.delete();
                 }
-                if (transaction != null
-                        && transaction.getState() != javax.sip.TransactionState.TERMINATED) {
+                if (transaction.getState() != javax.sip.TransactionState.TERMINATED) {
                     transaction.raiseErrorEvent(SIPTransactionErrorEvent.TIMEOUT_ERROR);  
                 }
-            } else if ((!dialog.ackSeen) && (transaction != null)) {
-                // Retransmit to 200 until ack receivedialog.
-                SIPResponse response = transaction.getLastResponse();
-                if (response.getStatusCode() == 200) {
-                    try {
-
-                        // resend the last response.
-                        if (dialog.toRetransmitFinalResponse(transaction.T2))
-                            transaction.sendMessage(response);
-
-                    } catch (IOException ex) {
-
-                        raiseIOException(transaction.getPeerAddress(), transaction.getPeerPort(),
-                                transaction.getPeerProtocol());
-
-                    } finally {
-                        // Need to fire the timer so
-                        // transaction will eventually
-                        // time out whether or not
-                        // the IOException occurs
-                        // Note that this firing also
-                        // drives Listener timeout.
-                        SIPTransactionStack stack = dialog.sipStack;
-                        if (stack.isLoggingEnabled()) {
-                            stack.getStackLogger().logDebug("resend 200 response from " + dialog);
-                        }
-                        transaction.fireTimer();
+                return;
+            }
+            // Retransmit to 200 until ack receivedialog.
+            SIPResponse response = transaction.getLastResponse();
+            if (response.getStatusCode() == 200) {
+                try {
+                    // resend the last response.
+                    sipStack.getStackMetrics().getRetransmissionsSent().increment();
+                    transaction.sendMessage(response);
+                } catch (IOException ex) {
+
+                    raiseIOException(transaction.getPeerAddress(), transaction.getPeerPort(),
+                            transaction.getPeerProtocol());
+
+                } finally {
+                    SIPTransactionStack stack = dialog.sipStack;
+                    if (stack.isLoggingEnabled()) {
+                        stack.getStackLogger().logDebug("resend 200 response from " + dialog);
                     }
                 }
             }
-
-            // Stop running this timer if the dialog is in the
-            // confirmed state or ack seen if retransmit filter on.
-            if (dialog.isAckSeen() || dialog.dialogState == TERMINATED_STATE) {
-                this.transaction = null;
-                this.cancel();
-
-            }
-
+            this.interval = Math.min(2 * this.interval, transaction.T2);
+            // The last run lands on the deadline.
+            if (sipStack.getSipTimer() != null)
+                sipStack.getSipTimer().schedule(this, Math.min(this.interval, this.deadline - now));
         }
 
     }
@@ -630,6 +627,55 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         addEventListener(sipStack);
     }
 
+    /**
+     * Restore a confirmed dialog from the snapshot written to the dialog store.
+     * 
+     * @param sipProvider -- the provider the dialog sends its requests with.
+     * @param snapshot -- the last snapshot of the dialog.
+     * @throws ParseException if a header or address of the snapshot does not parse.
+     */
+    SIPDialog(SipProviderImpl sipProvider, DialogSnapshot snapshot) throws ParseException {
+        this(sipProvider);
+        this.sipStack = (SIPTransactionStack) sipProvider.getSipStack();
+        this.dialogId = snapshot.dialogId;
+        this.method = snapshot.method;
+        this.myTag = snapshot.localTag;
+        this.hisTag = snapshot.remoteTag;
+        this.localParty = DialogSnapshot.parseAddress(snapshot.localParty);
+        this.remoteParty = DialogSnapshot.parseAddress(snapshot.remoteParty);
+        this.remoteTarget = DialogSnapshot.parseAddress(snapshot.remoteTarget);
+        if (snapshot.routeSet != null)
+            this.routeList = (RouteList) DialogSnapshot.parseHeader(snapshot.routeSet);
+        this.localSequenceNumber = snapshot.localSequenceNumber;
+        this.remoteSequenceNumber = snapshot.remoteSequenceNumber;
+        this.originalLocalSequenceNumber = snapshot.originalLocalSequenceNumber;
+        this.lastResponse = snapshot.createLastResponse();
+        this.callIdHeader = lastResponse.getCallId();
+        this.serverTransactionFlag = snapshot.server;
+        // The first transaction is not replicated, only what the dialog keeps of it.
+        this.firstTransactionSeen = snapshot.firstTransactionId != null;
+        this.firstTransactionIsServerTransaction = snapshot.server;
+        this.firstTransactionSecure = snapshot.secure;
+        this.firstTransactionMethod = snapshot.firstTransactionMethod;
+        this.firstTransactionId = snapshot.firstTransactionId;
+        this.firstTransactionPort = snapshot.firstTransactionPort;
+        this.terminateOnBye = snapshot.terminateOnBye;
+        this.eventHeader = (EventHeader) DialogSnapshot.parseHeader(snapshot.eventHeader);
+        this.contactHeader = snapshot.parseContactHeader();
+        this.dialogState = snapshot.state;
+        this.ackSeen = true;
+        this.ackProcessed = true;
+        this.isAcknowledged = true;
+        this.snapshotStored = true;
+        ApplicationDataSerializer serializer = sipStack.getApplicationDataSerializer();
+        if (snapshot.applicationData != null && serializer != null)
+            this.applicationData = serializer.deserialize(this, snapshot.applicationData);
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug("Restored dialog : " + this);
+        this.isBackToBackUserAgent = sipStack.isBackToBackUserAgent;
+        addEventListener(sipStack);
+    }
+
     // ///////////////////////////////////////////////////////////
     // Private methods
     // ///////////////////////////////////////////////////////////
@@ -815,7 +861,46 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             sipStack.getStackLogger().logDebug("Dialog.setRemoteTarget: " + this.remoteTarget);
             sipStack.getStackLogger().logStackTrace();
         }
+        storeSnapshot();
+    }
 
+    /**
+     * Hand the state of this dialog to the dialog store of the stack, if it has one and the
+     * dialog is confirmed. The snapshot is complete but small, so it is simply rewritten on each
+     * change. It is taken under the dialog lock; the store writes it out from its own thread.
+     */
+    private synchronized void storeSnapshot() {
+        DialogStore dialogStore = sipStack.getDialogStore();
+        if (dialogStore == null || this.dialogState != CONFIRMED_STATE
+                || this.lastResponse == null || this.getDialogId() == null)
+            return;
+        try {
+            byte[] data = null;
+            ApplicationDataSerializer serializer = sipStack.getApplicationDataSerializer();
+            if (serializer != null && this.applicationData != null)
+                data = serializer.serialize(this, this.applicationData);
+            dialogStore.put(this.getDialogId(), new DialogSnapshot(this, data).encode());
+            this.snapshotStored = true;
+        } catch (Exception ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logError("Could not store dialog " + this, ex);
+        }
+    }
+
+    /**
+     * Remove the snapshot of this dialog from the dialog store once it is terminated.
+     */
+    private synchronized void removeSnapshot() {
+        DialogStore dialogStore = sipStack.getDialogStore();
+        if (!this.snapshotStored || dialogStore == null)
+            return;
+        this.snapshotStored = false;
+        try {
+            dialogStore.remove(this.getDialogId());
+        } catch (IOException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logError("Could not remove stored dialog " + this, ex);
+        }
     }
 
     /**
@@ -982,7 +1067,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             if (lp == null)
                 throw new SipException("No listening point for this provider registered at "
                         + hop);
-            InetAddress inetAddress = InetAddress.getByName(hop.getHost());
+            InetAddress inetAddress = sipStack.getInetAddress(hop.getHost());
             MessageChannel messageChannel = lp.getMessageProcessor().createMessageChannel(
                     inetAddress, hop.getPort());
             boolean releaseAckSem = false;
@@ -1139,6 +1224,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      */
     public void setApplicationData(Object applicationData) {
         this.applicationData = applicationData;
+        storeSnapshot();
     }
 
     /*
@@ -1192,13 +1278,13 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * 
      */
     public void doDeferredDelete() {
-        if (sipStack.getTimer() == null)
+        if (sipStack.getSipTimer() == null)
             this.setState(TERMINATED_STATE);
         else {
             this.dialogDeleteTask = new DialogDeleteTask();
             // Delete the transaction after the max ack timeout.
-            sipStack.getTimer().schedule(this.dialogDeleteTask,
-                    SIPTransaction.TIMER_H * SIPTransactionStack.BASE_TIMER_INTERVAL);
+            sipStack.getSipTimer().schedule(this.dialogDeleteTask,
+                    64 * sipStack.getTimerT1());
         }
 
     }
@@ -1224,13 +1310,15 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
         }
         this.dialogState = state;
+        if (state == CONFIRMED_STATE)
+            storeSnapshot();
         // Dialog is in terminated state set it up for GC.
         if (state == TERMINATED_STATE) {
-            if (sipStack.getTimer() != null) { // may be null after shutdown
-                sipStack.getTimer().schedule(new LingerTimer(), DIALOG_LINGER_TIME * 1000);
+            if (sipStack.getSipTimer() != null) { // may be null after shutdown
+                sipStack.getSipTimer().schedule(new LingerTimer(), DIALOG_LINGER_TIME * 1000);
             }
             this.stopTimer();
-
+            removeSnapshot();
         }
     }
 
@@ -1630,6 +1718,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         if (lCseq <= this.localSequenceNumber)
             throw new RuntimeException("Sequence number should not decrease !");
         this.localSequenceNumber = lCseq;
+        storeSnapshot();
     }
 
     /**
@@ -1642,6 +1731,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         if (sipStack.isLoggingEnabled())
             sipStack.getStackLogger().logDebug("setRemoteSeqno " + this + "/" + rCseq);
         this.remoteSequenceNumber = rCseq;
+        storeSnapshot();
     }
 
     /**
@@ -1651,6 +1741,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      */
     public void incrementLocalSequenceNumber() {
         ++this.localSequenceNumber;
+        storeSnapshot();
     }
 
     /**
@@ -2181,6 +2272,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             // Increment before setting!!
             localSequenceNumber++;
             dialogRequest.getCSeq().setSeqNumber(getLocalSeqNumber());
+            storeSnapshot();
         } catch (InvalidArgumentException ex) {
             sipStack.getStackLogger().logFatalError(ex.getMessage());
         }
@@ -2206,27 +2298,6 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
     }
 
-    /**
-     * Return yes if the last response is to be retransmitted.
-     */
-    private boolean toRetransmitFinalResponse(int T2) {
-        if (--retransmissionTicksLeft == 0) {
-            if (2 * prevRetransmissionTicks <= T2)
-                this.retransmissionTicksLeft = 2 * prevRetransmissionTicks;
-            else
-                this.retransmissionTicksLeft = prevRetransmissionTicks;
-            this.prevRetransmissionTicks = retransmissionTicksLeft;
-            return true;
-        } else
-            return false;
-
-    }
-
-    protected void setRetransmissionTicks() {
-        this.retransmissionTicksLeft = 1;
-        this.prevRetransmissionTicks = 1;
-    }
-
     /**
      * Resend the last ack.
      */
@@ -2278,17 +2349,14 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 		acquireTimerTaskSem();
 		try {
 	        if (this.timerTask != null) {
-	            this.timerTask.transaction = transaction;
-	        } else {
-	            this.timerTask = new DialogTimerTask(transaction);
-	            sipStack.getTimer().schedule(timerTask, SIPTransactionStack.BASE_TIMER_INTERVAL,
-	                    SIPTransactionStack.BASE_TIMER_INTERVAL);
+	            this.timerTask.cancel();
 	        }
+	        // A new 2xx restarts the retransmissions at T1.
+	        this.timerTask = new DialogTimerTask(transaction);
+	        sipStack.getSipTimer().schedule(timerTask, transaction.T1);
 		} finally {
 			releaseTimerTaskSem();
 		}
-        
-        this.setRetransmissionTicks();
     }
 
     /**
@@ -3265,15 +3333,14 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
     }
     
     public synchronized void doDeferredDeleteIfNoAckSent(long seqno) {
-		if (sipStack.getTimer() == null) {
+		if (sipStack.getSipTimer() == null) {
 			this.setState(TERMINATED_STATE);
 		} else if(dialogDeleteIfNoAckSentTask == null){
 			// Delete the transaction after the max ack timeout.
 			dialogDeleteIfNoAckSentTask = new DialogDeleteIfNoAckSentTask(seqno);
-			sipStack.getTimer().schedule(
+			sipStack.getSipTimer().schedule(
 					dialogDeleteIfNoAckSentTask,
-					SIPTransaction.TIMER_J
-							* SIPTransactionStack.BASE_TIMER_INTERVAL);
+					64 * sipStack.getTimerT1());
 		}
 	}
 
@@ -41,7 +41,6 @@ import gov.nist.javax.sip.message.SIPResponse;
 
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -212,37 +211,33 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
 
         String dialogId;
 
-        int ticks;
-
-        int ticksLeft;
+        int interval;
 
         public RetransmissionAlertTimerTask(String dialogId) {
-
-            this.ticks = SIPTransaction.T1;
-            this.ticksLeft = this.ticks;
+            this.dialogId = dialogId;
+            this.interval = T1;
         }
 
         protected void runTask() {
             SIPServerTransaction serverTransaction = SIPServerTransaction.this;
-            ticksLeft--;
-            if (ticksLeft == -1) {
-                serverTransaction.fireRetransmissionTimer();
-                this.ticksLeft = 2 * ticks;
-            }
-
+            if (serverTransaction.retransmissionAlertTimerTask != this)
+                return;
+            serverTransaction.fireRetransmissionTimer();
+            // The application retransmits the 2xx, alert it with an interval that
+            // doubles until it reaches T2.
+            this.interval = Math.min(2 * this.interval, T2);
+            if (sipStack.getSipTimer() != null)
+                sipStack.getSipTimer().schedule(this, this.interval);
         }
 
     }
 
     class ProvisionalResponseTask extends SIPStackTimerTask {
 
-        int ticks;
-
-        int ticksLeft;
+        int interval;
 
         public ProvisionalResponseTask() {
-            this.ticks = SIPTransaction.T1;
-            this.ticksLeft = this.ticks;
+            this.interval = T1;
         }
 
         protected void runTask() {
@@ -258,27 +253,22 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
              * seconds. This is because retransmissions of ACK are triggered on receipt of a 2xx,
              * but retransmissions of PRACK take place independently of reception of 1xx.
              */
-            // If the transaction has terminated,
-            if (serverTransaction.isTerminated()) {
-
-                this.cancel();
-
-            } else {
-                ticksLeft--;
-                if (ticksLeft == -1) {
-                    serverTransaction.fireReliableResponseRetransmissionTimer();
-                    this.ticksLeft = 2 * ticks;
-                    this.ticks = this.ticksLeft;
-                    // timer H MUST be set to fire in 64*T1 seconds for all transports. Timer H
-                    // determines when the server
-                    // transaction abandons retransmitting the response
-                    if (this.ticksLeft >= SIPTransaction.TIMER_H) {
-                        this.cancel();
-                        setState(TERMINATED_STATE);
-                        fireTimeoutTimer();
-                    }
-                }
-
+            // If the transaction has terminated or the PRACK came in,
+            if (serverTransaction.isTerminated()
+                    || serverTransaction.provisionalResponseTask != this
+                    || serverTransaction.pendingReliableResponse == null) {
+                return;
+            }
+            serverTransaction.fireReliableResponseRetransmissionTimer();
+            this.interval = 2 * this.interval;
+            // timer H MUST be set to fire in 64*T1 seconds for all transports. Timer H
+            // determines when the server
+            // transaction abandons retransmitting the response
+            if (this.interval >= TIMER_H) {
+                setState(TERMINATED_STATE);
+                fireTimeoutTimer();
+            } else if (sipStack.getSipTimer() != null) {
+                sipStack.getSipTimer().schedule(this, this.interval);
             }
 
         }
@@ -350,50 +340,6 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
         }
     }
 
-    class TransactionTimer extends SIPStackTimerTask {
-
-        public TransactionTimer() {
-            if (sipStack.isLoggingEnabled()) {
-                sipStack.getStackLogger().logDebug("TransactionTimer() : " + getTransactionId());
-            }
-
-        }
-
-        protected void runTask() {
-            // If the transaction has terminated,
-            if (isTerminated()) {
-                // Keep the transaction hanging around in the transaction table
-                // to catch the incoming ACK -- this is needed for tcp only.
-                // Note that the transaction record is actually removed in
-                // the connection linger timer.
-                try {
-                    this.cancel();
-                } catch (IllegalStateException ex) {
-                    if (!sipStack.isAlive())
-                        return;
-                }
-
-                // Oneshot timer that garbage collects the SeverTransaction
-                // after a scheduled amount of time. The linger timer allows
-                // the client side of the tx to use the same connection to
-                // send an ACK and prevents a race condition for creation
-                // of new server tx
-                TimerTask myTimer = new LingerTimer();
-
-                sipStack.getTimer().schedule(myTimer,
-                        SIPTransactionStack.CONNECTION_LINGER_TIME * 1000);
-
-            } else {
-                // Add to the fire list -- needs to be moved
-                // outside the synchronized block to prevent
-                // deadlock.
-                fireTimer();
-
-            }
-        }
-
-    }
-
     /**
      * Send a response.
      *
@@ -434,12 +380,6 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                 int port = via.getRPort();
                 if (port == -1)
                     port = via.getPort();
-                if (port == -1) {
-                    if (transport.equalsIgnoreCase("TLS"))
-                        port = 5061;
-                    else
-                        port = 5060;
-                }
 
                 // Otherwise, if the Via header field value contains a
                 // "maddr" parameter, the response MUST be forwarded to
@@ -468,14 +408,24 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                         // Otherwise, if it is not receiver-tagged, the response
                         // MUST be
                         // sent to the address indicated by the "sent-by" value,
-                        // using the procedures in Section 5
-                        // RFC 3263 PROCEDURE TO BE DONE HERE
+                        // using the procedures in Section 5. That is up to the
+                        // address resolver, which gets no port so it may use SRV.
                         host = via.getHost();
                     }
                 }
+                if (port == -1 && !host.equals(via.getHost())) {
+                    if (transport.equalsIgnoreCase("TLS"))
+                        port = 5061;
+                    else
+                        port = 5060;
+                }
 
                 Hop hop = sipStack.addressResolver.resolveAddress(new HopImpl(host, port,
                         transport));
+                if (hop.getPort() == -1) {
+                    hop = new HopImpl(hop.getHost(), MessageProcessor.getDefaultPort(transport),
+                            hop.getTransport());
+                }
 
                 MessageChannel messageChannel = ((SIPTransactionStack) getSIPStack())
                         .createRawMessageChannel(this.getSipProvider().getListeningPoint(
@@ -502,7 +452,7 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
         super(sipStack, newChannelToUse);
 
         if (sipStack.maxListenerResponseTime != -1) {
-            sipStack.getTimer().schedule(new ListenerExecutionMaxTimer(),
+            sipStack.getSipTimer().schedule(new ListenerExecutionMaxTimer(),
                     sipStack.maxListenerResponseTime * 1000);
         }
 
@@ -676,11 +626,11 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
             // be
             // sent by intermediate proxies. This fixes some TCK tests
             // null check added as the stack may be stopped.
-            if (isInviteTransaction() && !this.isMapped && sipStack.getTimer() != null) {
+            if (isInviteTransaction() && !this.isMapped && sipStack.getSipTimer() != null) {
                 this.isMapped = true;
                 // Schedule a timer to fire in 200 ms if the
                 // TU did not send a trying in that time.
-                sipStack.getTimer().schedule(new SendTrying(), 200);
+                sipStack.getSipTimer().schedule(new SendTrying(), 200);
 
             } else {
                 isMapped = true;
@@ -781,13 +731,14 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
 
                 if (TransactionState.PROCEEDING == getRealState()
                         || TransactionState.COMPLETED == getRealState()) {
+                    sipStack.getStackMetrics().getRetransmissionsAbsorbed().increment();
                     this.semRelease();
                     // Resend the last response to
                     // the client
                     if (lastResponse != null) {
 
                         // Send the message to the client
-                        super.sendMessage(lastResponse);
+                        super.resendMessage(lastResponse);
 
                     }
                 } else if (transactionRequest.getMethod().equals(Request.ACK)) {
@@ -976,8 +927,6 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                             this.disableTimeoutTimer();
                             this.collectionTime = TIMER_J;
                             this.setState(TransactionState.TERMINATED);
-                            if (this.dialog != null)
-                                this.dialog.setRetransmissionTicks();
                         } else {
                             // This an error final response.
                             this.setState(TransactionState.COMPLETED);
@@ -1017,8 +966,6 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                         this.disableTimeoutTimer();
                         this.collectionTime = TIMER_J;
                         this.setState(TransactionState.TERMINATED);
-                        if (this.dialog != null)
-                            this.dialog.setRetransmissionTicks();
 
                     } else if (300 <= statusCode && statusCode <= 699) {
 
@@ -1119,7 +1066,7 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                 if (!this.retransmissionAlertEnabled || sipStack.isTransactionPendingAck(this) ) {
                     // Retransmit last response until ack.
                     if (lastResponse.getStatusCode() / 100 > 2 && !this.isAckSeen)
-                        super.sendMessage(lastResponse);
+                        super.resendMessage(lastResponse);
                 } else {
                     // alert the application to retransmit the last response
                     SipProviderImpl sipProvider = (SipProviderImpl) this.getSipProvider();
@@ -1387,8 +1334,7 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
 
                 this.retransmissionAlertTimerTask = new RetransmissionAlertTimerTask(dialogId);
                 sipStack.retransmissionAlertTransactions.put(dialogId, this);
-                sipStack.getTimer().schedule(this.retransmissionAlertTimerTask, 0,
-                        SIPTransactionStack.BASE_TIMER_INTERVAL);
+                sipStack.getSipTimer().schedule(this.retransmissionAlertTimerTask, T1);
 
             }
 
@@ -1457,17 +1403,20 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
     }
 
     /**
-     * Start the timer task.
+     * Keep the transaction hanging around in the transaction table to catch
+     * the incoming ACK -- this is needed for tcp only. Note that the
+     * transaction record is actually removed in the connection linger timer.
      */
-    protected void startTransactionTimer() {
-        if (this.transactionTimerStarted.compareAndSet(false, true)) {
-        	if (sipStack.getTimer() != null) {
-                // The timer is set to null when the Stack is
-                // shutting down.
-                TimerTask myTimer = new TransactionTimer();
-                sipStack.getTimer().schedule(myTimer, BASE_TIMER_INTERVAL, BASE_TIMER_INTERVAL);
-            }
-        }        
+    protected void fireTerminatedTimer() {
+        // Oneshot timer that garbage collects the SeverTransaction
+        // after a scheduled amount of time. The linger timer allows
+        // the client side of the tx to use the same connection to
+        // send an ACK and prevents a race condition for creation
+        // of new server tx
+        SIPStackTimerTask myTimer = new LingerTimer();
+
+        sipStack.getSipTimer().schedule(myTimer,
+                SIPTransactionStack.CONNECTION_LINGER_TIME * 1000);
     }
 
     public boolean equals(Object other) {
@@ -1569,8 +1518,7 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
             }
             this.sendMessage((SIPMessage) relResponse);
             this.provisionalResponseTask = new ProvisionalResponseTask();
-            this.sipStack.getTimer().schedule(provisionalResponseTask, 0,
-                    SIPTransactionStack.BASE_TIMER_INTERVAL);
+            this.sipStack.getSipTimer().schedule(provisionalResponseTask, T1);
             
 
         } catch (Exception ex) {
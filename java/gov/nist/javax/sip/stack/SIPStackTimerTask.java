@@ -8,17 +8,24 @@
 
 package gov.nist.javax.sip.stack;
 
-import java.util.TimerTask;
+import gov.nist.javax.sip.stack.timers.SipTimer;
 
 /**
- * A subclass of TimerTask which runs TimerTask code within a try/catch block to
- * avoid killing the SIPTransactionStack timer thread. Note: subclasses MUST not
- * override run(); instead they should override runTask().
+ * A task scheduled on the stack SipTimer. Runs the task code within a try/catch block to avoid
+ * killing the thread of the timer. Note: subclasses MUST not override run(); instead they should
+ * override runTask().
  *
  * @author Brett Buckingham
  *
  */
-public abstract class SIPStackTimerTask extends TimerTask {
+public abstract class SIPStackTimerTask implements Runnable {
+
+    // / The timer this task was last scheduled on.
+    private transient volatile SipTimer sipTimer;
+
+    // / The timer specific handle of the last scheduling of this task.
+    private transient volatile Object sipTimerTask;
+
     // / Implements code to be run when the SIPStackTimerTask is executed.
     protected abstract void runTask();
 
@@ -32,4 +39,34 @@ public abstract class SIPStackTimerTask extends TimerTask {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Cancel this task on the timer it was scheduled on.
+     *
+     * @return true if this prevented one or more executions of the task.
+     */
+    public boolean cancel() {
+        SipTimer timer = this.sipTimer;
+        if (timer == null)
+            return false;
+        return timer.cancel(this);
+    }
+
+    /**
+     * Called by the SipTimer when the task is scheduled.
+     *
+     * @param sipTimer -- the timer the task is scheduled on.
+     * @param sipTimerTask -- the timer specific handle for this scheduling.
+     */
+    public void setSipTimerTask(SipTimer sipTimer, Object sipTimerTask) {
+        this.sipTimerTask = sipTimerTask;
+        this.sipTimer = sipTimer;
+    }
+
+    /**
+     * @return the timer specific handle of the last scheduling of this task.
+     */
+    public Object getSipTimerTask() {
+        return this.sipTimerTask;
+    }
 }
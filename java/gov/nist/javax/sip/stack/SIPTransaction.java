@@ -37,6 +37,7 @@ import gov.nist.javax.sip.header.ViaList;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -48,6 +49,7 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.sip.Dialog;
 import javax.sip.IOExceptionEvent;
@@ -79,45 +81,45 @@ public abstract class SIPTransaction extends MessageChannel implements
 
     // to see the event.
 
-    protected int BASE_TIMER_INTERVAL = SIPTransactionStack.BASE_TIMER_INTERVAL;
     /**
-     * 5 sec Maximum duration a message will remain in the network
+     * Round-trip time estimate in milliseconds, the initial retransmit interval
      */
-    protected int T4 = 5000 / BASE_TIMER_INTERVAL;
+    protected int T1;
 
     /**
      * The maximum retransmit interval for non-INVITE requests and INVITE
-     * responses
+     * responses, in milliseconds
      */
-    protected int T2 = 4000 / BASE_TIMER_INTERVAL;
-    protected int TIMER_I = T4;
-
-    protected int TIMER_K = T4;
-
-    protected int TIMER_D = 32000 / BASE_TIMER_INTERVAL;
-
-    // protected static final int TIMER_C = 3 * 60 * 1000 / BASE_TIMER_INTERVAL;
+    protected int T2;
 
     /**
-     * One timer tick.
+     * Maximum duration a message will remain in the network, in milliseconds
      */
-    protected static final int T1 = 1;
+    protected int T4;
+
+    // The RFC 3261 timers, in milliseconds. Timers A, E and G start at T1.
 
     /**
-     * INVITE request retransmit interval, for UDP only
+     * INVITE transaction timeout timer
      */
-    protected static final int TIMER_A = 1;
+    protected int TIMER_B;
 
     /**
-     * INVITE transaction timeout timer
+     * Wait time for response retransmissions of a client INVITE transaction.
+     * RFC 3261 asks for at least 32 seconds for unreliable transports, it
+     * does not follow T1 or setRetransmitTimer.
      */
-    protected static final int TIMER_B = 64;
+    protected int TIMER_D = 32000;
+
+    protected int TIMER_F;
 
-    protected static final int TIMER_J = 64;
+    protected int TIMER_H;
 
-    protected static final int TIMER_F = 64;
+    protected int TIMER_I;
 
-    protected static final int TIMER_H = 64;
+    protected int TIMER_J;
+
+    protected int TIMER_K;
 
     // Proposed feature for next release.
     protected transient Object applicationData;
@@ -132,6 +134,12 @@ public abstract class SIPTransaction extends MessageChannel implements
 
     protected boolean isSemaphoreAquired;
 
+    // The Call-ID shard thread that passed acquireSem without taking the semaphore.
+    private volatile Thread semaphoreBypassThread;
+
+    // Set while the semaphore itself is held, whatever thread took it.
+    private boolean isSemaphoreHeld;
+
     // protected boolean eventPending; // indicate that an event is pending
     // here.
 
@@ -175,11 +183,6 @@ public abstract class SIPTransaction extends MessageChannel implements
      */
     public static final TransactionState TERMINATED_STATE = TransactionState.TERMINATED;
 
-    /**
-     * Maximum number of ticks between retransmissions.
-     */
-    protected static final int MAXIMUM_RETRANSMISSION_TICK_COUNT = 8;
-
     // Parent stack for this transaction
     protected transient SIPTransactionStack sipStack;
 
@@ -221,14 +224,25 @@ public abstract class SIPTransaction extends MessageChannel implements
     // Current transaction state
     private TransactionState currentState;
 
-    // Number of ticks the retransmission timer was set to last
-    private transient int retransmissionTimerLastTickCount;
+    // Milliseconds the retransmission timer was set to last, -1 when it is off
+    private transient volatile int retransmissionTimerInterval;
+
+    // The pending retransmission deadline
+    private transient volatile SIPStackTimerTask retransmissionTimerTask;
 
-    // Number of ticks before the message is retransmitted
-    private transient int retransmissionTimerTicksLeft;
+    // Milliseconds before the transaction times out, -1 when the timer is off
+    private transient volatile int timeoutTimerDelay;
 
-    // Number of ticks before the transaction times out
-    protected int timeoutTimerTicksLeft;
+    // The pending timeout deadline
+    private transient volatile SIPStackTimerTask timeoutTimerTask;
+
+    // Set once the terminated transaction is scheduled for removal
+    private final AtomicBoolean terminatedTimerScheduled = new AtomicBoolean(false);
+
+    // Held while a timer of this transaction runs. The stack timer may run
+    // expired tasks on several threads, but the timers of one transaction
+    // run one at a time, as they did from a single periodic task.
+    private final Object timerLock = new Object();
 
     // List of event listeners for this transaction
     private transient Set<SIPTransactionEventListener> eventListeners;
@@ -259,6 +273,30 @@ public abstract class SIPTransaction extends MessageChannel implements
 
     private boolean terminatedEventDelivered;
 
+    // The encoding of the last message sent, kept for retransmissions.
+    private transient volatile EncodedMessage lastEncodedMessage;
+
+    /**
+     * A message together with its encoding for a given channel.
+     */
+    private static final class EncodedMessage {
+        final SIPMessage message;
+
+        final MessageChannel channel;
+
+        final int modificationCount;
+
+        final byte[] bytes;
+
+        EncodedMessage(SIPMessage message, MessageChannel channel, int modificationCount,
+                byte[] bytes) {
+            this.message = message;
+            this.channel = channel;
+            this.modificationCount = modificationCount;
+            this.bytes = bytes;
+        }
+    }
+
     public String getBranchId() {
         return this.branch;
     }
@@ -317,6 +355,56 @@ public abstract class SIPTransaction extends MessageChannel implements
         }
     }
 
+    /**
+     * The retransmission timer (A, E or G). It is scheduled for its deadline
+     * and rescheduled with a doubled interval each time it fires.
+     */
+    class RetransmissionTimer extends SIPStackTimerTask {
+
+        protected void runTask() {
+            synchronized (timerLock) {
+                // Replaced or disabled while it was expiring, or the
+                // transaction timed out while this one waited for the lock.
+                if (retransmissionTimerTask != this || isTerminated())
+                    return;
+                retransmissionTimerTask = null;
+                // Enable this timer to fire again after
+                // twice the original time
+                enableRetransmissionTimer(retransmissionTimerInterval * 2);
+                fireRetransmissionTimer();
+            }
+        }
+    }
+
+    /**
+     * The timeout timer (B, D, F, H, I, J or K).
+     */
+    class TimeoutTimer extends SIPStackTimerTask {
+
+        protected void runTask() {
+            synchronized (timerLock) {
+                if (timeoutTimerTask != this || isTerminated())
+                    return;
+                timeoutTimerTask = null;
+                timeoutTimerDelay = -1;
+                fireTimeoutTimer();
+            }
+        }
+    }
+
+    /**
+     * Runs once, one T1 after the transaction has terminated, to take it out
+     * of the transaction table.
+     */
+    class TerminatedTimer extends SIPStackTimerTask {
+
+        protected void runTask() {
+            synchronized (timerLock) {
+                fireTerminatedTimer();
+            }
+        }
+    }
+
     /**
      * Transaction constructor.
      *
@@ -355,6 +443,10 @@ public abstract class SIPTransaction extends MessageChannel implements
 
         this.currentState = null;
 
+        T1 = newParentStack.getTimerT1();
+        T2 = newParentStack.getTimerT2();
+        T4 = newParentStack.getTimerT4();
+        setTimers();
         disableRetransmissionTimer();
         disableTimeoutTimer();
         eventListeners = Collections.synchronizedSet(new HashSet<SIPTransactionEventListener>());
@@ -538,6 +630,13 @@ public abstract class SIPTransaction extends MessageChannel implements
         else
             newState = currentState;
         // END OF PATCH
+        if (newState == TransactionState.TERMINATED) {
+            // A terminated transaction no longer retransmits or times out.
+            disableRetransmissionTimer();
+            disableTimeoutTimer();
+            if (this.transactionTimerStarted.get())
+                scheduleTerminatedTimer();
+        }
         if (sipStack.isLoggingEnabled()) {
             sipStack.getStackLogger().logDebug("Transaction:setState " + newState
                     + " " + this + " branchID = " + this.getBranch()
@@ -556,89 +655,135 @@ public abstract class SIPTransaction extends MessageChannel implements
     }
 
     /**
-     * Enables retransmission timer events for this transaction to begin in one
-     * tick.
+     * Enables retransmission timer events for this transaction to begin in T1
+     * milliseconds.
      */
     protected final void enableRetransmissionTimer() {
-        enableRetransmissionTimer(1);
+        enableRetransmissionTimer(T1);
     }
 
     /**
      * Enables retransmission timer events for this transaction to begin after
-     * the number of ticks passed to this routine.
+     * the number of milliseconds passed to this routine. Each time the timer
+     * fires, the interval doubles.
      *
-     * @param tickCount
-     *            Number of ticks before the next retransmission timer event
+     * @param interval
+     *            Milliseconds before the next retransmission timer event
      *            occurs.
      */
-    protected final void enableRetransmissionTimer(int tickCount) {
+    protected final void enableRetransmissionTimer(int interval) {
         // For INVITE Client transactions, double interval each time
         if (isInviteTransaction() && (this instanceof SIPClientTransaction)) {
-            retransmissionTimerTicksLeft = tickCount;
+            retransmissionTimerInterval = interval;
         } else {
             // non-INVITE transactions and 3xx-6xx responses are capped at T2
-            retransmissionTimerTicksLeft = Math.min(tickCount,
-                    MAXIMUM_RETRANSMISSION_TICK_COUNT);
+            retransmissionTimerInterval = Math.min(interval, T2);
         }
-        retransmissionTimerLastTickCount = retransmissionTimerTicksLeft;
+        if (this.transactionTimerStarted.get())
+            scheduleRetransmissionTimer();
     }
 
     /**
      * Turns off retransmission events for this transaction.
      */
     protected final void disableRetransmissionTimer() {
-        retransmissionTimerTicksLeft = -1;
+        retransmissionTimerInterval = -1;
+        SIPStackTimerTask task = retransmissionTimerTask;
+        retransmissionTimerTask = null;
+        if (task != null)
+            task.cancel();
     }
 
     /**
      * Enables a timeout event to occur for this transaction after the number of
-     * ticks passed to this method.
+     * milliseconds passed to this method.
      *
-     * @param tickCount
-     *            Number of ticks before this transaction times out.
+     * @param delay
+     *            Milliseconds before this transaction times out.
      */
-    protected final void enableTimeoutTimer(int tickCount) {
+    protected final void enableTimeoutTimer(int delay) {
         if (sipStack.isLoggingEnabled())
             sipStack.getStackLogger().logDebug("enableTimeoutTimer " + this
-                    + " tickCount " + tickCount + " currentTickCount = "
-                    + timeoutTimerTicksLeft);
+                    + " delay " + delay + " current delay = "
+                    + timeoutTimerDelay);
 
-        timeoutTimerTicksLeft = tickCount;
+        timeoutTimerDelay = delay;
+        if (this.transactionTimerStarted.get())
+            scheduleTimeoutTimer();
     }
 
     /**
      * Disabled the timeout timer.
      */
     protected final void disableTimeoutTimer() {
-        timeoutTimerTicksLeft = -1;
+        timeoutTimerDelay = -1;
+        SIPStackTimerTask task = timeoutTimerTask;
+        timeoutTimerTask = null;
+        if (task != null)
+            task.cancel();
+    }
+
+    private void scheduleRetransmissionTimer() {
+        SIPStackTimerTask old = retransmissionTimerTask;
+        int interval = retransmissionTimerInterval;
+        if (interval < 0)
+            return;
+        SIPStackTimerTask task = new RetransmissionTimer();
+        retransmissionTimerTask = task;
+        if (old != null)
+            old.cancel();
+        SipTimer timer = sipStack.getSipTimer();
+        if (timer != null) // null after shutdown
+            timer.schedule(task, interval);
+    }
+
+    private void scheduleTimeoutTimer() {
+        SIPStackTimerTask old = timeoutTimerTask;
+        int delay = timeoutTimerDelay;
+        if (delay < 0)
+            return;
+        SIPStackTimerTask task = new TimeoutTimer();
+        timeoutTimerTask = task;
+        if (old != null)
+            old.cancel();
+        SipTimer timer = sipStack.getSipTimer();
+        if (timer != null)
+            timer.schedule(task, delay);
+    }
+
+    private void scheduleTerminatedTimer() {
+        if (this.terminatedTimerScheduled.compareAndSet(false, true)) {
+            SipTimer timer = sipStack.getSipTimer();
+            if (timer != null)
+                timer.schedule(new TerminatedTimer(), T1);
+        }
     }
 
     /**
-     * Fired after each timer tick. Checks the retransmission and timeout timers
-     * of this transaction, and fired these events if necessary.
+     * Start the transaction timers. Timers enabled before the first message
+     * of the transaction is sent are scheduled from now on. Only the
+     * deadlines that are enabled are scheduled, an idle transaction costs the
+     * timer nothing.
      */
-    final void fireTimer() {
-        // If the timeout timer is enabled,
-
-        if (timeoutTimerTicksLeft != -1) {
-            // Count down the timer, and if it has run out,
-            if (--timeoutTimerTicksLeft == 0) {
-                // Fire the timeout timer
-                fireTimeoutTimer();
-            }
+    protected void startTransactionTimer() {
+        if (this.transactionTimerStarted.compareAndSet(false, true)) {
+            scheduleRetransmissionTimer();
+            scheduleTimeoutTimer();
+            if (isTerminated())
+                scheduleTerminatedTimer();
         }
+    }
 
-        // If the retransmission timer is enabled,
-        if (retransmissionTimerTicksLeft != -1) {
-            // Count down the timer, and if it has run out,
-            if (--retransmissionTimerTicksLeft == 0) {
-                // Enable this timer to fire again after
-                // twice the original time
-                enableRetransmissionTimer(retransmissionTimerLastTickCount * 2);
-                // Fire the timeout timer
-                fireRetransmissionTimer();
-            }
-        } 
+    /**
+     * Derive the RFC 3261 timers from T1, T2 and T4.
+     */
+    private void setTimers() {
+        TIMER_B = 64 * T1;
+        TIMER_F = 64 * T1;
+        TIMER_H = 64 * T1;
+        TIMER_J = 64 * T1;
+        TIMER_I = T4;
+        TIMER_K = T4;
     }
 
     /**
@@ -731,8 +876,42 @@ public abstract class SIPTransaction extends MessageChannel implements
         // created. Bug was noted by Bruce Evangelder
         // soleo communications.
         try {
-            encapsulatedChannel.sendMessage(messageToSend,
-                    this.peerInetAddress, this.peerPort);
+            MessageChannel channel = encapsulatedChannel;
+            int modificationCount = messageToSend.getModificationCount();
+            byte[] bytes = channel.encode(messageToSend);
+            lastEncodedMessage = new EncodedMessage(messageToSend, channel, modificationCount,
+                    bytes);
+            channel.sendMessage(messageToSend, bytes, this.peerInetAddress, this.peerPort);
+        } finally {
+            this.startTransactionTimer();
+        }
+    }
+
+    /**
+     * Retransmit a message that this transaction has already sent. The encoding produced by the
+     * last call to sendMessage is reused when it was for the same message on the same channel
+     * and the message has not been changed through its setters since; callers that change a
+     * header object of the message in place before retransmitting it must use sendMessage
+     * instead.
+     *
+     * @param messageToSend
+     *            Message to retransmit to the SIP peer.
+     */
+    protected void resendMessage(SIPMessage messageToSend) throws IOException {
+        EncodedMessage encoded = lastEncodedMessage;
+        MessageChannel channel = encapsulatedChannel;
+        try {
+            int modificationCount = messageToSend.getModificationCount();
+            if (encoded == null || encoded.message != messageToSend
+                    || encoded.channel != channel
+                    || encoded.modificationCount != modificationCount) {
+                byte[] bytes = channel.encode(messageToSend);
+                encoded = new EncodedMessage(messageToSend, channel, modificationCount, bytes);
+                lastEncodedMessage = encoded;
+            }
+            sipStack.getStackMetrics().getRetransmissionsSent().increment();
+            channel.sendMessage(messageToSend, encoded.bytes, this.peerInetAddress,
+                    this.peerPort);
         } finally {
             this.startTransactionTimer();
         }
@@ -862,7 +1041,7 @@ public abstract class SIPTransaction extends MessageChannel implements
      * @return the integer value of the retransmit timer in milliseconds.
      */
     public int getRetransmitTimer() {
-        return SIPTransactionStack.BASE_TIMER_INTERVAL;
+        return T1;
     }
 
     /**
@@ -1016,8 +1195,10 @@ public abstract class SIPTransaction extends MessageChannel implements
 
     /**
      * Sets the value of the retransmit timer to the newly supplied timer value.
-     * The retransmit timer is expressed in milliseconds and its default value
-     * is 500ms. This method allows the application to change the transaction
+     * The retransmit timer is T1, expressed in milliseconds, and its default
+     * value is the T1 of the stack (500ms unless gov.nist.javax.sip.TIMER_T1
+     * is set). The timers derived from T1 follow it, except Timer D which stays at 32
+     * seconds. This method allows the application to change the transaction
      * retransmit behavior for different networks. Take the gateway proxy as an
      * example. The internal intranet is likely to be reatively uncongested and
      * the endpoints will be relatively close. The external network is the
@@ -1035,16 +1216,8 @@ public abstract class SIPTransaction extends MessageChannel implements
         if (this.transactionTimerStarted.get())
             throw new IllegalStateException(
                     "Transaction timer is already started");
-        BASE_TIMER_INTERVAL = retransmitTimer;
-        T4 = 5000 / BASE_TIMER_INTERVAL;
-
-        T2 = 4000 / BASE_TIMER_INTERVAL;
-        TIMER_I = T4;
-
-        TIMER_K = T4;
-
-        TIMER_D = 32000 / BASE_TIMER_INTERVAL;
-
+        T1 = retransmitTimer;
+        setTimers();
     }
 
     /**
@@ -1137,7 +1310,20 @@ public abstract class SIPTransaction extends MessageChannel implements
                 sipStack.getStackLogger().logDebug("acquireSem [[[[" + this);
                 sipStack.getStackLogger().logStackTrace();
             }
+            if (sipStack.isCallIdShardThread()) {
+                // Everything for this call runs on this thread, one message at a time,
+                // and its events are delivered here too. If an event ends up on an
+                // event scanner thread after all, see holdBypassedSemaphore.
+                this.semaphoreBypassThread = Thread.currentThread();
+                retval = true;
+                return retval;
+            }
             retval = this.semaphore.tryAcquire(1000, TimeUnit.MILLISECONDS);
+            if (retval) {
+                synchronized (this.semaphore) {
+                    this.isSemaphoreHeld = true;
+                }
+            }
             if ( sipStack.isLoggingEnabled())
                 sipStack.getStackLogger().logDebug(
                     "acquireSem() returning : " + retval);
@@ -1153,6 +1339,33 @@ public abstract class SIPTransaction extends MessageChannel implements
 
     }
 
+    /**
+     * Take the semaphore for real when the calling shard thread passed
+     * acquireSem without it but the event of the transaction is handed to an
+     * event scanner thread after all, so that the shard does not run the
+     * transaction while the listener has it. The releaseSem of the event
+     * scanner thread then releases the semaphore.
+     */
+    public void holdBypassedSemaphore() {
+        if (this.semaphoreBypassThread != Thread.currentThread())
+            return;
+        boolean acquired = false;
+        try {
+            acquired = this.semaphore.tryAcquire(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.semaphoreBypassThread = null;
+        if (acquired) {
+            synchronized (this.semaphore) {
+                this.isSemaphoreHeld = true;
+            }
+        } else if (sipStack.isLoggingEnabled()) {
+            sipStack.getStackLogger().logDebug(
+                    "Could not take the semaphore of " + this + " for the event scanner");
+        }
+    }
+
     /**
      * Release the transaction semaphore.
      *
@@ -1178,6 +1391,18 @@ public abstract class SIPTransaction extends MessageChannel implements
                 sipStack.getStackLogger().logStackTrace();
             }
             this.isSemaphoreAquired = false;
+            if (this.semaphoreBypassThread == Thread.currentThread()) {
+                this.semaphoreBypassThread = null;
+                return;
+            }
+            synchronized (this.semaphore) {
+                if (!this.isSemaphoreHeld) {
+                    // Only a shard thread passed, another thread releases for it.
+                    this.semaphoreBypassThread = null;
+                    return;
+                }
+                this.isSemaphoreHeld = false;
+            }
             this.semaphore.release();
 
         } catch (Exception ex) {
@@ -1218,47 +1443,46 @@ public abstract class SIPTransaction extends MessageChannel implements
         return retval;
     }
     
-    public String getCipherSuite() throws UnsupportedOperationException {
-        if (this.getMessageChannel() instanceof TLSMessageChannel ) {
-            if (  ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener() == null ) 
-                return null;
-            else if ( ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent() == null)
-                return null;
-            else return ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent().getCipherSuite();
-        } else throw new UnsupportedOperationException("Not a TLS channel");
+    /**
+     * Get the event of the TLS handshake of the channel of this transaction.
+     *
+     * @return the event, or null if the handshake is not done yet.
+     */
+    private HandshakeCompletedEvent getHandshakeCompletedEvent()
+            throws UnsupportedOperationException {
+        HandshakeCompletedListenerImpl listener;
+        if (this.getMessageChannel() instanceof TLSMessageChannel)
+            listener = ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener();
+        else if (this.getMessageChannel() instanceof NioTlsMessageChannel)
+            listener = ((NioTlsMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener();
+        else
+            throw new UnsupportedOperationException("Not a TLS channel");
+        return listener == null ? null : listener.getHandshakeCompletedEvent();
+    }
 
+    public String getCipherSuite() throws UnsupportedOperationException {
+        HandshakeCompletedEvent event = this.getHandshakeCompletedEvent();
+        return event == null ? null : event.getCipherSuite();
     }
 
     
     public java.security.cert.Certificate[] getLocalCertificates() throws UnsupportedOperationException {
-         if (this.getMessageChannel() instanceof TLSMessageChannel ) {
-            if (  ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener() == null ) 
-                return null;
-            else if ( ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent() == null)
-                return null;
-            else return ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent().getLocalCertificates();
-        } else throw new UnsupportedOperationException("Not a TLS channel");
+        HandshakeCompletedEvent event = this.getHandshakeCompletedEvent();
+        return event == null ? null : event.getLocalCertificates();
     }
 
     
     public java.security.cert.Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
-        if (this.getMessageChannel() instanceof TLSMessageChannel ) {
-            if (  ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener() == null ) 
-                return null;
-            else if ( ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent() == null)
-                return null;
-            else return ((TLSMessageChannel) this.getMessageChannel()).getHandshakeCompletedListener().getHandshakeCompletedEvent().getPeerCertificates();
-        } else throw new UnsupportedOperationException("Not a TLS channel");
-
+        HandshakeCompletedEvent event = this.getHandshakeCompletedEvent();
+        return event == null ? null : event.getPeerCertificates();
     }
 
 
     /**
-     * Start the timer that runs the transaction state machine.
-     *
+     * This method is called one T1 after the transaction has terminated, to
+     * remove it from the stack.
      */
-
-    protected abstract void startTransactionTimer();
+    protected abstract void fireTerminatedTimer();
 
     /**
      * Tests a message to see if it is part of this transaction.
@@ -33,6 +33,7 @@ import gov.nist.core.ThreadAuditor;
 import gov.nist.core.net.AddressResolver;
 import gov.nist.core.net.DefaultNetworkLayer;
 import gov.nist.core.net.NetworkLayer;
+import gov.nist.javax.sip.CachingAddressResolver;
 import gov.nist.javax.sip.DefaultAddressResolver;
 import gov.nist.javax.sip.ListeningPointImpl;
 import gov.nist.javax.sip.LogRecordFactory;
@@ -47,6 +48,9 @@ import gov.nist.javax.sip.header.extensions.ReplacesHeader;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.replication.ApplicationDataSerializer;
+import gov.nist.javax.sip.stack.replication.DialogStore;
+import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -54,12 +58,18 @@ import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.Timer;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sip.ClientTransaction;
@@ -99,7 +109,7 @@ import javax.sip.message.Response;
 public abstract class SIPTransactionStack implements SIPTransactionEventListener, SIPDialogEventListener {
 
     /*
-     * Number of milliseconds between timer ticks (500).
+     * Default value of T1 in milliseconds (500).
      */
     public static final int BASE_TIMER_INTERVAL = 500;
 
@@ -125,7 +135,10 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
     // Global timer. Use this for all timer tasks.
 
-    private Timer timer;
+    private SipTimer timer;
+
+    // java.util.Timer handed out by the deprecated getTimer() when the stack timer is not one.
+    private Timer legacyTimer;
 
     // List of pending server transactions
     private ConcurrentHashMap<String, SIPServerTransaction> pendingTransactions;
@@ -133,6 +146,10 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
     // hashtable for fast lookup
     private ConcurrentHashMap<String, SIPClientTransaction> clientTransactionTable;
 
+    // Client transactions by lower case Call-ID. Used to match NOTIFYs to
+    // SUBSCRIBEs and to find forked dialogs without walking the whole table.
+    private ConcurrentHashMap<String, List<SIPClientTransaction>> clientTransactionCallIdTable;
+
     // Set to false if you want hiwat and lowat to be consulted.
     protected boolean unlimitedServerTransactionTableSize = true;
 
@@ -178,6 +195,33 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
      */
     protected ServerLogger serverLogger;
 
+    /*
+     * Packet capture of the messages sent and received, null when disabled.
+     */
+    protected PcapCapture pcapCapture;
+
+    /*
+     * Counters and histograms, see getMetrics().
+     */
+    protected StackMetrics stackMetrics = new StackMetrics();
+
+    /*
+     * Decides which new requests get a server transaction under load.
+     */
+    protected AdmissionControl admissionControl = new AdmissionControl(this, 0, 0, 10000, 5);
+
+    /*
+     * Idle timeout, keep-alives and connection limit of the TCP and TLS connections.
+     */
+    protected ConnectionManager connectionManager = new ConnectionManager(this, 0, 120000, 10000);
+
+    /*
+     * Where the snapshots of the confirmed dialogs are written, null if they are not.
+     */
+    private volatile DialogStore dialogStore;
+
+    private ApplicationDataSerializer applicationDataSerializer;
+
     /*
      * We support UDP on this stack.
      */
@@ -244,11 +288,71 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
      */
     protected int threadPoolSize;
 
+    /*
+     * Number of threads reading from each udp socket.
+     */
+    protected int udpReceiverThreads;
+
+    /*
+     * Number of Call-ID shards. 0 means messages are processed on the thread that read them.
+     */
+    protected int callIdShards;
+
+    /*
+     * Runs message processing and event delivery per Call-ID when sharding is on.
+     */
+    protected CallIdShardExecutor callIdShardExecutor;
+
     /*
      * max number of simultaneous connections.
      */
     protected int maxConnections;
 
+    /*
+     * Use the selector based TCP transport instead of a thread per connection.
+     */
+    protected boolean useNioTcp;
+
+    /*
+     * Number of selector threads for the NIO TCP transport ( 0 means one per processor ).
+     */
+    protected int nioSelectorThreads;
+
+    /*
+     * Number of threads processing the messages read by the NIO transports when Call-ID
+     * sharding is off ( 0 means one per processor ).
+     */
+    protected int nioProcessingThreads;
+
+    /*
+     * Use the selector based TLS transport instead of a thread per connection.
+     */
+    protected boolean useNioTls;
+
+    /*
+     * Number of threads for the TLS handshakes of the NIO TLS transport ( 0 means one per
+     * processor ).
+     */
+    protected int tlsHandshakeThreads;
+
+    /*
+     * Size and timeout in seconds of the TLS client session cache ( -1 leaves the JSSE
+     * default ).
+     */
+    protected int tlsSessionCacheSize = -1;
+
+    protected int tlsSessionTimeout = -1;
+
+    /*
+     * The RFC 3261 T1, T2 and T4 timer values in milliseconds. The transaction and dialog
+     * timers are derived from them.
+     */
+    protected int timerT1 = BASE_TIMER_INTERVAL;
+
+    protected int timerT2 = 4000;
+
+    protected int timerT4 = 5000;
+
     /*
      * Close accept socket on completion.
      */
@@ -274,6 +378,9 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
      */
     protected int maxMessageSize;
 
+    // Max size of the header block of a message read from a TCP/TLS connection.
+    protected int maxHeaderSize;
+
     /*
      * A collection of message processors.
      */
@@ -285,6 +392,11 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
      */
     protected int readTimeout;
 
+    /*
+     * Max time (ms) that a sender waits for an outgoing TCP/TLS connection to be established.
+     */
+    protected int connectTimeout;
+
     /*
      * The socket factory. Can be overriden by applications that want direct access to the
      * underlying socket.
@@ -374,7 +486,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
         protected void runTask() {
             // Check if we still have a timer (it may be null after shutdown)
-            if (getTimer() != null) {
+            if (getSipTimer() != null) {
                 // Register the timer task if we haven't done so
                 if (threadHandle == null) {
                     // This happens only once since the thread handle is passed
@@ -386,7 +498,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
                 threadHandle.ping();
 
                 // Schedule the next ping
-                getTimer().schedule(new PingTimer(threadHandle),
+                getSipTimer().schedule(new PingTimer(threadHandle),
                         threadHandle.getPingIntervalInMillisecs());
             }
         }
@@ -425,6 +537,8 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         // set of events for which subscriptions can be forked.
         // Set an infinite thread pool size.
         this.threadPoolSize = -1;
+        // One thread reads each udp socket.
+        this.udpReceiverThreads = 1;
         // Close response socket after infinte time.
         // for max performance
         this.cacheServerConnections = true;
@@ -441,6 +555,8 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         // The read time out is infinite.
         this.readTimeout = -1;
 
+        this.connectTimeout = 10000;
+
         this.maxListenerResponseTime = -1;
 
         // The default (identity) address lookup scheme
@@ -456,18 +572,30 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         this.earlyDialogTable = new ConcurrentHashMap<String, SIPDialog>();
 
         clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
+        clientTransactionCallIdTable = new ConcurrentHashMap<String, List<SIPClientTransaction>>();
         serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         this.terminatedServerTransactionsPendingAck = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
 
-        // Start the timer event thread.
+        // The timer is started by startTimer once the stack is configured.
 
-        this.timer = new Timer();
         this.pendingTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
         
         
         this.forkedClientTransactionTable = new ConcurrentHashMap<String,SIPClientTransaction>();
+    }
+
+    /**
+     * Start the timer that runs all the timer tasks of the stack.
+     *
+     * @param timer -- the timer to use.
+     * @param configurationProperties -- the stack configuration properties.
+     */
+    protected void startTimer(SipTimer timer, Properties configurationProperties) {
+        timer.start(this, configurationProperties);
+        this.timer = timer;
+        this.connectionManager.start(timer);
 
         if (getThreadAuditor().isEnabled()) {
             // Start monitoring the timer thread
@@ -475,6 +603,47 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         }
     }
 
+    /**
+     * Start the store the snapshots of the confirmed dialogs are written to.
+     *
+     * @param dialogStore -- the store to use.
+     * @param configurationProperties -- the stack configuration properties.
+     * @throws IOException if the store cannot be opened.
+     */
+    protected void startDialogStore(DialogStore dialogStore, Properties configurationProperties)
+            throws IOException {
+        dialogStore.start(this, configurationProperties);
+        this.dialogStore = dialogStore;
+    }
+
+    /**
+     * Start the Call-ID shards if they are configured.
+     */
+    protected void startCallIdShards() {
+        if (this.callIdShards > 0)
+            this.callIdShardExecutor = new CallIdShardExecutor(this.callIdShards);
+    }
+
+    /**
+     * Get the Call-ID shard executor.
+     *
+     * @return the shard executor or null if Call-ID sharding is off.
+     */
+    public CallIdShardExecutor getCallIdShardExecutor() {
+        return this.callIdShardExecutor;
+    }
+
+    /**
+     * Return true if the calling thread is a Call-ID shard thread and the
+     * shards still take work. Work on such a thread, and the delivery of its
+     * events, is already serialized per call.
+     */
+    public boolean isCallIdShardThread() {
+        CallIdShardExecutor shardExecutor = this.callIdShardExecutor;
+        return shardExecutor != null && shardExecutor.isShardThread()
+                && !shardExecutor.isShutdown();
+    }
+
     /**
      * Re Initialize the stack instance.
      */
@@ -490,6 +659,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         // serverTransactions = new ConcurrentLinkedQueue();
         pendingTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
         clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
+        clientTransactionCallIdTable = new ConcurrentHashMap<String, List<SIPClientTransaction>>();
         serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
@@ -499,8 +669,6 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         this.terminatedServerTransactionsPendingAck = new ConcurrentHashMap<String,SIPServerTransaction>();
         this.forkedClientTransactionTable = new ConcurrentHashMap<String,SIPClientTransaction>();
 
-        this.timer = new Timer();
-
         this.activeClientTransactionCount = new AtomicInteger(0);
 
     }
@@ -788,7 +956,8 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
             ListeningPointImpl listeningPoint) {
         SIPClientTransaction retval = null;
         try {
-            Iterator it = clientTransactionTable.values().iterator();
+            Iterator<SIPClientTransaction> it = getClientTransactionsByCallId(
+                    notifyMessage.getCallId().getCallId()).iterator();
             if (stackLogger.isLoggingEnabled())
             	stackLogger.logDebug("ct table size = " + clientTransactionTable.size());
             String thisToTag = notifyMessage.getTo().getTag();
@@ -804,7 +973,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
                 return retval;
             }
             while (it.hasNext()) {
-                SIPClientTransaction ct = (SIPClientTransaction) it.next();
+                SIPClientTransaction ct = it.next();
                 if (!ct.getMethod().equals(Request.SUBSCRIBE))
                     continue;
 
@@ -977,6 +1146,21 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
                     + "\nfindCancelRequest isServer=" + isServer);
         }
 
+        // The cancelled transaction has the same branch, so look it up directly
+        // unless the client is an old RFC 2543 client that sent no branch.
+        Via topVia = cancelRequest.getTopmostVia();
+        String branch = topVia == null ? null : topVia.getBranch();
+        if (branch != null
+                && branch.toLowerCase().startsWith(SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE)) {
+            SIPTransaction transaction = isServer ? this.serverTransactionTable.get(branch
+                    .toLowerCase()) : this.clientTransactionTable.get(branch.toLowerCase());
+            if (transaction != null && transaction.doesCancelMatchTransaction(cancelRequest))
+                return transaction;
+            if (stackLogger.isLoggingEnabled())
+                stackLogger.logDebug("Could not find transaction for cancel request");
+            return null;
+        }
+
         if (isServer) {
             Iterator<SIPServerTransaction> li = this.serverTransactionTable.values().iterator();
             while (li.hasNext()) {
@@ -1141,6 +1325,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
      */
     public ServerRequestInterface newSIPServerRequest(SIPRequest requestReceived,
             MessageChannel requestMessageChannel) {
+        this.stackMetrics.messageReceived(requestReceived);
         // Iterator through all server transactions
         Iterator<SIPServerTransaction> transactionIterator;
         // Next transaction in the set
@@ -1187,14 +1372,18 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
                         return null;
 
                 }
-                // Creating a new server tx. May fail under heavy load.
-                currentTransaction = createServerTransaction(requestMessageChannel);
-                if (currentTransaction != null) {
-                    // currentTransaction.setPassToListener();
-                    currentTransaction.setOriginalRequest(requestReceived);
-                    // Associate the tx with the received request.
-                    requestReceived.setTransaction(currentTransaction);
+                // Creating a new server tx. May be turned away under heavy load.
+                if (admissionControl.admit(requestReceived, requestMessageChannel
+                        .getPeerInetAddress()))
+                    currentTransaction = createServerTransaction(requestMessageChannel);
+                if (currentTransaction == null) {
+                    admissionControl.reject(requestReceived, requestMessageChannel);
+                    return null;
                 }
+                // currentTransaction.setPassToListener();
+                currentTransaction.setOriginalRequest(requestReceived);
+                // Associate the tx with the received request.
+                requestReceived.setTransaction(currentTransaction);
 
             }
 
@@ -1246,6 +1435,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
      */
     public ServerResponseInterface newSIPServerResponse(SIPResponse responseReceived,
             MessageChannel responseMessageChannel) {
+        this.stackMetrics.messageReceived(responseReceived);
 
         // Iterator through all client transactions
         Iterator<SIPClientTransaction> transactionIterator;
@@ -1348,7 +1538,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         // superclass' message channel
         // Create the host/port of the target hop
         Host targetHost = new Host();
-        targetHost.setHostname(nextHop.getHost());
+        targetHost.setHostname(getChannelHost(nextHop));
         HostPort targetHostPort = new HostPort();
         targetHostPort.setHost(targetHost);
         targetHostPort.setPort(nextHop.getPort());
@@ -1387,27 +1577,13 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
     /**
      * Creates a server transaction that encapsulates a MessageChannel. Useful for implementations
-     * that want to subclass the standard
+     * that want to subclass the standard. The size of the server transaction table is checked
+     * before, by {@link AdmissionControl}, where the request is known.
      *
      * @param encapsulatedMessageChannel Message channel of the transport layer.
      */
     public SIPServerTransaction createServerTransaction(MessageChannel encapsulatedMessageChannel) {
-    	// Issue 256 : be consistent with createClientTransaction, if unlimitedServerTransactionTableSize is true,
-    	// a new Server Transaction is created no matter what
-        if (unlimitedServerTransactionTableSize) {                
-            return new SIPServerTransaction(this, encapsulatedMessageChannel);
-        } else {
-            float threshold = ((float) (serverTransactionTable.size() - serverTransactionTableLowaterMark))
-                    / ((float) (serverTransactionTableHighwaterMark - serverTransactionTableLowaterMark));
-            boolean decision = Math.random() > 1.0 - threshold;
-            if (decision) {
-                return null;
-            } else {
-                return new SIPServerTransaction(this, encapsulatedMessageChannel);
-            }
-
-        }
-
+        return new SIPServerTransaction(this, encapsulatedMessageChannel);
     }
 
     /**
@@ -1428,6 +1604,113 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         return this.serverTransactionTable.size();
     }
 
+    /**
+     * Get the number of confirmed and early dialogs.
+     *
+     * @return -- size of the dialog table.
+     */
+    public int getDialogTableSize() {
+        return this.dialogTable.size();
+    }
+
+    /**
+     * Get the number of early dialogs that are waiting for a final response.
+     *
+     * @return -- size of the early dialog table.
+     */
+    public int getEarlyDialogTableSize() {
+        return this.earlyDialogTable.size();
+    }
+
+    /**
+     * Get the number of server transactions that have been created for requests the application
+     * is still deciding about.
+     *
+     * @return -- size of the pending transaction table.
+     */
+    public int getPendingTransactionTableSize() {
+        return this.pendingTransactions.size();
+    }
+
+    /**
+     * Get the number of server transactions kept to detect merged requests.
+     *
+     * @return -- size of the merge table.
+     */
+    public int getMergeTableSize() {
+        return this.mergeTable.size();
+    }
+
+    /**
+     * Get the number of datagrams waiting for a thread of the pool.
+     *
+     * @return -- the sum of the queue lengths of the UDP message processors.
+     */
+    public int getUdpMessageQueueSize() {
+        int size = 0;
+        for (MessageProcessor messageProcessor : getMessageProcessors()) {
+            if (messageProcessor instanceof UDPMessageProcessor)
+                size += ((UDPMessageProcessor) messageProcessor).getMessageQueueSize();
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of events waiting to be delivered to the listener.
+     *
+     * @return -- 0 here, the stack implementation overrides this.
+     */
+    public int getPendingEventCount() {
+        return 0;
+    }
+
+    /**
+     * Get the counters and histograms of the stack.
+     *
+     * @return -- the metrics of this stack.
+     */
+    public StackMetrics getStackMetrics() {
+        return this.stackMetrics;
+    }
+
+    /**
+     * Take a snapshot of the metrics of the stack: the sizes of the transaction and dialog
+     * tables, the depth of the UDP and event queues and the counters and histograms of
+     * {@link StackMetrics}. The values are read one after the other while the stack runs, they
+     * are not a consistent cut.
+     *
+     * @return -- metric name to value, sorted by name.
+     */
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> snapshot = new TreeMap<String, Number>();
+        snapshot.put("clientTransactions", getClientTransactionTableSize());
+        snapshot.put("serverTransactions", getServerTransactionTableSize());
+        snapshot.put("dialogs", getDialogTableSize());
+        snapshot.put("earlyDialogs", getEarlyDialogTableSize());
+        snapshot.put("pendingTransactions", getPendingTransactionTableSize());
+        snapshot.put("mergeTable", getMergeTableSize());
+        snapshot.put("udp.queueDepth", getUdpMessageQueueSize());
+        snapshot.put("events.pending", getPendingEventCount());
+        snapshot.put("admission.sources", this.admissionControl.getSourceCount());
+        snapshot.put("connections.open", this.connectionManager.getConnectionCount());
+        snapshot.put("connections.outboundFlows", this.connectionManager.getOutboundFlowCount());
+        snapshot.put("connections.idleClosed", this.connectionManager.getIdleClosed());
+        snapshot.put("connections.evicted", this.connectionManager.getEvicted());
+        snapshot.put("connections.keepAliveFailures", this.connectionManager
+                .getKeepAliveFailures());
+        if (this.addressResolver instanceof CachingAddressResolver) {
+            CachingAddressResolver resolver = (CachingAddressResolver) this.addressResolver;
+            snapshot.put("resolver.cacheSize", resolver.getCacheSize());
+            snapshot.put("resolver.hits", resolver.getHits());
+            snapshot.put("resolver.misses", resolver.getMisses());
+            snapshot.put("resolver.staleHits", resolver.getStaleHits());
+            snapshot.put("resolver.coalesced", resolver.getCoalescedLookups());
+            snapshot.put("resolver.failures", resolver.getFailures());
+        }
+        this.stackMetrics.addTo(snapshot);
+        return snapshot;
+    }
+
     /**
      * Add a new client transaction to the set of existing transactions. Add it to the top of the
      * list so an incoming response has less work to do in order to find the transaction.
@@ -1474,6 +1757,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
             String key = sipTransaction.getTransactionId();
             Object removed = clientTransactionTable.remove(key);
+            removeClientTransactionCallId((SIPClientTransaction) sipTransaction);
 
             if (stackLogger.isLoggingEnabled()) {
                 stackLogger.logDebug("REMOVED client tx " + removed + " KEY = " + key);
@@ -1539,6 +1823,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
             }
             String key = sipRequest.getTransactionId();
             clientTransactionTable.put(key, (SIPClientTransaction) sipTransaction);
+            addClientTransactionCallId((SIPClientTransaction) sipTransaction);
             
             if (stackLogger.isLoggingEnabled()) {
                 stackLogger.logDebug(" putTransactionHash : " + " key = " + key);
@@ -1555,6 +1840,73 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
     }
 
+    /**
+     * Add a client transaction to the Call-ID index.
+     */
+    private void addClientTransactionCallId(SIPClientTransaction clientTransaction) {
+        String callId = clientTransaction.getOriginalRequest().getCallId().getCallId()
+                .toLowerCase();
+        while (true) {
+            List<SIPClientTransaction> transactions = clientTransactionCallIdTable.get(callId);
+            if (transactions == null) {
+                transactions = new CopyOnWriteArrayList<SIPClientTransaction>();
+                List<SIPClientTransaction> old = clientTransactionCallIdTable.putIfAbsent(callId,
+                        transactions);
+                if (old != null)
+                    transactions = old;
+            }
+            synchronized (transactions) {
+                // An empty list is unmapped under its own lock. Retry with a new one.
+                if (clientTransactionCallIdTable.get(callId) == transactions) {
+                    transactions.add(clientTransaction);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a client transaction from the Call-ID index.
+     */
+    private void removeClientTransactionCallId(SIPClientTransaction clientTransaction) {
+        SIPRequest sipRequest = clientTransaction.getOriginalRequest();
+        if (sipRequest == null || sipRequest.getCallId() == null)
+            return;
+        String callId = sipRequest.getCallId().getCallId().toLowerCase();
+        List<SIPClientTransaction> transactions = clientTransactionCallIdTable.get(callId);
+        if (transactions == null)
+            return;
+        synchronized (transactions) {
+            transactions.remove(clientTransaction);
+            if (transactions.isEmpty())
+                clientTransactionCallIdTable.remove(callId, transactions);
+        }
+    }
+
+    /**
+     * Get the client transactions that have the given Call-ID.
+     */
+    private List<SIPClientTransaction> getClientTransactionsByCallId(String callId) {
+        List<SIPClientTransaction> transactions = clientTransactionCallIdTable.get(callId
+                .toLowerCase());
+        if (transactions == null)
+            return Collections.emptyList();
+        return transactions;
+    }
+
+    /**
+     * Find a forked dialog. Forked dialogs are kept by the client transaction
+     * that created them rather than in the dialog table.
+     */
+    private SIPDialog getForkedDialog(String callId, String dialogId) {
+        for (SIPClientTransaction ctx : getClientTransactionsByCallId(callId)) {
+            SIPDialog dialog = ctx.getDialog(dialogId);
+            if (dialog != null)
+                return dialog;
+        }
+        return null;
+    }
+
     /**
      * This method is called when a client tx transitions to the Completed or Terminated state.
      *
@@ -1585,6 +1937,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
                 stackLogger.logDebug("removing client Tx : " + key);
             }
             clientTransactionTable.remove(key);
+            removeClientTransactionCallId((SIPClientTransaction) sipTransaction);
 
         } else if (sipTransaction instanceof SIPServerTransaction) {
             String key = sipTransaction.getTransactionId();
@@ -1638,10 +1991,15 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
     public void stopStack() {
         // Prevent NPE on two concurrent stops
         if (this.timer != null)
-            this.timer.cancel();
+            this.timer.stop();
 
         // JvB: set it to null, SIPDialog tries to schedule things after stop
         timer = null;
+        synchronized (this) {
+            if (this.legacyTimer != null)
+                this.legacyTimer.cancel();
+            this.legacyTimer = null;
+        }
         this.pendingTransactions.clear();
         this.toExit = true;
         synchronized (this) {
@@ -1651,6 +2009,11 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
             clientTransactionTable.notifyAll();
         }
 
+        if (this.callIdShardExecutor != null) {
+            this.callIdShardExecutor.shutdown();
+            this.callIdShardExecutor = null;
+        }
+
         synchronized (this.messageProcessors) {
             // Threads must periodically check this flag.
             MessageProcessor[] processorList;
@@ -1668,11 +2031,21 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
         } catch (InterruptedException ex) {
         }
+        if (this.addressResolver instanceof CachingAddressResolver)
+            ((CachingAddressResolver) this.addressResolver).stop();
+        // The stored dialogs are kept for a restart.
+        if (this.dialogStore != null) {
+            this.dialogStore.stop();
+            this.dialogStore = null;
+        }
         this.clientTransactionTable.clear();
+        this.clientTransactionCallIdTable.clear();
         this.serverTransactionTable.clear();
 
         this.dialogTable.clear();
         this.serverLogger.closeLogFile();
+        if (this.pcapCapture != null)
+            this.pcapCapture.close();
 
     }
 
@@ -1730,6 +2103,24 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         return this.serverLogger;
     }
 
+    /**
+     * Get the packet capture enabled by gov.nist.javax.sip.CAPTURE_FILE.
+     *
+     * @return the capture, or null if messages are not captured.
+     */
+    public PcapCapture getPcapCapture() {
+        return this.pcapCapture;
+    }
+
+    /**
+     * Get the admission control that decides which new requests are turned away under load.
+     *
+     * @return the admission control of this stack.
+     */
+    public AdmissionControl getAdmissionControl() {
+        return this.admissionControl;
+    }
+
     /**
      * Maximum size of a single TCP message. Limiting the size of a single TCP message prevents
      * flooding attacks.
@@ -1740,6 +2131,26 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         return this.maxMessageSize;
     }
 
+    /**
+     * Maximum size of the headers of a single TCP message. 0 means that only the max message
+     * size applies.
+     *
+     * @return the max size of the header block of a TCP message.
+     */
+    public int getMaxHeaderSize() {
+        return this.maxHeaderSize;
+    }
+
+    /**
+     * Max time (ms) that a sender waits for an outgoing TCP or TLS connection to the remote
+     * party to be established.
+     *
+     * @return the connect timeout.
+     */
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
     /**
      * Set the flag that instructs the stack to only start a single thread for sequentially
      * processing incoming udp messages (thus serializing the processing). Same as setting thread
@@ -1761,7 +2172,103 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
     }
 
     /**
-     * Set the max # of simultaneously handled TCP connections.
+     * Get T1, the round-trip time estimate the retransmissions start at.
+     *
+     * @return -- T1 in milliseconds.
+     */
+    public int getTimerT1() {
+        return this.timerT1;
+    }
+
+    /**
+     * Get T2, the maximum retransmit interval for non-INVITE requests and INVITE responses.
+     *
+     * @return -- T2 in milliseconds.
+     */
+    public int getTimerT2() {
+        return this.timerT2;
+    }
+
+    /**
+     * Get T4, the maximum duration a message will remain in the network.
+     *
+     * @return -- T4 in milliseconds.
+     */
+    public int getTimerT4() {
+        return this.timerT4;
+    }
+
+    /**
+     * Get the manager of the TCP and TLS connections.
+     *
+     * @return -- the connection manager of this stack.
+     */
+    public ConnectionManager getConnectionManager() {
+        return this.connectionManager;
+    }
+
+    /**
+     * Get the store the snapshots of the confirmed dialogs are written to.
+     *
+     * @return the dialog store or null if dialogs are not stored.
+     */
+    public DialogStore getDialogStore() {
+        return this.dialogStore;
+    }
+
+    /**
+     * Set the serializer that stores the application data of the dialogs with their snapshots.
+     * Without one the application data is not stored.
+     *
+     * @param applicationDataSerializer -- the serializer, null for none.
+     */
+    public void setApplicationDataSerializer(ApplicationDataSerializer applicationDataSerializer) {
+        this.applicationDataSerializer = applicationDataSerializer;
+    }
+
+    /**
+     * @return the serializer of the application data of the dialogs, null if there is none.
+     */
+    public ApplicationDataSerializer getApplicationDataSerializer() {
+        return this.applicationDataSerializer;
+    }
+
+    /**
+     * Bring back the dialogs held by the dialog store into the dialog table, for a standby node
+     * taking over from a failed one or a node restarting. The restored dialogs are confirmed and
+     * acknowledged: requests within them are matched and can be created and sent as if the
+     * dialog had been established here. Call it once the listening points and the provider are
+     * set up, with the provider for the transport the dialogs were established on. Dialogs
+     * already in the table are left alone.
+     *
+     * @param sipProvider -- the provider the restored dialogs send their requests with.
+     * @return the number of dialogs restored.
+     * @throws IOException if the dialog store cannot be read.
+     */
+    public int restoreDialogs(SipProviderImpl sipProvider) throws IOException {
+        if (this.dialogStore == null)
+            return 0;
+        int restored = 0;
+        for (Map.Entry<String, byte[]> entry : this.dialogStore.load().entrySet()) {
+            SIPDialog dialog;
+            try {
+                dialog = new SIPDialog(sipProvider, DialogSnapshot.decode(entry.getValue()));
+            } catch (Exception ex) {
+                if (stackLogger.isLoggingEnabled())
+                    stackLogger.logError("Cannot restore dialog " + entry.getKey(), ex);
+                continue;
+            }
+            if (dialogTable.putIfAbsent(dialog.getDialogId(), dialog) == null)
+                restored++;
+        }
+        if (stackLogger.isLoggingEnabled())
+            stackLogger.logDebug("Restored " + restored + " dialogs");
+        return restored;
+    }
+
+    /**
+     * Set the max # of simultaneously handled TCP and TLS connections. Opening one more closes
+     * the least recently used one.
      *
      * @param nconnections -- the number of connections to handle.
      */
@@ -1942,12 +2449,22 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
             this.addMessageProcessor(udpMessageProcessor);
             this.udpFlag = true;
             return udpMessageProcessor;
+        } else if (transport.equalsIgnoreCase("tcp") && this.useNioTcp) {
+            NioTcpMessageProcessor nioTcpMessageProcessor = new NioTcpMessageProcessor(ipAddress,
+                    this, port);
+            this.addMessageProcessor(nioTcpMessageProcessor);
+            return nioTcpMessageProcessor;
         } else if (transport.equalsIgnoreCase("tcp")) {
             TCPMessageProcessor tcpMessageProcessor = new TCPMessageProcessor(ipAddress, this,
                     port);
             this.addMessageProcessor(tcpMessageProcessor);
             // this.tcpFlag = true;
             return tcpMessageProcessor;
+        } else if (transport.equalsIgnoreCase("tls") && this.useNioTls) {
+            NioTlsMessageProcessor nioTlsMessageProcessor = new NioTlsMessageProcessor(ipAddress,
+                    this, port);
+            this.addMessageProcessor(nioTlsMessageProcessor);
+            return nioTlsMessageProcessor;
         } else if (transport.equalsIgnoreCase("tls")) {
             TLSMessageProcessor tlsMessageProcessor = new TLSMessageProcessor(ipAddress, this,
                     port);
@@ -2010,7 +2527,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
         // Create the host/port of the target hop
         targetHost = new Host();
-        targetHost.setHostname(nextHop.getHost());
+        targetHost.setHostname(getChannelHost(nextHop));
         targetHostPort = new HostPort();
         targetHostPort.setHost(targetHost);
         targetHostPort.setPort(nextHop.getPort());
@@ -2069,6 +2586,17 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         return this.addressResolver;
     }
 
+    /**
+     * Return true if the address resolver is one of the stack's own (the
+     * default or the caching one) rather than one set by the application.
+     * Those take a hop without a port and look the target up as RFC 3263
+     * says, and are not consulted for the Via of incoming requests.
+     */
+    public boolean hasStackAddressResolver() {
+        return this.addressResolver.getClass() == DefaultAddressResolver.class
+                || this.addressResolver instanceof CachingAddressResolver;
+    }
+
     /**
      * Set the address resolution interface
      *
@@ -2078,6 +2606,43 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         this.addressResolver = addressResolver;
     }
 
+    /**
+     * Get the address of a host, through the cache of the address resolver
+     * when it keeps one. Hops resolved by a caching resolver already carry an
+     * IP address, so this only goes to the network for names that got here
+     * some other way.
+     *
+     * @param host -- a name or an IP address.
+     * @throws UnknownHostException if the name has no address.
+     */
+    public InetAddress getInetAddress(String host) throws UnknownHostException {
+        if (this.addressResolver instanceof CachingAddressResolver)
+            return ((CachingAddressResolver) this.addressResolver).getInetAddress(host);
+        return InetAddress.getByName(host);
+    }
+
+    /**
+     * The host to open a channel to for a hop: its cached address when the
+     * address resolver keeps a cache, so that the channel does not look the
+     * name up again.
+     */
+    private String getChannelHost(Hop hop) throws UnknownHostException {
+        if (this.addressResolver instanceof CachingAddressResolver)
+            return getInetAddress(hop.getHost()).getHostAddress();
+        return hop.getHost();
+    }
+
+    /**
+     * Tell the address resolver that nothing answered at a hop, so that the
+     * next request for the same destination can go to another server.
+     *
+     * @param hop -- the hop a request was sent to.
+     */
+    public void markHopFailed(Hop hop) {
+        if (hop != null && this.addressResolver instanceof CachingAddressResolver)
+            ((CachingAddressResolver) this.addressResolver).markFailed(hop);
+    }
+
     /**
      * Set the logger factory.
      *
@@ -2355,12 +2920,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
          * This could be a forked dialog. Search for it.
          */
         if ( replacesDialog == null ) {
-           for ( SIPClientTransaction ctx : this.clientTransactionTable.values()) {
-               if ( ctx.getDialog(did) != null ) {
-                   replacesDialog = ctx.getDialog(did);
-                   break;
-               }
-           }
+           replacesDialog = getForkedDialog(cid, did);
         }
 
         return replacesDialog;
@@ -2388,23 +2948,63 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
             retval.append(":");
             retval.append(fromTag);
         }
-        return this.dialogTable.get(retval.toString().toLowerCase());
+        String did = retval.toString().toLowerCase();
+        Dialog joinDialog = this.dialogTable.get(did);
+        /*
+         * This could be a forked dialog. Search for it.
+         */
+        if (joinDialog == null) {
+            joinDialog = getForkedDialog(cid, did);
+        }
+        return joinDialog;
     }
 
     /**
      * @param timer the timer to set
      */
-    public void setTimer(Timer timer) {
+    public void setSipTimer(SipTimer timer) {
         this.timer = timer;
     }
 
     /**
      * @return the timer
      */
-    public Timer getTimer() {
+    public SipTimer getSipTimer() {
         return timer;
     }
 
+    /**
+     * @param timer the timer to set. A timer that is also a SipTimer ( such as the
+     *        DefaultSipTimer ) becomes the stack timer, any other one is only handed back by
+     *        getTimer().
+     * @deprecated the stack schedules its tasks on a SipTimer, use setSipTimer.
+     */
+    @Deprecated
+    public synchronized void setTimer(Timer timer) {
+        if (timer instanceof SipTimer)
+            this.timer = (SipTimer) timer;
+        else
+            this.legacyTimer = timer;
+    }
+
+    /**
+     * @return the stack timer if it is a java.util.Timer ( the DefaultSipTimer is ), or else
+     *         a java.util.Timer that the stack creates for the caller and cancels when the
+     *         stack is stopped. Null once the stack is stopped.
+     * @deprecated the stack schedules its tasks on a SipTimer, use getSipTimer.
+     */
+    @Deprecated
+    public synchronized Timer getTimer() {
+        SipTimer sipTimer = this.timer;
+        if (sipTimer == null)
+            return null;
+        if (sipTimer instanceof Timer)
+            return (Timer) sipTimer;
+        if (this.legacyTimer == null)
+            this.legacyTimer = new Timer("SipStackLegacyTimer", true);
+        return this.legacyTimer;
+    }
+
     
     /**
      * Size of the receive UDP buffer. This property affects performance under load. Bigger buffer
@@ -0,0 +1,291 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.LatencyHistogram;
+import gov.nist.core.StripedCounter;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counters and latency histograms kept by the stack while it runs. They are
+ * always on and cheap enough to be bumped for every message. Get them from
+ * {@link SIPTransactionStack#getStackMetrics()}, or take a snapshot of these
+ * together with the table sizes and queue depths of the stack with
+ * {@link SIPTransactionStack#getMetrics()}.
+ * <p>
+ * Messages are counted by method or status code as they are handed to the
+ * stack after parsing and as they are handed to the transport, so
+ * retransmissions are included in the sent counts.
+ *
+ * @since 2.0
+ */
+public class StackMetrics {
+
+    private static final int MIN_STATUS = 100;
+
+    private static final int MAX_STATUS = 699;
+
+    /**
+     * Requests with methods beyond this many distinct ones are counted
+     * together under OTHER, so that garbage methods can't grow the tables
+     * without bound.
+     */
+    private static final int MAX_METHODS = 64;
+
+    private static final String OTHER_METHOD = "OTHER";
+
+    private LatencyHistogram parseTime = new LatencyHistogram();
+
+    private LatencyHistogram encodeTime = new LatencyHistogram();
+
+    private LatencyHistogram timerLag = new LatencyHistogram();
+
+    private LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+
+    private StripedCounter udpDrops = new StripedCounter();
+
+    private StripedCounter retransmissionsSent = new StripedCounter();
+
+    private StripedCounter retransmissionsAbsorbed = new StripedCounter();
+
+    private StripedCounter requestsRejected = new StripedCounter();
+
+    private StripedCounter tlsSessionsResumed = new StripedCounter();
+
+    private StripedCounter tlsHandshakeFailures = new StripedCounter();
+
+    private ConcurrentHashMap<String, StripedCounter> requestsReceived = new ConcurrentHashMap<String, StripedCounter>();
+
+    private ConcurrentHashMap<String, StripedCounter> requestsSent = new ConcurrentHashMap<String, StripedCounter>();
+
+    private AtomicReferenceArray<StripedCounter> responsesReceived = new AtomicReferenceArray<StripedCounter>(
+            MAX_STATUS - MIN_STATUS + 1);
+
+    private AtomicReferenceArray<StripedCounter> responsesSent = new AtomicReferenceArray<StripedCounter>(
+            MAX_STATUS - MIN_STATUS + 1);
+
+    /**
+     * @return the time it takes to parse a message read from the network.
+     */
+    public LatencyHistogram getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * @return the time it takes to encode a message to be sent.
+     */
+    public LatencyHistogram getEncodeTime() {
+        return encodeTime;
+    }
+
+    /**
+     * @return how late timer tasks run compared to when they were due.
+     */
+    public LatencyHistogram getTimerLag() {
+        return timerLag;
+    }
+
+    /**
+     * @return the time from connection to the end of the TLS handshake on
+     *         non-blocking TLS connections.
+     */
+    public LatencyHistogram getTlsHandshakeTime() {
+        return tlsHandshakeTime;
+    }
+
+    /**
+     * @return the number of datagrams dropped because the UDP message queue
+     *         was full.
+     */
+    public StripedCounter getUdpDrops() {
+        return udpDrops;
+    }
+
+    /**
+     * @return the number of requests and responses retransmitted by the
+     *         transaction and dialog layers.
+     */
+    public StripedCounter getRetransmissionsSent() {
+        return retransmissionsSent;
+    }
+
+    /**
+     * @return the number of retransmitted requests and responses received
+     *         that were absorbed by a transaction instead of being passed to
+     *         the application.
+     */
+    public StripedCounter getRetransmissionsAbsorbed() {
+        return retransmissionsAbsorbed;
+    }
+
+    /**
+     * @return the number of requests turned away by admission control,
+     *         answered with 503 or dropped.
+     */
+    public StripedCounter getRequestsRejected() {
+        return requestsRejected;
+    }
+
+    /**
+     * @return the number of TLS handshakes that resumed an earlier session.
+     */
+    public StripedCounter getTlsSessionsResumed() {
+        return tlsSessionsResumed;
+    }
+
+    /**
+     * @return the number of TLS handshakes that failed.
+     */
+    public StripedCounter getTlsHandshakeFailures() {
+        return tlsHandshakeFailures;
+    }
+
+    /**
+     * Count a message read from the network.
+     */
+    public void messageReceived(SIPMessage message) {
+        count(message, requestsReceived, responsesReceived);
+    }
+
+    /**
+     * Count a message once it has been written to the transport.
+     */
+    public void messageSent(SIPMessage message) {
+        count(message, requestsSent, responsesSent);
+    }
+
+    public long getRequestsReceived(String method) {
+        return get(requestsReceived, method);
+    }
+
+    public long getRequestsSent(String method) {
+        return get(requestsSent, method);
+    }
+
+    public long getResponsesReceived(int statusCode) {
+        return get(responsesReceived, statusCode);
+    }
+
+    public long getResponsesSent(int statusCode) {
+        return get(responsesSent, statusCode);
+    }
+
+    /**
+     * Add the counters and histograms to a snapshot. Histograms are added as
+     * name.count, name.mean, name.p50, name.p99 and name.max, in
+     * microseconds.
+     */
+    void addTo(Map<String, Number> snapshot) {
+        addTo(snapshot, "parseTime", parseTime);
+        addTo(snapshot, "encodeTime", encodeTime);
+        addTo(snapshot, "timerLag", timerLag);
+        addTo(snapshot, "tls.handshakeTime", tlsHandshakeTime);
+        snapshot.put("udp.drops", udpDrops.get());
+        snapshot.put("retransmissions.sent", retransmissionsSent.get());
+        snapshot.put("retransmissions.absorbed", retransmissionsAbsorbed.get());
+        snapshot.put("requests.rejected", requestsRejected.get());
+        snapshot.put("tls.sessionsResumed", tlsSessionsResumed.get());
+        snapshot.put("tls.handshakeFailures", tlsHandshakeFailures.get());
+        for (Map.Entry<String, StripedCounter> entry : requestsReceived.entrySet())
+            snapshot.put("requests.received." + entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, StripedCounter> entry : requestsSent.entrySet())
+            snapshot.put("requests.sent." + entry.getKey(), entry.getValue().get());
+        addTo(snapshot, "responses.received.", responsesReceived);
+        addTo(snapshot, "responses.sent.", responsesSent);
+    }
+
+    private static void addTo(Map<String, Number> snapshot, String name,
+            LatencyHistogram histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".mean", histogram.getMeanMicros());
+        snapshot.put(name + ".p50", histogram.getPercentileMicros(50));
+        snapshot.put(name + ".p99", histogram.getPercentileMicros(99));
+        snapshot.put(name + ".max", histogram.getMaxMicros());
+    }
+
+    private static void addTo(Map<String, Number> snapshot, String prefix,
+            AtomicReferenceArray<StripedCounter> counters) {
+        for (int i = 0; i < counters.length(); i++) {
+            StripedCounter counter = counters.get(i);
+            if (counter != null)
+                snapshot.put(prefix + (MIN_STATUS + i), counter.get());
+        }
+    }
+
+    private static void count(SIPMessage message,
+            ConcurrentHashMap<String, StripedCounter> requests,
+            AtomicReferenceArray<StripedCounter> responses) {
+        if (message instanceof SIPRequest) {
+            String method = ((SIPRequest) message).getMethod();
+            if (method == null)
+                return;
+            StripedCounter counter = requests.get(method);
+            if (counter == null && requests.size() >= MAX_METHODS) {
+                method = OTHER_METHOD;
+                counter = requests.get(method);
+            }
+            if (counter == null) {
+                StripedCounter newCounter = new StripedCounter();
+                counter = requests.putIfAbsent(method, newCounter);
+                if (counter == null)
+                    counter = newCounter;
+            }
+            counter.increment();
+        } else if (message instanceof SIPResponse) {
+            int statusCode = ((SIPResponse) message).getStatusCode();
+            if (statusCode < MIN_STATUS || statusCode > MAX_STATUS)
+                return;
+            int index = statusCode - MIN_STATUS;
+            StripedCounter counter = responses.get(index);
+            if (counter == null) {
+                responses.compareAndSet(index, null, new StripedCounter());
+                counter = responses.get(index);
+            }
+            counter.increment();
+        }
+    }
+
+    private static long get(ConcurrentHashMap<String, StripedCounter> counters, String method) {
+        StripedCounter counter = counters.get(method);
+        return counter == null ? 0 : counter.get();
+    }
+
+    private static long get(AtomicReferenceArray<StripedCounter> counters, int statusCode) {
+        if (statusCode < MIN_STATUS || statusCode > MAX_STATUS)
+            return 0;
+        StripedCounter counter = counters.get(statusCode - MIN_STATUS);
+        return counter == null ? 0 : counter.get();
+    }
+}
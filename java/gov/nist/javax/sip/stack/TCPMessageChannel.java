@@ -35,7 +35,7 @@ import gov.nist.core.*;
 import java.net.*;
 import java.io.*;
 import java.text.ParseException;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.sip.address.Hop;
 
@@ -99,6 +99,11 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
 
     private TCPMessageProcessor tcpMessageProcessor;
 
+    /*
+     * The state of this connection in the packet capture.
+     */
+    private volatile PcapCapture.Flow captureFlow;
+
     protected TCPMessageChannel(SIPTransactionStack sipStack) {
         this.sipStack = sipStack;
 
@@ -139,6 +144,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         this.myPort = this.tcpMessageProcessor.getPort();
         // Bug report by Vishwashanti Raj Kadiayl
         super.messageProcessor = msgProcessor;
+        sipStack.getConnectionManager().connectionOpened(this);
         // Can drop this after response is sent potentially.
         mythread.start();
     }
@@ -251,6 +257,8 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
        // this.peerAddress, this.peerPort));
         Socket sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
                 this.peerAddress, this.peerPort, this.peerProtocol, msg, retry, this);
+        capture(sock, true, msg, msg.length);
+        connectionActivity(false);
 
         // Created a new socket so close the old one and stick the new
         // one in its place but dont do this if it is a datagram socket.
@@ -271,6 +279,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
             thread.setDaemon(true);
             thread.setName("TCPMessageChannelThread");
             thread.start();
+            sipStack.getConnectionManager().connectionOpened(this);
         }
 
     }
@@ -283,7 +292,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
      * @throws IOException If there is an error sending the message
      */
     public void sendMessage(SIPMessage sipMessage) throws IOException {
-        byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+        byte[] msg = encode(sipMessage);
 
         long time = System.currentTimeMillis();
 
@@ -291,8 +300,10 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         // try to reconnect
         this.sendMessage(msg, /* sipMessage instanceof SIPRequest */true);
 
+        messageSent(sipMessage);
+
         if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
-            logMessage(sipMessage, peerAddress, peerPort, time);
+            logMessage(sipMessage, msg, peerAddress, peerPort, time);
     }
 
     /**
@@ -309,12 +320,14 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
             throw new IllegalArgumentException("Null argument");
          Socket sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
                 receiverAddress, receiverPort, "TCP", message, retry, this);
+         capture(sock, true, message, message.length);
+        connectionActivity(false);
         if (sock != mySock && sock != null) {
             if (mySock != null) {
                 /*
                  * Delay the close of the socket for some time in case it is being used.
                  */
-                sipStack.getTimer().schedule(new TimerTask() {
+                sipStack.getSipTimer().schedule(new SIPStackTimerTask() {
                     @Override
                     public boolean cancel() {
                         try {
@@ -327,7 +340,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                     }
 
                     @Override
-                    public void run() {
+                    protected void runTask() {
                         try {
                             mySock.close();
                         } catch (IOException ex) {
@@ -345,6 +358,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
             mythread.setDaemon(true);
             mythread.setName("TCPMessageChannelThread");
             mythread.start();
+            sipStack.getConnectionManager().connectionOpened(this);
         }
 
     }
@@ -404,6 +418,32 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         }
     }
 
+    /**
+     * Hand the message to the shard that owns its Call-ID.
+     *
+     * @param shardExecutor -- the stack shard executor.
+     * @param sipMessage -- the parsed message.
+     */
+    private void dispatchMessage(CallIdShardExecutor shardExecutor,
+            final SIPMessage sipMessage) {
+        try {
+            shardExecutor.execute(sipMessage.getCallId().getCallId(), new Runnable() {
+                public void run() {
+                    try {
+                        processMessage(sipMessage);
+                    } catch (Exception ex) {
+                        sipStack.getStackLogger().logError(
+                                "Error while processing incoming TCP message", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug(
+                        "Call-ID shards stopped -- dropping message");
+        }
+    }
+
     /**
      * Gets invoked by the parser as a callback on successful message parsing (i.e. no parser
      * errors).
@@ -412,6 +452,12 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
      *        message).
      */
     public void processMessage(SIPMessage sipMessage) throws Exception {
+        CallIdShardExecutor shardExecutor = sipStack.getCallIdShardExecutor();
+        if (shardExecutor != null && sipMessage.getCallId() != null
+                && !shardExecutor.isShardThread()) {
+            this.dispatchMessage(shardExecutor, sipMessage);
+            return;
+        }
         try {
             if (sipMessage.getFrom() == null
                     || // sipMessage.getFrom().getTag()
@@ -434,7 +480,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
             // message.
             if (sipMessage instanceof SIPRequest) {
                 Via v = (Via) viaList.getFirst();
-                Hop hop = sipStack.addressResolver.resolveAddress(v.getHop());
+                Hop hop = getSentByHop(v);
                 this.peerProtocol = v.getTransport();
                 try {
                     this.peerAddress = mySock.getInetAddress();
@@ -501,8 +547,9 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                                 .getMaxMessageSize()) {
                     SIPResponse sipResponse = sipRequest
                             .createResponse(SIPResponse.MESSAGE_TOO_LARGE);
-                    byte[] resp = sipResponse.encodeAsBytes(this.getTransport());
+                    byte[] resp = encode(sipResponse);
                     this.sendMessage(resp, false);
+                    messageSent(sipResponse);
                     throw new Exception("Message size exceeded");
                 }
 
@@ -589,14 +636,28 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
      * end has closed.
      */
     public void run() {
+        // The connection this thread reads from.
+        final Socket sock = mySock;
         Pipeline hispipe = null;
         // Create a pipeline to connect to our message parser.
         hispipe = new Pipeline(myClientInputStream, sipStack.readTimeout,
-                ((SIPTransactionStack) sipStack).getTimer());
+                ((SIPTransactionStack) sipStack).getSipTimer());
         // Create a pipelined message parser to read and parse
         // messages that we write out to him.
-        myParser = new PipelinedMsgParser(this, hispipe, this.sipStack.getMaxMessageSize());
+        myParser = new PipelinedMsgParser(this, hispipe, this.sipStack.getMaxMessageSize(),
+                this.sipStack.getMaxHeaderSize());
         // Start running the parser thread.
+        myParser.setParseTimeHistogram(sipStack.getStackMetrics().getParseTime());
+        myParser.setPingHandler(new Runnable() {
+            public void run() {
+                try {
+                    sendKeepAlive(ConnectionManager.PONG);
+                } catch (IOException ex) {
+                    if (sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logDebug("Could not answer ping " + ex);
+                }
+            }
+        });
         myParser.processInput();
         // bug fix by Emmanuel Proulx
         int bufferSize = 4096;
@@ -611,18 +672,14 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                     if (nbytes == -1) {
                         hispipe.write("\r\n\r\n".getBytes("UTF-8"));
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tcpMessageProcessor) {
-                                    tcpMessageProcessor.nConnections--;
-                                    tcpMessageProcessor.notify();
-                                }
-                            }
                             hispipe.close();
                             mySock.close();
                         } catch (IOException ioex) {
                         }
                         return;
                     }
+                    capture(mySock, false, msg, nbytes);
+                    connectionActivity(true);
                     hispipe.write(msg, 0, nbytes);
 
                 } catch (IOException ex) {
@@ -637,13 +694,6 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                         if (sipStack.isLoggingEnabled())
                             sipStack.getStackLogger().logDebug("IOException  closing sock " + ex);
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tcpMessageProcessor) {
-                                    tcpMessageProcessor.nConnections--;
-                                    // System.out.println("Notifying!");
-                                    tcpMessageProcessor.notify();
-                                }
-                            }
                             mySock.close();
                             hispipe.close();
                         } catch (IOException ioex) {
@@ -658,6 +708,12 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
             }
         } finally {
             this.isRunning = false;
+            // Unless the channel moved on to a new connection in the meantime.
+            if (mySock == null || mySock == sock) {
+                sipStack.getConnectionManager().connectionClosed(this);
+                sipStack.ioHandler.removeSocket(IOHandler.makeKey(sock.getInetAddress(), sock
+                        .getPort()), sock);
+            }
             this.tcpMessageProcessor.remove(this);
             this.tcpMessageProcessor.useCount--;
             myParser.close();
@@ -744,4 +800,31 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
     public boolean isSecure() {
         return false;
     }
+
+    /**
+     * Write a keep-alive on the current connection.
+     */
+    protected void sendKeepAlive(byte[] bytes) throws IOException {
+        Socket sock = mySock;
+        if (sock == null || sock.isClosed())
+            throw new IOException("Connection to " + peerAddress + ":" + peerPort + " is closed");
+        OutputStream outputStream = sock.getOutputStream();
+        // Writers of whole messages synchronize on the stream as well.
+        synchronized (outputStream) {
+            outputStream.write(bytes);
+        }
+        outputStream.flush();
+        capture(sock, true, bytes, bytes.length);
+        connectionActivity(false);
+    }
+
+    /**
+     * Hand bytes sent or received on the connection to the packet capture, if
+     * there is one.
+     */
+    private void capture(Socket sock, boolean sent, byte[] bytes, int length) {
+        if (sipStack.pcapCapture != null && sock != null)
+            captureFlow = sipStack.pcapCapture.captureStream(captureFlow, sock, sent, bytes, 0,
+                    length);
+    }
 }
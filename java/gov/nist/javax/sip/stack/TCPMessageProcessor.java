@@ -57,8 +57,6 @@ import java.util.*;
  */
 public class TCPMessageProcessor extends MessageProcessor {
 
-    protected int nConnections;
-
     private boolean isRunning;
 
     private Hashtable tcpMessageChannels;
@@ -69,6 +67,16 @@ public class TCPMessageProcessor extends MessageProcessor {
 
     protected int useCount;
 
+    /**
+     * Number of open TCP and TLS connections of the stack, as counted by the connection
+     * manager. Refreshed when this processor accepts or removes a connection.
+     * 
+     * @deprecated the connection manager of the stack keeps the count and enforces
+     *             MAX_CONNECTIONS, use its getConnectionCount().
+     */
+    @Deprecated
+    protected int nConnections;
+
     /**
      * Constructor.
      * 
@@ -111,25 +119,6 @@ public class TCPMessageProcessor extends MessageProcessor {
         // Accept new connectins on our socket.
         while (this.isRunning) {
             try {
-                synchronized (this) {
-                    // sipStack.maxConnections == -1 means we are
-                    // willing to handle an "infinite" number of
-                    // simultaneous connections (no resource limitation).
-                    // This is the default behavior.
-                    while (sipStack.maxConnections != -1
-                            && this.nConnections >= sipStack.maxConnections) {
-                        try {
-                            this.wait();
-
-                            if (!this.isRunning)
-                                return;
-                        } catch (InterruptedException ex) {
-                            break;
-                        }
-                    }
-                    this.nConnections++;
-                }
-
                 Socket newsock = sock.accept();
                 if (sipStack.isLoggingEnabled()) {
                     getSIPStack().getStackLogger().logDebug("Accepting new connection!");
@@ -138,6 +127,7 @@ public class TCPMessageProcessor extends MessageProcessor {
                 // thread is already running
                
                 incomingTcpMessageChannels.add(new TCPMessageChannel(newsock, sipStack, this));
+                this.nConnections = sipStack.connectionManager.getConnectionCount();
             } catch (SocketException ex) {
                 this.isRunning = false;
             } catch (IOException ex) {
@@ -209,6 +199,7 @@ public class TCPMessageProcessor extends MessageProcessor {
         }
 
         incomingTcpMessageChannels.remove(tcpMessageChannel);
+        this.nConnections = sipStack.connectionManager.getConnectionCount();
     }
 
     public synchronized MessageChannel createMessageChannel(HostPort targetHostPort)
@@ -48,11 +48,11 @@ import gov.nist.core.*;
 import java.net.*;
 import java.io.*;
 import java.text.ParseException;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLSocket;
 import javax.sip.address.Hop;
-import javax.sip.message.Response;
 
 /**
  * This is sipStack for TLS connections. This abstracts a stream of parsed messages. The SIP
@@ -103,6 +103,11 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
 
     private TLSMessageProcessor tlsMessageProcessor;
 
+    /*
+     * The state of this connection in the packet capture.
+     */
+    private volatile PcapCapture.Flow captureFlow;
+
     private SIPTransactionStack sipStack;
 
     private HandshakeCompletedListener handshakeCompletedListener;
@@ -154,6 +159,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
         this.peerPort = mySock.getPort();
         // Bug report by Vishwashanti Raj Kadiayl
         super.messageProcessor = msgProcessor;
+        sipStack.getConnectionManager().connectionOpened(this);
         // Can drop this after response is sent potentially.
         mythread.start();
     }
@@ -255,6 +261,8 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
         Socket sock = this.sipStack.ioHandler.sendBytes(
                 this.getMessageProcessor().getIpAddress(), this.peerAddress, this.peerPort,
                 this.peerProtocol, msg, retry,this);
+        capture(sock, true, msg, msg.length);
+        connectionActivity(false);
         // Created a new socket so close the old one and stick the new
         // one in its place but dont do this if it is a datagram socket.
         // (could have replied via udp but received via tcp!).
@@ -271,6 +279,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
             thread.setDaemon(true);
             thread.setName("TLSMessageChannelThread");
             thread.start();
+            sipStack.getConnectionManager().connectionOpened(this);
         }
 
     }
@@ -283,14 +292,16 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
      * @throws IOException If there is an error sending the message
      */
     public void sendMessage(SIPMessage sipMessage) throws IOException {
-        byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+        byte[] msg = encode(sipMessage);
 
         long time = System.currentTimeMillis();
 
         this.sendMessage(msg, sipMessage instanceof SIPRequest);
 
+        messageSent(sipMessage);
+
         if (this.sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
-            logMessage(sipMessage, peerAddress, peerPort, time);
+            logMessage(sipMessage, msg, peerAddress, peerPort, time);
     }
 
     /**
@@ -307,6 +318,8 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
             throw new IllegalArgumentException("Null argument");
         Socket sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
                 receiverAddress, receiverPort, "TLS", message, retry, this);
+        capture(sock, true, message, message.length);
+        connectionActivity(false);
         //
         // Created a new socket so close the old one and s
         // Check for null (bug fix sent in by Christophe)
@@ -325,6 +338,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
             mythread.setDaemon(true);
             mythread.setName("TLSMessageChannelThread");
             mythread.start();
+            sipStack.getConnectionManager().connectionOpened(this);
         }
 
     }
@@ -379,6 +393,32 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
         }
     }
 
+    /**
+     * Hand the message to the shard that owns its Call-ID.
+     *
+     * @param shardExecutor -- the stack shard executor.
+     * @param sipMessage -- the parsed message.
+     */
+    private void dispatchMessage(CallIdShardExecutor shardExecutor,
+            final SIPMessage sipMessage) {
+        try {
+            shardExecutor.execute(sipMessage.getCallId().getCallId(), new Runnable() {
+                public void run() {
+                    try {
+                        processMessage(sipMessage);
+                    } catch (Exception ex) {
+                        sipStack.getStackLogger().logError(
+                                "Error while processing incoming TLS message", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug(
+                        "Call-ID shards stopped -- dropping message");
+        }
+    }
+
     /**
      * Gets invoked by the parser as a callback on successful message parsing (i.e. no parser
      * errors).
@@ -389,6 +429,12 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
      * Jvb: note that this code is identical to TCPMessageChannel, refactor some day
      */
     public void processMessage(SIPMessage sipMessage) throws Exception {
+        CallIdShardExecutor shardExecutor = sipStack.getCallIdShardExecutor();
+        if (shardExecutor != null && sipMessage.getCallId() != null
+                && !shardExecutor.isShardThread()) {
+            this.dispatchMessage(shardExecutor, sipMessage);
+            return;
+        }
         try {
             if (sipMessage.getFrom() == null || sipMessage.getTo() == null
                     || sipMessage.getCallId() == null || sipMessage.getCSeq() == null
@@ -410,7 +456,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
             if (sipMessage instanceof SIPRequest) {
                 Via v = (Via) viaList.getFirst();
                 // the peer address and tag it appropriately.
-                Hop hop = sipStack.addressResolver.resolveAddress(v.getHop());
+                Hop hop = getSentByHop(v);
                 this.peerProtocol = v.getTransport();
                 try {
                     this.peerAddress = mySock.getInetAddress();
@@ -470,8 +516,9 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                                 .getMaxMessageSize()) {
                     SIPResponse sipResponse = sipRequest
                             .createResponse(SIPResponse.MESSAGE_TOO_LARGE);
-                    byte[] resp = sipResponse.encodeAsBytes(this.getTransport());
+                    byte[] resp = encode(sipResponse);
                     this.sendMessage(resp, false);
+                    messageSent(sipResponse);
                     throw new Exception("Message size exceeded");
                 }
 
@@ -490,19 +537,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                         }
                     }
                 } else {
-                    SIPResponse response = sipRequest
-                            .createResponse(Response.SERVICE_UNAVAILABLE);
-
-                    RetryAfter retryAfter = new RetryAfter();
-
-                    // Be a good citizen and send a decent response code back.
-                    try {
-                        retryAfter.setRetryAfter((int) (10 * (Math.random())));
-                        response.setHeader(retryAfter);
-                        this.sendMessage(response);
-                    } catch (Exception e) {
-                        // IGNore
-                    }
+                    // Requests turned away under load were answered by the stack.
                     if (sipStack.isLoggingEnabled())
                     	sipStack.getStackLogger()
                             .logWarning("Dropping message -- could not acquire semaphore");
@@ -569,14 +604,28 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
      * end has closed.
      */
     public void run() {
+        // The connection this thread reads from.
+        final Socket sock = mySock;
         Pipeline hispipe = null;
         // Create a pipeline to connect to our message parser.
         hispipe = new Pipeline(myClientInputStream, sipStack.readTimeout,
-                ((SIPTransactionStack) sipStack).getTimer());
+                ((SIPTransactionStack) sipStack).getSipTimer());
         // Create a pipelined message parser to read and parse
         // messages that we write out to him.
-        myParser = new PipelinedMsgParser(this, hispipe, this.sipStack.getMaxMessageSize());
+        myParser = new PipelinedMsgParser(this, hispipe, this.sipStack.getMaxMessageSize(),
+                this.sipStack.getMaxHeaderSize());
         // Start running the parser thread.
+        myParser.setParseTimeHistogram(sipStack.getStackMetrics().getParseTime());
+        myParser.setPingHandler(new Runnable() {
+            public void run() {
+                try {
+                    sendKeepAlive(ConnectionManager.PONG);
+                } catch (IOException ex) {
+                    if (sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logDebug("Could not answer ping " + ex);
+                }
+            }
+        });
         myParser.processInput();
         // bug fix by Emmanuel Proulx
         int bufferSize = 4096;
@@ -591,18 +640,14 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                     if (nbytes == -1) {
                         hispipe.write("\r\n\r\n".getBytes("UTF-8"));
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tlsMessageProcessor) {
-                                    tlsMessageProcessor.nConnections--;
-                                    tlsMessageProcessor.notify();
-                                }
-                            }
                             hispipe.close();
                             mySock.close();
                         } catch (IOException ioex) {
                         }
                         return;
                     }
+                    capture(mySock, false, msg, nbytes);
+                    connectionActivity(true);
                     hispipe.write(msg, 0, nbytes);
 
                 } catch (IOException ex) {
@@ -617,12 +662,6 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                         if (sipStack.isLoggingEnabled())
                             sipStack.getStackLogger().logDebug("IOException  closing sock " + ex);
                         try {
-                            if (sipStack.maxConnections != -1) {
-                                synchronized (tlsMessageProcessor) {
-                                    tlsMessageProcessor.nConnections--;
-                                    tlsMessageProcessor.notify();
-                                }
-                            }
                             mySock.close();
                             hispipe.close();
                         } catch (IOException ioex) {
@@ -637,6 +676,12 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
             }
         } finally {
             this.isRunning = false;
+            // Unless the channel moved on to a new connection in the meantime.
+            if (mySock == null || mySock == sock) {
+                sipStack.getConnectionManager().connectionClosed(this);
+                sipStack.ioHandler.removeSocket(IOHandler.makeKey(sock.getInetAddress(), sock
+                        .getPort()), sock);
+            }
             this.tlsMessageProcessor.remove(this);
             this.tlsMessageProcessor.useCount--;
             this.myParser.close();
@@ -735,4 +780,31 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
     public HandshakeCompletedListenerImpl getHandshakeCompletedListener() {
         return (HandshakeCompletedListenerImpl) handshakeCompletedListener;
     }
+
+    /**
+     * Write a keep-alive on the current connection.
+     */
+    protected void sendKeepAlive(byte[] bytes) throws IOException {
+        Socket sock = mySock;
+        if (sock == null || sock.isClosed())
+            throw new IOException("Connection to " + peerAddress + ":" + peerPort + " is closed");
+        OutputStream outputStream = sock.getOutputStream();
+        // Writers of whole messages synchronize on the stream as well.
+        synchronized (outputStream) {
+            outputStream.write(bytes);
+        }
+        outputStream.flush();
+        capture(sock, true, bytes, bytes.length);
+        connectionActivity(false);
+    }
+
+    /**
+     * Hand bytes sent or received on the connection to the packet capture, if
+     * there is one.
+     */
+    private void capture(Socket sock, boolean sent, byte[] bytes, int length) {
+        if (sipStack.pcapCapture != null && sock != null)
+            captureFlow = sipStack.pcapCapture.captureStream(captureFlow, sock, sent, bytes, 0,
+                    length);
+    }
 }
@@ -66,8 +66,6 @@ import java.util.Iterator;
  */
 public class TLSMessageProcessor extends MessageProcessor {
 
-    protected int nConnections;
-
     private boolean isRunning;
 
     private Hashtable<String, TLSMessageChannel> tlsMessageChannels;
@@ -76,6 +74,16 @@ public class TLSMessageProcessor extends MessageProcessor {
 
     protected int useCount = 0;
 
+    /**
+     * Number of open TCP and TLS connections of the stack, as counted by the connection
+     * manager. Refreshed when this processor accepts or removes a connection.
+     * 
+     * @deprecated the connection manager of the stack keeps the count and enforces
+     *             MAX_CONNECTIONS, use its getConnectionCount().
+     */
+    @Deprecated
+    protected int nConnections;
+
     private ArrayList<TLSMessageChannel> incomingTlsMessageChannels;
 
     /**
@@ -125,25 +133,6 @@ public class TLSMessageProcessor extends MessageProcessor {
         // Accept new connectins on our socket.
         while (this.isRunning) {
             try {
-                synchronized (this) {
-                    // sipStack.maxConnections == -1 means we are
-                    // willing to handle an "infinite" number of
-                    // simultaneous connections (no resource limitation).
-                    // This is the default behavior.
-                    while (sipStack.maxConnections != -1
-                            && this.nConnections >= sipStack.maxConnections) {
-                        try {
-                            this.wait();
-
-                            if (!this.isRunning)
-                                return;
-                        } catch (InterruptedException ex) {
-                            break;
-                        }
-                    }
-                    this.nConnections++;
-                }
-
                 Socket newsock = sock.accept();
                
                 if (sipStack.isLoggingEnabled())
@@ -154,6 +143,7 @@ public class TLSMessageProcessor extends MessageProcessor {
                // thread is already running
 
                 incomingTlsMessageChannels.add(new TLSMessageChannel(newsock, sipStack, this));
+                this.nConnections = sipStack.connectionManager.getConnectionCount();
             } catch (SocketException ex) {
                 if ( this.isRunning ) {
                   sipStack.getStackLogger().logError(
@@ -225,6 +215,7 @@ public class TLSMessageProcessor extends MessageProcessor {
             this.tlsMessageChannels.remove(key);
         
         incomingTlsMessageChannels.remove(tlsMessageChannel);
+        this.nConnections = sipStack.connectionManager.getConnectionCount();
     }
 
     public synchronized MessageChannel createMessageChannel(HostPort targetHostPort)
@@ -57,7 +57,7 @@ import java.net.Socket;
 import java.text.ParseException;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.sip.address.Hop;
 
@@ -140,7 +140,7 @@ public class UDPMessageChannel extends MessageChannel implements
      */
     private Hashtable<String,PingBackTimerTask> pingBackRecord = new Hashtable<String,PingBackTimerTask>();
     
-    class PingBackTimerTask extends TimerTask {
+    class PingBackTimerTask extends SIPStackTimerTask {
         String ipAddress;
         int port;
         
@@ -150,7 +150,7 @@ public class UDPMessageChannel extends MessageChannel implements
             pingBackRecord.put(ipAddress + ":" + port, this);
         }
         @Override
-        public void run() {
+        protected void runTask() {
            pingBackRecord.remove(ipAddress + ":" + port);
         }
         @Override
@@ -255,37 +255,32 @@ public class UDPMessageChannel extends MessageChannel implements
             DatagramPacket packet;
 
             if (sipStack.threadPoolSize != -1) {
-                synchronized (((UDPMessageProcessor) messageProcessor).messageQueue) {
-                    while (((UDPMessageProcessor) messageProcessor).messageQueue
-                            .isEmpty()) {
-                        // Check to see if we need to exit.
-                        if (!((UDPMessageProcessor) messageProcessor).isRunning)
-                            return;
-                        try {
-                            // We're part of a thread pool. Ask the auditor to
-                            // monitor this thread.
-                            if (threadHandle == null) {
-                                threadHandle = sipStack.getThreadAuditor()
-                                        .addCurrentThread();
-                            }
-
-                            // Send a heartbeat to the thread auditor
-                            threadHandle.ping();
-
-                            // Wait for packets
-                            // Note: getPingInterval returns 0 (infinite) if the
-                            // thread auditor is disabled.
-                            ((UDPMessageProcessor) messageProcessor).messageQueue
-                                    .wait(threadHandle
-                                            .getPingIntervalInMillisecs());
-                        } catch (InterruptedException ex) {
-                            if (!((UDPMessageProcessor) messageProcessor).isRunning)
-                                return;
-                        }
+                UDPMessageProcessor udpMessageProcessor = (UDPMessageProcessor) messageProcessor;
+                packet = null;
+                while (packet == null) {
+                    // Check to see if we need to exit.
+                    if (!udpMessageProcessor.isRunning)
+                        return;
+                    // We're part of a thread pool. Ask the auditor to
+                    // monitor this thread.
+                    if (threadHandle == null) {
+                        threadHandle = sipStack.getThreadAuditor()
+                                .addCurrentThread();
                     }
-                    packet = (DatagramPacket) ((UDPMessageProcessor) messageProcessor).messageQueue
-                            .removeFirst();
 
+                    // Send a heartbeat to the thread auditor
+                    threadHandle.ping();
+
+                    // Wait for packets
+                    // Note: getPingInterval returns 0 (infinite) if the
+                    // thread auditor is disabled.
+                    try {
+                        packet = udpMessageProcessor.takeMessage(threadHandle
+                                .getPingIntervalInMillisecs());
+                    } catch (InterruptedException ex) {
+                        if (!udpMessageProcessor.isRunning)
+                            return;
+                    }
                 }
                 this.incomingPacket = packet;
             } else {
@@ -319,8 +314,18 @@ public class UDPMessageChannel extends MessageChannel implements
         int packetLength = packet.getLength();
         // Read bytes and put it in a eueue.
         byte[] bytes = packet.getData();
-        byte[] msgBytes = new byte[packetLength];
-        System.arraycopy(bytes, 0, msgBytes, 0, packetLength);
+        byte[] msgBytes;
+        if (bytes.length == packetLength && packet.getOffset() == 0) {
+            // Already copied out of the receive buffer.
+            msgBytes = bytes;
+        } else {
+            msgBytes = new byte[packetLength];
+            System.arraycopy(bytes, packet.getOffset(), msgBytes, 0, packetLength);
+        }
+        if (sipStack.pcapCapture != null)
+            sipStack.pcapCapture.captureDatagram(peerAddress, packet.getPort(),
+                    messageProcessor.getIpAddress(), messageProcessor.getPort(), msgBytes, 0,
+                    packetLength);
 
         // Do debug logging.
         if (sipStack.isLoggingEnabled()) {
@@ -334,7 +339,9 @@ public class UDPMessageChannel extends MessageChannel implements
         SIPMessage sipMessage = null;
         try {
             this.receptionTime = System.currentTimeMillis();
+            long start = System.nanoTime();
             sipMessage = myParser.parseSIPMessage(msgBytes);
+            sipStack.getStackMetrics().getParseTime().recordSince(start);
             myParser = null;
         } catch (ParseException ex) {
             myParser = null; // let go of the parser reference.
@@ -389,7 +396,7 @@ public class UDPMessageChannel extends MessageChannel implements
                 byte[] retval = "\r\n\r\n".getBytes();
                 DatagramPacket keepalive = new DatagramPacket(retval,0,retval.length,packet.getAddress(),packet.getPort());
                 ((UDPMessageProcessor)this.messageProcessor).sock.send(keepalive);
-                this.sipStack.getTimer().schedule(new PingBackTimerTask(packet.getAddress().getHostAddress(), 
+                this.sipStack.getSipTimer().schedule(new PingBackTimerTask(packet.getAddress().getHostAddress(), 
                             packet.getPort()), 1000);                
             }
             return;
@@ -417,7 +424,7 @@ public class UDPMessageChannel extends MessageChannel implements
         // For response, just get the port from the packet.
         if (sipMessage instanceof SIPRequest) {
             Via v = (Via) viaList.getFirst();
-            Hop hop = sipStack.addressResolver.resolveAddress(v.getHop());
+            Hop hop = getSentByHop(v);
             this.peerPort = hop.getPort();
             this.peerProtocol = v.getTransport();
 
@@ -454,8 +461,46 @@ public class UDPMessageChannel extends MessageChannel implements
             this.peerProtocol = ((Via) viaList.getFirst()).getTransport();
         }
 
-        this.processMessage(sipMessage);
+        CallIdShardExecutor shardExecutor = sipStack.getCallIdShardExecutor();
+        if (shardExecutor != null)
+            this.dispatchMessage(shardExecutor, sipMessage);
+        else
+            this.processMessage(sipMessage);
+
+    }
 
+    /**
+     * Hand the message to the shard that owns its Call-ID. This channel goes
+     * on to read the next datagram, so the shard gets a channel of its own
+     * that holds the peer of this message.
+     *
+     * @param shardExecutor -- the stack shard executor.
+     * @param sipMessage -- the parsed message.
+     */
+    private void dispatchMessage(CallIdShardExecutor shardExecutor,
+            final SIPMessage sipMessage) {
+        final UDPMessageChannel channel = new UDPMessageChannel(this.peerAddress,
+                this.peerPort, sipStack, (UDPMessageProcessor) messageProcessor);
+        channel.peerProtocol = this.peerProtocol;
+        channel.peerPacketSourceAddress = this.peerPacketSourceAddress;
+        channel.peerPacketSourcePort = this.peerPacketSourcePort;
+        channel.receptionTime = this.receptionTime;
+        try {
+            shardExecutor.execute(sipMessage.getCallId().getCallId(), new Runnable() {
+                public void run() {
+                    try {
+                        channel.processMessage(sipMessage);
+                    } catch (Exception ex) {
+                        sipStack.getStackLogger().logError(
+                                "Error while processing incoming UDP message", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logDebug(
+                        "Call-ID shards stopped -- dropping message");
+        }
     }
 
     /**
@@ -627,6 +672,7 @@ public class UDPMessageChannel extends MessageChannel implements
         // is sent back to oursleves, just
         // shortcircuit processing.
         long time = System.currentTimeMillis();
+        byte[] msg = null;
         try {
             for (MessageProcessor messageProcessor : sipStack
                     .getMessageProcessors()) {
@@ -648,10 +694,11 @@ public class UDPMessageChannel extends MessageChannel implements
                 }
             }
 
-            byte[] msg = sipMessage.encodeAsBytes( this.getTransport() );
+            msg = encode(sipMessage);
 
             sendMessage(msg, peerAddress, peerPort, peerProtocol,
                     sipMessage instanceof SIPRequest);
+            messageSent(sipMessage);
 
         } catch (IOException ex) {
             throw ex;
@@ -661,7 +708,7 @@ public class UDPMessageChannel extends MessageChannel implements
                     "An exception occured while sending message");
         } finally {
             if (sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_MESSAGES) && !sipMessage.isNullRequest())
-                logMessage(sipMessage, peerAddress, peerPort, time);
+                logMessage(sipMessage, msg, peerAddress, peerPort, time);
             else if (sipStack.getStackLogger().isLoggingEnabled(ServerLogger.TRACE_DEBUG))
                 sipStack.getStackLogger().logDebug("Sent EMPTY Message");
         }
@@ -722,6 +769,9 @@ public class UDPMessageChannel extends MessageChannel implements
                 created = true;
             }
             sock.send(reply);
+            if (sipStack.pcapCapture != null)
+                sipStack.pcapCapture.captureDatagram(messageProcessor.getIpAddress(),
+                        sock.getLocalPort(), peerAddress, peerPort, msg, 0, msg.length);
             if (created)
                 sock.close();
         } catch (IOException ex) {
@@ -780,6 +830,9 @@ public class UDPMessageChannel extends MessageChannel implements
                             + "\n" + new String(msg));
                 }
                 sock.send(reply);
+                if (sipStack.pcapCapture != null)
+                    sipStack.pcapCapture.captureDatagram(messageProcessor.getIpAddress(),
+                            sock.getLocalPort(), peerAddress, peerPort, msg, 0, msg.length);
                 if (!sipStack.udpFlag)
                     sock.close();
             } catch (IOException ex) {
@@ -30,6 +30,10 @@ package gov.nist.javax.sip.stack;
 
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.*;
 
 import gov.nist.core.*;
@@ -62,9 +66,22 @@ public class UDPMessageProcessor extends MessageProcessor {
     private int port;
 
     /**
-     * Incoming messages are queued here.
+     * Incoming messages are queued here. Receiver threads add to it and the
+     * pooled UDPMessageChannel threads take from it without locking.
      */
-    protected LinkedList messageQueue;
+    protected ConcurrentLinkedQueue<DatagramPacket> messageQueue;
+
+    /**
+     * Number of messages in the queue. A slot is reserved here before a
+     * message is queued, which bounds the queue.
+     */
+    private AtomicInteger messageQueueSize;
+
+    /**
+     * One permit per queued message. The pooled threads block on it when the
+     * queue is empty.
+     */
+    private Semaphore messagesAvailable;
 
     /**
      * A list of message channels that we have started.
@@ -82,7 +99,7 @@ public class UDPMessageProcessor extends MessageProcessor {
      * A flag that is set to false to exit the message processor (suggestion by
      * Jeff Keyser).
      */
-    protected boolean isRunning;
+    protected volatile boolean isRunning;
     
     private static final int HIGHWAT=5000;
     
@@ -100,7 +117,9 @@ public class UDPMessageProcessor extends MessageProcessor {
 
         this.sipStack = sipStack;
 
-        this.messageQueue = new LinkedList();
+        this.messageQueue = new ConcurrentLinkedQueue<DatagramPacket>();
+        this.messageQueueSize = new AtomicInteger(0);
+        this.messagesAvailable = new Semaphore(0);
 
         this.port = port;
         try {
@@ -143,26 +162,12 @@ public class UDPMessageProcessor extends MessageProcessor {
     }
 
     /**
-     * Start our processor thread.
+     * Start our processor threads.
      */
     public void start() throws IOException {
 
 
         this.isRunning = true;
-        Thread thread = new Thread(this);
-        thread.setDaemon(true);
-        // Issue #32 on java.net
-        thread.setName("UDPMessageProcessorThread");
-        // Issue #184
-        thread.setPriority(Thread.MAX_PRIORITY);
-        thread.start();
-    }
-
-    /**
-     * Thread main routine.
-     */
-    public void run() {
-        // Check for running flag.
         this.messageChannels = new LinkedList();
         // start all our messageChannels (unless the thread pool size is
         // infinity.
@@ -174,10 +179,29 @@ public class UDPMessageProcessor extends MessageProcessor {
 
             }
         }
+        for (int i = 0; i < sipStack.udpReceiverThreads; i++) {
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            // Issue #32 on java.net
+            thread.setName("UDPMessageProcessorThread");
+            // Issue #184
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+    }
 
+    /**
+     * Thread main routine.
+     */
+    public void run() {
         // Ask the auditor to monitor this thread
         ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
 
+        // The receive buffer is reused for every datagram read by this
+        // thread, only the bytes of the datagram are copied out of it.
+        byte[] receiveBuffer = null;
+        DatagramPacket receivePacket = null;
+
         // Somebody asked us to exit. if isRunnning is set to false.
         while (this.isRunning) {
 
@@ -185,60 +209,71 @@ public class UDPMessageProcessor extends MessageProcessor {
                 // Let the thread auditor know we're up and running
                 threadHandle.ping();
 
-                int bufsize = sock.getReceiveBufferSize();
-                byte message[] = new byte[bufsize];
-                DatagramPacket packet = new DatagramPacket(message, bufsize);
-                sock.receive(packet);
+                if (receiveBuffer == null) {
+                    int bufsize = sock.getReceiveBufferSize();
+                    receiveBuffer = new byte[bufsize];
+                    receivePacket = new DatagramPacket(receiveBuffer, bufsize);
+                }
+                receivePacket.setData(receiveBuffer);
+                sock.receive(receivePacket);
 
            
              
              // This is a simplistic congestion control algorithm.
              // It accepts packets if queuesize is < LOWAT. It drops
-             // requests if the queue size exceeds a HIGHWAT and accepts
+             // messages if the queue size exceeds a HIGHWAT and drops
              // requests with probability p proportional to the difference
              // between current queue size and LOWAT in the range
-             // of queue sizes between HIGHWAT and LOWAT.
-             // TODO -- penalize spammers by looking at the source
-             // port and IP address.
+             // of queue sizes between HIGHWAT and LOWAT. Responses are
+             // kept in that range since they finish transactions we
+             // already hold, and requests from sources over their rate
+             // (see AdmissionControl) are dropped first.
+             int queueSize = this.messageQueueSize.get();
              if ( sipStack.stackDoesCongestionControl ) {  
-             if ( this.messageQueue.size() >= HIGHWAT) {
+             if ( queueSize >= HIGHWAT) {
                     if (sipStack.isLoggingEnabled()) {
                         sipStack.getStackLogger().logDebug("Dropping message -- queue length exceeded");
 
                     }
                     //System.out.println("HIGHWAT Drop!");
+                    sipStack.getStackMetrics().getUdpDrops().increment();
                     continue;
-                } else if ( this.messageQueue.size() > LOWAT && this .messageQueue.size() < HIGHWAT ) {
+                } else if ( queueSize > LOWAT && queueSize < HIGHWAT
+                        && !isResponse(receiveBuffer, receivePacket.getOffset(),
+                                receivePacket.getLength())) {
                     // Drop the message with a probabilty that is linear in the range 0 to 1
-                    float threshold = ((float)(messageQueue.size() - LOWAT))/ ((float)(HIGHWAT - LOWAT));
-                    boolean decision = Math.random() > 1.0 - threshold;
+                    float threshold = ((float)(queueSize - LOWAT))/ ((float)(HIGHWAT - LOWAT));
+                    boolean decision = sipStack.admissionControl.isOverRate(receivePacket.getAddress())
+                            || Math.random() > 1.0 - threshold;
                     if ( decision ) {
                         if (sipStack.isLoggingEnabled()) {
                             sipStack.getStackLogger().logDebug("Dropping message with probability  " + (1.0 - threshold));
 
                         }
                         //System.out.println("RED Drop!");
+                        sipStack.getStackMetrics().getUdpDrops().increment();
                         continue;
                     }
 
                 }
              }
                 
-                
+                int length = receivePacket.getLength();
+                byte[] message = new byte[length];
+                System.arraycopy(receiveBuffer, receivePacket.getOffset(), message, 0, length);
+                DatagramPacket packet = new DatagramPacket(message, length,
+                        receivePacket.getAddress(), receivePacket.getPort());
                 
                 // Count of # of packets in process.
                 // this.useCount++;
                 if (sipStack.threadPoolSize != -1) {
-                    // Note: the only condition watched for by threads
-                    // synchronizing on the messageQueue member is that it is
-                    // not empty. As soon as you introduce some other
-                    // condition you will have to call notifyAll instead of
-                    // notify below.
-
-                    synchronized (this.messageQueue) {
-                        // was addLast
-                        this.messageQueue.add(packet);
-                        this.messageQueue.notify();
+                    int capacity = sipStack.stackDoesCongestionControl ? HIGHWAT
+                            : Integer.MAX_VALUE;
+                    if (!this.offerMessage(packet, capacity)) {
+                        sipStack.getStackMetrics().getUdpDrops().increment();
+                        if (sipStack.isLoggingEnabled()) {
+                            sipStack.getStackLogger().logDebug("Dropping message -- queue length exceeded");
+                        }
                     }
                 } else {
                     new UDPMessageChannel(sipStack, this, packet);
@@ -250,11 +285,7 @@ public class UDPMessageProcessor extends MessageProcessor {
                     getSIPStack().getStackLogger()
                             .logDebug("UDPMessageProcessor: Stopping");
                 isRunning = false;
-                // The notifyAll should be in a synchronized block.
-                // ( bug report by Niklas Uhrberg ).
-                synchronized (this.messageQueue) {
-                    this.messageQueue.notifyAll();
-                }
+                this.wakeUpMessageChannels();
             } catch (IOException ex) {
                 isRunning = false;
                 ex.printStackTrace();
@@ -272,17 +303,76 @@ public class UDPMessageProcessor extends MessageProcessor {
     }
 
     /**
-     * Shut down the message processor. Close the socket for recieving incoming
-     * messages.
+     * @return true if the datagram holds a response, by its first bytes.
      */
-    public void stop() {
-        synchronized (this.messageQueue) {
-            this.isRunning = false;
-            this.messageQueue.notifyAll();
-            sock.close();
+    private static boolean isResponse(byte[] buffer, int offset, int length) {
+        return length > 4 && buffer[offset] == 'S' && buffer[offset + 1] == 'I'
+                && buffer[offset + 2] == 'P' && buffer[offset + 3] == '/';
+    }
 
+    /**
+     * Queue a message for the thread pool.
+     *
+     * @param packet -- the message.
+     * @param capacity -- max number of queued messages.
+     * @return false if the queue is full.
+     */
+    private boolean offerMessage(DatagramPacket packet, int capacity) {
+        while (true) {
+            int size = this.messageQueueSize.get();
+            if (size >= capacity)
+                return false;
+            if (this.messageQueueSize.compareAndSet(size, size + 1))
+                break;
+        }
+        this.messageQueue.offer(packet);
+        this.messagesAvailable.release();
+        return true;
+    }
 
+    /**
+     * @return the number of messages waiting for a thread of the pool.
+     */
+    int getMessageQueueSize() {
+        return this.messageQueueSize.get();
+    }
+
+    /**
+     * Take the next message off the queue, waiting for one if needed.
+     *
+     * @param timeout -- max time to wait in milliseconds, 0 to wait until a
+     *            message comes in or the processor is stopped.
+     * @return the message, or null on timeout or when the processor is stopped.
+     */
+    protected DatagramPacket takeMessage(long timeout) throws InterruptedException {
+        if (timeout > 0) {
+            if (!this.messagesAvailable.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                return null;
+        } else {
+            this.messagesAvailable.acquire();
         }
+        DatagramPacket packet = this.messageQueue.poll();
+        if (packet != null)
+            this.messageQueueSize.decrementAndGet();
+        return packet;
+    }
+
+    /*
+     * Let the pooled threads see that we are stopping.
+     */
+    private void wakeUpMessageChannels() {
+        int n = this.messageChannels != null ? this.messageChannels.size() : 0;
+        this.messagesAvailable.release(n + 1);
+    }
+
+    /**
+     * Shut down the message processor. Close the socket for recieving incoming
+     * messages.
+     */
+    public void stop() {
+        this.isRunning = false;
+        this.wakeUpMessageChannels();
+        sock.close();
     }
 
     /**
@@ -342,9 +432,7 @@ public class UDPMessageProcessor extends MessageProcessor {
      * Return true if there are any messages in use.
      */
     public boolean inUse() {
-        synchronized (messageQueue) {
-            return messageQueue.size() != 0;
-        }
+        return messageQueueSize.get() != 0;
     }
 
 }
@@ -0,0 +1,54 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.replication;
+
+import javax.sip.Dialog;
+
+/**
+ * Turns the application data of a dialog into bytes for its snapshot and back. The stack does
+ * not know what the application attaches to its dialogs, so without a serializer the
+ * application data is not replicated. Set with SIPTransactionStack.setApplicationDataSerializer.
+ */
+public interface ApplicationDataSerializer {
+
+    /**
+     * @param dialog -- the dialog being stored.
+     * @param applicationData -- its application data, never null.
+     * @return the bytes to store, or null to store none.
+     */
+    byte[] serialize(Dialog dialog, Object applicationData);
+
+    /**
+     * @param dialog -- the dialog being restored.
+     * @param data -- the bytes returned by serialize.
+     * @return the application data to set on the restored dialog.
+     */
+    Object deserialize(Dialog dialog, byte[] data);
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The records the dialog stores write to their file or replication stream. The stream starts
+ * with a magic number and a version, followed by records that each start with an operation
+ * byte: PUT (dialog id, snapshot length, snapshot), REMOVE (dialog id) or RESET, which drops
+ * every dialog stored so far.
+ */
+final class DialogRecord {
+
+    static final int MAGIC = 0x4e444c47; // "NDLG"
+
+    static final int VERSION = 1;
+
+    static final int PUT = 1;
+
+    static final int REMOVE = 2;
+
+    static final int RESET = 3;
+
+    /*
+     * Larger snapshots can only come from a corrupt stream.
+     */
+    private static final int MAX_SNAPSHOT_LENGTH = 1 << 20;
+
+    final int operation;
+
+    final String dialogId;
+
+    final byte[] snapshot;
+
+    private DialogRecord(int operation, String dialogId, byte[] snapshot) {
+        this.operation = operation;
+        this.dialogId = dialogId;
+        this.snapshot = snapshot;
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * @throws IOException if the stream was not written by a dialog store of this version.
+     */
+    static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a dialog store stream");
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported dialog store version " + version);
+    }
+
+    static void writePut(DataOutputStream out, String dialogId, byte[] snapshot)
+            throws IOException {
+        out.writeByte(PUT);
+        out.writeUTF(dialogId);
+        out.writeInt(snapshot.length);
+        out.write(snapshot);
+    }
+
+    static void writeRemove(DataOutputStream out, String dialogId) throws IOException {
+        out.writeByte(REMOVE);
+        out.writeUTF(dialogId);
+    }
+
+    static void writeReset(DataOutputStream out) throws IOException {
+        out.writeByte(RESET);
+    }
+
+    /**
+     * Read the next record.
+     * 
+     * @return the record or null at the end of the stream.
+     * @throws java.io.EOFException if the stream ends inside a record.
+     */
+    static DialogRecord read(DataInputStream in) throws IOException {
+        int operation = in.read();
+        switch (operation) {
+        case -1:
+            return null;
+        case PUT:
+            String dialogId = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_SNAPSHOT_LENGTH)
+                throw new IOException("Bad dialog snapshot length " + length);
+            byte[] snapshot = new byte[length];
+            in.readFully(snapshot);
+            return new DialogRecord(PUT, dialogId, snapshot);
+        case REMOVE:
+            return new DialogRecord(REMOVE, in.readUTF(), null);
+        case RESET:
+            return new DialogRecord(RESET, null, null);
+        default:
+            throw new IOException("Bad dialog record " + operation);
+        }
+    }
+
+    /**
+     * Apply this record to a map of snapshots keyed by dialog id.
+     */
+    void applyTo(Map<String, byte[]> snapshots) {
+        if (operation == PUT)
+            snapshots.put(dialogId, snapshot);
+        else if (operation == REMOVE)
+            snapshots.remove(dialogId);
+        else
+            snapshots.clear();
+    }
+}
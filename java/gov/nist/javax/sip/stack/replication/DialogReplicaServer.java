@@ -0,0 +1,156 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.replication;
+
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The standby side of warm-standby replication: accepts the stream of a {@link TcpDialogStore}
+ * and keeps the latest snapshot of each dialog of the primary node, ready for
+ * SIPTransactionStack.restoreDialogs when the standby takes over. One primary is served at a
+ * time; the snapshots are kept when it disconnects and replaced when it reconnects. Dialogs
+ * the standby itself stores after the takeover go to the same map.
+ * <p>
+ * It listens on the host:port given by the gov.nist.javax.sip.DIALOG_REPLICA_ADDRESS stack
+ * property.
+ */
+public class DialogReplicaServer implements DialogStore {
+
+    private SIPTransactionStack sipStack;
+
+    private final Map<String, byte[]> snapshots = new HashMap<String, byte[]>();
+
+    private ServerSocket serverSocket;
+
+    private Socket connection;
+
+    private volatile boolean started;
+
+    public void start(SIPTransactionStack sipStack, Properties configurationProperties)
+            throws IOException {
+        this.sipStack = sipStack;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(TcpDialogStore.getReplicaAddress(configurationProperties), 1);
+        this.started = true;
+        Thread thread = new Thread(new Receiver());
+        thread.setName("DialogReplicaThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void put(String dialogId, byte[] snapshot) {
+        snapshots.put(dialogId, snapshot);
+    }
+
+    public synchronized void remove(String dialogId) {
+        snapshots.remove(dialogId);
+    }
+
+    public synchronized Map<String, byte[]> load() {
+        return new HashMap<String, byte[]>(snapshots);
+    }
+
+    public void stop() {
+        if (!started)
+            return;
+        started = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // Nothing to release.
+        }
+        synchronized (this) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException ex) {
+                    // Nothing to release.
+                }
+            }
+        }
+    }
+
+    private class Receiver implements Runnable {
+
+        public void run() {
+            while (started) {
+                Socket s;
+                try {
+                    s = serverSocket.accept();
+                } catch (IOException ex) {
+                    if (started && sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logException(ex);
+                    break;
+                }
+                synchronized (DialogReplicaServer.this) {
+                    connection = s;
+                }
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logDebug(
+                            "Receiving dialogs from " + s.getRemoteSocketAddress());
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s
+                            .getInputStream()));
+                    DialogRecord.readHeader(in);
+                    DialogRecord record;
+                    while ((record = DialogRecord.read(in)) != null) {
+                        synchronized (DialogReplicaServer.this) {
+                            record.applyTo(snapshots);
+                        }
+                    }
+                } catch (IOException ex) {
+                    if (started && sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logWarning(
+                                "Lost the dialog replication stream from "
+                                        + s.getRemoteSocketAddress() + ": " + ex.getMessage());
+                } finally {
+                    synchronized (DialogReplicaServer.this) {
+                        connection = null;
+                    }
+                    try {
+                        s.close();
+                    } catch (IOException ex) {
+                        // Nothing to release.
+                    }
+                }
+            }
+        }
+    }
+
+}
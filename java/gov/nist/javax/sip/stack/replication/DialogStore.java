@@ -0,0 +1,90 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.replication;
+
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Where the stack keeps the snapshots of its confirmed dialogs so that another node can take
+ * them over. The stack puts a new snapshot each time the state of a confirmed dialog changes
+ * and removes it when the dialog terminates; a standby node loads the snapshots and restores
+ * the dialogs with SIPTransactionStack.restoreDialogs. The snapshots are opaque to the store.
+ * The implementation used by a stack is set with the gov.nist.javax.sip.DIALOG_STORE_CLASS_NAME
+ * stack property and must have a public no argument constructor.
+ * <p>
+ * put and remove are called on the threads that process the messages of the dialogs, with the
+ * lock of the dialog held, so they must not do I/O themselves: a store records the change and
+ * writes it from a thread of its own. Calls for the same dialog are never concurrent.
+ * 
+ * @see FileDialogStore
+ * @see TcpDialogStore
+ * @see DialogReplicaServer
+ */
+public interface DialogStore {
+
+    /**
+     * Start the store. Called once by the stack before anything is stored.
+     * 
+     * @param sipStack -- the stack that owns this store.
+     * @param configurationProperties -- the stack configuration properties.
+     * @throws IOException if the store cannot be opened.
+     */
+    void start(SIPTransactionStack sipStack, Properties configurationProperties)
+            throws IOException;
+
+    /**
+     * Store the latest snapshot of a dialog, replacing the previous one.
+     * 
+     * @param dialogId -- the id of the dialog.
+     * @param snapshot -- the encoded snapshot.
+     */
+    void put(String dialogId, byte[] snapshot) throws IOException;
+
+    /**
+     * Forget a dialog.
+     * 
+     * @param dialogId -- the id of the dialog.
+     */
+    void remove(String dialogId) throws IOException;
+
+    /**
+     * @return the latest snapshot of each stored dialog keyed by dialog id.
+     */
+    Map<String, byte[]> load() throws IOException;
+
+    /**
+     * Stop the store and release its file or connections.
+     */
+    void stop();
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.replication;
+
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A dialog store that appends each change to a local file, for restarting a node on the dialogs
+ * it had or for a standby that shares its disk. put and remove never touch the file; like the
+ * {@link TcpDialogStore} they record which dialog changed and a writer thread appends the
+ * current snapshot of the changed dialogs and flushes them to the operating system, so a dialog
+ * that changes several times while the writer is busy is written once. The file is not forced to
+ * the disk, and the changes the writer had not got to yet are lost if the process dies; a clean
+ * stop writes them out. The file is read back and rewritten with only the live dialogs when the
+ * store starts, and again whenever it holds many more records than dialogs. If the process died
+ * in the middle of a record, that record is dropped.
+ * <p>
+ * The file is named by the gov.nist.javax.sip.DIALOG_STORE_FILE stack property, sipdialogs.dat
+ * by default.
+ */
+public class FileDialogStore implements DialogStore {
+
+    /*
+     * The file is compacted when it holds this many records more than twice the live dialogs.
+     */
+    private static final int COMPACTION_SLACK = 1000;
+
+    private SIPTransactionStack sipStack;
+
+    private File file;
+
+    /*
+     * The live snapshots and the dialogs changed since the writer last looked, guarded by this.
+     */
+    private final Map<String, byte[]> snapshots = new HashMap<String, byte[]>();
+
+    private final LinkedHashSet<String> changed = new LinkedHashSet<String>();
+
+    private boolean started;
+
+    private Thread writerThread;
+
+    /*
+     * Only touched by the writer thread once it is started.
+     */
+    private DataOutputStream out;
+
+    private int records;
+
+    public synchronized void start(SIPTransactionStack sipStack,
+            Properties configurationProperties) throws IOException {
+        this.sipStack = sipStack;
+        this.file = new File(configurationProperties.getProperty(
+                "gov.nist.javax.sip.DIALOG_STORE_FILE", "sipdialogs.dat"));
+        if (file.exists())
+            replay();
+        compact(new HashMap<String, byte[]>(snapshots));
+        this.started = true;
+        this.writerThread = new Thread(new Writer());
+        this.writerThread.setName("DialogStoreWriterThread");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    private void replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            DialogRecord.readHeader(in);
+            DialogRecord record;
+            while ((record = DialogRecord.read(in)) != null)
+                record.applyTo(snapshots);
+        } catch (EOFException ex) {
+            if (sipStack.isLoggingEnabled())
+                sipStack.getStackLogger().logWarning(
+                        "Dropping the truncated last record of " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rewrite the file with one record per live dialog and reopen it for appending.
+     */
+    private void compact(Map<String, byte[]> live) throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            DialogRecord.writeHeader(tmpOut);
+            for (Map.Entry<String, byte[]> entry : live.entrySet())
+                DialogRecord.writePut(tmpOut, entry.getKey(), entry.getValue());
+        } finally {
+            tmpOut.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException("Could not replace " + file);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        records = live.size();
+    }
+
+    public synchronized void put(String dialogId, byte[] snapshot) throws IOException {
+        if (!started)
+            throw new IOException("Dialog store is stopped");
+        snapshots.put(dialogId, snapshot);
+        changed.add(dialogId);
+        notify();
+    }
+
+    public synchronized void remove(String dialogId) throws IOException {
+        if (!started)
+            throw new IOException("Dialog store is stopped");
+        if (snapshots.remove(dialogId) == null)
+            return;
+        changed.add(dialogId);
+        notify();
+    }
+
+    public synchronized Map<String, byte[]> load() {
+        return new HashMap<String, byte[]>(snapshots);
+    }
+
+    /**
+     * Stop taking changes, wait for the writer to write out the pending ones and close the file.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!started)
+                return;
+            started = false;
+            notify();
+            thread = writerThread;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        public void run() {
+            boolean failed = false;
+            while (true) {
+                String[] dialogIds;
+                byte[][] values;
+                Map<String, byte[]> live = null;
+                synchronized (FileDialogStore.this) {
+                    while (changed.isEmpty() && started) {
+                        try {
+                            FileDialogStore.this.wait();
+                        } catch (InterruptedException ex) {
+                            // Only stop ends the writer.
+                        }
+                    }
+                    if (changed.isEmpty())
+                        break;
+                    dialogIds = changed.toArray(new String[changed.size()]);
+                    values = new byte[dialogIds.length][];
+                    for (int i = 0; i < dialogIds.length; i++)
+                        values[i] = snapshots.get(dialogIds[i]);
+                    changed.clear();
+                    if (failed || records + dialogIds.length > 2 * snapshots.size()
+                            + COMPACTION_SLACK)
+                        live = new HashMap<String, byte[]>(snapshots);
+                }
+                try {
+                    if (live != null) {
+                        // The copy already holds the changes.
+                        compact(live);
+                    } else {
+                        for (int i = 0; i < dialogIds.length; i++) {
+                            if (values[i] != null)
+                                DialogRecord.writePut(out, dialogIds[i], values[i]);
+                            else
+                                DialogRecord.writeRemove(out, dialogIds[i]);
+                        }
+                        out.flush();
+                        records += dialogIds.length;
+                    }
+                    failed = false;
+                } catch (IOException ex) {
+                    // Rewrite the whole file with the next change.
+                    failed = true;
+                    if (sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logError(
+                                "Could not write dialogs to " + file, ex);
+                }
+            }
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logException(ex);
+            }
+            out = null;
+        }
+    }
+
+}
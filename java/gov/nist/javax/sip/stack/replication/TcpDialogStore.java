@@ -0,0 +1,219 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.replication;
+
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The primary side of warm-standby replication: keeps the latest snapshot of each dialog in
+ * memory and streams the changes over TCP to a {@link DialogReplicaServer} on the standby node.
+ * put and remove never block on the network; they record which dialog changed and a sender
+ * thread writes the current snapshot of the changed dialogs, so a dialog that changes several
+ * times while the connection is busy is sent once. When the connection is lost the sender
+ * reconnects every second and starts again with the full set of dialogs, so the replica never
+ * misses a change, whatever was in flight.
+ * <p>
+ * The replica is at the host:port given by the gov.nist.javax.sip.DIALOG_REPLICA_ADDRESS stack
+ * property.
+ */
+public class TcpDialogStore implements DialogStore {
+
+    private static final long RECONNECT_INTERVAL = 1000;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private SIPTransactionStack sipStack;
+
+    private InetSocketAddress replicaAddress;
+
+    private final Map<String, byte[]> snapshots = new ConcurrentHashMap<String, byte[]>();
+
+    /*
+     * Dialogs changed since they were last sent, guarded by this.
+     */
+    private final LinkedHashSet<String> changed = new LinkedHashSet<String>();
+
+    private Socket socket;
+
+    private Thread senderThread;
+
+    private volatile boolean started;
+
+    /**
+     * Parse the gov.nist.javax.sip.DIALOG_REPLICA_ADDRESS property.
+     */
+    static InetSocketAddress getReplicaAddress(Properties configurationProperties) {
+        String address = configurationProperties
+                .getProperty("gov.nist.javax.sip.DIALOG_REPLICA_ADDRESS");
+        int colon = address == null ? -1 : address.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("Bad DIALOG_REPLICA_ADDRESS " + address);
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        try {
+            return new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad DIALOG_REPLICA_ADDRESS " + address, ex);
+        }
+    }
+
+    public void start(SIPTransactionStack sipStack, Properties configurationProperties) {
+        this.sipStack = sipStack;
+        this.replicaAddress = getReplicaAddress(configurationProperties);
+        this.started = true;
+        this.senderThread = new Thread(new Sender());
+        this.senderThread.setName("DialogReplicationThread");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+    }
+
+    public void put(String dialogId, byte[] snapshot) {
+        snapshots.put(dialogId, snapshot);
+        changed(dialogId);
+    }
+
+    public void remove(String dialogId) {
+        if (snapshots.remove(dialogId) != null)
+            changed(dialogId);
+    }
+
+    private synchronized void changed(String dialogId) {
+        changed.add(dialogId);
+        notify();
+    }
+
+    public Map<String, byte[]> load() {
+        return new HashMap<String, byte[]>(snapshots);
+    }
+
+    public void stop() {
+        if (!started)
+            return;
+        started = false;
+        senderThread.interrupt();
+        closeSocket();
+    }
+
+    private synchronized void closeSocket() {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Already broken.
+        }
+        socket = null;
+    }
+
+    /**
+     * Connect to the replica and send it every dialog.
+     */
+    private DataOutputStream connect() throws IOException {
+        Socket s = new Socket();
+        s.connect(replicaAddress, CONNECT_TIMEOUT);
+        s.setTcpNoDelay(true);
+        synchronized (this) {
+            if (!started) {
+                s.close();
+                throw new IOException("Dialog store is stopped");
+            }
+            this.socket = s;
+            // The full resend below covers them.
+            changed.clear();
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s
+                .getOutputStream()));
+        DialogRecord.writeHeader(out);
+        DialogRecord.writeReset(out);
+        for (Map.Entry<String, byte[]> entry : snapshots.entrySet())
+            DialogRecord.writePut(out, entry.getKey(), entry.getValue());
+        out.flush();
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "Replicating dialogs to " + replicaAddress);
+        return out;
+    }
+
+    private class Sender implements Runnable {
+
+        public void run() {
+            while (started) {
+                try {
+                    DataOutputStream out = connect();
+                    while (started) {
+                        String[] dialogIds;
+                        synchronized (TcpDialogStore.this) {
+                            while (changed.isEmpty())
+                                TcpDialogStore.this.wait();
+                            dialogIds = changed.toArray(new String[changed.size()]);
+                            changed.clear();
+                        }
+                        for (String dialogId : dialogIds) {
+                            byte[] snapshot = snapshots.get(dialogId);
+                            if (snapshot != null)
+                                DialogRecord.writePut(out, dialogId, snapshot);
+                            else
+                                DialogRecord.writeRemove(out, dialogId);
+                        }
+                        out.flush();
+                    }
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (IOException ex) {
+                    closeSocket();
+                    if (!started)
+                        break;
+                    if (sipStack.isLoggingEnabled())
+                        sipStack.getStackLogger().logWarning(
+                                "Cannot replicate dialogs to " + replicaAddress + ": "
+                                        + ex.getMessage());
+                    try {
+                        Thread.sleep(RECONNECT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            closeSocket();
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.timers;
+
+import gov.nist.core.LatencyHistogram;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A SipTimer backed by a java.util.Timer. All tasks are run one after the other on the single
+ * timer thread. This is how the stack used to schedule its timers; it can be selected by setting
+ * gov.nist.javax.sip.TIMER_CLASS_NAME to this class.
+ * 
+ */
+public class DefaultSipTimer extends Timer implements SipTimer {
+
+    private volatile boolean started;
+
+    private LatencyHistogram timerLag;
+
+    /**
+     * The java.util.TimerTask that runs a SIPStackTimerTask.
+     */
+    private static class DefaultTimerTask extends TimerTask {
+        private SIPStackTimerTask task;
+
+        private LatencyHistogram timerLag;
+
+        public DefaultTimerTask(SIPStackTimerTask task, LatencyHistogram timerLag) {
+            this.task = task;
+            this.timerLag = timerLag;
+        }
+
+        public void run() {
+            SIPStackTimerTask task = this.task;
+            if (task != null) {
+                if (timerLag != null)
+                    timerLag.record((System.currentTimeMillis() - scheduledExecutionTime()) * 1000000);
+                task.run();
+            }
+        }
+
+        public boolean cancel() {
+            boolean retval = super.cancel();
+            this.task = null;
+            return retval;
+        }
+    }
+
+    public DefaultSipTimer() {
+        super();
+    }
+
+    public boolean schedule(SIPStackTimerTask task, long delay) {
+        if (!started)
+            return false;
+        TimerTask timerTask = new DefaultTimerTask(task, timerLag);
+        task.setSipTimerTask(this, timerTask);
+        try {
+            super.schedule(timerTask, delay);
+        } catch (IllegalStateException ex) {
+            // The timer was stopped concurrently.
+            return false;
+        }
+        return true;
+    }
+
+    public boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay, long period) {
+        if (!started)
+            return false;
+        TimerTask timerTask = new DefaultTimerTask(task, timerLag);
+        task.setSipTimerTask(this, timerTask);
+        try {
+            super.schedule(timerTask, delay, period);
+        } catch (IllegalStateException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    public boolean cancel(SIPStackTimerTask task) {
+        Object timerTask = task.getSipTimerTask();
+        if (timerTask instanceof DefaultTimerTask)
+            return ((DefaultTimerTask) timerTask).cancel();
+        return false;
+    }
+
+    public void start(SIPTransactionStack sipStack, Properties configurationProperties) {
+        this.timerLag = sipStack.getStackMetrics().getTimerLag();
+        this.started = true;
+    }
+
+    public void stop() {
+        this.started = false;
+        super.cancel();
+    }
+
+    public boolean isStarted() {
+        return this.started;
+    }
+
+}
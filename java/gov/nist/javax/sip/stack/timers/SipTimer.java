@@ -0,0 +1,92 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.timers;
+
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.util.Properties;
+
+/**
+ * The timer service of the stack. All the transaction, dialog and connection timers of the stack
+ * are scheduled through this interface. The implementation used by a stack is set with the
+ * gov.nist.javax.sip.TIMER_CLASS_NAME stack property and must have a public no argument
+ * constructor.
+ * 
+ * @see TimingWheelSipTimer
+ * @see DefaultSipTimer
+ */
+public interface SipTimer {
+
+    /**
+     * Schedule a task for a single execution after the given delay.
+     * 
+     * @param task -- the task to run.
+     * @param delay -- delay in milliseconds before the task is run.
+     * @return false if the timer is stopped and the task was not scheduled.
+     */
+    boolean schedule(SIPStackTimerTask task, long delay);
+
+    /**
+     * Schedule a task for repeated fixed-delay execution, starting after the given delay.
+     * 
+     * @param task -- the task to run.
+     * @param delay -- delay in milliseconds before the task is run the first time.
+     * @param period -- time in milliseconds between the end of a run and the next one.
+     * @return false if the timer is stopped and the task was not scheduled.
+     */
+    boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay, long period);
+
+    /**
+     * Cancel a scheduled task.
+     * 
+     * @param task -- the task to cancel.
+     * @return true if this prevented one or more executions of the task.
+     */
+    boolean cancel(SIPStackTimerTask task);
+
+    /**
+     * Start the timer. Called once by the stack before anything is scheduled.
+     * 
+     * @param sipStack -- the stack that owns this timer.
+     * @param configurationProperties -- the stack configuration properties.
+     */
+    void start(SIPTransactionStack sipStack, Properties configurationProperties);
+
+    /**
+     * Stop the timer. Tasks that have not run yet are discarded.
+     */
+    void stop();
+
+    /**
+     * @return true if the timer is started and not yet stopped.
+     */
+    boolean isStarted();
+
+}
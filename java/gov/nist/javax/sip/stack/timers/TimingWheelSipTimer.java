@@ -0,0 +1,402 @@
+/*
+ * Conditions Of Use 
+ * 
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *  
+ * .
+ * 
+ */
+/******************************************************************************
+ * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).      *
+ ******************************************************************************/
+package gov.nist.javax.sip.stack.timers;
+
+import gov.nist.core.LatencyHistogram;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A SipTimer built on a hashed timing wheel (Varghese and Lauck). The wheel is an array of
+ * buckets, each one covering one tick. A task goes in the bucket of the tick in which it expires,
+ * tasks more than one revolution away carry a count of remaining rounds. Scheduling and
+ * cancelling are O(1) whatever the number of pending timers, unlike the binary heap of
+ * java.util.Timer.
+ * 
+ * <p>
+ * A single wheel thread advances the wheel once per tick and hands the expired tasks to a pool of
+ * threads, so a slow task does not hold up the other timers. Scheduling and cancelling threads
+ * never touch the wheel, they queue their request for the wheel thread. Cancelled tasks are taken
+ * off the wheel on the next tick rather than when they would have expired.
+ * 
+ * <p>
+ * The following stack properties are read:
+ * <ul>
+ * <li>gov.nist.javax.sip.TIMER_THREADS -- number of threads running the expired tasks (default
+ * the number of processors).</li>
+ * <li>gov.nist.javax.sip.TIMER_TICK_MILLISECONDS -- the wheel resolution (default 10 ms).</li>
+ * </ul>
+ * 
+ */
+public class TimingWheelSipTimer implements SipTimer {
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int DEFAULT_TICK_MILLISECONDS = 10;
+
+    /*
+     * Bound the work done by the wheel thread in a single tick.
+     */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static final int ST_INIT = 0;
+
+    private static final int ST_RUNNING = 1;
+
+    private static final int ST_EXPIRED = 2;
+
+    private static final int ST_CANCELLED = 3;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER = AtomicIntegerFieldUpdater
+            .newUpdater(Timeout.class, "state");
+
+    private long tickDuration;
+
+    private Bucket[] wheel;
+
+    private int mask;
+
+    private ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    private ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    private ThreadPoolExecutor executor;
+
+    private Thread wheelThread;
+
+    private volatile boolean started;
+
+    private long startTime;
+
+    // Only accessed by the wheel thread.
+    private long tick;
+
+    private LatencyHistogram timerLag;
+
+    /**
+     * A scheduled task.
+     */
+    final class Timeout implements Runnable {
+        private SIPStackTimerTask task;
+
+        private final long period;
+
+        // Nanoseconds since the start of the timer.
+        private long deadline;
+
+        volatile int state = ST_INIT;
+
+        // The following are only accessed by the wheel thread.
+        private long remainingRounds;
+
+        private Bucket bucket;
+
+        private Timeout next;
+
+        private Timeout prev;
+
+        Timeout(SIPStackTimerTask task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        boolean cancel() {
+            for (;;) {
+                int s = this.state;
+                if (s == ST_INIT) {
+                    if (STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                        cancelledTimeouts.add(this);
+                        return true;
+                    }
+                } else if (s == ST_RUNNING && period > 0) {
+                    // Running right now, just prevent the next run.
+                    if (STATE_UPDATER.compareAndSet(this, ST_RUNNING, ST_CANCELLED))
+                        return true;
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        public void run() {
+            SIPStackTimerTask task = this.task;
+            if (task == null)
+                return;
+            if (timerLag != null)
+                timerLag.record(System.nanoTime() - startTime - deadline);
+            task.run();
+            if (period > 0) {
+                if (STATE_UPDATER.compareAndSet(this, ST_RUNNING, ST_INIT)) {
+                    this.deadline = System.nanoTime() - startTime
+                            + TimeUnit.MILLISECONDS.toNanos(period);
+                    pendingTimeouts.add(this);
+                }
+            } else {
+                STATE_UPDATER.compareAndSet(this, ST_RUNNING, ST_EXPIRED);
+                this.task = null;
+            }
+        }
+    }
+
+    /**
+     * The timeouts that expire in one tick of the wheel. Only accessed by the wheel thread.
+     */
+    final class Bucket {
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null)
+                timeout.prev.next = next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            if (timeout == head) {
+                if (timeout == tail) {
+                    head = tail = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (STATE_UPDATER.compareAndSet(timeout, ST_INIT, ST_RUNNING)) {
+                        try {
+                            executor.execute(timeout);
+                        } catch (RejectedExecutionException ex) {
+                            // Stopped.
+                            return;
+                        }
+                    }
+                } else if (timeout.state == ST_CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * The wheel thread.
+     */
+    class Worker implements Runnable {
+        public void run() {
+            while (started) {
+                long deadline = waitForNextTick();
+                if (deadline < 0)
+                    break;
+                processCancelledTimeouts();
+                transferPendingTimeouts();
+                wheel[(int) (tick & mask)].expire(deadline);
+                tick++;
+            }
+            pendingTimeouts.clear();
+            cancelledTimeouts.clear();
+        }
+
+        private long waitForNextTick() {
+            long deadline = tickDuration * (tick + 1);
+            for (;;) {
+                long currentTime = System.nanoTime() - startTime;
+                long sleepTime = (deadline - currentTime + 999999) / 1000000;
+                if (sleepTime <= 0)
+                    return currentTime;
+                try {
+                    Thread.sleep(sleepTime);
+                } catch (InterruptedException ex) {
+                    if (!started)
+                        return -1;
+                }
+            }
+        }
+
+        private void processCancelledTimeouts() {
+            for (;;) {
+                Timeout timeout = cancelledTimeouts.poll();
+                if (timeout == null)
+                    break;
+                if (timeout.bucket != null)
+                    timeout.bucket.remove(timeout);
+                timeout.task = null;
+            }
+        }
+
+        private void transferPendingTimeouts() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                Timeout timeout = pendingTimeouts.poll();
+                if (timeout == null)
+                    break;
+                if (timeout.state != ST_INIT)
+                    continue;
+                long calculated = timeout.deadline / tickDuration;
+                timeout.remainingRounds = (calculated - tick) / WHEEL_SIZE;
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+    }
+
+    public TimingWheelSipTimer() {
+        this.wheel = new Bucket[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            this.wheel[i] = new Bucket();
+        this.mask = WHEEL_SIZE - 1;
+    }
+
+    public boolean schedule(SIPStackTimerTask task, long delay) {
+        return add(task, delay, 0);
+    }
+
+    public boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay, long period) {
+        if (period <= 0)
+            throw new IllegalArgumentException("Non-positive period.");
+        return add(task, delay, period);
+    }
+
+    private boolean add(SIPStackTimerTask task, long delay, long period) {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative delay.");
+        if (!started)
+            return false;
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay);
+        Timeout timeout = new Timeout(task, deadline, period);
+        task.setSipTimerTask(this, timeout);
+        pendingTimeouts.add(timeout);
+        return true;
+    }
+
+    public boolean cancel(SIPStackTimerTask task) {
+        Object timeout = task.getSipTimerTask();
+        if (timeout instanceof Timeout)
+            return ((Timeout) timeout).cancel();
+        return false;
+    }
+
+    public void start(SIPTransactionStack sipStack, Properties configurationProperties) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long tickMillis = DEFAULT_TICK_MILLISECONDS;
+        String threadsProperty = configurationProperties
+                .getProperty("gov.nist.javax.sip.TIMER_THREADS");
+        if (threadsProperty != null) {
+            try {
+                threads = Integer.parseInt(threadsProperty);
+            } catch (NumberFormatException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logError(
+                            "TIMER_THREADS - bad value [" + threadsProperty + "]");
+            }
+        }
+        String tickProperty = configurationProperties
+                .getProperty("gov.nist.javax.sip.TIMER_TICK_MILLISECONDS");
+        if (tickProperty != null) {
+            try {
+                tickMillis = Long.parseLong(tickProperty);
+            } catch (NumberFormatException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.getStackLogger().logError(
+                            "TIMER_TICK_MILLISECONDS - bad value [" + tickProperty + "]");
+            }
+        }
+        if (threads < 1)
+            threads = 1;
+        if (tickMillis < 1)
+            tickMillis = 1;
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        thread.setName("SipTimerThread-" + threadCount.incrementAndGet());
+                        return thread;
+                    }
+                });
+        if (sipStack.isLoggingEnabled())
+            sipStack.getStackLogger().logDebug(
+                    "Starting timing wheel timer, tick = " + tickMillis + " ms, threads = "
+                            + threads);
+        this.timerLag = sipStack.getStackMetrics().getTimerLag();
+        this.startTime = System.nanoTime();
+        this.started = true;
+        this.wheelThread = new Thread(new Worker());
+        this.wheelThread.setName("SipTimerWheelThread");
+        this.wheelThread.start();
+    }
+
+    public void stop() {
+        if (!started)
+            return;
+        this.started = false;
+        this.wheelThread.interrupt();
+        this.executor.shutdown();
+        this.executor.getQueue().clear();
+    }
+
+    public boolean isStarted() {
+        return this.started;
+    }
+
+}